@@ -0,0 +1,98 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.domsutil.benchmarks;
+
+import dk.statsbiblioteket.doms.domsutil.surveillance.logappender.LogRegistry;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Status;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of reading from a log registry as the number of cached messages
+ * grows from 100 to 1M.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xmx2g"})
+public class GetStatusSinceBenchmark {
+    /** The registry implementation to measure. */
+    @Param({"dk.statsbiblioteket.doms.domsutil.surveillance.logappender.CachingLogRegistry",
+            "dk.statsbiblioteket.doms.domsutil.surveillance.logappender.RingBufferLogRegistry"})
+    public String registryClass;
+
+    /** Number of messages in the registry. */
+    @Param({"100", "1000", "10000", "100000", "1000000"})
+    public int size;
+
+    /** The registry under test. */
+    private LogRegistry registry;
+
+    /**
+     * Create and fill the registry.
+     *
+     * @throws Exception if the registry class cannot be instantiated.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        registry = Registries.create(registryClass, size);
+        Registries.fill(registry, size);
+    }
+
+    /**
+     * Get the whole cache, as getStatus does.
+     *
+     * @return The status.
+     */
+    @Benchmark
+    public Status all() {
+        return registry.getStatusSince(0L);
+    }
+
+    /**
+     * Get the newest 100 messages, as an incremental poll does.
+     *
+     * @return The status.
+     */
+    @Benchmark
+    public Status newest100() {
+        return registry.getStatusSince(size - 100);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.domsutil.benchmarks;
+
+import ch.qos.logback.classic.LoggerContext;
+import dk.statsbiblioteket.doms.domsutil.surveillance.logappender.LogStatusMessage;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Cost of creating a LogStatusMessage from log4j and logback events. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2)
+public class LogStatusMessageBenchmark {
+    /** A log4j event. */
+    private LoggingEvent log4jEvent;
+
+    /** A logback event with arguments. */
+    private ch.qos.logback.classic.spi.LoggingEvent logbackEvent;
+
+    /** Create the events. */
+    @Setup
+    public void setUp() {
+        log4jEvent = new LoggingEvent(
+                Logger.class.getName(),
+                Logger.getLogger(LogStatusMessageBenchmark.class),
+                System.currentTimeMillis(), Level.WARN,
+                "Unable to connect to fedora at http://localhost:7880/fedora",
+                null);
+        LoggerContext context = new LoggerContext();
+        logbackEvent = new ch.qos.logback.classic.spi.LoggingEvent(
+                ch.qos.logback.classic.Logger.class.getName(),
+                context.getLogger(LogStatusMessageBenchmark.class),
+                ch.qos.logback.classic.Level.WARN,
+                "Unable to connect to {} after {} attempts",
+                null, new Object[]{"http://localhost:7880/fedora", 3});
+    }
+
+    /** @return A message from a log4j event. */
+    @Benchmark
+    public LogStatusMessage log4j() {
+        return new LogStatusMessage(log4jEvent);
+    }
+
+    /** @return A message from a logback event, not rendered. */
+    @Benchmark
+    public LogStatusMessage logback() {
+        return new LogStatusMessage(logbackEvent);
+    }
+
+    /** @return A message from a logback event, rendered as when surveyed. */
+    @Benchmark
+    public String logbackRendered() {
+        return new LogStatusMessage(logbackEvent).getMessage();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.domsutil.benchmarks;
+
+import dk.statsbiblioteket.doms.domsutil.surveillance.logappender.LogRegistry;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of registering log4j events in a log registry, with 1 to 64
+ * concurrent logging threads.
+ *
+ * Each invocation creates a new event stamped with the current time, as the
+ * appender would see it, so the event construction is part of the measured
+ * cost for all registries alike.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2)
+public class RegisterMessageBenchmark {
+    /** The registry implementation to measure. */
+    @Param({"dk.statsbiblioteket.doms.domsutil.surveillance.logappender.CachingLogRegistry",
+            "dk.statsbiblioteket.doms.domsutil.surveillance.logappender.RingBufferLogRegistry"})
+    public String registryClass;
+
+    /** The registry under test. */
+    private LogRegistry registry;
+
+    /** Logger the events appear to come from. */
+    private Logger logger;
+
+    /**
+     * Create the registry.
+     *
+     * @throws Exception if the registry class cannot be instantiated.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        registry = Registries.create(registryClass, 1000);
+        logger = Logger.getLogger(RegisterMessageBenchmark.class);
+    }
+
+    /**
+     * Register one event.
+     *
+     * @return The registry, to keep the call from being eliminated.
+     */
+    private LogRegistry register() {
+        registry.registerMessage(new LoggingEvent(
+                Logger.class.getName(), logger, System.currentTimeMillis(),
+                Level.WARN, "Connection refused", null));
+        return registry;
+    }
+
+    /** @return The registry. */
+    @Benchmark
+    @Threads(1)
+    public LogRegistry threads01() {
+        return register();
+    }
+
+    /** @return The registry. */
+    @Benchmark
+    @Threads(4)
+    public LogRegistry threads04() {
+        return register();
+    }
+
+    /** @return The registry. */
+    @Benchmark
+    @Threads(16)
+    public LogRegistry threads16() {
+        return register();
+    }
+
+    /** @return The registry. */
+    @Benchmark
+    @Threads(64)
+    public LogRegistry threads64() {
+        return register();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.domsutil.benchmarks;
+
+import dk.statsbiblioteket.doms.domsutil.surveillance.logappender.LogRegistry;
+import dk.statsbiblioteket.sbutil.webservices.configuration.ConfigCollection;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.Properties;
+
+/** Helpers for setting up log registries in benchmarks. */
+final class Registries {
+    /** Utility class, do not instantiate. */
+    private Registries() {
+    }
+
+    /**
+     * Configure and create a log registry. Note that some registries keep
+     * their configuration and messages in static fields, which is why every
+     * benchmark runs in a forked JVM.
+     *
+     * @param registryClass Name of the registry class.
+     * @param numberOfMessages Number of messages the registry should keep.
+     * @return A new registry.
+     * @throws Exception if the class cannot be instantiated.
+     */
+    static LogRegistry create(String registryClass, int numberOfMessages)
+            throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(
+                LogRegistry.NUMBEROFMESSAGES_CONFIGURATION_PARAMETER,
+                Integer.toString(numberOfMessages));
+        properties.setProperty(LogRegistry.LOGGERNAME_CONFIGURATION_PARAMETER,
+                               "benchmark");
+        ConfigCollection.addContextConfig(properties);
+        return (LogRegistry) Class.forName(registryClass).newInstance();
+    }
+
+    /**
+     * Fill a registry with messages at distinct timestamps 1 to count.
+     *
+     * @param registry The registry to fill.
+     * @param count The number of messages.
+     */
+    static void fill(LogRegistry registry, int count) {
+        Logger logger = Logger.getLogger(Registries.class);
+        for (int i = 1; i <= count; i++) {
+            registry.registerMessage(new LoggingEvent(
+                    Logger.class.getName(), logger, i, Level.WARN,
+                    "Message number " + i, null));
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.domsutil.benchmarks;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Status;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Surveyable;
+import dk.statsbiblioteket.doms.domsutil.surveyable.SurveyableCombiner;
+import dk.statsbiblioteket.sbutil.webservices.configuration.ConfigCollection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of SurveyableCombiner.getStatusSince with N surveyables, each
+ * reporting a fixed list of messages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2)
+public class SurveyableCombinerBenchmark {
+    /** Number of messages each surveyable reports. */
+    static final int MESSAGES_PER_SURVEYABLE = 100;
+
+    /**
+     * The surveyable classes to combine. The combiner identifies surveyables
+     * by class name, so each needs its own class.
+     */
+    private static final Class[] SURVEYABLES = {
+            S00.class, S01.class, S02.class, S03.class, S04.class, S05.class,
+            S06.class, S07.class, S08.class, S09.class, S10.class, S11.class,
+            S12.class, S13.class, S14.class, S15.class};
+
+    /** Number of surveyables to combine. */
+    @Param({"1", "4", "16"})
+    public int surveyables;
+
+    /** The combiner under test. */
+    private SurveyableCombiner combiner;
+
+    /** Configure the combiner. */
+    @Setup
+    public void setUp() {
+        StringBuilder classes = new StringBuilder();
+        for (int i = 0; i < surveyables; i++) {
+            classes.append(SURVEYABLES[i].getName()).append(';');
+        }
+        Properties properties = new Properties();
+        properties.setProperty(
+                "dk.statsbiblioteket.doms.domsutil.surveyable.surveyables",
+                classes.toString());
+        ConfigCollection.addContextConfig(properties);
+        combiner = new SurveyableCombiner();
+    }
+
+    /** @return Combined status of all messages. */
+    @Benchmark
+    public Status getStatusSince() {
+        return combiner.getStatusSince(0L);
+    }
+
+    /**
+     * A surveyable that reports a fixed list of messages, with timestamps
+     * interleaved with those of the other surveyables.
+     */
+    public abstract static class FixedSurveyable implements Surveyable {
+        /** The status reported. */
+        private final Status status = new Status();
+
+        /**
+         * Create the messages.
+         *
+         * @param offset Offset of the timestamps of this surveyable.
+         */
+        protected FixedSurveyable(int offset) {
+            status.setName(getClass().getSimpleName());
+            for (int i = 0; i < MESSAGES_PER_SURVEYABLE; i++) {
+                StatusMessage message = new StatusMessage();
+                message.setMessage("Message " + i);
+                message.setSeverity(Severity.YELLOW);
+                message.setTime(i * SURVEYABLES.length + offset);
+                message.setLogMessage(true);
+                status.getMessages().add(message);
+            }
+        }
+
+        /**
+         * Get messages newer than time.
+         *
+         * @param time Only messages strictly after this are returned.
+         * @return The status.
+         */
+        public Status getStatusSince(long time) {
+            Status result = new Status();
+            result.setName(status.getName());
+            for (StatusMessage message : status.getMessages()) {
+                if (message.getTime() > time) {
+                    result.getMessages().add(message);
+                }
+            }
+            return result;
+        }
+
+        /** @return All messages. */
+        public Status getStatus() {
+            return getStatusSince(0L);
+        }
+    }
+
+    /** Surveyable 0. */
+    public static class S00 extends FixedSurveyable {
+        /** Create. */
+        public S00() {
+            super(0);
+        }
+    }
+
+    /** Surveyable 1. */
+    public static class S01 extends FixedSurveyable {
+        /** Create. */
+        public S01() {
+            super(1);
+        }
+    }
+
+    /** Surveyable 2. */
+    public static class S02 extends FixedSurveyable {
+        /** Create. */
+        public S02() {
+            super(2);
+        }
+    }
+
+    /** Surveyable 3. */
+    public static class S03 extends FixedSurveyable {
+        /** Create. */
+        public S03() {
+            super(3);
+        }
+    }
+
+    /** Surveyable 4. */
+    public static class S04 extends FixedSurveyable {
+        /** Create. */
+        public S04() {
+            super(4);
+        }
+    }
+
+    /** Surveyable 5. */
+    public static class S05 extends FixedSurveyable {
+        /** Create. */
+        public S05() {
+            super(5);
+        }
+    }
+
+    /** Surveyable 6. */
+    public static class S06 extends FixedSurveyable {
+        /** Create. */
+        public S06() {
+            super(6);
+        }
+    }
+
+    /** Surveyable 7. */
+    public static class S07 extends FixedSurveyable {
+        /** Create. */
+        public S07() {
+            super(7);
+        }
+    }
+
+    /** Surveyable 8. */
+    public static class S08 extends FixedSurveyable {
+        /** Create. */
+        public S08() {
+            super(8);
+        }
+    }
+
+    /** Surveyable 9. */
+    public static class S09 extends FixedSurveyable {
+        /** Create. */
+        public S09() {
+            super(9);
+        }
+    }
+
+    /** Surveyable 10. */
+    public static class S10 extends FixedSurveyable {
+        /** Create. */
+        public S10() {
+            super(10);
+        }
+    }
+
+    /** Surveyable 11. */
+    public static class S11 extends FixedSurveyable {
+        /** Create. */
+        public S11() {
+            super(11);
+        }
+    }
+
+    /** Surveyable 12. */
+    public static class S12 extends FixedSurveyable {
+        /** Create. */
+        public S12() {
+            super(12);
+        }
+    }
+
+    /** Surveyable 13. */
+    public static class S13 extends FixedSurveyable {
+        /** Create. */
+        public S13() {
+            super(13);
+        }
+    }
+
+    /** Surveyable 14. */
+    public static class S14 extends FixedSurveyable {
+        /** Create. */
+        public S14() {
+            super(14);
+        }
+    }
+
+    /** Surveyable 15. */
+    public static class S15 extends FixedSurveyable {
+        /** Create. */
+        public S15() {
+            super(15);
+        }
+    }
+}
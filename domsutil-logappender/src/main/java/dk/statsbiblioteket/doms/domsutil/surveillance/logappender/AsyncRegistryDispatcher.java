@@ -0,0 +1,281 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands log events from the logging threads to a single background thread,
+ * which registers them in the log registry in batches.
+ *
+ * Events are kept in a bounded queue. When the queue is full, the configured
+ * {@link DropPolicy} decides which event is dropped. The logging thread never
+ * waits for the registry.
+ *
+ * The background thread is stopped by queueing a marker after the pending
+ * events, never by interrupting it, since an interrupt while registering
+ * would close the file channels of registries that write to files.
+ *
+ * Note this class must not log through commons-logging, since it is called
+ * from within the logging framework. Errors are reported through
+ * {@link #reportError(String, Exception)} instead.
+ *
+ * @param <E> The type of log event.
+ */
+@QAInfo(author = "kfc",
+        reviewers = "jrg",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+abstract class AsyncRegistryDispatcher<E> implements Runnable {
+    /** How long to wait for the background thread to drain on stop. */
+    private static final long STOP_TIMEOUT_MILLIS = 5000L;
+
+    /** What to drop when the queue is full. */
+    enum DropPolicy {
+        /** Drop the oldest queued event to make room for the new one. */
+        DROP_OLDEST,
+        /** Drop the new event. */
+        DROP_NEWEST,
+        /**
+         * Drop new events below WARN once only a quarter of the queue is
+         * left, keeping that room for events at WARN and above. When the
+         * queue is full, drop the new event. Queued events are never
+         * dropped, and no queued event is looked at.
+         */
+        DROP_BELOW_WARN
+    }
+
+    /** Queued after the pending events to stop the background thread. */
+    private static final Object STOP = new Object();
+
+    /** The queue of events waiting to be registered, and the stop marker. */
+    private final BlockingQueue<Object> queue;
+
+    /** Max number of events registered in one batch. */
+    private final int batchSize;
+
+    /** What to drop when the queue is full. */
+    private final DropPolicy dropPolicy;
+
+    /** Room in the queue kept for events at WARN and above. */
+    private final int reserved;
+
+    /** Number of events handed to the background thread. */
+    private final AtomicLong enqueued = new AtomicLong();
+
+    /** Number of events dropped because the queue was full. */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /** The background thread. */
+    private final Thread thread;
+
+    /** Whether events are still accepted. */
+    private volatile boolean running = true;
+
+    /**
+     * Initialise a dispatcher. Call {@link #start()} to start the background
+     * thread.
+     *
+     * @param name Name of the appender, used for naming the thread.
+     * @param queueSize Max number of events waiting to be registered.
+     * @param batchSize Max number of events registered in one batch.
+     * @param dropPolicy What to drop when the queue is full.
+     */
+    AsyncRegistryDispatcher(String name, int queueSize, int batchSize,
+                            DropPolicy dropPolicy) {
+        this.queue = new ArrayBlockingQueue<Object>(Math.max(1, queueSize));
+        this.batchSize = Math.max(1, batchSize);
+        this.dropPolicy = dropPolicy;
+        this.reserved = dropPolicy == DropPolicy.DROP_BELOW_WARN
+                ? Math.max(1, queueSize) / 4 : 0;
+        this.thread = new Thread(this, "LogRegistryDispatcher-" + name);
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Register a single event in the log registry.
+     *
+     * @param registry The registry.
+     * @param event The event.
+     */
+    protected abstract void register(LogRegistry registry, E event);
+
+    /**
+     * Whether the event is below WARN, for the DROP_BELOW_WARN policy. Only
+     * called when the queue is nearly full.
+     *
+     * @param event The event.
+     * @return True if the event is below WARN.
+     */
+    protected abstract boolean isBelowWarn(E event);
+
+    /**
+     * Report an error through the logging framework's own error reporting.
+     *
+     * @param message Description of the error.
+     * @param e The cause.
+     */
+    protected abstract void reportError(String message, Exception e);
+
+    /** Start the background thread. */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stop the background thread after it has registered the events already
+     * queued. Waits a while for this to happen. Events dispatched after this
+     * are dropped.
+     */
+    void stop() {
+        running = false;
+        try {
+            long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MILLIS;
+            if (queue.offer(STOP, STOP_TIMEOUT_MILLIS,
+                            TimeUnit.MILLISECONDS)) {
+                thread.join(Math.max(1L,
+                                     deadline - System.currentTimeMillis()));
+            } else {
+                reportError("Timed out stopping log registry dispatcher",
+                            null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hand an event to the background thread. Never blocks.
+     *
+     * @param event The event. Must already be prepared for being handled on
+     * another thread.
+     * @return True if the event was queued, false if it was dropped.
+     */
+    boolean dispatch(E event) {
+        if (!running) {
+            countDropped();
+            return false;
+        }
+        if (reserved > 0 && queue.remainingCapacity() <= reserved
+                && isBelowWarn(event)) {
+            // Racing writers may fill a little of the reserved room
+            countDropped();
+            return false;
+        }
+        if (queue.offer(event)) {
+            enqueued.incrementAndGet();
+            return true;
+        }
+        if (dropPolicy != DropPolicy.DROP_OLDEST) {
+            countDropped();
+            return false;
+        }
+        while (!queue.offer(event)) {
+            Object evicted = queue.poll();
+            if (evicted == STOP) {
+                // Stopped meanwhile, keep the marker last
+                queue.offer(STOP);
+                countDropped();
+                return false;
+            }
+            if (evicted != null) {
+                countDropped();
+            }
+        }
+        enqueued.incrementAndGet();
+        return true;
+    }
+
+    /** Count an event dropped. */
+    private void countDropped() {
+        dropped.incrementAndGet();
+        RegistryMetrics.countAppenderDropped();
+    }
+
+    /**
+     * Get the number of events handed to the background thread.
+     *
+     * @return Number of queued events, including those later dropped by
+     * DROP_OLDEST.
+     */
+    long getEnqueuedCount() {
+        return enqueued.get();
+    }
+
+    /**
+     * Get the number of events dropped because the queue was full.
+     *
+     * @return Number of dropped events.
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Drain the queue into the registry in batches until the stop marker is
+     * reached, so events queued before stopping are still registered.
+     */
+    @SuppressWarnings("unchecked")
+    public void run() {
+        List<Object> batch = new ArrayList<Object>(batchSize);
+        boolean stopped = false;
+        while (!stopped) {
+            if (queue.drainTo(batch, batchSize) == 0) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    // Not interrupted by stop(), keep serving
+                    continue;
+                }
+                queue.drainTo(batch, batchSize - 1);
+            }
+            stopped = batch.remove(STOP);
+            try {
+                LogRegistry registry = LogRegistryFactory.getLogRegistry();
+                for (Object event : batch) {
+                    try {
+                        register(registry, (E) event);
+                    } catch (Exception e) {
+                        reportError("Unable to register log event", e);
+                    }
+                }
+            } catch (Exception e) {
+                reportError("Unable to get log registry, dropping "
+                            + batch.size() + " log events", e);
+            }
+            batch.clear();
+        }
+    }
+}
@@ -28,8 +28,16 @@
 package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
 
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Metrics;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
+import dk.statsbiblioteket.doms.domsutil.surveyable.SeverityCounters;
 import dk.statsbiblioteket.doms.domsutil.surveyable.Status;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusIterator;
 import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusPageBuilder;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusQuery;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusSignal;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusSummary;
 import dk.statsbiblioteket.sbutil.webservices.configuration.ConfigCollection;
 import dk.statsbiblioteket.util.qa.QAInfo;
 import org.apache.commons.logging.Log;
@@ -38,12 +46,47 @@ import org.apache.log4j.spi.LoggingEvent;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
 import java.util.TreeMap;
 
 /**
  * A log survey that caches log messages for later inspection.
  *
+ * The messages are also indexed by severity, so queries for a minimum
+ * severity only read the messages of that severity and above. The number of
+ * messages kept can be limited per severity, with the numberOfMessages
+ * parameter followed by the severity. A severity with its own limit is
+ * evicted on its own, so a flood of messages of another severity cannot push
+ * its messages out. Severities without their own limit share the limit given
+ * by numberOfMessages. The limits count the timestamps within each severity.
+ *
+ * If the parameter aggregateDuplicates is true, a message with the same
+ * severity and message template as a message still in the registry is not
+ * registered on its own. Instead the earlier message is replaced by a copy
+ * with the count increased, at the time of the new message, and with a new
+ * sequence number. Messages already returned are never changed. The first
+ * time it was seen is kept as firstTime, and the
+ * message text is that of the first occurrence. A storm of identical errors
+ * then takes a single entry, and costs no allocation per event. The
+ * template is the message pattern for logback events, and the rendered
+ * message for log4j events.
+ *
+ * Besides the limits on the number of timestamps, the registry keeps track
+ * of the estimated bytes retained by its messages, and evicts the oldest
+ * messages when the budget given by the parameter maxBytes (default 16 MB)
+ * is exceeded. Messages of severities without their own limit are evicted
+ * first. Messages longer than maxMessageLength (default 16384) are
+ * truncated when registered. This bounds the heap used by the registry,
+ * even if many messages share a timestamp, or some are very long.
+ *
  * Note that all methods in this class are synchronized. This may affect
  * performance if your logging level for what you register in the class is
  * too broad.
@@ -65,9 +108,100 @@ public class CachingLogRegistry implements LogRegistry {
             logStatusMessages
             = new TreeMap<Long, Collection<StatusMessage>>();
 
+    /** The same messages as above, by sequence number. */
+    private static final NavigableMap<Long, StatusMessage>
+            logStatusMessagesBySequence = new TreeMap<Long, StatusMessage>();
+
+    /**
+     * The same messages as above, partitioned by severity. Each partition is
+     * organised as the map of all messages.
+     */
+    private static final Map<Severity,
+            NavigableMap<Long, Collection<StatusMessage>>>
+            logStatusMessagesBySeverity = new EnumMap<Severity,
+                    NavigableMap<Long, Collection<StatusMessage>>>(
+                    Severity.class);
+
+    /**
+     * The aggregated messages in the registry, by severity and template.
+     * Only used when aggregating duplicates.
+     */
+    private static final Map<Severity, Map<String, LogStatusMessage>>
+            duplicates = new EnumMap<Severity, Map<String, LogStatusMessage>>(
+                    Severity.class);
+
+    static {
+        for (Severity severity : Severity.values()) {
+            logStatusMessagesBySeverity.put(
+                    severity, new TreeMap<Long, Collection<StatusMessage>>());
+            duplicates.put(severity, new HashMap<String, LogStatusMessage>());
+        }
+    }
+
+    /** Whether repeated messages are aggregated into one. */
+    private static boolean aggregateDuplicates = false;
+
+    /** Budget of estimated bytes retained by the messages. */
+    private static long maxRetainedBytes = DEFAULT_MAX_BYTES;
+
+    /** Messages are truncated to this length. */
+    private static int maxMessageLength = DEFAULT_MAX_MESSAGE_LENGTH;
+
+    /**
+     * Estimated bytes retained by the messages. Only written holding lock.
+     */
+    private static volatile long retainedBytes = 0L;
+
+    /**
+     * Limits on the number of messages kept for severities configured with
+     * their own limit.
+     */
+    private static final Map<Severity, Integer>
+            maxNumberOfMessagesKeptBySeverity
+            = new EnumMap<Severity, Integer>(Severity.class);
+
+    /** Orders messages by sequence number. */
+    private static final Comparator<StatusMessage> SEQUENCE_ORDER
+            = new Comparator<StatusMessage>() {
+                public int compare(StatusMessage o1, StatusMessage o2) {
+                    return o1.getSequence().compareTo(o2.getSequence());
+                }
+            };
+
     private static final Object lock = new Object();
+
+    /** Signalled after each message is registered. */
+    private static final StatusSignal signal = new StatusSignal();
+
+    /** Counts the messages registered, by severity and minute. */
+    private static final SeverityCounters counters = new SeverityCounters();
+
+    /** Measures the cost of the registry. */
+    private static final RegistryMetrics metrics = new RegistryMetrics(
+            new Metrics.Gauge() {
+                public long getValue() {
+                    synchronized (lock) {
+                        return logStatusMessagesBySequence.size();
+                    }
+                }
+            },
+            new Metrics.Gauge() {
+                public long getValue() {
+                    return retainedBytes;
+                }
+            });
+
     private static boolean configured = false;
 
+    /** Iterators read at least this many messages at a time. */
+    private static final int ITERATOR_CHUNK_SIZE = 256;
+
+    /**
+     * Number of messages registered, which is also the sequence number of
+     * the last message registered. Only written while holding lock.
+     */
+    private static volatile long version = 0L;
+
     /** The loggetr for this class. */
     private static Log log = LogFactory.getLog(CachingLogRegistry.class);
     private static String name;
@@ -95,6 +229,38 @@ public class CachingLogRegistry implements LogRegistry {
                                      + maxNumberOfMessagesKeptByLog);
                         }
                     }
+                    for (Severity severity : Severity.values()) {
+                        configValue = ConfigCollection.getProperties()
+                                .getProperty(NUMBEROFMESSAGES_BY_SEVERITY_CONFIGURATION_PARAMETER_PREFIX
+                                             + severity.value());
+                        if (configValue != null && !configValue.equals("")) {
+                            maxNumberOfMessagesKeptBySeverity.put(
+                                    severity, Integer.parseInt(configValue));
+                            log.info("Setting number of " + severity
+                                     + " messages kept by registry to "
+                                     + configValue);
+                        }
+                    }
+                    aggregateDuplicates = Boolean.parseBoolean(
+                            ConfigCollection.getProperties().getProperty(
+                                    AGGREGATEDUPLICATES_CONFIGURATION_PARAMETER));
+                    if (aggregateDuplicates) {
+                        log.info("Aggregating repeated messages in registry");
+                    }
+                    configValue = ConfigCollection.getProperties()
+                            .getProperty(MAXBYTES_CONFIGURATION_PARAMETER);
+                    if (configValue != null && !configValue.equals("")) {
+                        maxRetainedBytes = Long.parseLong(configValue);
+                        log.info("Setting bytes retained by registry to "
+                                 + maxRetainedBytes);
+                    }
+                    configValue = ConfigCollection.getProperties()
+                            .getProperty(MAXMESSAGELENGTH_CONFIGURATION_PARAMETER);
+                    if (configValue != null && !configValue.equals("")) {
+                        maxMessageLength = Integer.parseInt(configValue);
+                        log.info("Truncating messages in registry to "
+                                 + maxMessageLength + " characters");
+                    }
                     name = ConfigCollection.getProperties().getProperty(LOGGERNAME_CONFIGURATION_PARAMETER,"Unnamed");
                     configured = true;
                 }
@@ -116,30 +282,28 @@ public class CachingLogRegistry implements LogRegistry {
      */
     public  void registerMessage(
             LoggingEvent event) {
+        long start = System.nanoTime();
         synchronized (lock){
-            Collection<StatusMessage> collection;
+            metrics.locked(start);
             // Check parameters
             if (event == null) {
                 throw new IllegalArgumentException(
                         "Parameter event must not be null");
             }
 
-
-
-            // Ensure the log doesn't grow too huge
-            if (logStatusMessages.size() > maxNumberOfMessagesKeptByLog - 1) {
-                long earliestTimeStamp = logStatusMessages.firstKey();
-                logStatusMessages.remove(earliestTimeStamp);
-            }
-
-            // Register it
-            collection = logStatusMessages.get(event.getTimeStamp());
-            if (collection == null) {
-                collection = new ArrayList<StatusMessage>();
-                logStatusMessages.put(event.getTimeStamp(), collection);
+            long timeStamp = event.getTimeStamp();
+            String template
+                    = aggregateDuplicates ? event.getRenderedMessage() : null;
+            if (template == null || !registerDuplicate(
+                    timeStamp, LogStatusMessage.getSeverity(event.getLevel()),
+                    template)) {
+                register(timeStamp, new LogStatusMessage(event), template);
             }
-            collection.add(new LogStatusMessage(event));
         }
+        counters.add(LogStatusMessage.getSeverity(event.getLevel()),
+                     event.getTimeStamp());
+        signal.signal();
+        metrics.registered(start);
     }
 
     /**
@@ -151,32 +315,274 @@ public class CachingLogRegistry implements LogRegistry {
      */
     public synchronized void registerMessage(
             ILoggingEvent event) {
+        long start = System.nanoTime();
         synchronized (lock){
-            Collection<StatusMessage> collection;
-
+            metrics.locked(start);
             // Check parameters
             if (event == null) {
                 throw new IllegalArgumentException(
                         "Parameter event must not be null");
             }
 
+            long timeStamp = event.getTimeStamp();
+            String template = aggregateDuplicates ? event.getMessage() : null;
+            if (template == null || !registerDuplicate(
+                    timeStamp, LogStatusMessage.getSeverity(event.getLevel()),
+                    template)) {
+                register(timeStamp, new LogStatusMessage(event), template);
+            }
+        }
+        counters.add(LogStatusMessage.getSeverity(event.getLevel()),
+                     event.getTimeStamp());
+        signal.signal();
+        metrics.registered(start);
+    }
 
+    /**
+     * If a message with the given severity and template is in the registry,
+     * replace it with a message counting another occurrence of it, at the
+     * given time with the next sequence number. The earlier message is not
+     * changed, as it may have been returned already. Must be called while
+     * holding lock.
+     *
+     * @param timeStamp The timestamp of the new occurrence.
+     * @param severity The severity of the new occurrence.
+     * @param template The template of the new occurrence.
+     * @return False if there is no such message.
+     */
+    private static boolean registerDuplicate(long timeStamp, Severity severity,
+                                             String template) {
+        LogStatusMessage previous = duplicates.get(severity).get(template);
+        if (previous == null) {
+            return false;
+        }
+        NavigableMap<Long, Collection<StatusMessage>> partition
+                = getPartition(previous);
+        remove(logStatusMessages, previous.getTime(), previous);
+        remove(partition, previous.getTime(), previous);
+        logStatusMessagesBySequence.remove(previous.getSequence());
 
+        // The estimated size is copied, so the bytes retained are unchanged
+        LogStatusMessage message = previous.recur(timeStamp);
+        version++;
+        message.setSequence(version);
+        add(logStatusMessages, message.getTime(), message);
+        add(partition, message.getTime(), message);
+        logStatusMessagesBySequence.put(version, message);
+        duplicates.get(severity).put(template, message);
+        return true;
+    }
 
-            // Ensure the log doesn't grow too huge
-            if (logStatusMessages.size() > maxNumberOfMessagesKeptByLog - 1) {
-                long earliestTimeStamp = logStatusMessages.firstKey();
-                logStatusMessages.remove(earliestTimeStamp);
+    /**
+     * Register a message, giving it the next sequence number. Must be called
+     * while holding lock.
+     *
+     * @param timeStamp The timestamp of the message.
+     * @param message The message.
+     * @param template The template to aggregate repeated messages by, or
+     * null if they are not aggregated.
+     */
+    private static void register(long timeStamp, LogStatusMessage message,
+                                 String template) {
+        NavigableMap<Long, Collection<StatusMessage>> partition
+                = getPartition(message);
+
+        // Ensure the log doesn't grow too huge
+        Integer limit = maxNumberOfMessagesKeptBySeverity.get(
+                getSeverity(message));
+        if (limit != null) {
+            if (partition.size() > limit - 1) {
+                evictOldest(partition);
+            }
+        } else {
+            evictOldestShared();
+        }
+
+        // Register it
+        version++;
+        message.setSequence(version);
+        add(logStatusMessages, timeStamp, message);
+        add(partition, timeStamp, message);
+        logStatusMessagesBySequence.put(version, message);
+        if (template != null) {
+            message.setCount(1);
+            message.setFirstTime(timeStamp);
+            message.setTemplate(template);
+            duplicates.get(getSeverity(message)).put(template, message);
+        }
+
+        // Keep within the byte budget, always keeping at least one message
+        message.truncate(maxMessageLength);
+        retainedBytes += message.estimateSize();
+        while (retainedBytes > maxRetainedBytes
+                && logStatusMessagesBySequence.size() > 1) {
+            evictOldestMessage();
+        }
+    }
+
+    /**
+     * Add a message to a map from timestamp to messages. Must be called
+     * while holding lock.
+     *
+     * @param map The map.
+     * @param timeStamp The timestamp of the message.
+     * @param message The message.
+     */
+    private static void add(NavigableMap<Long, Collection<StatusMessage>> map,
+                            long timeStamp, StatusMessage message) {
+        Collection<StatusMessage> collection = map.get(timeStamp);
+        if (collection == null) {
+            collection = new ArrayList<StatusMessage>();
+            map.put(timeStamp, collection);
+        }
+        collection.add(message);
+    }
+
+    /**
+     * Remove a message from a map from timestamp to messages. Must be called
+     * while holding lock.
+     *
+     * @param map The map.
+     * @param timeStamp The timestamp of the message.
+     * @param message The message.
+     */
+    private static void remove(
+            NavigableMap<Long, Collection<StatusMessage>> map,
+            long timeStamp, StatusMessage message) {
+        Collection<StatusMessage> collection = map.get(timeStamp);
+        collection.remove(message);
+        if (collection.isEmpty()) {
+            map.remove(timeStamp);
+        }
+    }
+
+    /**
+     * If the severities without their own limit have reached the shared
+     * limit, evict the oldest of their messages. Must be called while
+     * holding lock.
+     */
+    private static void evictOldestShared() {
+        int size = 0;
+        NavigableMap<Long, Collection<StatusMessage>> oldest = null;
+        for (Map.Entry<Severity, NavigableMap<Long, Collection<StatusMessage>>>
+                entry : logStatusMessagesBySeverity.entrySet()) {
+            NavigableMap<Long, Collection<StatusMessage>> partition
+                    = entry.getValue();
+            if (maxNumberOfMessagesKeptBySeverity.containsKey(entry.getKey())
+                    || partition.isEmpty()) {
+                continue;
+            }
+            size += partition.size();
+            if (oldest == null || partition.firstKey() < oldest.firstKey()) {
+                oldest = partition;
             }
+        }
+        if (size > maxNumberOfMessagesKeptByLog - 1) {
+            evictOldest(oldest);
+        }
+    }
 
-            // Register it
-            collection = logStatusMessages.get(event.getTimeStamp());
-            if (collection == null) {
-                collection = new ArrayList<StatusMessage>();
-                logStatusMessages.put(event.getTimeStamp(), collection);
+    /**
+     * Evict the single oldest message, preferring severities without their
+     * own limit. Must be called while holding lock, with at least one
+     * message in the registry.
+     */
+    private static void evictOldestMessage() {
+        NavigableMap<Long, Collection<StatusMessage>> oldestShared = null;
+        NavigableMap<Long, Collection<StatusMessage>> oldest = null;
+        for (Map.Entry<Severity, NavigableMap<Long, Collection<StatusMessage>>>
+                entry : logStatusMessagesBySeverity.entrySet()) {
+            NavigableMap<Long, Collection<StatusMessage>> partition
+                    = entry.getValue();
+            if (partition.isEmpty()) {
+                continue;
+            }
+            if (oldest == null || partition.firstKey() < oldest.firstKey()) {
+                oldest = partition;
+            }
+            if (!maxNumberOfMessagesKeptBySeverity.containsKey(entry.getKey())
+                    && (oldestShared == null
+                        || partition.firstKey() < oldestShared.firstKey())) {
+                oldestShared = partition;
             }
-            collection.add(new LogStatusMessage(event));
         }
+        if (oldestShared != null) {
+            oldest = oldestShared;
+        }
+        long timeStamp = oldest.firstKey();
+        StatusMessage message = oldest.get(timeStamp).iterator().next();
+        remove(oldest, timeStamp, message);
+        remove(logStatusMessages, timeStamp, message);
+        forget(message);
+    }
+
+    /**
+     * Evict the messages with the earliest timestamp in a partition from all
+     * indexes. Must be called while holding lock.
+     *
+     * @param partition The partition of messages of one severity. Not empty.
+     */
+    private static void evictOldest(
+            NavigableMap<Long, Collection<StatusMessage>> partition) {
+        Map.Entry<Long, Collection<StatusMessage>> earliest
+                = partition.pollFirstEntry();
+        Collection<StatusMessage> evicted = earliest.getValue();
+        for (StatusMessage message : evicted) {
+            forget(message);
+        }
+        Collection<StatusMessage> all = logStatusMessages.get(earliest.getKey());
+        if (all.size() == evicted.size()) {
+            logStatusMessages.remove(earliest.getKey());
+        } else {
+            all.removeAll(evicted);
+        }
+    }
+
+    /**
+     * Remove an evicted message from the index by sequence number and the
+     * aggregated messages, and stop counting its bytes. Must be called while
+     * holding lock.
+     *
+     * @param message The evicted message.
+     */
+    private static void forget(StatusMessage message) {
+        logStatusMessagesBySequence.remove(message.getSequence());
+        metrics.evicted(1L);
+        if (message instanceof LogStatusMessage) {
+            LogStatusMessage logMessage = (LogStatusMessage) message;
+            retainedBytes -= logMessage.estimateSize();
+            String template = logMessage.getTemplate();
+            if (template != null) {
+                Map<String, LogStatusMessage> aggregated
+                        = duplicates.get(getSeverity(message));
+                if (aggregated.get(template) == message) {
+                    aggregated.remove(template);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the partition of messages with the severity of a message.
+     *
+     * @param message The message.
+     * @return The partition.
+     */
+    private static NavigableMap<Long, Collection<StatusMessage>> getPartition(
+            StatusMessage message) {
+        return logStatusMessagesBySeverity.get(getSeverity(message));
+    }
+
+    /**
+     * Get the severity of a message, taking messages without severity as
+     * GREEN.
+     *
+     * @param message The message.
+     * @return The severity.
+     */
+    private static Severity getSeverity(StatusMessage message) {
+        return message.getSeverity() == null
+                ? Severity.GREEN : message.getSeverity();
     }
 
 
@@ -190,7 +596,10 @@ public class CachingLogRegistry implements LogRegistry {
      * @return A status containing list of log messages.
      */
     public Status getStatusSince(long time) {
+        long start = System.nanoTime();
+        Status status = new Status();
         synchronized (lock){
+            metrics.locked(start);
             log.trace("Enter getStatusSince(" + time + ")");
             Collection<Collection<StatusMessage>> listCollection
                     = logStatusMessages.subMap(
@@ -200,11 +609,254 @@ public class CachingLogRegistry implements LogRegistry {
             for (Collection<StatusMessage> collection : listCollection) {
                 statusMessages.addAll(collection);
             }
-            Status status = new Status();
             status.setName(name);
             status.getMessages().addAll(statusMessages);
-            return status;
         }
+        LogStatusMessage.render(status.getMessages());
+        metrics.surveyed(start, status.getMessages().size());
+        return status;
+    }
+
+    /**
+     * Returns one page of the log messages. The page is read straight from
+     * the time-ordered cache, and reading stops as soon as the page is full.
+     * If the query has a minimum severity above GREEN, only the partitions of
+     * that severity and above are read. The other filters of the query are
+     * evaluated while reading, so only matching messages are copied.
+     *
+     * @param query The query. Null for all messages.
+     * @return A status containing the page of log messages.
+     * @throws IllegalArgumentException if the query is invalid.
+     */
+    public Status getStatusPage(StatusQuery query) {
+        StatusPageBuilder page = new StatusPageBuilder(query);
+        long start = System.nanoTime();
+        synchronized (lock) {
+            metrics.locked(start);
+            log.trace("Enter getStatusPage()");
+            Severity minSeverity = page.getMinSeverity();
+            if (minSeverity == null || minSeverity == Severity.GREEN) {
+                fill(page, getRange(logStatusMessages, page).values());
+            } else {
+                List<NavigableMap<Long, Collection<StatusMessage>>> ranges
+                        = new ArrayList<NavigableMap<Long,
+                                Collection<StatusMessage>>>();
+                for (Map.Entry<Severity,
+                        NavigableMap<Long, Collection<StatusMessage>>> entry
+                        : logStatusMessagesBySeverity.entrySet()) {
+                    if (StatusPageBuilder.isAtLeast(entry.getKey(),
+                                                    minSeverity)) {
+                        ranges.add(getRange(entry.getValue(), page));
+                    }
+                }
+                fill(page, ranges);
+            }
+        }
+        LogStatusMessage.render(page.getMessages());
+        return page.build(name);
+    }
+
+    /**
+     * Get the part of a map from timestamp to messages where a page starts,
+     * in the order of the page.
+     *
+     * @param map The map.
+     * @param page The page.
+     * @return A view of the map.
+     */
+    private static NavigableMap<Long, Collection<StatusMessage>> getRange(
+            NavigableMap<Long, Collection<StatusMessage>> map,
+            StatusPageBuilder page) {
+        if (page.isNewestFirst()) {
+            if (page.isContinued()) {
+                map = map.headMap(page.getContinuationTime(), true);
+            } else if (page.getUntil() != null) {
+                map = map.headMap(page.getUntil(), false);
+            }
+            return map.descendingMap();
+        }
+        return page.isContinued()
+                ? map.tailMap(page.getContinuationTime(), true)
+                : map.tailMap(page.getSince(), false);
+    }
+
+    /**
+     * Offer messages from several partitions to a page until it is done.
+     * Messages with the same timestamp are offered in order of sequence
+     * number, which is the order they have in the map of all messages.
+     *
+     * @param page The page.
+     * @param ranges The partitions, each in the order of the page.
+     */
+    private static void fill(
+            StatusPageBuilder page,
+            List<NavigableMap<Long, Collection<StatusMessage>>> ranges) {
+        boolean newestFirst = page.isNewestFirst();
+        Long key = null;
+        for (NavigableMap<Long, Collection<StatusMessage>> range : ranges) {
+            if (!range.isEmpty() && (key == null
+                    || (range.firstKey() < key) != newestFirst)) {
+                key = range.firstKey();
+            }
+        }
+        List<StatusMessage> bucket = new ArrayList<StatusMessage>();
+        while (key != null) {
+            Long next = null;
+            bucket.clear();
+            for (NavigableMap<Long, Collection<StatusMessage>> range
+                    : ranges) {
+                Collection<StatusMessage> messages = range.get(key);
+                if (messages != null) {
+                    bucket.addAll(messages);
+                }
+                Long higher = range.higherKey(key);
+                if (higher != null && (next == null
+                        || (higher < next) != newestFirst)) {
+                    next = higher;
+                }
+            }
+            Collections.sort(bucket, SEQUENCE_ORDER);
+            for (StatusMessage message : bucket) {
+                if (!page.add(message)) {
+                    return;
+                }
+            }
+            key = next;
+        }
+    }
+
+    /**
+     * Offer messages to a page until it is done.
+     *
+     * @param page The page.
+     * @param collections The messages, by timestamp in the order of the page.
+     */
+    private static void fill(StatusPageBuilder page,
+                             Collection<Collection<StatusMessage>> collections) {
+        for (Collection<StatusMessage> collection : collections) {
+            for (StatusMessage message : collection) {
+                if (!page.add(message)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until a log message newer than the given date is registered, or
+     * the timeout expires.
+     *
+     * @param time Wait for messages strictly after the given date.
+     * @param timeout Max milliseconds to wait.
+     * @return True if there are newer messages, false on timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitStatusSince(final long time, long timeout)
+            throws InterruptedException {
+        log.trace("Enter awaitStatusSince(" + time + ", " + timeout + ")");
+        return signal.await(new StatusSignal.Condition() {
+            public boolean isMet() {
+                synchronized (lock) {
+                    return !logStatusMessages.isEmpty()
+                            && logStatusMessages.lastKey() > time;
+                }
+            }
+        }, timeout);
+    }
+
+    /**
+     * Wait until a log message with a sequence number higher than the given
+     * one is registered, or the timeout expires.
+     *
+     * @param sequence Wait for messages with a higher sequence number.
+     * @param timeout Max milliseconds to wait.
+     * @return True if there are newer messages, false on timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitStatusAfter(final long sequence, long timeout)
+            throws InterruptedException {
+        log.trace("Enter awaitStatusAfter(" + sequence + ", " + timeout + ")");
+        return signal.await(new StatusSignal.Condition() {
+            public boolean isMet() {
+                return version > sequence;
+            }
+        }, timeout);
+    }
+
+    /**
+     * Returns all log messages with a sequence number higher than the given
+     * one, ordered by sequence number. If the given sequence number is
+     * higher than any registered, it is from before a restart, and all
+     * messages are returned.
+     *
+     * @param sequence Only messages with a higher sequence number are
+     * returned.
+     * @return A status containing list of log messages, and the sequence
+     * number of the last message registered as high-water mark.
+     */
+    public Status getStatusAfter(long sequence) {
+        Collection<StatusMessage> statusMessages;
+        Status status = new Status();
+        long start = System.nanoTime();
+        synchronized (lock) {
+            metrics.locked(start);
+            log.trace("Enter getStatusAfter(" + sequence + ")");
+            if (sequence > version) {
+                sequence = 0L;
+            }
+            statusMessages = new ArrayList<StatusMessage>(
+                    logStatusMessagesBySequence.tailMap(sequence, false)
+                            .values());
+            status.setName(name);
+            status.setHighWaterMark(version);
+        }
+        LogStatusMessage.render(statusMessages);
+        status.getMessages().addAll(statusMessages);
+        return status;
+    }
+
+    /**
+     * Get the number of messages registered, which changes whenever a message
+     * is registered.
+     *
+     * @return The version of the status.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Iterate over all log messages received since the given date. The
+     * messages are read a chunk of whole timestamps at a time, holding the
+     * lock only while copying the chunk.
+     *
+     * @param time Only messages strictly after the given date are returned.
+     * @return Iterator over the messages, ordered by time.
+     */
+    public StatusIterator iterateStatusSince(long time) {
+        log.trace("Enter iterateStatusSince(" + time + ")");
+        return new ChunkIterator(time);
+    }
+
+    /**
+     * Get the number of messages of each severity registered in the last 1,
+     * 5 and 15 minutes, as counted when registered.
+     *
+     * @return The counts.
+     */
+    public StatusSummary getSummary() {
+        log.trace("Enter getSummary()");
+        return counters.getSummary(System.currentTimeMillis(), name);
+    }
+
+    /**
+     * Get the metrics of the registry, as described in
+     * {@link RegistryMetrics}.
+     *
+     * @return The values, by name.
+     */
+    public SortedMap<String, Long> getMetrics() {
+        return metrics.getSnapshot();
     }
 
     /**
@@ -213,9 +865,96 @@ public class CachingLogRegistry implements LogRegistry {
      * @return A status containing list of log messages.
      */
     public Status getStatus() {
-        synchronized (lock){
-            log.trace("Enter getStatus()");
-            return getStatusSince(0l);
+        log.trace("Enter getStatus()");
+        return getStatusSince(0l);
+    }
+
+    /**
+     * Iterates over the cached messages, copying them out a chunk of whole
+     * timestamps at a time. Messages added to a timestamp already read are
+     * not seen.
+     */
+    private static class ChunkIterator implements StatusIterator {
+        /** The name of the status. */
+        private final String statusName = name;
+
+        /** Timestamp of the last message read. */
+        private long after;
+
+        /** The current chunk. */
+        private List<StatusMessage> chunk = new ArrayList<StatusMessage>();
+
+        /** Position in the current chunk. */
+        private int position = 0;
+
+        /**
+         * Iterate over messages strictly after the given time.
+         *
+         * @param time Only messages strictly after this time are returned.
+         */
+        private ChunkIterator(long time) {
+            this.after = time;
+        }
+
+        /**
+         * Get the name of the status.
+         *
+         * @return The name of the status.
+         */
+        public String getName() {
+            return statusName;
+        }
+
+        /**
+         * The status has no high-water mark.
+         *
+         * @return Null.
+         */
+        public Long getHighWaterMark() {
+            return null;
+        }
+
+        /**
+         * Whether there are more messages. Reads the next chunk if the
+         * current one is exhausted.
+         *
+         * @return True if there are more messages.
+         */
+        public boolean hasNext() {
+            if (position < chunk.size()) {
+                return true;
+            }
+            chunk.clear();
+            position = 0;
+            synchronized (lock) {
+                for (Map.Entry<Long, Collection<StatusMessage>> entry
+                        : logStatusMessages.tailMap(after, false).entrySet()) {
+                    chunk.addAll(entry.getValue());
+                    after = entry.getKey();
+                    if (chunk.size() >= ITERATOR_CHUNK_SIZE) {
+                        break;
+                    }
+                }
+            }
+            LogStatusMessage.render(chunk);
+            return !chunk.isEmpty();
+        }
+
+        /**
+         * Get the next message.
+         *
+         * @return The next message.
+         */
+        public StatusMessage next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return chunk.get(position++);
+        }
+
+        /** Not supported. */
+        public void remove() {
+            throw new UnsupportedOperationException("Status is read only");
         }
     }
 }
@@ -0,0 +1,654 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Metrics;
+import dk.statsbiblioteket.doms.domsutil.surveyable.SeverityCounters;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Status;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusIterator;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusPageBuilder;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusQuery;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusSignal;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusSummary;
+import dk.statsbiblioteket.sbutil.webservices.configuration.ConfigCollection;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+
+/**
+ * A log registry that keeps log messages in a fixed-capacity ring of
+ * columns, rather than as objects.
+ *
+ * Each message takes a slot in arrays of timestamps, severities, message
+ * texts and message arguments. There are no objects per message besides the
+ * text, and for logback events with arguments, the snapshot of the
+ * arguments. Status messages are only created for the messages a query
+ * returns, when the query is answered, so a registry holding a hundred
+ * thousand messages costs little heap and garbage collection.
+ *
+ * Queries select messages on the timestamp and severity columns. Pages are
+ * sorted on the timestamp column before any status message is created.
+ *
+ * The capacity is read from the parameter
+ * <code>dk.statsbiblioteket.doms.surveillance.logappender.numberOfMessages</code>,
+ * rounded up to the nearest power of two, and counts messages. Messages
+ * longer than
+ * <code>dk.statsbiblioteket.doms.surveillance.logappender.maxMessageLength</code>
+ * are truncated.
+ *
+ * The slots are written while holding the lock of the registry, which only
+ * copies a few fields. Each message gets the sequence number one higher than
+ * the number of messages registered before it, so the first message has
+ * sequence number 1.
+ *
+ * The messages are kept by the instance, so to expose them through the
+ * surveyable framework, use {@link LogRegistrySurveyableSingleton}.
+ */
+@QAInfo(author = "kfc",
+        reviewers = "jrg",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class ColumnarLogRegistry implements LogRegistry {
+    /** The severities, by the codes kept in the severity column. */
+    private static final Severity[] SEVERITIES = Severity.values();
+
+    /** Timestamps of the messages. Slot for message n is n & mask. */
+    private final long[] times;
+
+    /** Severities of the messages, as index in {@link #SEVERITIES}. */
+    private final byte[] severities;
+
+    /** Texts of the messages, or their patterns if they have arguments. */
+    private final String[] texts;
+
+    /** Snapshots of the arguments of the messages, or null if rendered. */
+    private final Object[][] arguments;
+
+    /** Mask for mapping message numbers to slots. */
+    private final int mask;
+
+    /** Number of messages registered. Only written holding the lock. */
+    private volatile long registered = 0L;
+
+    /**
+     * Estimated bytes retained by the messages in the ring. Only written
+     * holding the lock.
+     */
+    private volatile long retainedBytes = 0L;
+
+    /** The name reported in status. */
+    private final String name;
+
+    /** Messages are truncated to this length. */
+    private final int maxMessageLength;
+
+    /** Signalled after each message is registered. */
+    private final StatusSignal signal = new StatusSignal();
+
+    /** Counts the messages registered, by severity and minute. */
+    private final SeverityCounters counters = new SeverityCounters();
+
+    /** Measures the cost of the registry. */
+    private final RegistryMetrics metrics = new RegistryMetrics(
+            new Metrics.Gauge() {
+                public long getValue() {
+                    return Math.min(registered, times.length);
+                }
+            },
+            new Metrics.Gauge() {
+                public long getValue() {
+                    return retainedBytes;
+                }
+            });
+
+    /** The logger for this class. */
+    private static Log log = LogFactory.getLog(ColumnarLogRegistry.class);
+
+    /** Read parameters from configuration, and initialize the columns. */
+    public ColumnarLogRegistry() {
+        log.trace("Enter ColumnarLogRegistry()");
+        int capacity = DEFAULT_MAX_NUMBER_OF_MESSAGES_KEPT_BY_LOG;
+        int configuredMaxMessageLength = DEFAULT_MAX_MESSAGE_LENGTH;
+        String configuredName = "Unnamed";
+        try {
+            String configValue = ConfigCollection.getProperties()
+                    .getProperty(NUMBEROFMESSAGES_CONFIGURATION_PARAMETER);
+            if (configValue != null && !configValue.equals("")) {
+                capacity = Integer.parseInt(configValue);
+            }
+            configValue = ConfigCollection.getProperties()
+                    .getProperty(MAXMESSAGELENGTH_CONFIGURATION_PARAMETER);
+            if (configValue != null && !configValue.equals("")) {
+                configuredMaxMessageLength = Integer.parseInt(configValue);
+            }
+            configuredName = ConfigCollection.getProperties().getProperty(
+                    LOGGERNAME_CONFIGURATION_PARAMETER, "Unnamed");
+        } catch (Exception e) {
+            log.warn("Error while configuring registry."
+                     + " Falling back to default values.", e);
+        }
+        if (capacity < 1) {
+            log.warn("Invalid number of messages " + capacity
+                     + ". Falling back to default value.");
+            capacity = DEFAULT_MAX_NUMBER_OF_MESSAGES_KEPT_BY_LOG;
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        log.info("Setting number of messages kept by registry to " + size);
+        times = new long[size];
+        severities = new byte[size];
+        texts = new String[size];
+        arguments = new Object[size][];
+        mask = size - 1;
+        name = configuredName;
+        maxMessageLength = configuredMaxMessageLength;
+    }
+
+    /**
+     * Register a message for later inspection.
+     *
+     * @param event The log message to register. Should never be null.
+     *
+     * @throws IllegalArgumentException if event is null.
+     */
+    public void registerMessage(LoggingEvent event) {
+        if (event == null) {
+            throw new IllegalArgumentException(
+                    "Parameter event must not be null");
+        }
+        long start = System.nanoTime();
+        append(event.getTimeStamp(),
+               LogStatusMessage.getSeverity(event.getLevel()),
+               LogStatusMessage.truncate(event.getRenderedMessage(),
+                                         maxMessageLength),
+               null);
+        counters.add(LogStatusMessage.getSeverity(event.getLevel()),
+                     event.getTimeStamp());
+        signal.signal();
+        metrics.registered(start);
+    }
+
+    /**
+     * Register a message for later inspection. Messages with arguments are
+     * formatted when returned by a query.
+     *
+     * @param event The log message to register. Should never be null.
+     *
+     * @throws IllegalArgumentException if event is null.
+     */
+    public void registerMessage(ILoggingEvent event) {
+        if (event == null) {
+            throw new IllegalArgumentException(
+                    "Parameter event must not be null");
+        }
+        long start = System.nanoTime();
+        Object[] argumentArray = event.getArgumentArray();
+        if (argumentArray == null || argumentArray.length == 0) {
+            append(event.getTimeStamp(),
+                   LogStatusMessage.getSeverity(event.getLevel()),
+                   LogStatusMessage.truncate(event.getMessage(),
+                                             maxMessageLength),
+                   null);
+        } else {
+            append(event.getTimeStamp(),
+                   LogStatusMessage.getSeverity(event.getLevel()),
+                   event.getMessage(),
+                   LogStatusMessage.snapshot(argumentArray));
+        }
+        counters.add(LogStatusMessage.getSeverity(event.getLevel()),
+                     event.getTimeStamp());
+        signal.signal();
+        metrics.registered(start);
+    }
+
+    /**
+     * Write a message in the next slot, overwriting the oldest message when
+     * the ring is full. The message is not signalled to waiting readers.
+     *
+     * @param time The timestamp.
+     * @param severity The severity.
+     * @param text The message, or its pattern if there are arguments.
+     * @param messageArguments Snapshot of the arguments, or null.
+     */
+    void append(long time, Severity severity, String text,
+                Object[] messageArguments) {
+        long start = System.nanoTime();
+        synchronized (this) {
+            metrics.locked(start);
+            int slot = (int) (registered & mask);
+            if (registered >= times.length) {
+                metrics.evicted(1L);
+                retainedBytes -= estimateSize(texts[slot]);
+            }
+            retainedBytes += estimateSize(text);
+            times[slot] = time;
+            severities[slot] = (byte) severity.ordinal();
+            texts[slot] = text;
+            arguments[slot] = messageArguments;
+            registered++;
+        }
+    }
+
+    /**
+     * Estimate the bytes retained by a message in the ring, counting the
+     * text of its slot and the overhead of a message.
+     *
+     * @param text The text of the slot.
+     * @return The estimated bytes.
+     */
+    private static long estimateSize(String text) {
+        return LogStatusMessage.OVERHEAD_BYTES
+                + 2L * (text == null ? 0 : text.length());
+    }
+
+    /**
+     * Get the number of messages the ring holds.
+     *
+     * @return The capacity of the ring.
+     */
+    int getCapacity() {
+        return times.length;
+    }
+
+    /**
+     * Get the length longer messages are truncated to.
+     *
+     * @return The max message length.
+     */
+    int getMaxMessageLength() {
+        return maxMessageLength;
+    }
+
+    /**
+     * Create the status message for a message still in the ring. Must be
+     * called holding the lock.
+     *
+     * @param number The number of the message, counting from 0.
+     * @return The status message, not yet rendered.
+     */
+    private LogStatusMessage materialize(long number) {
+        int slot = (int) (number & mask);
+        LogStatusMessage message = new LogStatusMessage(
+                times[slot], SEVERITIES[severities[slot]], texts[slot],
+                arguments[slot], maxMessageLength);
+        message.setSequence(number + 1);
+        return message;
+    }
+
+    /**
+     * Get the number of the oldest message still in the ring. Must be called
+     * holding the lock.
+     *
+     * @return The number of the oldest message.
+     */
+    private long oldest() {
+        return Math.max(0L, registered - times.length);
+    }
+
+    /**
+     * Returns all log messages received since the given date. The messages
+     * are returned in the order they were registered.
+     *
+     * @param time Only messages strictly after the given date are returned.
+     * @return A status containing list of log messages.
+     */
+    public Status getStatusSince(long time) {
+        log.trace("Enter getStatusSince(" + time + ")");
+        long start = System.nanoTime();
+        List<StatusMessage> statusMessages = new ArrayList<StatusMessage>();
+        synchronized (this) {
+            metrics.locked(start);
+            for (long number = oldest(); number < registered; number++) {
+                if (times[(int) (number & mask)] > time) {
+                    statusMessages.add(materialize(number));
+                }
+            }
+        }
+        LogStatusMessage.render(statusMessages);
+        Status status = new Status();
+        status.setName(name);
+        status.getMessages().addAll(statusMessages);
+        metrics.surveyed(start, statusMessages.size());
+        return status;
+    }
+
+    /**
+     * Returns one page of the log messages. The messages in the time window
+     * of the query, and of at least its minimum severity, are selected and
+     * sorted on the columns. Status messages are then created one at a time
+     * in the order of the page, until the page is done, so only messages
+     * that are returned, or are checked against the other filters of the
+     * query, are created.
+     *
+     * @param query The query. Null for all messages.
+     * @return A status containing the page of log messages.
+     * @throws IllegalArgumentException if the query is invalid.
+     */
+    public Status getStatusPage(StatusQuery query) {
+        log.trace("Enter getStatusPage()");
+        StatusPageBuilder page = new StatusPageBuilder(query);
+        long since = page.getSince();
+        long until = page.getUntil() == null
+                ? Long.MAX_VALUE : page.getUntil();
+        long[] numbers;
+        long[] candidateTimes;
+        int count = 0;
+        synchronized (this) {
+            long start = oldest();
+            numbers = new long[(int) (registered - start)];
+            candidateTimes = new long[numbers.length];
+            for (long number = start; number < registered; number++) {
+                int slot = (int) (number & mask);
+                long time = times[slot];
+                if (time > since && time < until
+                        && StatusPageBuilder.isAtLeast(
+                                SEVERITIES[severities[slot]],
+                                page.getMinSeverity())) {
+                    numbers[count] = number;
+                    candidateTimes[count] = time;
+                    count++;
+                }
+            }
+        }
+
+        int[] order = sortByTime(candidateTimes, count);
+        if (page.isNewestFirst()) {
+            order = reverseTimeGroups(order, candidateTimes);
+        }
+        for (int position : order) {
+            LogStatusMessage message;
+            synchronized (this) {
+                if (numbers[position] < oldest()) {
+                    // Overwritten since selected
+                    continue;
+                }
+                message = materialize(numbers[position]);
+            }
+            if (!page.add(message)) {
+                break;
+            }
+        }
+        LogStatusMessage.render(page.getMessages());
+        return page.build(name);
+    }
+
+    /**
+     * Sort positions by time, keeping positions with the same time in order.
+     * The times are usually almost sorted already, which is checked first.
+     *
+     * @param times The times.
+     * @param count The number of times to sort.
+     * @return The positions 0 to count - 1, ordered by time.
+     */
+    private static int[] sortByTime(long[] times, int count) {
+        int[] order = new int[count];
+        boolean sorted = true;
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+            sorted = sorted && (i == 0 || times[i - 1] <= times[i]);
+        }
+        if (sorted) {
+            return order;
+        }
+        // Bottom-up merge sort, which is stable
+        int[] buffer = new int[count];
+        for (int width = 1; width < count; width *= 2) {
+            for (int from = 0; from < count; from += 2 * width) {
+                int middle = Math.min(from + width, count);
+                int to = Math.min(from + 2 * width, count);
+                int left = from;
+                int right = middle;
+                for (int i = from; i < to; i++) {
+                    if (left < middle && (right >= to
+                            || times[order[left]] <= times[order[right]])) {
+                        buffer[i] = order[left++];
+                    } else {
+                        buffer[i] = order[right++];
+                    }
+                }
+            }
+            int[] swap = order;
+            order = buffer;
+            buffer = swap;
+        }
+        return order;
+    }
+
+    /**
+     * Reverse positions ordered by time to newest first, keeping positions
+     * with the same time in order.
+     *
+     * @param order Positions ordered by time, oldest first.
+     * @param times The times.
+     * @return The positions newest first.
+     */
+    private static int[] reverseTimeGroups(int[] order, long[] times) {
+        int[] reversed = new int[order.length];
+        int next = 0;
+        int end = order.length;
+        while (end > 0) {
+            int start = end - 1;
+            long time = times[order[start]];
+            while (start > 0 && times[order[start - 1]] == time) {
+                start--;
+            }
+            for (int i = start; i < end; i++) {
+                reversed[next++] = order[i];
+            }
+            end = start;
+        }
+        return reversed;
+    }
+
+    /**
+     * Wait until a log message newer than the given date is registered, or
+     * the timeout expires.
+     *
+     * @param time Wait for messages strictly after the given date.
+     * @param timeout Max milliseconds to wait.
+     * @return True if there are newer messages, false on timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitStatusSince(final long time, long timeout)
+            throws InterruptedException {
+        log.trace("Enter awaitStatusSince(" + time + ", " + timeout + ")");
+        return signal.await(new StatusSignal.Condition() {
+            public boolean isMet() {
+                synchronized (ColumnarLogRegistry.this) {
+                    // Newest messages first, they are the likely matches
+                    for (long number = registered - 1; number >= oldest();
+                         number--) {
+                        if (times[(int) (number & mask)] > time) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+            }
+        }, timeout);
+    }
+
+    /**
+     * Wait until a log message with a sequence number higher than the given
+     * one is registered, or the timeout expires.
+     *
+     * @param sequence Wait for messages with a higher sequence number.
+     * @param timeout Max milliseconds to wait.
+     * @return True if there are newer messages, false on timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitStatusAfter(final long sequence, long timeout)
+            throws InterruptedException {
+        log.trace("Enter awaitStatusAfter(" + sequence + ", " + timeout + ")");
+        return signal.await(new StatusSignal.Condition() {
+            public boolean isMet() {
+                return registered > sequence;
+            }
+        }, timeout);
+    }
+
+    /**
+     * Returns all log messages with a sequence number higher than the given
+     * one, ordered by sequence number. If the given sequence number is
+     * higher than any registered, it is from before a restart, and all
+     * messages are returned.
+     *
+     * @param after Only messages with a higher sequence number are returned.
+     * @return A status containing list of log messages, and the sequence
+     * number of the last message registered as high-water mark.
+     */
+    public Status getStatusAfter(long after) {
+        log.trace("Enter getStatusAfter(" + after + ")");
+        List<StatusMessage> statusMessages = new ArrayList<StatusMessage>();
+        long end;
+        synchronized (this) {
+            end = registered;
+            if (after > end) {
+                after = 0L;
+            }
+            for (long number = Math.max(after, oldest()); number < end;
+                 number++) {
+                statusMessages.add(materialize(number));
+            }
+        }
+        LogStatusMessage.render(statusMessages);
+        Status status = new Status();
+        status.setName(name);
+        status.setHighWaterMark(end);
+        status.getMessages().addAll(statusMessages);
+        return status;
+    }
+
+    /**
+     * Get the number of messages registered, which changes whenever a message
+     * is registered.
+     *
+     * @return The version of the status.
+     */
+    public long getVersion() {
+        return registered;
+    }
+
+    /**
+     * Iterate over all log messages received since the given date, in the
+     * order they were registered. Each status message is created when
+     * iterated to. Messages overwritten while iterating are skipped.
+     *
+     * @param time Only messages strictly after the given date are returned.
+     * @return Iterator over the messages.
+     */
+    public synchronized StatusIterator iterateStatusSince(final long time) {
+        log.trace("Enter iterateStatusSince(" + time + ")");
+        final long end = registered;
+        final long start = oldest();
+        return new StatusIterator() {
+            /** The next message number to look at. */
+            private long number = start;
+
+            /** The next message, if already found. */
+            private LogStatusMessage next;
+
+            public String getName() {
+                return name;
+            }
+
+            public Long getHighWaterMark() {
+                return null;
+            }
+
+            public boolean hasNext() {
+                synchronized (ColumnarLogRegistry.this) {
+                    number = Math.max(number, oldest());
+                    while (next == null && number < end) {
+                        if (times[(int) (number & mask)] > time) {
+                            next = materialize(number);
+                        }
+                        number++;
+                    }
+                }
+                return next != null;
+            }
+
+            public StatusMessage next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                LogStatusMessage result = next;
+                next = null;
+                result.getMessage();
+                return result;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException("Status is read only");
+            }
+        };
+    }
+
+    /**
+     * Get the number of messages of each severity registered in the last 1,
+     * 5 and 15 minutes, as counted when registered.
+     *
+     * @return The counts.
+     */
+    public StatusSummary getSummary() {
+        log.trace("Enter getSummary()");
+        return counters.getSummary(System.currentTimeMillis(), name);
+    }
+
+    /**
+     * Get the metrics of the registry, as described in
+     * {@link RegistryMetrics}.
+     *
+     * @return The values, by name.
+     */
+    public SortedMap<String, Long> getMetrics() {
+        return metrics.getSnapshot();
+    }
+
+    /**
+     * Returns all log messages received.
+     *
+     * @return A status containing list of log messages.
+     */
+    public Status getStatus() {
+        log.trace("Enter getStatus()");
+        return getStatusSince(0L);
+    }
+}
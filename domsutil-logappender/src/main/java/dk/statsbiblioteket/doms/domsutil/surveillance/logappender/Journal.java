@@ -0,0 +1,554 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of log messages in memory-mapped segment files.
+ *
+ * Each segment is a file of fixed size in the journal directory, named by
+ * its number. Messages are appended to the newest segment as records of
+ * <ul>
+ * <li>the length of the rest of the record after the checksum (int)</li>
+ * <li>a CRC32 checksum of the rest of the record (int)</li>
+ * <li>the time of the message (long)</li>
+ * <li>the ordinal of the severity of the message (byte)</li>
+ * <li>the message, UTF-8 encoded</li>
+ * </ul>
+ * A record with length zero, which is what a new segment is filled with,
+ * marks the end of the segment. When a record does not fit in the segment,
+ * a new segment is started, and the oldest segments beyond the number kept
+ * are deleted.
+ *
+ * Appends only write to the mapped memory. Since the operating system keeps
+ * the written pages, the journal survives the JVM crashing or being
+ * restarted. To also survive the machine crashing, a background thread
+ * flushes the segments to disk. It is woken after a batch of appends, or
+ * when a segment is full, and otherwise flushes appends at the latest after
+ * the flush interval. Appends never wait for the disk.
+ *
+ * Only one journal at a time can use a directory. It holds a lock on a lock
+ * file in the directory from when it is opened until it is closed, so another
+ * process, or another journal in this process, fails to open the directory
+ * instead of overwriting the segments.
+ *
+ * Note this class must not log through commons-logging when appending, since
+ * it is called from within the logging framework. If the journal cannot be
+ * written, it is closed, and the error is printed on standard error.
+ */
+@QAInfo(author = "kfc",
+        reviewers = "jrg",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+class Journal {
+    /** Prefix of segment file names. */
+    private static final String SEGMENT_PREFIX = "journal-";
+
+    /** Suffix of segment file names. */
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /** Name of the lock file in the journal directory. */
+    private static final String LOCK_FILE = "journal.lock";
+
+    /** Bytes of a record before the time: length and checksum. */
+    private static final int HEADER_BYTES = 8;
+
+    /** Bytes of a record before the message: time and severity. */
+    private static final int FIELD_BYTES = 9;
+
+    /** The segment is flushed after at most this many appends. */
+    private static final int FLUSH_BATCH = 256;
+
+    /** Encoding of the messages. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The severities, by the ordinals kept in the records. */
+    private static final Severity[] SEVERITIES = Severity.values();
+
+    /** The directory of the segment files. */
+    private final File directory;
+
+    /** Size in bytes of each segment. */
+    private final int segmentSize;
+
+    /** Number of segments kept. */
+    private final int segments;
+
+    /** Max milliseconds between flushes. */
+    private final long flushInterval;
+
+    /** Scratch buffer for the time and severity of a record. */
+    private final ByteBuffer fields = ByteBuffer.allocate(FIELD_BYTES);
+
+    /** Checksum of the record being appended. */
+    private final CRC32 checksum = new CRC32();
+
+    /** Number of the newest segment. */
+    private long segmentNumber;
+
+    /** The newest segment, positioned at its end. Null when closed. */
+    private MappedByteBuffer segment;
+
+    /** Number of appends to the newest segment not yet flushed. */
+    private int unflushed = 0;
+
+    /** Full segments not yet flushed, oldest first. */
+    private final List<MappedByteBuffer> unforced
+            = new ArrayList<MappedByteBuffer>();
+
+    /** The lock file, while the journal is open. Null otherwise. */
+    private RandomAccessFile lockFile;
+
+    /** The lock on the lock file, while the journal is open. */
+    private FileLock lock;
+
+    /** The thread flushing the segments, while the journal is open. */
+    private Thread flusher;
+
+    /**
+     * Initialize a journal. It is not opened until {@link #open(int)} is
+     * called.
+     *
+     * @param directory The directory of the segment files.
+     * @param segmentSize Size in bytes of each segment.
+     * @param segments Number of segments kept.
+     * @param flushInterval Max milliseconds between flushes.
+     */
+    Journal(File directory, int segmentSize, int segments,
+            long flushInterval) {
+        this.directory = directory;
+        this.segmentSize = Math.max(segmentSize, HEADER_BYTES + FIELD_BYTES);
+        this.segments = Math.max(segments, 1);
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Open the journal for appending after the last valid record, and
+     * recover the newest messages. Only the newest segments are read, until
+     * enough messages are found. A record that is cut off or fails its
+     * checksum ends the segment, and is overwritten by the next append.
+     *
+     * @param count Max number of messages to recover.
+     * @return The newest messages in the journal, oldest first.
+     * @throws IOException on trouble opening the journal, or if another
+     * journal has the directory open.
+     */
+    synchronized List<StatusMessage> open(int count) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create journal directory '"
+                                  + directory + "'");
+        }
+        lock();
+        try {
+            return recover(count);
+        } catch (IOException e) {
+            unlock();
+            throw e;
+        } catch (RuntimeException e) {
+            unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Take the lock on the lock file in the journal directory.
+     *
+     * @throws IOException if another journal holds the lock, or on trouble
+     * taking it.
+     */
+    private void lock() throws IOException {
+        lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+        try {
+            lock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Held by another journal in this process
+            lock = null;
+        } catch (IOException e) {
+            unlock();
+            throw e;
+        }
+        if (lock == null) {
+            unlock();
+            throw new IOException("Journal directory '" + directory
+                                  + "' is in use by another journal");
+        }
+    }
+
+    /** Release the lock on the lock file, if held, and close the file. */
+    private void unlock() {
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+            if (lockFile != null) {
+                lockFile.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to release journal lock in '"
+                               + directory + "': " + e);
+        }
+        lock = null;
+        lockFile = null;
+    }
+
+    /**
+     * Recover the newest messages, position the newest segment for
+     * appending, and start the flusher.
+     *
+     * @param count Max number of messages to recover.
+     * @return The newest messages in the journal, oldest first.
+     * @throws IOException on trouble reading the segments.
+     */
+    private List<StatusMessage> recover(int count) throws IOException {
+        long[] numbers = listSegments();
+        LinkedList<StatusMessage> recovered = new LinkedList<StatusMessage>();
+        for (int i = numbers.length - 1;
+             i >= 0 && (i == numbers.length - 1 || recovered.size() < count);
+             i--) {
+            LinkedList<StatusMessage> messages
+                    = new LinkedList<StatusMessage>();
+            MappedByteBuffer buffer = map(numbers[i]);
+            int end = scan(buffer, messages, count - recovered.size());
+            if (i == numbers.length - 1) {
+                // Append to the newest segment, after its last valid record
+                buffer.position(end);
+                while (buffer.hasRemaining()) {
+                    buffer.put((byte) 0);
+                }
+                buffer.position(end);
+                segment = buffer;
+                segmentNumber = numbers[i];
+            }
+            recovered.addAll(0, messages);
+        }
+        if (segment == null) {
+            segmentNumber = numbers.length == 0
+                    ? 1L : numbers[numbers.length - 1];
+            segment = map(segmentNumber);
+        }
+        deleteOldSegments();
+        flusher = new Thread(new Flusher(),
+                             "JournalFlusher-" + directory.getName());
+        flusher.setDaemon(true);
+        flusher.start();
+        return recovered;
+    }
+
+    /**
+     * Close the journal. The segments not yet flushed are flushed to disk,
+     * the flusher is stopped, and the lock on the directory is released.
+     * Appends after this are ignored. Closing a journal that is not open
+     * does nothing.
+     */
+    void close() {
+        List<MappedByteBuffer> flush;
+        Thread stopping;
+        synchronized (this) {
+            if (lock == null) {
+                return;
+            }
+            flush = new ArrayList<MappedByteBuffer>(unforced);
+            unforced.clear();
+            if (segment != null) {
+                flush.add(segment);
+            }
+            segment = null;
+            unflushed = 0;
+            stopping = flusher;
+            flusher = null;
+            notifyAll();
+        }
+        try {
+            for (MappedByteBuffer buffer : flush) {
+                buffer.force();
+            }
+            if (stopping != null) {
+                stopping.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            System.err.println("Unable to flush journal in '" + directory
+                               + "': " + e);
+        } finally {
+            synchronized (this) {
+                unlock();
+            }
+        }
+    }
+
+    /**
+     * Read the valid records of a segment from its start.
+     *
+     * @param buffer The segment.
+     * @param messages The newest messages read are added to this list.
+     * @param count Max number of messages kept in the list.
+     * @return The position after the last valid record.
+     */
+    private int scan(ByteBuffer buffer, LinkedList<StatusMessage> messages,
+                     int count) {
+        CRC32 crc = new CRC32();
+        int end = 0;
+        while (buffer.remaining() >= HEADER_BYTES + FIELD_BYTES) {
+            int length = buffer.getInt();
+            int expected = buffer.getInt();
+            if (length < FIELD_BYTES || length > buffer.remaining()) {
+                break;
+            }
+            byte[] record = new byte[length];
+            buffer.get(record);
+            crc.reset();
+            crc.update(record);
+            int severity = record[FIELD_BYTES - 1];
+            if ((int) crc.getValue() != expected || severity < 0
+                    || severity >= SEVERITIES.length) {
+                break;
+            }
+            StatusMessage message = new StatusMessage();
+            message.setTime(ByteBuffer.wrap(record).getLong());
+            message.setSeverity(SEVERITIES[severity]);
+            message.setMessage(new String(record, FIELD_BYTES,
+                                          length - FIELD_BYTES, UTF8));
+            message.setLogMessage(true);
+            messages.add(message);
+            if (messages.size() > count) {
+                messages.removeFirst();
+            }
+            end = buffer.position();
+        }
+        return end;
+    }
+
+    /**
+     * Append a message. Messages too long for a segment are cut off. Wakes
+     * the flusher if a batch of messages has been appended.
+     *
+     * @param time The time of the message.
+     * @param severity The severity of the message.
+     * @param message The message.
+     */
+    synchronized void append(long time, Severity severity, String message) {
+        if (segment == null) {
+            return;
+        }
+        byte[] text = message == null ? new byte[0] : message.getBytes(UTF8);
+        int textLength = Math.min(
+                text.length, segmentSize - HEADER_BYTES - FIELD_BYTES);
+        if (segment.remaining() < HEADER_BYTES + FIELD_BYTES + textLength) {
+            rotate();
+            if (segment == null) {
+                return;
+            }
+        }
+        fields.clear();
+        fields.putLong(time).put((byte) severity.ordinal());
+        checksum.reset();
+        checksum.update(fields.array(), 0, FIELD_BYTES);
+        checksum.update(text, 0, textLength);
+
+        // Write the length last, so the record is only valid once complete
+        int start = segment.position();
+        segment.position(start + 4);
+        segment.putInt((int) checksum.getValue());
+        segment.put(fields.array(), 0, FIELD_BYTES);
+        segment.put(text, 0, textLength);
+        segment.putInt(start, FIELD_BYTES + textLength);
+
+        unflushed++;
+        if (unflushed == FLUSH_BATCH) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Hand the newest segment to the flusher, and start a new one. Deletes
+     * the oldest segments beyond the number kept.
+     */
+    private void rotate() {
+        unforced.add(segment);
+        unflushed = 0;
+        notifyAll();
+        try {
+            segment = map(++segmentNumber);
+            deleteOldSegments();
+        } catch (IOException e) {
+            segment = null;
+            System.err.println("Unable to start journal segment "
+                               + segmentNumber + " in '" + directory
+                               + "', closing journal: " + e);
+        }
+    }
+
+    /**
+     * Map a segment for reading and writing, creating it if necessary.
+     *
+     * @param number Number of the segment.
+     * @return The mapped segment, positioned at its start.
+     * @throws IOException on trouble mapping the segment.
+     */
+    private MappedByteBuffer map(long number) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(getFile(number), "rw");
+        try {
+            // The mapping stays valid after the file is closed
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                         segmentSize);
+        } finally {
+            file.close();
+        }
+    }
+
+    /** Delete the oldest segments beyond the number kept. */
+    private void deleteOldSegments() {
+        long[] numbers = listSegments();
+        for (int i = 0; i < numbers.length - segments; i++) {
+            File file = getFile(numbers[i]);
+            if (!file.delete()) {
+                System.err.println("Unable to delete journal segment '"
+                                   + file + "'");
+            }
+        }
+    }
+
+    /**
+     * List the numbers of the segments in the journal directory.
+     *
+     * @return The segment numbers, in increasing order.
+     */
+    private long[] listSegments() {
+        String[] names = directory.list();
+        if (names == null) {
+            return new long[0];
+        }
+        long[] numbers = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.startsWith(SEGMENT_PREFIX)
+                    && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    numbers[count] = Long.parseLong(name.substring(
+                            SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length()));
+                    count++;
+                } catch (NumberFormatException e) {
+                    // Not a segment
+                }
+            }
+        }
+        numbers = Arrays.copyOf(numbers, count);
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * Wait until there is something to flush: a full segment, a batch of
+     * appends, or appends older than the flush interval.
+     *
+     * @return The segments to flush, oldest first. Empty if the journal was
+     * closed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private synchronized List<MappedByteBuffer> awaitUnflushed()
+            throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (segment != null && unforced.isEmpty()
+               && unflushed < FLUSH_BATCH) {
+            long remaining
+                    = start + flushInterval - System.currentTimeMillis();
+            if (remaining <= 0L) {
+                if (unflushed > 0) {
+                    break;
+                }
+                start = System.currentTimeMillis();
+                remaining = flushInterval;
+            }
+            wait(Math.max(remaining, 1L));
+        }
+        List<MappedByteBuffer> flush
+                = new ArrayList<MappedByteBuffer>(unforced);
+        unforced.clear();
+        if (segment != null && unflushed > 0) {
+            flush.add(segment);
+            unflushed = 0;
+        }
+        return flush;
+    }
+
+    /**
+     * Flushes the segments to disk in the background, so appends never wait
+     * for the disk. Stops when the journal is closed.
+     */
+    private class Flusher implements Runnable {
+        /** Flush segments until the journal is closed. */
+        public void run() {
+            try {
+                while (true) {
+                    List<MappedByteBuffer> flush = awaitUnflushed();
+                    if (flush.isEmpty()) {
+                        return;
+                    }
+                    for (MappedByteBuffer buffer : flush) {
+                        buffer.force();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                System.err.println("Unable to flush journal in '"
+                                   + directory + "': " + e);
+            }
+        }
+    }
+
+    /**
+     * Get the file of a segment.
+     *
+     * @param number Number of the segment.
+     * @return The segment file.
+     */
+    private File getFile(long number) {
+        return new File(directory, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
+import dk.statsbiblioteket.sbutil.webservices.configuration.ConfigCollection;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A log registry that also appends its messages to a {@link Journal} on
+ * disk, so they survive a restart of the webapp.
+ *
+ * Queries are answered from memory, as by {@link ColumnarLogRegistry}. On
+ * startup, the newest messages in the journal are read back into memory, as
+ * many as the registry holds, by reading only the newest segments. Recovered
+ * messages are numbered anew, so a poller with a high-water mark from before
+ * the restart gets them all.
+ *
+ * The journal is configured by the parameters
+ * <code>dk.statsbiblioteket.doms.surveillance.logappender.journalDirectory</code>
+ * (default a directory named after the logger name in java.io.tmpdir),
+ * <code>.journalSegmentSize</code> (default 4 MB),
+ * <code>.journalSegments</code> (default 4) and
+ * <code>.journalFlushInterval</code> (default 1000 milliseconds). If the
+ * journal cannot be opened, for instance because another registry has the
+ * directory open, the registry keeps its messages in memory only.
+ *
+ * The journal is closed by {@link #close()}, which
+ * {@link LogRegistryFactory} calls when it replaces the registry.
+ */
+@QAInfo(author = "kfc",
+        reviewers = "jrg",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class JournalLogRegistry extends ColumnarLogRegistry
+        implements Closeable {
+    /** The journal, or null if it could not be opened. */
+    private final Journal journal;
+
+    /** The logger for this class. */
+    private static Log log = LogFactory.getLog(JournalLogRegistry.class);
+
+    /** Read parameters from configuration, and recover the journal. */
+    public JournalLogRegistry() {
+        log.trace("Enter JournalLogRegistry()");
+        File directory = null;
+        int segmentSize = DEFAULT_JOURNAL_SEGMENT_SIZE;
+        int segments = DEFAULT_JOURNAL_SEGMENTS;
+        long flushInterval = DEFAULT_JOURNAL_FLUSH_INTERVAL;
+        try {
+            Properties properties = ConfigCollection.getProperties();
+            String configValue = properties.getProperty(
+                    JOURNALDIRECTORY_CONFIGURATION_PARAMETER);
+            if (configValue != null && !configValue.equals("")) {
+                directory = new File(configValue);
+            }
+            configValue = properties.getProperty(
+                    JOURNALSEGMENTSIZE_CONFIGURATION_PARAMETER);
+            if (configValue != null && !configValue.equals("")) {
+                segmentSize = Integer.parseInt(configValue);
+            }
+            configValue = properties.getProperty(
+                    JOURNALSEGMENTS_CONFIGURATION_PARAMETER);
+            if (configValue != null && !configValue.equals("")) {
+                segments = Integer.parseInt(configValue);
+            }
+            configValue = properties.getProperty(
+                    JOURNALFLUSHINTERVAL_CONFIGURATION_PARAMETER);
+            if (configValue != null && !configValue.equals("")) {
+                flushInterval = Long.parseLong(configValue);
+            }
+            if (directory == null) {
+                directory = new File(
+                        System.getProperty("java.io.tmpdir"),
+                        "logregistry-" + properties.getProperty(
+                                LOGGERNAME_CONFIGURATION_PARAMETER,
+                                "Unnamed"));
+            }
+        } catch (Exception e) {
+            log.warn("Error while configuring journal."
+                     + " Falling back to default values.", e);
+            directory = new File(System.getProperty("java.io.tmpdir"),
+                                 "logregistry-Unnamed");
+        }
+
+        Journal opened = new Journal(directory, segmentSize, segments,
+                                     flushInterval);
+        try {
+            List<StatusMessage> recovered = opened.open(getCapacity());
+            for (StatusMessage message : recovered) {
+                append(message.getTime(), message.getSeverity(),
+                       message.getMessage(), null);
+            }
+            log.info("Recovered " + recovered.size()
+                     + " messages from journal '" + directory + "'");
+        } catch (IOException e) {
+            log.error("Unable to open journal '" + directory
+                      + "'. Messages are only kept in memory.", e);
+            opened = null;
+        }
+        journal = opened;
+    }
+
+    /**
+     * Register a message for later inspection, and append it to the
+     * journal.
+     *
+     * @param event The log message to register. Should never be null.
+     *
+     * @throws IllegalArgumentException if event is null.
+     */
+    public void registerMessage(LoggingEvent event) {
+        super.registerMessage(event);
+        if (journal != null) {
+            journal.append(event.getTimeStamp(),
+                           LogStatusMessage.getSeverity(event.getLevel()),
+                           LogStatusMessage.truncate(
+                                   event.getRenderedMessage(),
+                                   getMaxMessageLength()));
+        }
+    }
+
+    /**
+     * Register a message for later inspection, and append it to the
+     * journal. The journal needs the formatted message, so messages with
+     * arguments are formatted here.
+     *
+     * @param event The log message to register. Should never be null.
+     *
+     * @throws IllegalArgumentException if event is null.
+     */
+    public void registerMessage(ILoggingEvent event) {
+        super.registerMessage(event);
+        if (journal != null) {
+            journal.append(event.getTimeStamp(),
+                           LogStatusMessage.getSeverity(event.getLevel()),
+                           LogStatusMessage.truncate(
+                                   event.getFormattedMessage(),
+                                   getMaxMessageLength()));
+        }
+    }
+
+    /**
+     * Flush the journal to disk, and close it, so another registry can open
+     * the directory. Messages registered after this are kept in memory only.
+     */
+    public void close() {
+        log.trace("Enter close()");
+        if (journal != null) {
+            journal.close();
+        }
+    }
+}
@@ -27,19 +27,38 @@
 
 package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
 
-import dk.statsbiblioteket.sbutil.webservices.configuration.ConfigCollection;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
 import dk.statsbiblioteket.util.qa.QAInfo;
 import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.ErrorCode;
 import org.apache.log4j.spi.LoggingEvent;
 
-import java.util.Properties;
-
 /**
  * Log4J appender that registers log messages in a registry.
  *
  * The configuration parameter MaxNumberOfMessages will, if present, be
  * delegated to the log registry by setting the parameter
  * <code>dk.statsbiblioteket.doms.surveillance.rest.logappender.numberOfMessages</code>
+ *
+ * If the configuration parameter Async is true, events are handed to a
+ * background thread through a bounded queue of size QueueSize, and
+ * registered in batches of at most BatchSize. DropPolicy decides what is
+ * dropped when the queue is full: DROP_OLDEST (default), DROP_NEWEST or
+ * DROP_BELOW_WARN.
+ *
+ * If the configuration parameter RateLimit is set, each logger may only log
+ * that many events per second of each severity. RateLimitRed,
+ * RateLimitYellow and RateLimitGreen set the limit of one severity, and
+ * RateLimitBurst the number of events let through at once (default the
+ * limit). Events above the limit are dropped before they are registered or
+ * queued. Once every SummaryInterval milliseconds (default 60000), a timer
+ * thread registers a message for each logger and severity with suppressed
+ * events, giving their number, also if the logger has gone quiet since.
+ *
+ * The configuration and logic are shared with the appender for the other
+ * logging framework through {@link RegistryAppenderSupport}.
  */
 @QAInfo(author = "kfc",
         reviewers = "jrg",
@@ -47,8 +66,9 @@ import java.util.Properties;
         level = QAInfo.Level.NORMAL,
         state = QAInfo.State.QA_NEEDED)
 public class Log4jRegistryAppender extends AppenderSkeleton {
-    /** Used to configure max number of messages. */
-    private int maxNumberOfMessages;
+    /** The configuration and logic shared with the other appender. */
+    private final RegistryAppenderSupport<LoggingEvent> support
+            = new Support();
 
     /** Create new instance. */
     public Log4jRegistryAppender() {
@@ -63,11 +83,7 @@ public class Log4jRegistryAppender extends AppenderSkeleton {
      * @param maxNumberOfMessages Max number of messages to store in cache.
      */
     private void setNumberOfMessages(int maxNumberOfMessages) {
-        Properties p = new Properties();
-        p.setProperty(LogRegistry.NUMBEROFMESSAGES_CONFIGURATION_PARAMETER,
-                      Integer.toString(maxNumberOfMessages));
-        ConfigCollection.addContextConfig(p);
-        this.maxNumberOfMessages = maxNumberOfMessages;
+        support.setNumberOfMessages(maxNumberOfMessages);
     }
 
     /**
@@ -78,31 +94,315 @@ public class Log4jRegistryAppender extends AppenderSkeleton {
      * @return Max number of messages. 0 if not initialized.
      */
     private int getNumberOfMessages() {
-        return maxNumberOfMessages;
+        return support.getNumberOfMessages();
+    }
+
+    /**
+     * Set whether events are registered by a background thread. Called by
+     * the log4j framework by introspection.
+     *
+     * @param async True to register events asynchronously.
+     */
+    public void setAsync(boolean async) {
+        support.setAsync(async);
+    }
+
+    /**
+     * Whether events are registered by a background thread.
+     *
+     * @return True if registering events asynchronously.
+     */
+    public boolean getAsync() {
+        return support.isAsync();
+    }
+
+    /**
+     * Set max number of events waiting for the background thread. Called by
+     * the log4j framework by introspection.
+     *
+     * @param queueSize Max number of queued events.
+     */
+    public void setQueueSize(int queueSize) {
+        support.setQueueSize(queueSize);
+    }
+
+    /**
+     * Get max number of events waiting for the background thread.
+     *
+     * @return Max number of queued events.
+     */
+    public int getQueueSize() {
+        return support.getQueueSize();
+    }
+
+    /**
+     * Set max number of events registered by the background thread at once.
+     * Called by the log4j framework by introspection.
+     *
+     * @param batchSize Max number of events in a batch.
+     */
+    public void setBatchSize(int batchSize) {
+        support.setBatchSize(batchSize);
+    }
+
+    /**
+     * Get max number of events registered by the background thread at once.
+     *
+     * @return Max number of events in a batch.
+     */
+    public int getBatchSize() {
+        return support.getBatchSize();
     }
 
     /**
-     * Cache the event, for later inspection by the surveyor.
+     * Set what to drop when the queue is full. Called by the log4j framework
+     * by introspection.
+     *
+     * @param dropPolicy One of DROP_OLDEST, DROP_NEWEST and DROP_BELOW_WARN.
+     */
+    public void setDropPolicy(String dropPolicy) {
+        support.setDropPolicy(dropPolicy);
+    }
+
+    /**
+     * Get what to drop when the queue is full.
+     *
+     * @return The drop policy.
+     */
+    public String getDropPolicy() {
+        return support.getDropPolicy();
+    }
+
+    /**
+     * Get the number of events handed to the background thread.
+     *
+     * @return Number of queued events. 0 if not running asynchronously.
+     */
+    public long getEnqueuedCount() {
+        return support.getEnqueuedCount();
+    }
+
+    /**
+     * Get the number of events dropped because the queue was full.
+     *
+     * @return Number of dropped events. 0 if not running asynchronously.
+     */
+    public long getDroppedCount() {
+        return support.getDroppedCount();
+    }
+
+    /**
+     * Get the number of events suppressed by the rate limits.
+     *
+     * @return Number of suppressed events. 0 if no rate limit is set.
+     */
+    public long getSuppressedCount() {
+        return support.getSuppressedCount();
+    }
+
+    /**
+     * Set events per second per logger and severity. Called by the log4j
+     * framework by introspection.
+     *
+     * @param rateLimit Events per second. 0 for no limit.
+     */
+    public void setRateLimit(double rateLimit) {
+        support.setRateLimit(rateLimit);
+    }
+
+    /**
+     * Get events per second per logger and severity.
+     *
+     * @return Events per second. 0 for no limit.
+     */
+    public double getRateLimit() {
+        return support.getRateLimit();
+    }
+
+    /**
+     * Set events per second per logger for RED. Called by the log4j
+     * framework by introspection.
+     *
+     * @param rateLimitRed Events per second. Negative to use RateLimit.
+     */
+    public void setRateLimitRed(double rateLimitRed) {
+        support.setRateLimitRed(rateLimitRed);
+    }
+
+    /**
+     * Get events per second per logger for RED.
+     *
+     * @return Events per second. Negative to use RateLimit.
+     */
+    public double getRateLimitRed() {
+        return support.getRateLimitRed();
+    }
+
+    /**
+     * Set events per second per logger for YELLOW. Called by the log4j
+     * framework by introspection.
+     *
+     * @param rateLimitYellow Events per second. Negative to use RateLimit.
+     */
+    public void setRateLimitYellow(double rateLimitYellow) {
+        support.setRateLimitYellow(rateLimitYellow);
+    }
+
+    /**
+     * Get events per second per logger for YELLOW.
+     *
+     * @return Events per second. Negative to use RateLimit.
+     */
+    public double getRateLimitYellow() {
+        return support.getRateLimitYellow();
+    }
+
+    /**
+     * Set events per second per logger for GREEN. Called by the log4j
+     * framework by introspection.
+     *
+     * @param rateLimitGreen Events per second. Negative to use RateLimit.
+     */
+    public void setRateLimitGreen(double rateLimitGreen) {
+        support.setRateLimitGreen(rateLimitGreen);
+    }
+
+    /**
+     * Get events per second per logger for GREEN.
+     *
+     * @return Events per second. Negative to use RateLimit.
+     */
+    public double getRateLimitGreen() {
+        return support.getRateLimitGreen();
+    }
+
+    /**
+     * Set max events of a logger and severity let through at once.
+     * Called by the log4j framework by introspection.
+     *
+     * @param rateLimitBurst Max events. 0 for the rate limit.
+     */
+    public void setRateLimitBurst(int rateLimitBurst) {
+        support.setRateLimitBurst(rateLimitBurst);
+    }
+
+    /**
+     * Get max events of a logger and severity let through at once.
+     *
+     * @return Max events. 0 for the rate limit.
+     */
+    public int getRateLimitBurst() {
+        return support.getRateLimitBurst();
+    }
+
+    /**
+     * Set milliseconds between messages about suppressed events.
+     * Called by the log4j framework by introspection.
+     *
+     * @param summaryInterval Milliseconds between messages.
+     */
+    public void setSummaryInterval(long summaryInterval) {
+        support.setSummaryInterval(summaryInterval);
+    }
+
+    /**
+     * Get milliseconds between messages about suppressed events.
+     *
+     * @return Milliseconds between messages.
+     */
+    public long getSummaryInterval() {
+        return support.getSummaryInterval();
+    }
+
+    /**
+     * Set up the rate limits, and start the background thread if configured
+     * to run asynchronously. Called by the log4j framework when all options
+     * are set.
+     */
+    public void activateOptions() {
+        super.activateOptions();
+        support.start(getName());
+    }
+
+    /**
+     * Cache the event, for later inspection by the surveyor, unless it
+     * exceeds the rate limit of its logger and severity.
      *
      * @param event The event to cache.
      */
     protected void append(LoggingEvent event) {
-        LogRegistryFactory.getLogRegistry().registerMessage(event);
-        
+        support.append(event);
     }
 
     /**
      * Release any resources allocated within the appender such as file
      * handles, network connections, etc.
      *
-     * Currently does nothing in this implementation.
+     * Registers messages about events suppressed since the last summary,
+     * and stops the background thread, if running asynchronously, after it
+     * has registered the events already queued.
      */
     public void close() {
-        // Does nothing
+        support.close();
     }
 
     /** This appender requires layout. */
     public boolean requiresLayout() {
         return true;
     }
+
+    /** The parts of the shared logic that depend on log4j events. */
+    private class Support extends RegistryAppenderSupport<LoggingEvent> {
+        protected String getLoggerName(LoggingEvent event) {
+            return event.getLoggerName();
+        }
+
+        protected Severity getSeverity(LoggingEvent event) {
+            return LogStatusMessage.getSeverity(event.getLevel());
+        }
+
+        protected long getTimeStamp(LoggingEvent event) {
+            return event.getTimeStamp();
+        }
+
+        protected boolean isBelowWarn(LoggingEvent event) {
+            return !event.getLevel().isGreaterOrEqual(Level.WARN);
+        }
+
+        protected void prepareForDeferredProcessing(LoggingEvent event) {
+            // Render on this thread, the message object may change later.
+            event.getRenderedMessage();
+        }
+
+        protected void register(LogRegistry registry, LoggingEvent event) {
+            registry.registerMessage(event);
+        }
+
+        protected LoggingEvent createSummaryEvent(RateLimiter.Summary summary,
+                                                  long time) {
+            Level level;
+            switch (summary.getSeverity()) {
+                case RED:
+                    level = Level.ERROR;
+                    break;
+                case YELLOW:
+                    level = Level.WARN;
+                    break;
+                default:
+                    level = Level.INFO;
+            }
+            return new LoggingEvent(
+                    Log4jRegistryAppender.class.getName(),
+                    Logger.getLogger(summary.getLoggerName()), time, level,
+                    summary.getMessage(), null);
+        }
+
+        protected void reportWarning(String message, Exception e) {
+            errorHandler.error(message, e, ErrorCode.GENERIC_FAILURE);
+        }
+
+        protected void reportError(String message, Exception e) {
+            errorHandler.error(message, e, ErrorCode.GENERIC_FAILURE);
+        }
+    }
 }
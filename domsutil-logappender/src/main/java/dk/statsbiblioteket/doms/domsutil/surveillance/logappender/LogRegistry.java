@@ -28,32 +28,116 @@
 package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
 
 import ch.qos.logback.classic.spi.ILoggingEvent;
-import dk.statsbiblioteket.doms.domsutil.surveyable.Surveyable;
+import dk.statsbiblioteket.doms.domsutil.surveyable.MeteredSurveyable;
+import dk.statsbiblioteket.doms.domsutil.surveyable.QueryableSurveyable;
+import dk.statsbiblioteket.doms.domsutil.surveyable.SequencedSurveyable;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StreamingSurveyable;
+import dk.statsbiblioteket.doms.domsutil.surveyable.SummarizingSurveyable;
+import dk.statsbiblioteket.doms.domsutil.surveyable.VersionedSurveyable;
+import dk.statsbiblioteket.doms.domsutil.surveyable.WaitableSurveyable;
 import dk.statsbiblioteket.util.qa.QAInfo;
 import org.apache.log4j.spi.LoggingEvent;
 
 /** Interface for a surveyable log message registry.
  * Implementations may be configured by the parameter:
  * <code>dk.statsbiblioteket.doms.surveillance.rest.logappender.numberOfMessages</code> 
+ * Implementations that index by severity may also be configured by the
+ * parameter with the severity appended, like
+ * <code>dk.statsbiblioteket.doms.surveillance.rest.logappender.numberOfMessages.RED</code>
+ *
+ * Implementations report the metrics described in {@link RegistryMetrics}.
  * */
 @QAInfo(author = "kfc",
         reviewers = "jrg",
         comment = "Needs review on diff from revision 265",
         level = QAInfo.Level.NORMAL,
         state = QAInfo.State.QA_NEEDED)
-public interface LogRegistry extends Surveyable{
+public interface LogRegistry
+        extends VersionedSurveyable, SequencedSurveyable,
+                QueryableSurveyable, StreamingSurveyable,
+                SummarizingSurveyable, WaitableSurveyable,
+                MeteredSurveyable {
     /** The package prefix for parameter names. */
     final String CONFIGURATION_PACKAGE_NAME
             = "dk.statsbiblioteket.doms.surveillance.logappender";
     /** Parameter for now many log messages are kept in the registry. */
     final String NUMBEROFMESSAGES_CONFIGURATION_PARAMETER
             = CONFIGURATION_PACKAGE_NAME + ".numberOfMessages";
+    /**
+     * Prefix of parameters for how many log messages of a severity are kept
+     * in the registry. The name of the severity is appended.
+     */
+    final String NUMBEROFMESSAGES_BY_SEVERITY_CONFIGURATION_PARAMETER_PREFIX
+            = NUMBEROFMESSAGES_CONFIGURATION_PARAMETER + ".";
+    /**
+     * Parameter for whether repeated messages are aggregated into one, in
+     * registries that support it. Default false.
+     */
+    final String AGGREGATEDUPLICATES_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".aggregateDuplicates";
+    /**
+     * Parameter for the budget of estimated bytes retained by the messages
+     * in the registry, in registries that support it.
+     */
+    final String MAXBYTES_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".maxBytes";
+    /** Parameter for the length longer messages are truncated to. */
+    final String MAXMESSAGELENGTH_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".maxMessageLength";
+    /** Parameter for the directory of the journal, in journaling registries. */
+    final String JOURNALDIRECTORY_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".journalDirectory";
+    /** Parameter for the size in bytes of each segment of the journal. */
+    final String JOURNALSEGMENTSIZE_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".journalSegmentSize";
+    /** Parameter for the number of journal segments kept. */
+    final String JOURNALSEGMENTS_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".journalSegments";
+    /** Parameter for max milliseconds between flushes of the journal. */
+    final String JOURNALFLUSHINTERVAL_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".journalFlushInterval";
+    /** Parameter for the file shared by the processes on a host. */
+    final String SHAREDFILE_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".sharedFile";
+    /** Parameter for the number of processes that can share the file. */
+    final String SHAREDPROCESSES_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".sharedProcesses";
+    /** Parameter for the bytes of each message in the shared file. */
+    final String SHAREDRECORDSIZE_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".sharedRecordSize";
+    /** Parameter for the number of stripes, in striped registries. */
+    final String STRIPES_CONFIGURATION_PARAMETER
+            = CONFIGURATION_PACKAGE_NAME + ".stripes";
     final String LOGGERNAME_CONFIGURATION_PARAMETER
                 = CONFIGURATION_PACKAGE_NAME + ".LoggerName";
 
     /** At most this many log messages are by default kept in the registry. */
     int DEFAULT_MAX_NUMBER_OF_MESSAGES_KEPT_BY_LOG = 1000;
 
+    /** By default, the messages in the registry retain at most 16 MB. */
+    long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+
+    /** By default, messages are truncated to this length. */
+    int DEFAULT_MAX_MESSAGE_LENGTH = 16384;
+
+    /** By default, each journal segment is 4 MB. */
+    int DEFAULT_JOURNAL_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /** By default, this many journal segments are kept. */
+    int DEFAULT_JOURNAL_SEGMENTS = 4;
+
+    /** By default, the journal is flushed to disk at least every second. */
+    long DEFAULT_JOURNAL_FLUSH_INTERVAL = 1000L;
+
+    /** By default, the shared file is this file in java.io.tmpdir. */
+    String DEFAULT_SHARED_FILE_NAME = "doms-logregistry.shm";
+
+    /** By default, this many processes can share the file. */
+    int DEFAULT_SHARED_PROCESSES = 16;
+
+    /** By default, each message takes this many bytes in the shared file. */
+    int DEFAULT_SHARED_RECORD_SIZE = 512;
+
     /**
      * Register a message for later inspection.
      *
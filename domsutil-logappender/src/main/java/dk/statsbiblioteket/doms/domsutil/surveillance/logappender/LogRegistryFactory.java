@@ -32,6 +32,9 @@ import dk.statsbiblioteket.util.qa.QAInfo;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.Closeable;
+import java.io.IOException;
+
 /** Factory for getting the log registry singleton.
  * The choice of singleton is defined by configuration parameter
  * <code>dk.statsbiblioteket.doms.surveillance.rest.logappender.registryClass</code>.
@@ -58,24 +61,60 @@ public class LogRegistryFactory {
     /** Logger for this class. */
     private static Log log = LogFactory.getLog(LogRegistryFactory.class);
 
-    /** The log registry singleton instance. */
-    private static LogRegistry logRegistry;
+    /** The log registry singleton instance. Null until first resolved. */
+    private static volatile LogRegistry logRegistry;
+
+    /** Whether the configuration changed since the singleton was resolved. */
+    private static volatile boolean configurationChanged = false;
 
     /**
      * Get the log registry singleton instance. As this produces a singleton,
      * a new instance will only be generated on the first call, after this the
-     * same instance will be returned. If the configuration that defines the
-     * implementing class is changed, though, a new instance of the new class
-     * will be produced. This method is synchronized.
+     * same instance will be returned.
+     *
+     * This method is called for every logged event and every survey, so it
+     * only reads the cached instance. Configuration is not reread until
+     * {@link #configurationChanged()} or {@link #reload()} is called.
      *
      * @return Log registry singleton instance.
      *
      * @throws LogRegistryInstantiationException on trouble instantiating the
      * singleton.
      */
-    public static synchronized LogRegistry getLogRegistry()
+    public static LogRegistry getLogRegistry()
             throws LogRegistryInstantiationException {
-        log.trace("Enter getLogRegistry()");
+        LogRegistry registry = logRegistry;
+        if (registry == null || configurationChanged) {
+            registry = reload();
+        }
+        return registry;
+    }
+
+    /**
+     * Signal that the configuration has changed, so the configuration of
+     * the implementing class is reread on the next call to
+     * {@link #getLogRegistry()}. Call this after changing the configuration
+     * of a running application.
+     */
+    public static void configurationChanged() {
+        configurationChanged = true;
+    }
+
+    /**
+     * Reread the configuration that defines the implementing class. If it has
+     * changed since the singleton was created, a new instance of the new class
+     * will be produced and used from now on. The replaced singleton is
+     * closed if it is {@link Closeable}. This method is synchronized.
+     *
+     * @return Log registry singleton instance.
+     *
+     * @throws LogRegistryInstantiationException on trouble instantiating the
+     * singleton.
+     */
+    public static synchronized LogRegistry reload()
+            throws LogRegistryInstantiationException {
+        log.trace("Enter reload()");
+        configurationChanged = false;
 
         String implementation = ConfigCollection.getProperties().getProperty(
                 REGISTRYCLASS_CONFIGURATION_PARAMETER);
@@ -86,6 +125,7 @@ public class LogRegistryFactory {
                 || !logRegistry.getClass().getName().equals(implementation)) {
             log.info("Initializing log registry class '" + implementation
                     + "'");
+            LogRegistry replaced = logRegistry;
             try {
                 Class logRegistryClass = Class.forName(implementation);
                 logRegistry = (LogRegistry) logRegistryClass.newInstance();
@@ -94,6 +134,13 @@ public class LogRegistryFactory {
                         "Cannot instantiate LogRegistry class '"
                                 + implementation + "': " + e.getMessage(), e);
             }
+            if (replaced instanceof Closeable) {
+                try {
+                    ((Closeable) replaced).close();
+                } catch (IOException e) {
+                    log.warn("Unable to close replaced log registry", e);
+                }
+            }
         }
         return logRegistry;
     }
@@ -0,0 +1,198 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.MeteredSurveyable;
+import dk.statsbiblioteket.doms.domsutil.surveyable.QueryableSurveyable;
+import dk.statsbiblioteket.doms.domsutil.surveyable.SequencedSurveyable;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Status;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusIterator;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusQuery;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusSummary;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StreamingSurveyable;
+import dk.statsbiblioteket.doms.domsutil.surveyable.SummarizingSurveyable;
+import dk.statsbiblioteket.doms.domsutil.surveyable.VersionedSurveyable;
+import dk.statsbiblioteket.doms.domsutil.surveyable.WaitableSurveyable;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.SortedMap;
+
+/**
+ * A surveyable that exposes the log registry singleton from
+ * {@link LogRegistryFactory}, whichever implementation is configured.
+ *
+ * Use this class in the list of surveyables for the surveyable combiner, to
+ * expose the messages registered by the appenders.
+ *
+ * Each call reads the cached singleton with
+ * {@link LogRegistryFactory#getLogRegistry()}, so polling the version or
+ * waiting for messages takes no lock. A change of the registry class is
+ * picked up after {@link LogRegistryFactory#configurationChanged()} is
+ * called.
+ */
+@QAInfo(author = "kfc",
+        reviewers = "jrg",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class LogRegistrySurveyableSingleton
+        implements VersionedSurveyable, SequencedSurveyable,
+                   QueryableSurveyable, StreamingSurveyable,
+                   SummarizingSurveyable, WaitableSurveyable,
+                   MeteredSurveyable {
+    /** The logger for this class. */
+    private static Log log
+            = LogFactory.getLog(LogRegistrySurveyableSingleton.class);
+
+    /**
+     * Returns all log messages received since the given date.
+     *
+     * @param time Only messages strictly after the given date are returned.
+     * @return A status containing list of log messages.
+     */
+    public Status getStatusSince(long time) {
+        log.trace("Enter getStatusSince(" + time + ")");
+        return LogRegistryFactory.getLogRegistry().getStatusSince(time);
+    }
+
+    /**
+     * Wait until a log message newer than the given date is registered, or
+     * the timeout expires.
+     *
+     * @param time Wait for messages strictly after the given date.
+     * @param timeout Max milliseconds to wait.
+     * @return True if there are newer messages, false on timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitStatusSince(long time, long timeout)
+            throws InterruptedException {
+        return LogRegistryFactory.getLogRegistry().awaitStatusSince(
+                time, timeout);
+    }
+
+    /**
+     * Wait until a log message with a sequence number higher than the given
+     * one is registered, or the timeout expires.
+     *
+     * @param sequence Wait for messages with a higher sequence number.
+     * @param timeout Max milliseconds to wait.
+     * @return True if there are newer messages, false on timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitStatusAfter(long sequence, long timeout)
+            throws InterruptedException {
+        return LogRegistryFactory.getLogRegistry().awaitStatusAfter(
+                sequence, timeout);
+    }
+
+    /**
+     * Returns all log messages with a sequence number higher than the given
+     * one.
+     *
+     * @param sequence Only messages with a higher sequence number are
+     * returned.
+     * @return A status containing list of log messages, and a high-water
+     * mark.
+     */
+    public Status getStatusAfter(long sequence) {
+        log.trace("Enter getStatusAfter(" + sequence + ")");
+        return LogRegistryFactory.getLogRegistry().getStatusAfter(sequence);
+    }
+
+    /**
+     * Returns one page of the log messages.
+     *
+     * @param query The query. Null for all messages.
+     * @return A status containing the page of log messages.
+     * @throws IllegalArgumentException if the query is invalid.
+     */
+    public Status getStatusPage(StatusQuery query) {
+        log.trace("Enter getStatusPage()");
+        return LogRegistryFactory.getLogRegistry().getStatusPage(query);
+    }
+
+    /**
+     * Get the number of messages of each severity in the last 1, 5 and 15
+     * minutes.
+     *
+     * @return The counts.
+     */
+    public StatusSummary getSummary() {
+        log.trace("Enter getSummary()");
+        return LogRegistryFactory.getLogRegistry().getSummary();
+    }
+
+    /**
+     * Get the metrics of the log registry singleton.
+     *
+     * @return The values, by name.
+     */
+    public SortedMap<String, Long> getMetrics() {
+        log.trace("Enter getMetrics()");
+        return LogRegistryFactory.getLogRegistry().getMetrics();
+    }
+
+    /**
+     * Get the version of the log registry singleton. The identity of the
+     * singleton is part of the version, so replacing the singleton changes
+     * the version.
+     *
+     * @return The version of the status, or a negative number if unknown.
+     */
+    public long getVersion() {
+        LogRegistry registry = LogRegistryFactory.getLogRegistry();
+        long version = registry.getVersion();
+        if (version < 0) {
+            return version;
+        }
+        return (version << 16 ^ System.identityHashCode(registry))
+                & Long.MAX_VALUE;
+    }
+
+    /**
+     * Iterate over all log messages received since the given date.
+     *
+     * @param time Only messages strictly after the given date are returned.
+     * @return Iterator over the messages.
+     */
+    public StatusIterator iterateStatusSince(long time) {
+        log.trace("Enter iterateStatusSince(" + time + ")");
+        return LogRegistryFactory.getLogRegistry().iterateStatusSince(time);
+    }
+
+    /**
+     * Returns all log messages received.
+     *
+     * @return A status containing list of log messages.
+     */
+    public Status getStatus() {
+        log.trace("Enter getStatus()");
+        return LogRegistryFactory.getLogRegistry().getStatus();
+    }
+}
@@ -33,16 +33,67 @@ import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
 import dk.statsbiblioteket.util.qa.QAInfo;
 import org.apache.log4j.Level;
 import org.apache.log4j.spi.LoggingEvent;
+import org.slf4j.helpers.MessageFormatter;
 
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
+import java.util.Arrays;
+import java.util.Collection;
 
-/** A status message tuple initialised with a log event. */
+/**
+ * A status message tuple initialised with a log event.
+ *
+ * Messages from logback events with arguments are rendered lazily: the
+ * message pattern and a snapshot of the arguments are kept, and the message
+ * is only formatted the first time it is read. Since the message field is
+ * serialized directly, registries must call {@link #render(Collection)} on
+ * messages before returning them.
+ *
+ * Registries can truncate long messages with {@link #truncate(int)}, and
+ * account for the memory a message retains with {@link #estimateSize()}.
+ */
 @XmlRootElement
 @QAInfo(author = "kfc",
         reviewers = "jrg",
         level = QAInfo.Level.NORMAL,
-        state = QAInfo.State.QA_OK)
+        state = QAInfo.State.QA_NEEDED)
 public class LogStatusMessage extends StatusMessage {
+    /**
+     * Estimated bytes retained by a message in a registry, apart from its
+     * text: the message object, its boxed fields, and the entries of the
+     * registry's indexes.
+     */
+    static final int OVERHEAD_BYTES = 200;
+
+    /** Appended to messages that are truncated. */
+    static final String TRUNCATED_SUFFIX = "... [truncated]";
+    /** The message pattern, if not yet rendered. */
+    @XmlTransient
+    private String pattern;
+
+    /** Snapshot of the message arguments, if not yet rendered. */
+    @XmlTransient
+    private Object[] arguments;
+
+    /** Whether the message field holds the final message. */
+    @XmlTransient
+    private volatile boolean rendered = true;
+
+    /**
+     * The message template this message is aggregated by, if the registry
+     * aggregates repeated messages.
+     */
+    @XmlTransient
+    private String template;
+
+    /** Max length of the message when rendered. 0 for no limit. */
+    @XmlTransient
+    private int maxLength = 0;
+
+    /** The estimated size, once estimated. Negative until then. */
+    @XmlTransient
+    private long estimatedSize = -1L;
+
     /**
      * Helper method to map logging level to severity.
      * Severity maps to YELLOW for warnings, RED for fatal and error.
@@ -51,7 +102,7 @@ public class LogStatusMessage extends StatusMessage {
      * @param level A log level.
      * @return The severity.
      */
-    private static Severity getSeverity(Level level) {
+    static Severity getSeverity(Level level) {
         switch (level.toInt()) {
             case Level.FATAL_INT:
             case Level.ERROR_INT:
@@ -71,7 +122,7 @@ public class LogStatusMessage extends StatusMessage {
      * @param level A log level.
      * @return The severity.
      */
-    private static Severity getSeverity(ch.qos.logback.classic.Level level) {
+    static Severity getSeverity(ch.qos.logback.classic.Level level) {
         switch (level.toInt()) {
             case Level.FATAL_INT:
             case Level.ERROR_INT:
@@ -93,7 +144,7 @@ public class LogStatusMessage extends StatusMessage {
      */
     public LogStatusMessage(LoggingEvent event) {
         super();
-        setMessage(event.getRenderedMessage());
+        message = event.getRenderedMessage();
         setSeverity(getSeverity(event.getLevel()));
         setTime(event.getTimeStamp());
         setLogMessage(true);
@@ -109,9 +160,283 @@ public class LogStatusMessage extends StatusMessage {
      */
     public LogStatusMessage(ILoggingEvent event) {
         super();
-        setMessage(event.getFormattedMessage());
+        Object[] argumentArray = event.getArgumentArray();
+        if (argumentArray == null || argumentArray.length == 0) {
+            message = event.getMessage();
+        } else {
+            pattern = event.getMessage();
+            arguments = snapshot(argumentArray);
+            rendered = false;
+        }
         setSeverity(getSeverity(event.getLevel()));
         setTime(event.getTimeStamp());
         setLogMessage(true);
     }
+
+    /**
+     * Initialise the status message from the fields of a message kept by a
+     * registry in some other form.
+     *
+     * @param time The timestamp.
+     * @param severity The severity.
+     * @param text The message, or the message pattern if there are
+     * arguments.
+     * @param arguments Snapshot of the arguments, as made by
+     * {@link #snapshot(Object[])}, or null if the message is rendered.
+     * @param maxLength Max length of the message when rendered. 0 for no
+     * limit.
+     */
+    LogStatusMessage(long time, Severity severity, String text,
+                     Object[] arguments, int maxLength) {
+        super();
+        if (arguments == null) {
+            message = text;
+        } else {
+            pattern = text;
+            this.arguments = arguments;
+            rendered = false;
+        }
+        this.maxLength = maxLength;
+        setSeverity(severity);
+        setTime(time);
+        setLogMessage(true);
+    }
+
+    /**
+     * Initialise the status message as another occurrence of an aggregated
+     * message. The message is copied, so a message already returned by a
+     * registry never changes.
+     *
+     * @param previous The message aggregating the earlier occurrences.
+     * @param timeStamp The timestamp of the new occurrence.
+     */
+    private LogStatusMessage(LogStatusMessage previous, long timeStamp) {
+        super();
+        synchronized (previous) {
+            message = previous.message;
+            pattern = previous.pattern;
+            arguments = previous.arguments;
+            rendered = previous.rendered;
+            maxLength = previous.maxLength;
+            estimatedSize = previous.estimatedSize;
+        }
+        template = previous.template;
+        setSeverity(previous.getSeverity());
+        setTime(Math.max(previous.getTime(), timeStamp));
+        setLogMessage(true);
+        setFirstTime(previous.getFirstTime());
+        setCount(previous.getCount() < Integer.MAX_VALUE
+                 ? previous.getCount() + 1 : previous.getCount());
+    }
+
+    /**
+     * Get a new message counting another occurrence of this aggregated
+     * message. It has the same text, first time and template, the later of
+     * the two timestamps, and one more in count. The sequence number is left
+     * for the registry to set. This message is not changed.
+     *
+     * @param timeStamp The timestamp of the new occurrence.
+     * @return The new message.
+     */
+    LogStatusMessage recur(long timeStamp) {
+        return new LogStatusMessage(this, timeStamp);
+    }
+
+    /**
+     * Get the message, formatting it from pattern and arguments on the first
+     * call.
+     *
+     * @return The message.
+     */
+    public String getMessage() {
+        if (!rendered) {
+            synchronized (this) {
+                if (!rendered) {
+                    message = truncate(format(pattern, arguments), maxLength);
+                    pattern = null;
+                    arguments = null;
+                    rendered = true;
+                }
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Set the message, discarding any pattern and arguments not yet rendered.
+     *
+     * @param value The message.
+     */
+    public void setMessage(String value) {
+        synchronized (this) {
+            message = value;
+            pattern = null;
+            arguments = null;
+            rendered = true;
+        }
+    }
+
+    /**
+     * Truncate the message to a max length. A message not yet rendered is
+     * truncated when it is rendered.
+     *
+     * @param maxLength The max length, not counting the suffix that marks
+     * the message as truncated. 0 for no limit.
+     */
+    void truncate(int maxLength) {
+        synchronized (this) {
+            this.maxLength = maxLength;
+            if (rendered) {
+                message = truncate(message, maxLength);
+            }
+        }
+    }
+
+    /**
+     * Estimate the bytes retained by the message. The estimate is made on
+     * the first call, and the same value is returned after that, so a
+     * registry can add it when registering the message, and subtract it
+     * when evicting it. A message not yet rendered is estimated from its
+     * pattern and arguments.
+     *
+     * @return The estimated size in bytes.
+     */
+    long estimateSize() {
+        synchronized (this) {
+            if (estimatedSize < 0) {
+                long chars = 0;
+                if (rendered) {
+                    chars = message == null ? 0 : message.length();
+                } else {
+                    chars = pattern == null ? 0 : pattern.length();
+                    for (Object argument : arguments) {
+                        chars += argument instanceof String
+                                ? ((String) argument).length() : 8;
+                    }
+                    if (maxLength > 0) {
+                        chars = Math.min(chars, maxLength
+                                + TRUNCATED_SUFFIX.length());
+                    }
+                }
+                estimatedSize = OVERHEAD_BYTES + 2 * chars;
+            }
+            return estimatedSize;
+        }
+    }
+
+    /**
+     * Truncate a text to a max length.
+     *
+     * @param text The text. May be null.
+     * @param maxLength The max length. 0 for no limit.
+     * @return The text, or its first maxLength characters followed by a
+     * suffix marking it as truncated.
+     */
+    static String truncate(String text, int maxLength) {
+        if (text == null || maxLength <= 0 || text.length() <= maxLength) {
+            return text;
+        }
+        return text.substring(0, maxLength) + TRUNCATED_SUFFIX;
+    }
+
+    /**
+     * Get the template the message is aggregated by.
+     *
+     * @return The template, or null if the message is not aggregated.
+     */
+    String getTemplate() {
+        return template;
+    }
+
+    /**
+     * Set the template the message is aggregated by.
+     *
+     * @param template The template.
+     */
+    void setTemplate(String template) {
+        this.template = template;
+    }
+
+    /**
+     * Ensure all given log status messages are rendered, so the message field
+     * is set before serialization. Other messages are left alone.
+     *
+     * @param statusMessages The messages to render.
+     */
+    static void render(
+            Collection<? extends StatusMessage> statusMessages) {
+        for (StatusMessage statusMessage : statusMessages) {
+            if (statusMessage instanceof LogStatusMessage) {
+                statusMessage.getMessage();
+            }
+        }
+    }
+
+    /**
+     * Copy the argument array, so it is safe to keep after the logging call
+     * returns. Arguments of immutable types are kept as they are. Anything
+     * else is converted to a string now, since it may change later.
+     *
+     * @param argumentArray The arguments from the log event.
+     * @return A copy safe to format later.
+     */
+    static Object[] snapshot(Object[] argumentArray) {
+        Object[] copy = new Object[argumentArray.length];
+        for (int i = 0; i < argumentArray.length; i++) {
+            Object argument = argumentArray[i];
+            if (argument == null || argument instanceof String
+                    || argument instanceof Integer || argument instanceof Long
+                    || argument instanceof Short || argument instanceof Byte
+                    || argument instanceof Double || argument instanceof Float
+                    || argument instanceof Boolean
+                    || argument instanceof Character
+                    || argument instanceof Enum) {
+                copy[i] = argument;
+            } else {
+                copy[i] = toString(argument);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Format a message pattern with {} placeholders with the formatter of
+     * SLF4J, which logback uses itself, so the message reads as logback
+     * would print it.
+     *
+     * @param pattern The message pattern.
+     * @param arguments The arguments.
+     * @return The formatted message.
+     */
+    private static String format(String pattern, Object[] arguments) {
+        if (pattern == null) {
+            return null;
+        }
+        return MessageFormatter.arrayFormat(pattern, arguments).getMessage();
+    }
+
+    /**
+     * Convert a message argument to a string, never failing.
+     *
+     * @param argument The argument.
+     * @return The argument as string.
+     */
+    private static String toString(Object argument) {
+        try {
+            if (argument instanceof Object[]) {
+                return Arrays.deepToString((Object[]) argument);
+            } else if (argument instanceof int[]) {
+                return Arrays.toString((int[]) argument);
+            } else if (argument instanceof long[]) {
+                return Arrays.toString((long[]) argument);
+            } else if (argument instanceof byte[]) {
+                return Arrays.toString((byte[]) argument);
+            } else if (argument instanceof double[]) {
+                return Arrays.toString((double[]) argument);
+            }
+            return String.valueOf(argument);
+        } catch (RuntimeException e) {
+            return "[FAILED toString()]";
+        }
+    }
 }
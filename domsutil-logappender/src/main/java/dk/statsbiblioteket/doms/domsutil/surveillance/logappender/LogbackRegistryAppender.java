@@ -27,19 +27,37 @@
 
 package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
 
+import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
 import ch.qos.logback.core.AppenderBase;
-import dk.statsbiblioteket.sbutil.webservices.configuration.ConfigCollection;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
 import dk.statsbiblioteket.util.qa.QAInfo;
 
-import java.util.Properties;
-
 /**
  * Logback appender that registers log messages in a registry.
  *
  * The configuration parameter MaxNumberOfMessages will, if present, be
  * delegated to the log registry by setting the parameter
  * <code>dk.statsbiblioteket.doms.surveillance.rest.logappender.numberOfMessages</code>
+ *
+ * If the configuration parameter Async is true, events are handed to a
+ * background thread through a bounded queue of size QueueSize, and
+ * registered in batches of at most BatchSize. DropPolicy decides what is
+ * dropped when the queue is full: DROP_OLDEST (default), DROP_NEWEST or
+ * DROP_BELOW_WARN.
+ *
+ * If the configuration parameter RateLimit is set, each logger may only log
+ * that many events per second of each severity. RateLimitRed,
+ * RateLimitYellow and RateLimitGreen set the limit of one severity, and
+ * RateLimitBurst the number of events let through at once (default the
+ * limit). Events above the limit are dropped before they are registered or
+ * queued. Once every SummaryInterval milliseconds (default 60000), a timer
+ * thread registers a message for each logger and severity with suppressed
+ * events, giving their number, also if the logger has gone quiet since.
+ *
+ * The configuration and logic are shared with the appender for the other
+ * logging framework through {@link RegistryAppenderSupport}.
  */
 @QAInfo(author = "kfc",
         reviewers = "jrg",
@@ -47,8 +65,9 @@ import java.util.Properties;
         level = QAInfo.Level.NORMAL,
         state = QAInfo.State.QA_NEEDED)
 public class LogbackRegistryAppender extends AppenderBase<ILoggingEvent> {
-    /** Used to configure max number of messages. */
-    private int maxNumberOfMessages;
+    /** The configuration and logic shared with the other appender. */
+    private final RegistryAppenderSupport<ILoggingEvent> support
+            = new Support();
 
     /** Create new instance. */
     public LogbackRegistryAppender() {
@@ -63,11 +82,7 @@ public class LogbackRegistryAppender extends AppenderBase<ILoggingEvent> {
      * @param maxNumberOfMessages Max number of messages to store in cache.
      */
     private void setNumberOfMessages(int maxNumberOfMessages) {
-        Properties p = new Properties();
-        p.setProperty(LogRegistry.NUMBEROFMESSAGES_CONFIGURATION_PARAMETER,
-                      Integer.toString(maxNumberOfMessages));
-        ConfigCollection.addContextConfig(p);
-        this.maxNumberOfMessages = maxNumberOfMessages;
+        support.setNumberOfMessages(maxNumberOfMessages);
     }
 
     /**
@@ -78,26 +93,264 @@ public class LogbackRegistryAppender extends AppenderBase<ILoggingEvent> {
      * @return Max number of messages. 0 if not initialized.
      */
     private int getNumberOfMessages() {
-        return maxNumberOfMessages;
+        return support.getNumberOfMessages();
+    }
+
+    /**
+     * Set whether events are registered by a background thread. Called by
+     * the logback framework by introspection.
+     *
+     * @param async True to register events asynchronously.
+     */
+    public void setAsync(boolean async) {
+        support.setAsync(async);
+    }
+
+    /**
+     * Whether events are registered by a background thread.
+     *
+     * @return True if registering events asynchronously.
+     */
+    public boolean isAsync() {
+        return support.isAsync();
+    }
+
+    /**
+     * Set max number of events waiting for the background thread. Called by
+     * the logback framework by introspection.
+     *
+     * @param queueSize Max number of queued events.
+     */
+    public void setQueueSize(int queueSize) {
+        support.setQueueSize(queueSize);
+    }
+
+    /**
+     * Get max number of events waiting for the background thread.
+     *
+     * @return Max number of queued events.
+     */
+    public int getQueueSize() {
+        return support.getQueueSize();
+    }
+
+    /**
+     * Set max number of events registered by the background thread at once.
+     * Called by the logback framework by introspection.
+     *
+     * @param batchSize Max number of events in a batch.
+     */
+    public void setBatchSize(int batchSize) {
+        support.setBatchSize(batchSize);
+    }
+
+    /**
+     * Get max number of events registered by the background thread at once.
+     *
+     * @return Max number of events in a batch.
+     */
+    public int getBatchSize() {
+        return support.getBatchSize();
+    }
+
+    /**
+     * Set what to drop when the queue is full. Called by the logback
+     * framework by introspection.
+     *
+     * @param dropPolicy One of DROP_OLDEST, DROP_NEWEST and DROP_BELOW_WARN.
+     */
+    public void setDropPolicy(String dropPolicy) {
+        support.setDropPolicy(dropPolicy);
+    }
+
+    /**
+     * Get what to drop when the queue is full.
+     *
+     * @return The drop policy.
+     */
+    public String getDropPolicy() {
+        return support.getDropPolicy();
+    }
+
+    /**
+     * Get the number of events handed to the background thread.
+     *
+     * @return Number of queued events. 0 if not running asynchronously.
+     */
+    public long getEnqueuedCount() {
+        return support.getEnqueuedCount();
+    }
+
+    /**
+     * Get the number of events dropped because the queue was full.
+     *
+     * @return Number of dropped events. 0 if not running asynchronously.
+     */
+    public long getDroppedCount() {
+        return support.getDroppedCount();
+    }
+
+    /**
+     * Get the number of events suppressed by the rate limits.
+     *
+     * @return Number of suppressed events. 0 if no rate limit is set.
+     */
+    public long getSuppressedCount() {
+        return support.getSuppressedCount();
+    }
+
+    /**
+     * Set events per second per logger and severity. Called by the logback
+     * framework by introspection.
+     *
+     * @param rateLimit Events per second. 0 for no limit.
+     */
+    public void setRateLimit(double rateLimit) {
+        support.setRateLimit(rateLimit);
+    }
+
+    /**
+     * Get events per second per logger and severity.
+     *
+     * @return Events per second. 0 for no limit.
+     */
+    public double getRateLimit() {
+        return support.getRateLimit();
     }
 
     /**
-     * Cache the event, for later inspection by the surveyor.
+     * Set events per second per logger for RED. Called by the logback
+     * framework by introspection.
+     *
+     * @param rateLimitRed Events per second. Negative to use RateLimit.
+     */
+    public void setRateLimitRed(double rateLimitRed) {
+        support.setRateLimitRed(rateLimitRed);
+    }
+
+    /**
+     * Get events per second per logger for RED.
+     *
+     * @return Events per second. Negative to use RateLimit.
+     */
+    public double getRateLimitRed() {
+        return support.getRateLimitRed();
+    }
+
+    /**
+     * Set events per second per logger for YELLOW. Called by the logback
+     * framework by introspection.
+     *
+     * @param rateLimitYellow Events per second. Negative to use RateLimit.
+     */
+    public void setRateLimitYellow(double rateLimitYellow) {
+        support.setRateLimitYellow(rateLimitYellow);
+    }
+
+    /**
+     * Get events per second per logger for YELLOW.
+     *
+     * @return Events per second. Negative to use RateLimit.
+     */
+    public double getRateLimitYellow() {
+        return support.getRateLimitYellow();
+    }
+
+    /**
+     * Set events per second per logger for GREEN. Called by the logback
+     * framework by introspection.
+     *
+     * @param rateLimitGreen Events per second. Negative to use RateLimit.
+     */
+    public void setRateLimitGreen(double rateLimitGreen) {
+        support.setRateLimitGreen(rateLimitGreen);
+    }
+
+    /**
+     * Get events per second per logger for GREEN.
+     *
+     * @return Events per second. Negative to use RateLimit.
+     */
+    public double getRateLimitGreen() {
+        return support.getRateLimitGreen();
+    }
+
+    /**
+     * Set max events of a logger and severity let through at once.
+     * Called by the logback framework by introspection.
+     *
+     * @param rateLimitBurst Max events. 0 for the rate limit.
+     */
+    public void setRateLimitBurst(int rateLimitBurst) {
+        support.setRateLimitBurst(rateLimitBurst);
+    }
+
+    /**
+     * Get max events of a logger and severity let through at once.
+     *
+     * @return Max events. 0 for the rate limit.
+     */
+    public int getRateLimitBurst() {
+        return support.getRateLimitBurst();
+    }
+
+    /**
+     * Set milliseconds between messages about suppressed events.
+     * Called by the logback framework by introspection.
+     *
+     * @param summaryInterval Milliseconds between messages.
+     */
+    public void setSummaryInterval(long summaryInterval) {
+        support.setSummaryInterval(summaryInterval);
+    }
+
+    /**
+     * Get milliseconds between messages about suppressed events.
+     *
+     * @return Milliseconds between messages.
+     */
+    public long getSummaryInterval() {
+        return support.getSummaryInterval();
+    }
+
+    /**
+     * Start the appender, set up the rate limits, and start the background
+     * thread if configured to run asynchronously.
+     */
+    public void start() {
+        support.start(getName());
+        super.start();
+    }
+
+    /**
+     * Stop the appender, and the background thread if running
+     * asynchronously, after it has registered the events already queued.
+     */
+    public void stop() {
+        super.stop();
+        close();
+    }
+
+    /**
+     * Cache the event, for later inspection by the surveyor, unless it
+     * exceeds the rate limit of its logger and severity.
      *
      * @param event The event to cache.
      */
     protected void append(ILoggingEvent event) {
-        LogRegistryFactory.getLogRegistry().registerMessage(event);
+        support.append(event);
     }
 
     /**
      * Release any resources allocated within the appender such as file
      * handles, network connections, etc.
      *
-     * Currently does nothing in this implementation.
+     * Registers messages about events suppressed since the last summary,
+     * and stops the background thread, if running asynchronously, after it
+     * has registered the events already queued.
      */
     public void close() {
-        // Does nothing
+        support.close();
     }
 
     /**
@@ -107,4 +360,58 @@ public class LogbackRegistryAppender extends AppenderBase<ILoggingEvent> {
     public boolean requiresLayout() {
         return true;
     }
-}
\ No newline at end of file
+
+    /** The parts of the shared logic that depend on logback events. */
+    private class Support extends RegistryAppenderSupport<ILoggingEvent> {
+        protected String getLoggerName(ILoggingEvent event) {
+            return event.getLoggerName();
+        }
+
+        protected Severity getSeverity(ILoggingEvent event) {
+            return LogStatusMessage.getSeverity(event.getLevel());
+        }
+
+        protected long getTimeStamp(ILoggingEvent event) {
+            return event.getTimeStamp();
+        }
+
+        protected boolean isBelowWarn(ILoggingEvent event) {
+            return !event.getLevel().isGreaterOrEqual(Level.WARN);
+        }
+
+        protected void prepareForDeferredProcessing(ILoggingEvent event) {
+            event.prepareForDeferredProcessing();
+        }
+
+        protected void register(LogRegistry registry, ILoggingEvent event) {
+            registry.registerMessage(event);
+        }
+
+        protected ILoggingEvent createSummaryEvent(
+                RateLimiter.Summary summary, long time) {
+            LoggingEvent summaryEvent = new LoggingEvent();
+            switch (summary.getSeverity()) {
+                case RED:
+                    summaryEvent.setLevel(Level.ERROR);
+                    break;
+                case YELLOW:
+                    summaryEvent.setLevel(Level.WARN);
+                    break;
+                default:
+                    summaryEvent.setLevel(Level.INFO);
+            }
+            summaryEvent.setLoggerName(summary.getLoggerName());
+            summaryEvent.setMessage(summary.getMessage());
+            summaryEvent.setTimeStamp(time);
+            return summaryEvent;
+        }
+
+        protected void reportWarning(String message, Exception e) {
+            addWarn(message);
+        }
+
+        protected void reportError(String message, Exception e) {
+            addError(message, e);
+        }
+    }
+}
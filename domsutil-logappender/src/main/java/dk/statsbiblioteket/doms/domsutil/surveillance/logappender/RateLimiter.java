@@ -0,0 +1,332 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate of log events per logger name and severity, with a token
+ * bucket for each.
+ *
+ * Each bucket holds at most the burst size of tokens, and is refilled at the
+ * rate for its severity. An event takes a token, and is suppressed if the
+ * bucket is empty. Only events from the same logger and of the same
+ * severity compete for a bucket. Suppressed events are counted, and once
+ * every summary interval, the counts are handed out as summaries, for the
+ * appender to report as messages of their own. The buckets of a logger that
+ * has logged no limited events for a summary interval are full again, and
+ * are removed when summarizing, so loggers with generated names do not
+ * accumulate.
+ *
+ * Note this class must not log through commons-logging, since it is called
+ * from within the logging framework.
+ */
+@QAInfo(author = "kfc",
+        reviewers = "jrg",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+class RateLimiter {
+    /** The severities, by ordinal. */
+    private static final Severity[] SEVERITIES = Severity.values();
+
+    /** A token bucket for one logger and severity. */
+    private static class Bucket {
+        /** Tokens left. */
+        private double tokens;
+
+        /** Time the bucket was last refilled. */
+        private long refilled;
+
+        /** Number of events suppressed since the last summary. */
+        private long suppressed = 0L;
+
+        /**
+         * Initialize a full bucket.
+         *
+         * @param tokens The burst size.
+         * @param time The current time.
+         */
+        private Bucket(double tokens, long time) {
+            this.tokens = tokens;
+            this.refilled = time;
+        }
+    }
+
+    /** Events suppressed for one logger and severity. */
+    static class Summary {
+        /** Name of the logger. */
+        private final String loggerName;
+
+        /** Severity of the events. */
+        private final Severity severity;
+
+        /** Number of events suppressed. */
+        private final long count;
+
+        /**
+         * Initialize a summary.
+         *
+         * @param loggerName Name of the logger.
+         * @param severity Severity of the events.
+         * @param count Number of events suppressed.
+         */
+        private Summary(String loggerName, Severity severity, long count) {
+            this.loggerName = loggerName;
+            this.severity = severity;
+            this.count = count;
+        }
+
+        /**
+         * Get the name of the logger.
+         *
+         * @return The logger name.
+         */
+        String getLoggerName() {
+            return loggerName;
+        }
+
+        /**
+         * Get the severity of the suppressed events.
+         *
+         * @return The severity.
+         */
+        Severity getSeverity() {
+            return severity;
+        }
+
+        /**
+         * Get a message describing the suppressed events.
+         *
+         * @return The message.
+         */
+        String getMessage() {
+            return "Rate limit exceeded: suppressed " + count + " " + severity
+                    + " events from logger '" + loggerName + "'";
+        }
+    }
+
+    /** Events per second for each severity, by ordinal. 0 for no limit. */
+    private final double[] rates;
+
+    /** Max tokens in a bucket, for each severity. */
+    private final double[] bursts;
+
+    /** Milliseconds between summaries. */
+    private final long summaryInterval;
+
+    /** The buckets for each logger name, by severity ordinal. */
+    private final ConcurrentMap<String, Bucket[]> buckets
+            = new ConcurrentHashMap<String, Bucket[]>();
+
+    /** Time of the last summary. */
+    private final AtomicLong lastSummary;
+
+    /** Number of events suppressed in total. */
+    private final AtomicLong suppressed = new AtomicLong();
+
+    /**
+     * Create a rate limiter from the configuration of an appender.
+     *
+     * @param rate Events per second per logger, for severities without a
+     * limit of their own. 0 for no limit.
+     * @param redRate Events per second per logger for RED, or negative to
+     * use the rate.
+     * @param yellowRate Events per second per logger for YELLOW, or negative
+     * to use the rate.
+     * @param greenRate Events per second per logger for GREEN, or negative
+     * to use the rate.
+     * @param burst Max events let through at once. 0 for the rate.
+     * @param summaryInterval Milliseconds between summaries.
+     * @return The rate limiter, or null if no severity is limited.
+     */
+    static RateLimiter create(double rate, double redRate, double yellowRate,
+                              double greenRate, int burst,
+                              long summaryInterval) {
+        double[] rates = new double[SEVERITIES.length];
+        rates[Severity.RED.ordinal()] = redRate < 0 ? rate : redRate;
+        rates[Severity.YELLOW.ordinal()] = yellowRate < 0 ? rate : yellowRate;
+        rates[Severity.GREEN.ordinal()] = greenRate < 0 ? rate : greenRate;
+        for (double severityRate : rates) {
+            if (severityRate > 0) {
+                return new RateLimiter(rates, burst, summaryInterval);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Initialize a rate limiter.
+     *
+     * @param rates Events per second for each severity, by ordinal. 0 or
+     * less for no limit.
+     * @param burst Max events let through at once. 0 or less for the rate of
+     * each severity.
+     * @param summaryInterval Milliseconds between summaries.
+     */
+    RateLimiter(double[] rates, int burst, long summaryInterval) {
+        this.rates = new double[SEVERITIES.length];
+        this.bursts = new double[SEVERITIES.length];
+        for (int i = 0; i < SEVERITIES.length; i++) {
+            this.rates[i] = Math.max(rates[i], 0.0);
+            this.bursts[i] = Math.max(burst > 0 ? burst : rates[i], 1.0);
+        }
+        this.summaryInterval = summaryInterval;
+        this.lastSummary = new AtomicLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Take a token for an event, if not suppressed.
+     *
+     * @param loggerName Name of the logger of the event.
+     * @param severity Severity of the event.
+     * @param time Time of the event.
+     * @return True if the event may be registered, false if suppressed.
+     */
+    boolean tryAcquire(String loggerName, Severity severity, long time) {
+        int index = severity.ordinal();
+        if (rates[index] == 0.0) {
+            return true;
+        }
+        String key = loggerName == null ? "" : loggerName;
+        while (true) {
+            Bucket[] loggerBuckets = getBuckets(key, time);
+            Bucket bucket = loggerBuckets[index];
+            synchronized (bucket) {
+                if (buckets.get(key) != loggerBuckets) {
+                    // Removed as idle meanwhile, use the new buckets
+                    continue;
+                }
+                if (time > bucket.refilled) {
+                    bucket.tokens = Math.min(
+                            bursts[index], bucket.tokens
+                            + (time - bucket.refilled) * rates[index]
+                              / 1000.0);
+                    bucket.refilled = time;
+                }
+                if (bucket.tokens >= 1.0) {
+                    bucket.tokens -= 1.0;
+                    return true;
+                }
+                bucket.suppressed++;
+            }
+            break;
+        }
+        suppressed.incrementAndGet();
+        RegistryMetrics.countSuppressed();
+        return false;
+    }
+
+    /**
+     * Get the buckets for a logger name, creating them full if necessary.
+     *
+     * @param key Name of the logger, or the empty string for none.
+     * @param time The current time.
+     * @return The buckets, by severity ordinal.
+     */
+    private Bucket[] getBuckets(String key, long time) {
+        Bucket[] loggerBuckets = buckets.get(key);
+        if (loggerBuckets == null) {
+            loggerBuckets = new Bucket[SEVERITIES.length];
+            for (int i = 0; i < SEVERITIES.length; i++) {
+                loggerBuckets[i] = new Bucket(bursts[i], time);
+            }
+            Bucket[] existing = buckets.putIfAbsent(key, loggerBuckets);
+            if (existing != null) {
+                loggerBuckets = existing;
+            }
+        }
+        return loggerBuckets;
+    }
+
+    /**
+     * Hand out the counts of events suppressed since the last summary, if
+     * the summary interval has passed, or if forced. Only one caller gets
+     * each summary. Removes the buckets of loggers that have not taken a
+     * token for a summary interval.
+     *
+     * @param time The current time.
+     * @param force Whether to summarize before the interval has passed.
+     * @return Summaries for the loggers and severities with suppressed
+     * events. Empty if none, or the interval has not passed.
+     */
+    List<Summary> takeSummaries(long time, boolean force) {
+        long last = lastSummary.get();
+        if (!force && time - last < summaryInterval
+                || !lastSummary.compareAndSet(last, time)) {
+            return Collections.emptyList();
+        }
+        List<Summary> summaries = new ArrayList<Summary>();
+        long[] counts = new long[SEVERITIES.length];
+        for (Map.Entry<String, Bucket[]> entry : buckets.entrySet()) {
+            Bucket[] loggerBuckets = entry.getValue();
+            boolean idle = true;
+            for (int i = 0; i < loggerBuckets.length; i++) {
+                synchronized (loggerBuckets[i]) {
+                    counts[i] = loggerBuckets[i].suppressed;
+                    loggerBuckets[i].suppressed = 0L;
+                    idle &= time - loggerBuckets[i].refilled
+                            >= summaryInterval;
+                }
+            }
+            if (idle && buckets.remove(entry.getKey(), loggerBuckets)) {
+                // Count events suppressed before they saw the removal
+                for (int i = 0; i < loggerBuckets.length; i++) {
+                    synchronized (loggerBuckets[i]) {
+                        counts[i] += loggerBuckets[i].suppressed;
+                        loggerBuckets[i].suppressed = 0L;
+                    }
+                }
+            }
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    summaries.add(new Summary(entry.getKey(), SEVERITIES[i],
+                                              counts[i]));
+                }
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Get the number of events suppressed in total.
+     *
+     * @return Number of suppressed events.
+     */
+    long getSuppressedCount() {
+        return suppressed.get();
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
+import dk.statsbiblioteket.sbutil.webservices.configuration.ConfigCollection;
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * The configuration and logic shared by the appenders for log4j and
+ * logback: rate limiting, registering asynchronously through a
+ * {@link AsyncRegistryDispatcher}, and reporting suppressed events.
+ *
+ * The appenders keep the setters and getters the logging frameworks
+ * configure them through, and pass them on to this class. They implement
+ * the abstract methods, which depend on the type of log event.
+ *
+ * Messages about suppressed events are registered by a timer thread once
+ * every summary interval, so they are reported even if the logger that
+ * was suppressed stays quiet after that.
+ *
+ * Note this class must not log through commons-logging, since it is called
+ * from within the logging framework.
+ *
+ * @param <E> The type of log event.
+ */
+@QAInfo(author = "kfc",
+        reviewers = "jrg",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+abstract class RegistryAppenderSupport<E> {
+    /** Default milliseconds between messages about suppressed events. */
+    static final long DEFAULT_SUMMARY_INTERVAL = 60000L;
+
+    /** Default max number of events waiting for the background thread. */
+    static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    /** Default max number of events registered at once. */
+    static final int DEFAULT_BATCH_SIZE = 64;
+
+    /** Used to configure max number of messages. */
+    private int maxNumberOfMessages;
+
+    /** Whether events are registered by a background thread. */
+    private boolean async = false;
+
+    /** Max number of events waiting for the background thread. */
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+
+    /** Max number of events registered by the background thread at once. */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /** What to drop when the queue is full. */
+    private String dropPolicy = AsyncRegistryDispatcher.DropPolicy.DROP_OLDEST
+            .name();
+
+    /** Events per second per logger and severity. 0 for no limit. */
+    private double rateLimit = 0.0;
+
+    /** Events per second per logger for RED. Negative to use rateLimit. */
+    private double rateLimitRed = -1.0;
+
+    /** Events per second per logger for YELLOW. Negative to use rateLimit. */
+    private double rateLimitYellow = -1.0;
+
+    /** Events per second per logger for GREEN. Negative to use rateLimit. */
+    private double rateLimitGreen = -1.0;
+
+    /** Max events let through at once. 0 for the rate limit. */
+    private int rateLimitBurst = 0;
+
+    /** Milliseconds between messages about suppressed events. */
+    private long summaryInterval = DEFAULT_SUMMARY_INTERVAL;
+
+    /** The background dispatcher if running asynchronously, otherwise null. */
+    private volatile AsyncRegistryDispatcher<E> dispatcher;
+
+    /** The rate limiter if any rate limit is set, otherwise null. */
+    private volatile RateLimiter rateLimiter;
+
+    /** The timer registering summaries if rate limited, otherwise null. */
+    private Timer summaryTimer;
+
+    /**
+     * Get the name of the logger of an event.
+     *
+     * @param event The event.
+     * @return The logger name.
+     */
+    protected abstract String getLoggerName(E event);
+
+    /**
+     * Get the severity of an event.
+     *
+     * @param event The event.
+     * @return The severity.
+     */
+    protected abstract Severity getSeverity(E event);
+
+    /**
+     * Get the time of an event.
+     *
+     * @param event The event.
+     * @return Milliseconds since epoch.
+     */
+    protected abstract long getTimeStamp(E event);
+
+    /**
+     * Whether the event is below WARN, for the DROP_BELOW_WARN policy.
+     *
+     * @param event The event.
+     * @return True if the event is below WARN.
+     */
+    protected abstract boolean isBelowWarn(E event);
+
+    /**
+     * Prepare an event for being registered on another thread.
+     *
+     * @param event The event.
+     */
+    protected abstract void prepareForDeferredProcessing(E event);
+
+    /**
+     * Register a single event in the log registry.
+     *
+     * @param registry The registry.
+     * @param event The event.
+     */
+    protected abstract void register(LogRegistry registry, E event);
+
+    /**
+     * Create an event reporting events suppressed by the rate limiter.
+     *
+     * @param summary The suppressed events.
+     * @param time The time of the event.
+     * @return The event.
+     */
+    protected abstract E createSummaryEvent(RateLimiter.Summary summary,
+                                            long time);
+
+    /**
+     * Report a configuration problem through the logging framework's own
+     * status reporting.
+     *
+     * @param message Description of the problem.
+     * @param e The cause.
+     */
+    protected abstract void reportWarning(String message, Exception e);
+
+    /**
+     * Report an error through the logging framework's own error reporting.
+     *
+     * @param message Description of the error.
+     * @param e The cause. May be null.
+     */
+    protected abstract void reportError(String message, Exception e);
+
+    /**
+     * Set max number of messages kept. The value is passed on to the log
+     * registry through the configuration.
+     *
+     * @param maxNumberOfMessages Max number of messages to store in cache.
+     */
+    void setNumberOfMessages(int maxNumberOfMessages) {
+        Properties p = new Properties();
+        p.setProperty(LogRegistry.NUMBEROFMESSAGES_CONFIGURATION_PARAMETER,
+                      Integer.toString(maxNumberOfMessages));
+        ConfigCollection.addContextConfig(p);
+        this.maxNumberOfMessages = maxNumberOfMessages;
+    }
+
+    /** @return Max number of messages. 0 if not initialized. */
+    int getNumberOfMessages() {
+        return maxNumberOfMessages;
+    }
+
+    /** @param async True to register events asynchronously. */
+    void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    /** @return True if registering events asynchronously. */
+    boolean isAsync() {
+        return async;
+    }
+
+    /** @param queueSize Max number of queued events. */
+    void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /** @return Max number of queued events. */
+    int getQueueSize() {
+        return queueSize;
+    }
+
+    /** @param batchSize Max number of events in a batch. */
+    void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /** @return Max number of events in a batch. */
+    int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param dropPolicy One of DROP_OLDEST, DROP_NEWEST and DROP_BELOW_WARN.
+     */
+    void setDropPolicy(String dropPolicy) {
+        this.dropPolicy = dropPolicy;
+    }
+
+    /** @return The drop policy. */
+    String getDropPolicy() {
+        return dropPolicy;
+    }
+
+    /** @param rateLimit Events per second. 0 for no limit. */
+    void setRateLimit(double rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    /** @return Events per second. 0 for no limit. */
+    double getRateLimit() {
+        return rateLimit;
+    }
+
+    /** @param rateLimitRed Events per second. Negative to use RateLimit. */
+    void setRateLimitRed(double rateLimitRed) {
+        this.rateLimitRed = rateLimitRed;
+    }
+
+    /** @return Events per second. Negative to use RateLimit. */
+    double getRateLimitRed() {
+        return rateLimitRed;
+    }
+
+    /** @param rateLimitYellow Events per second. Negative to use RateLimit. */
+    void setRateLimitYellow(double rateLimitYellow) {
+        this.rateLimitYellow = rateLimitYellow;
+    }
+
+    /** @return Events per second. Negative to use RateLimit. */
+    double getRateLimitYellow() {
+        return rateLimitYellow;
+    }
+
+    /** @param rateLimitGreen Events per second. Negative to use RateLimit. */
+    void setRateLimitGreen(double rateLimitGreen) {
+        this.rateLimitGreen = rateLimitGreen;
+    }
+
+    /** @return Events per second. Negative to use RateLimit. */
+    double getRateLimitGreen() {
+        return rateLimitGreen;
+    }
+
+    /** @param rateLimitBurst Max events. 0 for the rate limit. */
+    void setRateLimitBurst(int rateLimitBurst) {
+        this.rateLimitBurst = rateLimitBurst;
+    }
+
+    /** @return Max events. 0 for the rate limit. */
+    int getRateLimitBurst() {
+        return rateLimitBurst;
+    }
+
+    /** @param summaryInterval Milliseconds between messages. */
+    void setSummaryInterval(long summaryInterval) {
+        this.summaryInterval = summaryInterval;
+    }
+
+    /** @return Milliseconds between messages. */
+    long getSummaryInterval() {
+        return summaryInterval;
+    }
+
+    /**
+     * Get the number of events handed to the background thread.
+     *
+     * @return Number of queued events. 0 if not running asynchronously.
+     */
+    long getEnqueuedCount() {
+        AsyncRegistryDispatcher<E> d = dispatcher;
+        return d == null ? 0L : d.getEnqueuedCount();
+    }
+
+    /**
+     * Get the number of events dropped because the queue was full.
+     *
+     * @return Number of dropped events. 0 if not running asynchronously.
+     */
+    long getDroppedCount() {
+        AsyncRegistryDispatcher<E> d = dispatcher;
+        return d == null ? 0L : d.getDroppedCount();
+    }
+
+    /**
+     * Get the number of events suppressed by the rate limits.
+     *
+     * @return Number of suppressed events. 0 if no rate limit is set.
+     */
+    long getSuppressedCount() {
+        RateLimiter limiter = rateLimiter;
+        return limiter == null ? 0L : limiter.getSuppressedCount();
+    }
+
+    /**
+     * Set up the rate limits and the timer registering summaries, and start
+     * the background thread if configured to run asynchronously.
+     *
+     * @param name Name of the appender, used for naming the threads.
+     */
+    synchronized void start(String name) {
+        final RateLimiter limiter = RateLimiter.create(
+                rateLimit, rateLimitRed, rateLimitYellow, rateLimitGreen,
+                rateLimitBurst, summaryInterval);
+        rateLimiter = limiter;
+        if (limiter != null && summaryTimer == null) {
+            summaryTimer = new Timer("RateLimitSummaries-" + name, true);
+            long period = Math.max(summaryInterval, 1L);
+            summaryTimer.scheduleAtFixedRate(new TimerTask() {
+                public void run() {
+                    try {
+                        registerSummaries(limiter,
+                                          System.currentTimeMillis(), true);
+                    } catch (Exception e) {
+                        reportError("Unable to register suppressed events",
+                                    e);
+                    }
+                }
+            }, period, period);
+        }
+        if (async && dispatcher == null) {
+            AsyncRegistryDispatcher.DropPolicy policy;
+            try {
+                policy = AsyncRegistryDispatcher.DropPolicy.valueOf(
+                        dropPolicy.trim().toUpperCase());
+            } catch (Exception e) {
+                reportWarning("Unknown drop policy '" + dropPolicy
+                        + "', using DROP_OLDEST", e);
+                policy = AsyncRegistryDispatcher.DropPolicy.DROP_OLDEST;
+            }
+            AsyncRegistryDispatcher<E> started
+                    = new AsyncRegistryDispatcher<E>(
+                    name, queueSize, batchSize, policy) {
+                protected void register(LogRegistry registry, E event) {
+                    RegistryAppenderSupport.this.register(registry, event);
+                }
+
+                protected boolean isBelowWarn(E event) {
+                    return RegistryAppenderSupport.this.isBelowWarn(event);
+                }
+
+                protected void reportError(String message, Exception e) {
+                    RegistryAppenderSupport.this.reportError(message, e);
+                }
+            };
+            started.start();
+            dispatcher = started;
+        }
+    }
+
+    /**
+     * Register the event, or queue it for the background thread, unless it
+     * exceeds the rate limit of its logger and severity.
+     *
+     * @param event The event to register.
+     */
+    void append(E event) {
+        RateLimiter limiter = rateLimiter;
+        if (limiter != null && !limiter.tryAcquire(
+                getLoggerName(event), getSeverity(event),
+                getTimeStamp(event))) {
+            return;
+        }
+        register(event);
+    }
+
+    /**
+     * Register messages about events suppressed by the rate limiter.
+     *
+     * @param limiter The rate limiter.
+     * @param time The current time.
+     * @param force Whether to register before the summary interval has
+     * passed.
+     */
+    private void registerSummaries(RateLimiter limiter, long time,
+                                   boolean force) {
+        for (RateLimiter.Summary summary
+                : limiter.takeSummaries(time, force)) {
+            register(createSummaryEvent(summary, time));
+        }
+    }
+
+    /**
+     * Register the event, or queue it for the background thread.
+     *
+     * @param event The event to register.
+     */
+    private void register(E event) {
+        AsyncRegistryDispatcher<E> d = dispatcher;
+        if (d != null) {
+            prepareForDeferredProcessing(event);
+            d.dispatch(event);
+        } else {
+            register(LogRegistryFactory.getLogRegistry(), event);
+        }
+    }
+
+    /**
+     * Stop the timer, register messages about events suppressed since the
+     * last summary, and stop the background thread, if running
+     * asynchronously, after it has registered the events already queued.
+     */
+    synchronized void close() {
+        if (summaryTimer != null) {
+            summaryTimer.cancel();
+            summaryTimer = null;
+        }
+        RateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            rateLimiter = null;
+            registerSummaries(limiter, System.currentTimeMillis(), true);
+        }
+        if (dispatcher != null) {
+            dispatcher.stop();
+            dispatcher = null;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.Histogram;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Metrics;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StripedCounter;
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.util.SortedMap;
+
+/**
+ * The metrics every log registry keeps about itself, reported by
+ * {@link LogRegistry#getMetrics()}:
+ *
+ * <dl>
+ * <dt>registerMessage.latency</dt>
+ * <dd>Nanoseconds spent in registerMessage, including waiting for locks.</dd>
+ * <dt>lock.wait</dt>
+ * <dd>Nanoseconds spent waiting for the lock of the registry, by writers
+ * and readers, in registries that lock.</dd>
+ * <dt>messages.accepted</dt>
+ * <dd>Messages registered.</dd>
+ * <dt>messages.evicted</dt>
+ * <dd>Messages removed to make room for newer ones.</dd>
+ * <dt>messages.dropped</dt>
+ * <dd>Messages dropped by the appenders because their queue was full, or by
+ * the registry because a newer message already took their place.</dd>
+ * <dt>messages.suppressed</dt>
+ * <dd>Messages suppressed by the rate limits of the appenders.</dd>
+ * <dt>retained.messages, retained.bytes</dt>
+ * <dd>Messages in the registry now, and the estimated bytes they retain.</dd>
+ * <dt>getStatusSince.latency, getStatusSince.messages</dt>
+ * <dd>Nanoseconds spent in getStatusSince, and the number of messages
+ * returned.</dd>
+ * </dl>
+ *
+ * Drops and suppressions happen in the appenders, before any registry sees
+ * the message, so they are counted for the whole JVM and reported by every
+ * registry.
+ *
+ * Note this class must not log through commons-logging, since it is called
+ * from within the logging framework.
+ */
+@QAInfo(author = "kfc",
+        reviewers = "jrg",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+class RegistryMetrics {
+    /** Messages dropped by the appenders. */
+    private static final StripedCounter appenderDropped = new StripedCounter();
+
+    /** Messages suppressed by the rate limits of the appenders. */
+    private static final StripedCounter suppressed = new StripedCounter();
+
+    /** The metrics of the registry. */
+    private final Metrics metrics = new Metrics();
+
+    /** Nanoseconds spent in registerMessage. */
+    private final Histogram registerLatency
+            = metrics.getHistogram("registerMessage.latency");
+
+    /** Nanoseconds spent waiting for the lock. */
+    private final Histogram lockWait = metrics.getHistogram("lock.wait");
+
+    /** Nanoseconds spent in getStatusSince. */
+    private final Histogram surveyLatency
+            = metrics.getHistogram("getStatusSince.latency");
+
+    /** Messages returned by getStatusSince. */
+    private final Histogram surveySize
+            = metrics.getHistogram("getStatusSince.messages");
+
+    /** Messages registered. */
+    private final StripedCounter accepted
+            = metrics.getCounter("messages.accepted");
+
+    /** Messages evicted. */
+    private final StripedCounter evicted
+            = metrics.getCounter("messages.evicted");
+
+    /** Messages dropped by the registry. */
+    private final StripedCounter dropped = new StripedCounter();
+
+    /**
+     * Create the metrics of a registry, reporting the messages and bytes it
+     * retains with the given gauges.
+     *
+     * @param retainedMessages Reads the number of messages in the registry.
+     * @param retainedBytes Reads the estimated bytes retained.
+     */
+    RegistryMetrics(Metrics.Gauge retainedMessages,
+                    Metrics.Gauge retainedBytes) {
+        metrics.setGauge("retained.messages", retainedMessages);
+        metrics.setGauge("retained.bytes", retainedBytes);
+        metrics.setGauge("messages.dropped", new Metrics.Gauge() {
+            public long getValue() {
+                return appenderDropped.get() + dropped.get();
+            }
+        });
+        metrics.setGauge("messages.suppressed", new Metrics.Gauge() {
+            public long getValue() {
+                return suppressed.get();
+            }
+        });
+    }
+
+    /** Count a message dropped by an appender because its queue was full. */
+    static void countAppenderDropped() {
+        appenderDropped.increment();
+    }
+
+    /** Count a message suppressed by the rate limits of an appender. */
+    static void countSuppressed() {
+        suppressed.increment();
+    }
+
+    /**
+     * Record the time waited for a lock.
+     *
+     * @param start The value of System.nanoTime() before taking the lock.
+     */
+    void locked(long start) {
+        lockWait.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Count a message registered, and record the time spent registering it.
+     *
+     * @param start The value of System.nanoTime() when registerMessage was
+     * called.
+     */
+    void registered(long start) {
+        accepted.increment();
+        registerLatency.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Count messages evicted.
+     *
+     * @param count The number of messages evicted.
+     */
+    void evicted(long count) {
+        evicted.add(count);
+    }
+
+    /** Count a message dropped by the registry. */
+    void dropped() {
+        dropped.increment();
+    }
+
+    /**
+     * Record the time spent in getStatusSince, and the number of messages
+     * returned.
+     *
+     * @param start The value of System.nanoTime() when getStatusSince was
+     * called.
+     * @param messages The number of messages returned.
+     */
+    void surveyed(long start, int messages) {
+        surveyLatency.record(System.nanoTime() - start);
+        surveySize.record(messages);
+    }
+
+    /**
+     * Read the current values of the metrics.
+     *
+     * @return The values, by name.
+     */
+    SortedMap<String, Long> getSnapshot() {
+        return metrics.getSnapshot();
+    }
+}
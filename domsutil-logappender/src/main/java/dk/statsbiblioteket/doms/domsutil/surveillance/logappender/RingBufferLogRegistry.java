@@ -0,0 +1,558 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Metrics;
+import dk.statsbiblioteket.doms.domsutil.surveyable.SeverityCounters;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Status;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusIterator;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusPageBuilder;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusQuery;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusSignal;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusSummary;
+import dk.statsbiblioteket.sbutil.webservices.configuration.ConfigCollection;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A log registry that caches log messages in a fixed-capacity ring buffer
+ * without taking any locks.
+ *
+ * Writers claim a sequence number from a shared counter, and publish their
+ * message in the slot for that sequence number with compare-and-set. Readers
+ * take a snapshot of the last <code>capacity</code> sequence numbers, and
+ * skip slots that are still being written or have already been overwritten
+ * by a newer message. Neither readers nor writers ever block each other.
+ *
+ * The capacity is read from the parameter
+ * <code>dk.statsbiblioteket.doms.surveillance.logappender.numberOfMessages</code>,
+ * rounded up to the nearest power of two. Unlike {@link CachingLogRegistry},
+ * the capacity counts messages, not distinct timestamps.
+ *
+ * Messages longer than the parameter
+ * <code>dk.statsbiblioteket.doms.surveillance.logappender.maxMessageLength</code>
+ * (default 16384) are truncated, so the memory held by the ring buffer is
+ * bounded.
+ *
+ * Each message gets the sequence number one higher than the one its writer
+ * claimed, so the first message has sequence number 1.
+ *
+ * The messages are kept by the instance, so to expose them through the
+ * surveyable framework, use {@link LogRegistrySurveyableSingleton}.
+ */
+@QAInfo(author = "kfc",
+        reviewers = "jrg",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class RingBufferLogRegistry implements LogRegistry {
+    /** The slots of the ring buffer. Slot for sequence n is n & mask. */
+    private final AtomicReferenceArray<Slot> slots;
+
+    /** Mask for mapping sequence numbers to slots. */
+    private final int mask;
+
+    /** The next sequence number to be claimed by a writer. */
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    /** All sequence numbers before this are known to be published. */
+    private volatile long published = 0L;
+
+    /** The name reported in status. */
+    private final String name;
+
+    /** Messages are truncated to this length. */
+    private final int maxMessageLength;
+
+    /** Signalled after each message is published. */
+    private final StatusSignal signal = new StatusSignal();
+
+    /** Counts the messages registered, by severity and minute. */
+    private final SeverityCounters counters = new SeverityCounters();
+
+    /** Measures the cost of the registry. */
+    private final RegistryMetrics metrics = new RegistryMetrics(
+            new Metrics.Gauge() {
+                public long getValue() {
+                    return Math.min(nextSequence.get(), slots.length());
+                }
+            },
+            new Metrics.Gauge() {
+                public long getValue() {
+                    return estimateRetainedBytes();
+                }
+            });
+
+    /** The logger for this class. */
+    private static Log log = LogFactory.getLog(RingBufferLogRegistry.class);
+
+    /** Orders messages by time. */
+    private static final Comparator<StatusMessage> TIME_ORDER
+            = new Comparator<StatusMessage>() {
+                public int compare(StatusMessage o1, StatusMessage o2) {
+                    return o1.getTime() < o2.getTime() ? -1
+                            : (o1.getTime() == o2.getTime() ? 0 : 1);
+                }
+            };
+
+    /** Read parameters from configuration, and initialize the ring buffer. */
+    public RingBufferLogRegistry() {
+        log.trace("Enter RingBufferLogRegistry()");
+        int capacity = DEFAULT_MAX_NUMBER_OF_MESSAGES_KEPT_BY_LOG;
+        String configuredName = "Unnamed";
+        int configuredMaxMessageLength = DEFAULT_MAX_MESSAGE_LENGTH;
+        try {
+            String configValue = ConfigCollection.getProperties()
+                    .getProperty(NUMBEROFMESSAGES_CONFIGURATION_PARAMETER);
+            if (configValue != null && !configValue.equals("")) {
+                capacity = Integer.parseInt(configValue);
+            }
+            configValue = ConfigCollection.getProperties()
+                    .getProperty(MAXMESSAGELENGTH_CONFIGURATION_PARAMETER);
+            if (configValue != null && !configValue.equals("")) {
+                configuredMaxMessageLength = Integer.parseInt(configValue);
+            }
+            configuredName = ConfigCollection.getProperties().getProperty(
+                    LOGGERNAME_CONFIGURATION_PARAMETER, "Unnamed");
+        } catch (Exception e) {
+            log.warn("Error while configuring registry."
+                     + " Falling back to default values.", e);
+        }
+        if (capacity < 1) {
+            log.warn("Invalid number of messages " + capacity
+                     + ". Falling back to default value.");
+            capacity = DEFAULT_MAX_NUMBER_OF_MESSAGES_KEPT_BY_LOG;
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        log.info("Setting number of messages kept by registry to " + size);
+        slots = new AtomicReferenceArray<Slot>(size);
+        mask = size - 1;
+        name = configuredName;
+        maxMessageLength = configuredMaxMessageLength;
+    }
+
+    /**
+     * Register a message for later inspection.
+     *
+     * @param event The log message to register. Should never be null.
+     *
+     * @throws IllegalArgumentException if event is null.
+     */
+    public void registerMessage(LoggingEvent event) {
+        if (event == null) {
+            throw new IllegalArgumentException(
+                    "Parameter event must not be null");
+        }
+        long start = System.nanoTime();
+        LogStatusMessage message = new LogStatusMessage(event);
+        message.truncate(maxMessageLength);
+        publish(message);
+        counters.add(LogStatusMessage.getSeverity(event.getLevel()),
+                     event.getTimeStamp());
+        signal.signal();
+        metrics.registered(start);
+    }
+
+    /**
+     * Register a message for later inspection.
+     *
+     * @param event The log message to register. Should never be null.
+     *
+     * @throws IllegalArgumentException if event is null.
+     */
+    public void registerMessage(ILoggingEvent event) {
+        if (event == null) {
+            throw new IllegalArgumentException(
+                    "Parameter event must not be null");
+        }
+        long start = System.nanoTime();
+        LogStatusMessage message = new LogStatusMessage(event);
+        message.truncate(maxMessageLength);
+        publish(message);
+        counters.add(LogStatusMessage.getSeverity(event.getLevel()),
+                     event.getTimeStamp());
+        signal.signal();
+        metrics.registered(start);
+    }
+
+    /**
+     * Claim the next sequence number and publish the message in its slot.
+     * If a writer that claimed a later sequence number for the same slot has
+     * already published, the message is dropped, since it would have been
+     * overwritten anyway.
+     *
+     * @param message The message to publish.
+     */
+    private void publish(StatusMessage message) {
+        long sequence = nextSequence.getAndIncrement();
+        message.setSequence(sequence + 1);
+        int index = (int) (sequence & mask);
+        Slot slot = new Slot(sequence, message);
+        Slot current;
+        do {
+            current = slots.get(index);
+            if (current != null && current.sequence > sequence) {
+                metrics.dropped();
+                return;
+            }
+        } while (!slots.compareAndSet(index, current, slot));
+        if (current != null) {
+            metrics.evicted(1L);
+        }
+    }
+
+    /**
+     * Add up the estimated bytes retained by the messages in the ring
+     * buffer.
+     *
+     * @return The estimated bytes.
+     */
+    private long estimateRetainedBytes() {
+        long bytes = 0L;
+        for (int i = 0; i < slots.length(); i++) {
+            Slot slot = slots.get(i);
+            if (slot != null && slot.message instanceof LogStatusMessage) {
+                bytes += ((LogStatusMessage) slot.message).estimateSize();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns all log messages received since the given date. The messages
+     * are returned in the order they were registered.
+     *
+     * @param time Only messages strictly after the given date are returned.
+     * @return A status containing list of log messages.
+     */
+    public Status getStatusSince(long time) {
+        log.trace("Enter getStatusSince(" + time + ")");
+        long start = System.nanoTime();
+        List<StatusMessage> statusMessages = collect(time, null);
+        LogStatusMessage.render(statusMessages);
+        Status status = new Status();
+        status.setName(name);
+        status.getMessages().addAll(statusMessages);
+        metrics.surveyed(start, statusMessages.size());
+        return status;
+    }
+
+    /**
+     * Returns one page of the log messages. The ring buffer is in the order
+     * messages were registered, not by time, so the messages matching the
+     * query are collected and sorted before the page is taken. Only the
+     * messages of the page are rendered, unless the query filters on the
+     * message text.
+     *
+     * @param query The query. Null for all messages.
+     * @return A status containing the page of log messages.
+     * @throws IllegalArgumentException if the query is invalid.
+     */
+    public Status getStatusPage(StatusQuery query) {
+        log.trace("Enter getStatusPage()");
+        StatusPageBuilder filter = new StatusPageBuilder(query);
+        Status status = new Status();
+        status.setName(name);
+        status.getMessages().addAll(collect(filter.getSince(), filter));
+        Collections.sort(status.getMessages(), TIME_ORDER);
+        Status page = StatusPageBuilder.page(status, query);
+        LogStatusMessage.render(page.getMessages());
+        return page;
+    }
+
+    /**
+     * Collect the published messages newer than the given date, in the order
+     * they were registered.
+     *
+     * @param time Only messages strictly after the given date are collected.
+     * @param filter Only messages matching this are collected. May be null.
+     * @return The messages, not yet rendered.
+     */
+    private List<StatusMessage> collect(long time, StatusPageBuilder filter) {
+        long end = nextSequence.get();
+        long start = Math.max(0L, end - slots.length());
+        List<StatusMessage> statusMessages
+                = new ArrayList<StatusMessage>((int) (end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            Slot slot = slots.get((int) (sequence & mask));
+            // Skip slots still being written, or already overwritten
+            if (slot != null && slot.sequence == sequence
+                    && slot.message.getTime() > time
+                    && (filter == null || filter.matches(slot.message))) {
+                statusMessages.add(slot.message);
+            }
+        }
+        return statusMessages;
+    }
+
+    /**
+     * Wait until a log message newer than the given date is published, or
+     * the timeout expires.
+     *
+     * @param time Wait for messages strictly after the given date.
+     * @param timeout Max milliseconds to wait.
+     * @return True if there are newer messages, false on timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitStatusSince(final long time, long timeout)
+            throws InterruptedException {
+        log.trace("Enter awaitStatusSince(" + time + ", " + timeout + ")");
+        return signal.await(new StatusSignal.Condition() {
+            public boolean isMet() {
+                // Newest messages first, they are the likely matches
+                long end = nextSequence.get();
+                for (long sequence = end - 1;
+                     sequence >= Math.max(0L, end - slots.length());
+                     sequence--) {
+                    Slot slot = slots.get((int) (sequence & mask));
+                    if (slot != null && slot.sequence == sequence
+                            && slot.message.getTime() > time) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }, timeout);
+    }
+
+    /**
+     * Wait until a log message with a sequence number higher than the given
+     * one is published, or the timeout expires.
+     *
+     * @param sequence Wait for messages with a higher sequence number.
+     * @param timeout Max milliseconds to wait.
+     * @return True if there are newer messages, false on timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitStatusAfter(final long sequence, long timeout)
+            throws InterruptedException {
+        log.trace("Enter awaitStatusAfter(" + sequence + ", " + timeout + ")");
+        return signal.await(new StatusSignal.Condition() {
+            public boolean isMet() {
+                return publishedEnd(nextSequence.get()) > sequence;
+            }
+        }, timeout);
+    }
+
+    /**
+     * Returns all log messages with a sequence number higher than the given
+     * one, ordered by sequence number. Only messages up to the first one
+     * still being published are returned, so no message is skipped by a
+     * caller continuing from the high-water mark. If the given sequence
+     * number is higher than any registered, it is from before a restart,
+     * and all messages are returned.
+     *
+     * @param after Only messages with a higher sequence number are returned.
+     * @return A status containing list of log messages, and the sequence
+     * number of the last message returned or skipped as high-water mark.
+     */
+    public Status getStatusAfter(long after) {
+        log.trace("Enter getStatusAfter(" + after + ")");
+        long end = publishedEnd(nextSequence.get());
+        if (after > end) {
+            after = 0L;
+        }
+        long start = Math.max(after, end - slots.length());
+        List<StatusMessage> statusMessages
+                = new ArrayList<StatusMessage>((int) (end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            Slot slot = slots.get((int) (sequence & mask));
+            // Skip slots already overwritten
+            if (slot.sequence == sequence) {
+                statusMessages.add(slot.message);
+            }
+        }
+        LogStatusMessage.render(statusMessages);
+        Status status = new Status();
+        status.setName(name);
+        status.setHighWaterMark(end);
+        status.getMessages().addAll(statusMessages);
+        return status;
+    }
+
+    /**
+     * Get the number of messages registered, which changes whenever a message
+     * is registered. While a message is still being published, the version
+     * is unknown, since the status does not yet include the message.
+     *
+     * @return The version of the status, or -1 while a message is being
+     * published.
+     */
+    public long getVersion() {
+        long end = nextSequence.get();
+        if (publishedEnd(end) < end) {
+            return -1L;
+        }
+        return end;
+    }
+
+    /**
+     * Find the first sequence number before the given one that is not yet
+     * published. Slots overwritten by a later message count as published.
+     *
+     * @param end A sequence number already claimed, or the next one to be.
+     * @return The first sequence number not yet published, or end if all
+     * before it are published.
+     */
+    private long publishedEnd(long end) {
+        long sequence = Math.max(published, end - slots.length());
+        while (sequence < end) {
+            Slot slot = slots.get((int) (sequence & mask));
+            if (slot == null || slot.sequence < sequence) {
+                break;
+            }
+            sequence++;
+        }
+        if (sequence > published) {
+            // Racing readers may set a lower value, which is only slower
+            published = sequence;
+        }
+        return sequence;
+    }
+
+    /**
+     * Iterate over all log messages received since the given date, in the
+     * order they were registered. The iterator reads the ring buffer
+     * directly, and never blocks writers.
+     *
+     * @param time Only messages strictly after the given date are returned.
+     * @return Iterator over the messages.
+     */
+    public StatusIterator iterateStatusSince(final long time) {
+        log.trace("Enter iterateStatusSince(" + time + ")");
+        final long end = nextSequence.get();
+        final long start = Math.max(0L, end - slots.length());
+        return new StatusIterator() {
+            /** The next sequence number to look at. */
+            private long sequence = start;
+
+            /** The next message, if already found. */
+            private StatusMessage next;
+
+            public String getName() {
+                return name;
+            }
+
+            public Long getHighWaterMark() {
+                return null;
+            }
+
+            public boolean hasNext() {
+                while (next == null && sequence < end) {
+                    Slot slot = slots.get((int) (sequence & mask));
+                    // Skip slots still being written, or already overwritten
+                    if (slot != null && slot.sequence == sequence
+                            && slot.message.getTime() > time) {
+                        next = slot.message;
+                    }
+                    sequence++;
+                }
+                return next != null;
+            }
+
+            public StatusMessage next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                StatusMessage result = next;
+                next = null;
+                return result;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException("Status is read only");
+            }
+        };
+    }
+
+    /**
+     * Get the number of messages of each severity registered in the last 1,
+     * 5 and 15 minutes, as counted when registered.
+     *
+     * @return The counts.
+     */
+    public StatusSummary getSummary() {
+        log.trace("Enter getSummary()");
+        return counters.getSummary(System.currentTimeMillis(), name);
+    }
+
+    /**
+     * Get the metrics of the registry, as described in
+     * {@link RegistryMetrics}. The ring buffer takes no locks, so no time
+     * is spent waiting for them.
+     *
+     * @return The values, by name.
+     */
+    public SortedMap<String, Long> getMetrics() {
+        return metrics.getSnapshot();
+    }
+
+    /**
+     * Returns all log messages received.
+     *
+     * @return A status containing list of log messages.
+     */
+    public Status getStatus() {
+        log.trace("Enter getStatus()");
+        return getStatusSince(0L);
+    }
+
+    /** An immutable pairing of a message with its claimed sequence number. */
+    private static final class Slot {
+        /** The sequence number claimed by the writer. */
+        private final long sequence;
+        /** The message. */
+        private final StatusMessage message;
+
+        /**
+         * Create a slot entry.
+         *
+         * @param sequence The sequence number claimed by the writer.
+         * @param message The message.
+         */
+        private Slot(long sequence, StatusMessage message) {
+            this.sequence = sequence;
+            this.message = message;
+        }
+    }
+}
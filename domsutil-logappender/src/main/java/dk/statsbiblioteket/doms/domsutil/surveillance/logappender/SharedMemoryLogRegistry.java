@@ -0,0 +1,176 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import dk.statsbiblioteket.sbutil.webservices.configuration.ConfigCollection;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * A log registry that also writes its messages to a {@link SharedStatusFile}
+ * shared by the processes on the host, so {@link SharedMemorySurveyable} can
+ * report the messages of all processes from one of them.
+ *
+ * Queries are answered from memory, as by {@link ColumnarLogRegistry}. The
+ * shared file keeps as many messages per process as the registry holds, if
+ * this process creates it.
+ *
+ * The shared file is configured by the parameters
+ * <code>dk.statsbiblioteket.doms.surveillance.logappender.sharedFile</code>
+ * (default doms-logregistry.shm in java.io.tmpdir),
+ * <code>.sharedProcesses</code> (default 16) and
+ * <code>.sharedRecordSize</code> (default 512 bytes, longer messages are cut
+ * off). The process that creates the file decides its layout, so all
+ * processes should use the same values. If the file cannot be opened, or
+ * all its slots are claimed by other processes, the registry keeps its
+ * messages in memory only.
+ *
+ * The slot is released by {@link #close()}, which
+ * {@link LogRegistryFactory} calls when it replaces the registry.
+ */
+@QAInfo(author = "kfc",
+        reviewers = "jrg",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class SharedMemoryLogRegistry extends ColumnarLogRegistry
+        implements Closeable {
+    /** The shared file, or null if it could not be opened. */
+    private final SharedStatusFile sharedFile;
+
+    /** The logger for this class. */
+    private static Log log = LogFactory.getLog(SharedMemoryLogRegistry.class);
+
+    /** Read parameters from configuration, and claim a slot of the file. */
+    public SharedMemoryLogRegistry() {
+        log.trace("Enter SharedMemoryLogRegistry()");
+        File file = SharedMemorySurveyable.getSharedFile();
+        int processes = DEFAULT_SHARED_PROCESSES;
+        int recordSize = DEFAULT_SHARED_RECORD_SIZE;
+        String name = "Unnamed";
+        try {
+            Properties properties = ConfigCollection.getProperties();
+            String configValue = properties.getProperty(
+                    SHAREDPROCESSES_CONFIGURATION_PARAMETER);
+            if (configValue != null && !configValue.equals("")) {
+                processes = Integer.parseInt(configValue);
+            }
+            configValue = properties.getProperty(
+                    SHAREDRECORDSIZE_CONFIGURATION_PARAMETER);
+            if (configValue != null && !configValue.equals("")) {
+                recordSize = Integer.parseInt(configValue);
+            }
+            name = properties.getProperty(LOGGERNAME_CONFIGURATION_PARAMETER,
+                                          "Unnamed");
+        } catch (Exception e) {
+            log.warn("Error while configuring shared file."
+                     + " Falling back to default values.", e);
+        }
+
+        SharedStatusFile opened = null;
+        try {
+            opened = new SharedStatusFile(file, processes, getCapacity(),
+                                          recordSize, true);
+            opened.claim(name);
+            log.info("Writing messages to shared status file '" + file
+                     + "', keeping " + opened.getRecords()
+                     + " messages for this process");
+        } catch (IOException e) {
+            log.error("Unable to use shared status file '" + file
+                      + "'. Messages are only kept in memory.", e);
+            if (opened != null) {
+                try {
+                    opened.close();
+                } catch (IOException closing) {
+                    log.debug("Unable to close shared status file", closing);
+                }
+            }
+            opened = null;
+        }
+        sharedFile = opened;
+    }
+
+    /**
+     * Register a message for later inspection, and write it to the shared
+     * file.
+     *
+     * @param event The log message to register. Should never be null.
+     *
+     * @throws IllegalArgumentException if event is null.
+     */
+    public void registerMessage(LoggingEvent event) {
+        super.registerMessage(event);
+        if (sharedFile != null) {
+            sharedFile.append(event.getTimeStamp(),
+                              LogStatusMessage.getSeverity(event.getLevel()),
+                              LogStatusMessage.truncate(
+                                      event.getRenderedMessage(),
+                                      getMaxMessageLength()));
+        }
+    }
+
+    /**
+     * Register a message for later inspection, and write it to the shared
+     * file. The shared file needs the formatted message, so messages with
+     * arguments are formatted here.
+     *
+     * @param event The log message to register. Should never be null.
+     *
+     * @throws IllegalArgumentException if event is null.
+     */
+    public void registerMessage(ILoggingEvent event) {
+        super.registerMessage(event);
+        if (sharedFile != null) {
+            sharedFile.append(event.getTimeStamp(),
+                              LogStatusMessage.getSeverity(event.getLevel()),
+                              LogStatusMessage.truncate(
+                                      event.getFormattedMessage(),
+                                      getMaxMessageLength()));
+        }
+    }
+
+    /**
+     * Release the slot of this process, and close the shared file. Messages
+     * registered after this are kept in memory only.
+     *
+     * @throws IOException on trouble closing the file.
+     */
+    public void close() throws IOException {
+        log.trace("Enter close()");
+        if (sharedFile != null) {
+            sharedFile.close();
+        }
+    }
+}
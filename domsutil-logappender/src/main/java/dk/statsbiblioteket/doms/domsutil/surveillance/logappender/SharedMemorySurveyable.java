@@ -0,0 +1,169 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Status;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
+import dk.statsbiblioteket.doms.domsutil.surveyable.VersionedSurveyable;
+import dk.statsbiblioteket.sbutil.webservices.configuration.ConfigCollection;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A surveyable that reports the log messages of all processes on the host,
+ * as written by {@link SharedMemoryLogRegistry} to the shared status file.
+ *
+ * Each message is prefixed with the logger name of the process that logged
+ * it. The messages of a process that has stopped are reported until another
+ * process takes its place in the file. The messages of different processes
+ * are not numbered in one sequence, so they have no sequence numbers, and
+ * the surveyable is not sequenced. Nor can it be queried or summarized, since
+ * pages and counts are made from all messages in the file anyway.
+ *
+ * The file is given by the parameter
+ * <code>dk.statsbiblioteket.doms.surveillance.logappender.sharedFile</code>
+ * (default doms-logregistry.shm in java.io.tmpdir). Until a process has
+ * created it, a YELLOW message says so.
+ */
+@QAInfo(author = "kfc",
+        reviewers = "jrg",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class SharedMemorySurveyable implements VersionedSurveyable {
+    /** Orders messages by time. */
+    private static final Comparator<StatusMessage> TIME_ORDER
+            = new Comparator<StatusMessage>() {
+        public int compare(StatusMessage m1, StatusMessage m2) {
+            return m1.getTime() < m2.getTime()
+                    ? -1 : (m1.getTime() == m2.getTime() ? 0 : 1);
+        }
+    };
+
+    /** The shared file, once opened. */
+    private SharedStatusFile sharedFile;
+
+    /** The logger for this class. */
+    private static Log log = LogFactory.getLog(SharedMemorySurveyable.class);
+
+    /**
+     * Get the shared status file from configuration.
+     *
+     * @return The shared status file.
+     */
+    static File getSharedFile() {
+        String configValue = null;
+        try {
+            configValue = ConfigCollection.getProperties().getProperty(
+                    LogRegistry.SHAREDFILE_CONFIGURATION_PARAMETER);
+        } catch (Exception e) {
+            log.warn("Error while reading shared file parameter."
+                     + " Falling back to default value.", e);
+        }
+        if (configValue != null && !configValue.equals("")) {
+            return new File(configValue);
+        }
+        return new File(System.getProperty("java.io.tmpdir"),
+                        LogRegistry.DEFAULT_SHARED_FILE_NAME);
+    }
+
+    /**
+     * Open the shared file, if not already open.
+     *
+     * @return The shared file.
+     * @throws IOException if the file does not exist, is not initialized, or
+     * has another format.
+     */
+    private synchronized SharedStatusFile open() throws IOException {
+        if (sharedFile == null) {
+            sharedFile = new SharedStatusFile(getSharedFile(), 0, 0, 0,
+                                              false);
+        }
+        return sharedFile;
+    }
+
+    /**
+     * Returns the log messages of all processes received since the given
+     * date, ordered by time.
+     *
+     * @param time Only messages strictly after the given date are returned.
+     * @return A status containing list of log messages.
+     */
+    public Status getStatusSince(long time) {
+        log.trace("Enter getStatusSince(" + time + ")");
+        Status status = new Status();
+        status.setName(ConfigCollection.getProperties().getProperty(
+                LogRegistry.LOGGERNAME_CONFIGURATION_PARAMETER, "Unnamed"));
+        try {
+            List<StatusMessage> messages = open().read(time);
+            Collections.sort(messages, TIME_ORDER);
+            status.getMessages().addAll(messages);
+        } catch (IOException e) {
+            log.debug("Unable to read shared status file", e);
+            StatusMessage message = new StatusMessage();
+            message.setLogMessage(false);
+            message.setSeverity(Severity.YELLOW);
+            message.setTime(System.currentTimeMillis());
+            message.setMessage("Shared status file '" + getSharedFile()
+                               + "' is not available: " + e.getMessage());
+            status.getMessages().add(message);
+        }
+        return status;
+    }
+
+    /**
+     * Get a number that changes whenever a process writes a message to the
+     * shared file.
+     *
+     * @return The version of the status, or -1 if the file is not available.
+     */
+    public long getVersion() {
+        try {
+            return open().getVersion();
+        } catch (IOException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Returns the log messages of all processes.
+     *
+     * @return A status containing list of log messages.
+     */
+    public Status getStatus() {
+        log.trace("Enter getStatus()");
+        return getStatusSince(0L);
+    }
+}
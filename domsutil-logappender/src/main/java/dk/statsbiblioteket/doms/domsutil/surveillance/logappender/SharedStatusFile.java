@@ -0,0 +1,514 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A memory-mapped file shared by the processes on a host, each writing its
+ * log messages to its own slot, and any process reading the messages of all
+ * slots.
+ *
+ * The file starts with a header giving the number of slots, the number of
+ * records in each slot and the size of each record. The first process to
+ * open the file decides these. A file with another format is never
+ * overwritten, since other processes may still be using it. Each slot has a
+ * header with a generation, the number of messages written, and the name of
+ * the process, followed by a ring of records of
+ * <ul>
+ * <li>the number of the message, or 0 while it is written (long)</li>
+ * <li>the time of the message (long)</li>
+ * <li>the ordinal of the severity of the message (byte)</li>
+ * <li>the length of the message in bytes (short)</li>
+ * <li>a CRC32 checksum of the number and the rest of the record (int)</li>
+ * <li>the message, UTF-8 encoded and cut off to fit the record</li>
+ * </ul>
+ *
+ * A process claims a slot by taking a lock on the slot header, which it
+ * keeps until it closes the file with {@link #close()}, or dies. So each
+ * slot has a single writer, and no locking is needed between writers. The
+ * writer clears the number of a record before writing it, and sets it
+ * after, followed by the number of messages in the slot header. A reader
+ * reads the number of a record before and after reading it, and skips the
+ * record if they differ, or are not among the newest messages of the slot. Since the file is shared between
+ * processes, nothing in Java orders these reads and writes, so a reader also
+ * skips a record that fails its checksum. A record read while it is written
+ * is then skipped, whatever order the bytes are seen in. The messages of a
+ * slot are kept when its process dies, until another process claims the
+ * slot.
+ */
+@QAInfo(author = "kfc",
+        reviewers = "jrg",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+class SharedStatusFile {
+    /** Marks an initialized file. */
+    private static final int MAGIC = 0x444f4d53;
+
+    /** Version of the file format. */
+    private static final int FORMAT_VERSION = 2;
+
+    /** Bytes of the file header. */
+    private static final int FILE_HEADER_BYTES = 64;
+
+    /** Bytes of a slot header. */
+    private static final int SLOT_HEADER_BYTES = 128;
+
+    /** Offset in the slot header of the generation. */
+    private static final int GENERATION_OFFSET = 0;
+
+    /** Offset in the slot header of the number of messages. */
+    private static final int COUNT_OFFSET = 8;
+
+    /** Offset in the slot header of the length of the name. */
+    private static final int NAME_LENGTH_OFFSET = 16;
+
+    /** Offset in the slot header of the name. */
+    private static final int NAME_OFFSET = 20;
+
+    /** Max bytes of a process name. */
+    private static final int MAX_NAME_BYTES = SLOT_HEADER_BYTES - NAME_OFFSET;
+
+    /** Offset in a record of the checksum. */
+    private static final int CHECKSUM_OFFSET = 19;
+
+    /** Bytes of a record before the message. */
+    private static final int RECORD_HEADER_BYTES = 23;
+
+    /** Smallest allowed record size. */
+    private static final int MIN_RECORD_SIZE = RECORD_HEADER_BYTES + 1;
+
+    /** Encoding of names and messages. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The severities, by the ordinals kept in the records. */
+    private static final Severity[] SEVERITIES = Severity.values();
+
+    /** The shared file. */
+    private final File file;
+
+    /** The open file. */
+    private final RandomAccessFile randomAccessFile;
+
+    /** The mapped file. */
+    private final MappedByteBuffer buffer;
+
+    /** Number of slots. */
+    private final int slots;
+
+    /** Number of records in each slot. */
+    private final int records;
+
+    /** Bytes of each record. */
+    private final int recordSize;
+
+    /** Lock on the slot claimed for writing, or null. */
+    private FileLock slotLock;
+
+    /** Offset of the slot claimed for writing. */
+    private int slotOffset;
+
+    /** Number of messages written to the claimed slot. */
+    private long count;
+
+    /** Checksum of the record being written. */
+    private final CRC32 checksum = new CRC32();
+
+    /**
+     * Open a shared file. If writable, the file is created and initialized
+     * with the given layout if necessary. Otherwise the file must exist and
+     * be initialized. An initialized file keeps its layout. The file must
+     * be closed with {@link #close()}.
+     *
+     * @param file The shared file.
+     * @param slots Number of slots, if initializing.
+     * @param records Number of records in each slot, if initializing.
+     * @param recordSize Bytes of each record, if initializing.
+     * @param writable Whether to open for writing.
+     * @throws IOException on trouble opening the file, if it is not
+     * writable and not initialized, or if it has another format.
+     */
+    SharedStatusFile(File file, int slots, int records, int recordSize,
+                     boolean writable) throws IOException {
+        this.file = file;
+        randomAccessFile = new RandomAccessFile(file, writable ? "rw" : "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            if (writable) {
+                FileLock headerLock = channel.lock(0, FILE_HEADER_BYTES,
+                                                   false);
+                try {
+                    if (!isInitialized()) {
+                        initialize(Math.max(slots, 1), Math.max(records, 1),
+                                   Math.max(recordSize, MIN_RECORD_SIZE));
+                    }
+                } finally {
+                    headerLock.release();
+                }
+            } else if (!isInitialized()) {
+                throw new IOException("Shared status file '" + file
+                                      + "' is not initialized");
+            }
+            randomAccessFile.seek(8);
+            this.slots = randomAccessFile.readInt();
+            this.records = randomAccessFile.readInt();
+            this.recordSize = randomAccessFile.readInt();
+            long size = getSize(this.slots, this.records, this.recordSize);
+            if (randomAccessFile.length() < size) {
+                throw new IOException("Shared status file '" + file
+                                      + "' is truncated");
+            }
+            buffer = channel.map(writable ? FileChannel.MapMode.READ_WRITE
+                                          : FileChannel.MapMode.READ_ONLY,
+                                 0, size);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Check the header of the file. A file that is too short for the header,
+     * or has no magic number because initializing it never completed, is
+     * not initialized.
+     *
+     * @return True if the file is initialized.
+     * @throws IOException on trouble reading the file, or if it has another
+     * magic number or format version.
+     */
+    private boolean isInitialized() throws IOException {
+        if (randomAccessFile.length() < FILE_HEADER_BYTES) {
+            return false;
+        }
+        randomAccessFile.seek(0);
+        int magic = randomAccessFile.readInt();
+        int version = randomAccessFile.readInt();
+        if (magic == 0) {
+            return false;
+        }
+        if (magic != MAGIC || version != FORMAT_VERSION) {
+            throw new IOException("Shared status file '" + file
+                                  + "' has an incompatible format");
+        }
+        return true;
+    }
+
+    /**
+     * Write the header of the file, and size it. Must be called holding the
+     * header lock, and only on a file that is not initialized.
+     *
+     * @param slots Number of slots.
+     * @param records Number of records in each slot.
+     * @param recordSize Bytes of each record.
+     * @throws IOException on trouble writing the file.
+     */
+    private void initialize(int slots, int records, int recordSize)
+            throws IOException {
+        randomAccessFile.setLength(0);
+        randomAccessFile.setLength(getSize(slots, records, recordSize));
+        randomAccessFile.seek(8);
+        randomAccessFile.writeInt(slots);
+        randomAccessFile.writeInt(records);
+        randomAccessFile.writeInt(recordSize);
+        // The magic number last, so the file is only valid once complete
+        randomAccessFile.seek(0);
+        randomAccessFile.writeInt(MAGIC);
+        randomAccessFile.writeInt(FORMAT_VERSION);
+    }
+
+    /**
+     * Get the size of a file with the given layout.
+     *
+     * @param slots Number of slots.
+     * @param records Number of records in each slot.
+     * @param recordSize Bytes of each record.
+     * @return Size of the file in bytes.
+     * @throws IOException if the file would be too large to map.
+     */
+    private long getSize(int slots, int records, int recordSize)
+            throws IOException {
+        long size = FILE_HEADER_BYTES
+                + slots * (SLOT_HEADER_BYTES + (long) records * recordSize);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Shared status file '" + file
+                                  + "' would be too large");
+        }
+        return size;
+    }
+
+    /**
+     * Get the offset of a slot.
+     *
+     * @param slot The slot.
+     * @return Offset of the slot header.
+     */
+    private int getSlotOffset(int slot) {
+        return FILE_HEADER_BYTES
+                + slot * (SLOT_HEADER_BYTES + records * recordSize);
+    }
+
+    /**
+     * Get the number of records in each slot.
+     *
+     * @return The number of records.
+     */
+    int getRecords() {
+        return records;
+    }
+
+    /**
+     * Claim a free slot for writing, and start a new generation of it.
+     *
+     * @param name The name of this process.
+     * @throws IOException if no slot is free.
+     */
+    synchronized void claim(String name) throws IOException {
+        FileChannel channel = randomAccessFile.getChannel();
+        for (int slot = 0; slot < slots && slotLock == null; slot++) {
+            try {
+                slotLock = channel.tryLock(getSlotOffset(slot),
+                                           SLOT_HEADER_BYTES, false);
+            } catch (OverlappingFileLockException e) {
+                // Claimed by another registry in this process
+            }
+            if (slotLock != null) {
+                slotOffset = getSlotOffset(slot);
+            }
+        }
+        if (slotLock == null) {
+            throw new IOException("All " + slots + " slots of shared status"
+                                  + " file '" + file + "' are claimed");
+        }
+        byte[] nameBytes = name.getBytes(UTF8);
+        int nameLength = Math.min(nameBytes.length, MAX_NAME_BYTES);
+        count = 0L;
+        buffer.putLong(slotOffset + COUNT_OFFSET, count);
+        buffer.putLong(slotOffset + GENERATION_OFFSET,
+                       buffer.getLong(slotOffset + GENERATION_OFFSET) + 1);
+        for (int i = 0; i < nameLength; i++) {
+            buffer.put(slotOffset + NAME_OFFSET + i, nameBytes[i]);
+        }
+        buffer.putInt(slotOffset + NAME_LENGTH_OFFSET, nameLength);
+    }
+
+    /**
+     * Close the file, releasing the claimed slot, if any. The messages of the
+     * slot are kept until another process claims it. Messages written after
+     * this are ignored.
+     *
+     * @throws IOException on trouble closing the file.
+     */
+    synchronized void close() throws IOException {
+        try {
+            if (slotLock != null && slotLock.isValid()) {
+                slotLock.release();
+            }
+        } finally {
+            slotLock = null;
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Write a message to the claimed slot, overwriting the oldest message
+     * when the slot is full. Messages too long for a record are cut off.
+     *
+     * @param time The time of the message.
+     * @param severity The severity of the message.
+     * @param message The message.
+     */
+    synchronized void append(long time, Severity severity, String message) {
+        if (slotLock == null) {
+            return;
+        }
+        byte[] text = message == null ? new byte[0] : message.getBytes(UTF8);
+        int textLength = Math.min(
+                Math.min(text.length, recordSize - RECORD_HEADER_BYTES),
+                Short.MAX_VALUE);
+        long number = count + 1;
+        int offset = slotOffset + SLOT_HEADER_BYTES
+                + (int) ((number - 1) % records) * recordSize;
+        buffer.putLong(offset, 0L);
+        buffer.putLong(offset + 8, time);
+        buffer.put(offset + 16, (byte) severity.ordinal());
+        buffer.putShort(offset + 17, (short) textLength);
+        buffer.putInt(offset + CHECKSUM_OFFSET, checksum(
+                checksum, number, time, severity.ordinal(), textLength,
+                text));
+        for (int i = 0; i < textLength; i++) {
+            buffer.put(offset + RECORD_HEADER_BYTES + i, text[i]);
+        }
+        buffer.putLong(offset, number);
+        buffer.putLong(slotOffset + COUNT_OFFSET, number);
+        count = number;
+    }
+
+    /**
+     * Read the messages of all slots. Each message is prefixed with the name
+     * of the process that wrote it. Messages are ordered by slot, and by
+     * number within each slot.
+     *
+     * @param time Only messages strictly after the given date are returned.
+     * @return The messages.
+     */
+    List<StatusMessage> read(long time) {
+        List<StatusMessage> messages = new ArrayList<StatusMessage>();
+        CRC32 crc = new CRC32();
+        for (int slot = 0; slot < slots; slot++) {
+            int offset = getSlotOffset(slot);
+            long slotCount = buffer.getLong(offset + COUNT_OFFSET);
+            if (slotCount <= 0) {
+                continue;
+            }
+            int nameLength = Math.min(
+                    Math.max(buffer.getInt(offset + NAME_LENGTH_OFFSET), 0),
+                    MAX_NAME_BYTES);
+            String name = new String(getBytes(offset + NAME_OFFSET,
+                                              nameLength), UTF8);
+            for (long number = Math.max(1L, slotCount - records + 1);
+                 number <= slotCount; number++) {
+                StatusMessage message = readRecord(
+                        offset + SLOT_HEADER_BYTES
+                                + (int) ((number - 1) % records) * recordSize,
+                        number, name, crc);
+                if (message != null && message.getTime() > time) {
+                    messages.add(message);
+                }
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Read a record, if it holds the expected message, is not changed while
+     * reading, and passes its checksum.
+     *
+     * @param offset Offset of the record.
+     * @param number The expected number of the message.
+     * @param name Name of the process, prefixed to the message.
+     * @param crc Checksum to reuse for the record.
+     * @return The message, or null if the record holds another message, or
+     * is being written.
+     */
+    private StatusMessage readRecord(int offset, long number, String name,
+                                     CRC32 crc) {
+        if (buffer.getLong(offset) != number) {
+            return null;
+        }
+        long time = buffer.getLong(offset + 8);
+        int severity = buffer.get(offset + 16);
+        int textLength = Math.min(Math.max(buffer.getShort(offset + 17), 0),
+                                  recordSize - RECORD_HEADER_BYTES);
+        int expected = buffer.getInt(offset + CHECKSUM_OFFSET);
+        byte[] text = getBytes(offset + RECORD_HEADER_BYTES, textLength);
+        if (buffer.getLong(offset) != number || severity < 0
+                || severity >= SEVERITIES.length
+                || checksum(crc, number, time, severity, textLength, text)
+                   != expected) {
+            return null;
+        }
+        StatusMessage message = new StatusMessage();
+        message.setTime(time);
+        message.setSeverity(SEVERITIES[severity]);
+        message.setMessage(name + ": " + new String(text, UTF8));
+        message.setLogMessage(true);
+        return message;
+    }
+
+    /**
+     * Compute the checksum of a record.
+     *
+     * @param crc The checksum to compute with. It is reset first.
+     * @param number The number of the message.
+     * @param time The time of the message.
+     * @param severity The ordinal of the severity of the message.
+     * @param textLength The length of the message in bytes.
+     * @param text The message, UTF-8 encoded, at least textLength bytes.
+     * @return The checksum.
+     */
+    private static int checksum(CRC32 crc, long number, long time,
+                                int severity, int textLength, byte[] text) {
+        crc.reset();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (number >>> shift));
+        }
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (time >>> shift));
+        }
+        crc.update(severity);
+        crc.update(textLength >>> 8);
+        crc.update(textLength);
+        crc.update(text, 0, textLength);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Read bytes at an offset of the file.
+     *
+     * @param offset The offset.
+     * @param length Number of bytes.
+     * @return The bytes.
+     */
+    private byte[] getBytes(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Get a number that changes whenever a message is written to any slot,
+     * or a slot is claimed.
+     *
+     * @return The version of the file.
+     */
+    long getVersion() {
+        long version = 0L;
+        for (int slot = 0; slot < slots; slot++) {
+            int offset = getSlotOffset(slot);
+            version += buffer.getLong(offset + GENERATION_OFFSET) << 40
+                    ^ buffer.getLong(offset + COUNT_OFFSET);
+        }
+        return version & Long.MAX_VALUE;
+    }
+}
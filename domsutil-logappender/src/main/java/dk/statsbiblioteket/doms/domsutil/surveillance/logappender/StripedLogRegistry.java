@@ -0,0 +1,699 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import dk.statsbiblioteket.doms.domsutil.surveyable.ListStatusIterator;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Metrics;
+import dk.statsbiblioteket.doms.domsutil.surveyable.SeverityCounters;
+import dk.statsbiblioteket.doms.domsutil.surveyable.Status;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusIterator;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusPageBuilder;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusQuery;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusSignal;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusSummary;
+import dk.statsbiblioteket.sbutil.webservices.configuration.ConfigCollection;
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * A log registry where each logging thread writes to one of a number of
+ * stripes, and readers merge the stripes.
+ *
+ * The thread id picks the stripe. Each stripe is a small ring buffer with
+ * its own lock, so threads on different stripes rarely write to the same
+ * memory, and a writer mostly only waits for another writer on the same
+ * stripe, or a reader. All the work of ordering the messages is left to the
+ * readers, which are expected to be far fewer than the writers.
+ *
+ * The number of messages kept is read from the parameter
+ * <code>dk.statsbiblioteket.doms.surveillance.logappender.numberOfMessages</code>,
+ * and is a budget for the stripes together. A stripe grows as needed, up to
+ * the whole budget, and then evicts its own oldest message, so a writer
+ * never touches other stripes or shared counts. Readers trim the stripes to
+ * the budget, evicting the oldest messages of all stripes, so what they see
+ * is the newest messages, however unevenly the threads log. Between reads,
+ * the stripes may together keep more than the budget, but never more than
+ * the budget each. The number of stripes is read from the parameter
+ * <code>dk.statsbiblioteket.doms.surveillance.logappender.stripes</code>,
+ * rounded up to the nearest power of two, and is by default twice the
+ * number of processors.
+ *
+ * Messages get sequence numbers when first seen by a reader, in order of
+ * time, so writers share no counter. Every message a reader sees later gets
+ * a higher sequence number, so a poller continuing from its high-water mark
+ * misses no messages.
+ *
+ * The messages are kept by the instance, so to expose them through the
+ * surveyable framework, use {@link LogRegistrySurveyableSingleton}.
+ */
+@QAInfo(author = "kfc",
+        reviewers = "jrg",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+public class StripedLogRegistry implements LogRegistry {
+    /** The stripes. Stripe for thread id n is n & mask. */
+    private final Stripe[] stripes;
+
+    /** Mask for mapping thread ids to stripes. */
+    private final int mask;
+
+    /** Readers number and collect messages holding this lock. */
+    private final Object readLock = new Object();
+
+    /** Max number of messages kept by all stripes together, once trimmed. */
+    private final int capacity;
+
+    /** The last sequence number given to a message. Guarded by readLock. */
+    private long lastSequence = 0L;
+
+    /** The name reported in status. */
+    private final String name;
+
+    /** Messages are truncated to this length. */
+    private final int maxMessageLength;
+
+    /** Signalled after each message is registered. */
+    private final StatusSignal signal = new StatusSignal();
+
+    /** Counts the messages registered, by severity and minute. */
+    private final SeverityCounters counters = new SeverityCounters();
+
+    /** Measures the cost of the registry. */
+    private final RegistryMetrics metrics = new RegistryMetrics(
+            new Metrics.Gauge() {
+                public long getValue() {
+                    long size = 0L;
+                    for (Stripe stripe : stripes) {
+                        size += stripe.size;
+                    }
+                    return size;
+                }
+            },
+            new Metrics.Gauge() {
+                public long getValue() {
+                    long bytes = 0L;
+                    for (Stripe stripe : stripes) {
+                        bytes += stripe.retainedBytes;
+                    }
+                    return bytes;
+                }
+            });
+
+    /** The logger for this class. */
+    private static Log log = LogFactory.getLog(StripedLogRegistry.class);
+
+    /** Orders numbered messages by time, and then sequence number. */
+    private static final Comparator<StatusMessage> TIME_ORDER
+            = new Comparator<StatusMessage>() {
+                public int compare(StatusMessage o1, StatusMessage o2) {
+                    if (o1.getTime() != o2.getTime()) {
+                        return o1.getTime() < o2.getTime() ? -1 : 1;
+                    }
+                    return o1.getSequence().compareTo(o2.getSequence());
+                }
+            };
+
+    /** Read parameters from configuration, and initialize the stripes. */
+    public StripedLogRegistry() {
+        log.trace("Enter StripedLogRegistry()");
+        int capacity = DEFAULT_MAX_NUMBER_OF_MESSAGES_KEPT_BY_LOG;
+        int stripeCount = 2 * Runtime.getRuntime().availableProcessors();
+        String configuredName = "Unnamed";
+        int configuredMaxMessageLength = DEFAULT_MAX_MESSAGE_LENGTH;
+        try {
+            String configValue = ConfigCollection.getProperties()
+                    .getProperty(NUMBEROFMESSAGES_CONFIGURATION_PARAMETER);
+            if (configValue != null && !configValue.equals("")) {
+                capacity = Integer.parseInt(configValue);
+            }
+            configValue = ConfigCollection.getProperties()
+                    .getProperty(STRIPES_CONFIGURATION_PARAMETER);
+            if (configValue != null && !configValue.equals("")) {
+                stripeCount = Integer.parseInt(configValue);
+            }
+            configValue = ConfigCollection.getProperties()
+                    .getProperty(MAXMESSAGELENGTH_CONFIGURATION_PARAMETER);
+            if (configValue != null && !configValue.equals("")) {
+                configuredMaxMessageLength = Integer.parseInt(configValue);
+            }
+            configuredName = ConfigCollection.getProperties().getProperty(
+                    LOGGERNAME_CONFIGURATION_PARAMETER, "Unnamed");
+        } catch (Exception e) {
+            log.warn("Error while configuring registry."
+                     + " Falling back to default values.", e);
+        }
+        if (capacity < 1) {
+            log.warn("Invalid number of messages " + capacity
+                     + ". Falling back to default value.");
+            capacity = DEFAULT_MAX_NUMBER_OF_MESSAGES_KEPT_BY_LOG;
+        }
+        int size = Integer.highestOneBit(Math.max(stripeCount, 1));
+        if (size < stripeCount) {
+            size <<= 1;
+        }
+        // Never more stripes than messages
+        while (size > 1 && size > capacity) {
+            size >>= 1;
+        }
+        log.info("Setting number of messages kept by registry to " + capacity
+                 + " in " + size + " stripes");
+        stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            // Start with an even share, grow up to the whole budget
+            stripes[i] = new Stripe(Math.max(capacity / size, 1), capacity);
+        }
+        mask = size - 1;
+        this.capacity = capacity;
+        name = configuredName;
+        maxMessageLength = configuredMaxMessageLength;
+    }
+
+    /**
+     * Register a message for later inspection.
+     *
+     * @param event The log message to register. Should never be null.
+     *
+     * @throws IllegalArgumentException if event is null.
+     */
+    public void registerMessage(LoggingEvent event) {
+        if (event == null) {
+            throw new IllegalArgumentException(
+                    "Parameter event must not be null");
+        }
+        long start = System.nanoTime();
+        LogStatusMessage message = new LogStatusMessage(event);
+        message.truncate(maxMessageLength);
+        add(message);
+        counters.add(LogStatusMessage.getSeverity(event.getLevel()),
+                     event.getTimeStamp());
+        signal.signal();
+        metrics.registered(start);
+    }
+
+    /**
+     * Register a message for later inspection.
+     *
+     * @param event The log message to register. Should never be null.
+     *
+     * @throws IllegalArgumentException if event is null.
+     */
+    public void registerMessage(ILoggingEvent event) {
+        if (event == null) {
+            throw new IllegalArgumentException(
+                    "Parameter event must not be null");
+        }
+        long start = System.nanoTime();
+        LogStatusMessage message = new LogStatusMessage(event);
+        message.truncate(maxMessageLength);
+        add(message);
+        counters.add(LogStatusMessage.getSeverity(event.getLevel()),
+                     event.getTimeStamp());
+        signal.signal();
+        metrics.registered(start);
+    }
+
+    /**
+     * Add a message to the stripe of the current thread.
+     *
+     * @param message The message.
+     */
+    private void add(StatusMessage message) {
+        getStripe().add(message, metrics);
+    }
+
+    /**
+     * Get the stripe of the current thread.
+     *
+     * @return The stripe.
+     */
+    private Stripe getStripe() {
+        return stripes[(int) Thread.currentThread().getId() & mask];
+    }
+
+    /**
+     * Trim the stripes to the budget, give sequence numbers to the messages
+     * not yet numbered, in order of time, and collect the messages newer
+     * than the given date. Must be called holding the read lock.
+     *
+     * @param time Only messages strictly after the given date are collected.
+     * @return The messages, ordered by time, not yet rendered.
+     */
+    private List<StatusMessage> collect(long time) {
+        List<List<StatusMessage>> kept
+                = new ArrayList<List<StatusMessage>>(stripes.length);
+        long[] first = new long[stripes.length];
+        int size = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            List<StatusMessage> stripeKept = new ArrayList<StatusMessage>();
+            first[i] = stripes[i].collect(stripeKept);
+            kept.add(stripeKept);
+            size += stripeKept.size();
+        }
+        int[] evicted = pickEvicted(kept, size - capacity);
+        List<StatusMessage> unnumbered = new ArrayList<StatusMessage>();
+        List<StatusMessage> messages = new ArrayList<StatusMessage>();
+        for (int i = 0; i < stripes.length; i++) {
+            if (evicted[i] > 0) {
+                stripes[i].evictBefore(first[i] + evicted[i], metrics);
+            }
+            List<StatusMessage> stripeKept = kept.get(i);
+            for (StatusMessage message
+                    : stripeKept.subList(evicted[i], stripeKept.size())) {
+                if (message.getSequence() == null) {
+                    unnumbered.add(message);
+                }
+                if (message.getTime() > time) {
+                    messages.add(message);
+                }
+            }
+        }
+        Collections.sort(unnumbered, new Comparator<StatusMessage>() {
+            public int compare(StatusMessage o1, StatusMessage o2) {
+                return o1.getTime() < o2.getTime()
+                        ? -1 : (o1.getTime() == o2.getTime() ? 0 : 1);
+            }
+        });
+        for (StatusMessage message : unnumbered) {
+            message.setSequence(++lastSequence);
+        }
+        Collections.sort(messages, TIME_ORDER);
+        return messages;
+    }
+
+    /**
+     * Pick the oldest messages of all stripes to evict, by merging the
+     * stripes on the time of their oldest message not yet picked.
+     *
+     * @param kept The messages kept by each stripe, in order of addition.
+     * @param excess The number of messages to evict.
+     * @return The number of messages to evict from the start of each stripe.
+     */
+    private static int[] pickEvicted(List<List<StatusMessage>> kept,
+                                     int excess) {
+        int[] evicted = new int[kept.size()];
+        for (; excess > 0; excess--) {
+            int oldest = -1;
+            long oldestTime = Long.MAX_VALUE;
+            for (int i = 0; i < evicted.length; i++) {
+                List<StatusMessage> stripeKept = kept.get(i);
+                if (evicted[i] < stripeKept.size()
+                        && (oldest < 0 || stripeKept.get(evicted[i]).getTime()
+                                          < oldestTime)) {
+                    oldest = i;
+                    oldestTime = stripeKept.get(evicted[i]).getTime();
+                }
+            }
+            evicted[oldest]++;
+        }
+        return evicted;
+    }
+
+    /**
+     * Returns all log messages received since the given date, ordered by
+     * time.
+     *
+     * @param time Only messages strictly after the given date are returned.
+     * @return A status containing list of log messages.
+     */
+    public Status getStatusSince(long time) {
+        log.trace("Enter getStatusSince(" + time + ")");
+        long start = System.nanoTime();
+        List<StatusMessage> messages;
+        synchronized (readLock) {
+            metrics.locked(start);
+            messages = collect(time);
+        }
+        LogStatusMessage.render(messages);
+        Status status = new Status();
+        status.setName(name);
+        status.getMessages().addAll(messages);
+        metrics.surveyed(start, messages.size());
+        return status;
+    }
+
+    /**
+     * Returns one page of the log messages. Only the messages of the page
+     * are rendered, unless the query filters on the message text.
+     *
+     * @param query The query. Null for all messages.
+     * @return A status containing the page of log messages.
+     * @throws IllegalArgumentException if the query is invalid.
+     */
+    public Status getStatusPage(StatusQuery query) {
+        log.trace("Enter getStatusPage()");
+        StatusPageBuilder filter = new StatusPageBuilder(query);
+        Status status = new Status();
+        status.setName(name);
+        synchronized (readLock) {
+            status.getMessages().addAll(collect(filter.getSince()));
+        }
+        Status page = StatusPageBuilder.page(status, query);
+        LogStatusMessage.render(page.getMessages());
+        return page;
+    }
+
+    /**
+     * Wait until a log message newer than the given date is registered, or
+     * the timeout expires.
+     *
+     * @param time Wait for messages strictly after the given date.
+     * @param timeout Max milliseconds to wait.
+     * @return True if there are newer messages, false on timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitStatusSince(final long time, long timeout)
+            throws InterruptedException {
+        log.trace("Enter awaitStatusSince(" + time + ", " + timeout + ")");
+        return signal.await(new StatusSignal.Condition() {
+            public boolean isMet() {
+                for (Stripe stripe : stripes) {
+                    if (stripe.hasNewerThan(time)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }, timeout);
+    }
+
+    /**
+     * Wait until a log message with a sequence number higher than the given
+     * one is registered, or the timeout expires. Messages not yet numbered
+     * count as having a higher sequence number.
+     *
+     * @param sequence Wait for messages with a higher sequence number.
+     * @param timeout Max milliseconds to wait.
+     * @return True if there are newer messages, false on timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitStatusAfter(final long sequence, long timeout)
+            throws InterruptedException {
+        log.trace("Enter awaitStatusAfter(" + sequence + ", " + timeout + ")");
+        return signal.await(new StatusSignal.Condition() {
+            public boolean isMet() {
+                synchronized (readLock) {
+                    if (lastSequence > sequence) {
+                        return true;
+                    }
+                }
+                for (Stripe stripe : stripes) {
+                    if (stripe.hasUnnumbered()) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }, timeout);
+    }
+
+    /**
+     * Returns all log messages with a sequence number higher than the given
+     * one, ordered by sequence number. Messages not yet numbered are
+     * numbered first. If the given sequence number is higher than any given,
+     * it is from before a restart, and all messages are returned.
+     *
+     * @param after Only messages with a higher sequence number are returned.
+     * @return A status containing list of log messages, and the last
+     * sequence number given as high-water mark.
+     */
+    public Status getStatusAfter(long after) {
+        log.trace("Enter getStatusAfter(" + after + ")");
+        List<StatusMessage> messages = new ArrayList<StatusMessage>();
+        long end;
+        synchronized (readLock) {
+            List<StatusMessage> all = collect(0L);
+            end = lastSequence;
+            if (after > end) {
+                after = 0L;
+            }
+            for (StatusMessage message : all) {
+                if (message.getSequence() > after) {
+                    messages.add(message);
+                }
+            }
+        }
+        Collections.sort(messages, new Comparator<StatusMessage>() {
+            public int compare(StatusMessage o1, StatusMessage o2) {
+                return o1.getSequence().compareTo(o2.getSequence());
+            }
+        });
+        LogStatusMessage.render(messages);
+        Status status = new Status();
+        status.setName(name);
+        status.setHighWaterMark(end);
+        status.getMessages().addAll(messages);
+        return status;
+    }
+
+    /**
+     * Get the number of messages registered, which changes whenever a message
+     * is registered. Reads the count of each stripe without locking.
+     *
+     * @return The version of the status.
+     */
+    public long getVersion() {
+        long version = 0L;
+        for (Stripe stripe : stripes) {
+            version += stripe.count;
+        }
+        return version;
+    }
+
+    /**
+     * Iterate over all log messages received since the given date, ordered
+     * by time.
+     *
+     * @param time Only messages strictly after the given date are returned.
+     * @return Iterator over the messages.
+     */
+    public StatusIterator iterateStatusSince(long time) {
+        log.trace("Enter iterateStatusSince(" + time + ")");
+        return new ListStatusIterator(getStatusSince(time));
+    }
+
+    /**
+     * Get the number of messages of each severity registered in the last 1,
+     * 5 and 15 minutes, as counted when registered.
+     *
+     * @return The counts.
+     */
+    public StatusSummary getSummary() {
+        log.trace("Enter getSummary()");
+        return counters.getSummary(System.currentTimeMillis(), name);
+    }
+
+    /**
+     * Get the metrics of the registry, as described in
+     * {@link RegistryMetrics}.
+     *
+     * @return The values, by name.
+     */
+    public SortedMap<String, Long> getMetrics() {
+        return metrics.getSnapshot();
+    }
+
+    /**
+     * Returns all log messages received.
+     *
+     * @return A status containing list of log messages.
+     */
+    public Status getStatus() {
+        log.trace("Enter getStatus()");
+        return getStatusSince(0L);
+    }
+
+    /**
+     * A small ring buffer of messages, written by the threads of a stripe,
+     * growing up to a limit, and then evicting its oldest message. Messages
+     * are numbered from 0 in order of addition, and message n is kept in
+     * n % length while first &lt;= n &lt; count.
+     */
+    private static final class Stripe {
+        /** The messages. Guarded by this. */
+        private StatusMessage[] messages;
+
+        /** Max number of messages kept. */
+        private final int limit;
+
+        /** Number of the oldest message kept. Guarded by this. */
+        private long first = 0L;
+
+        /** Number of messages added. Only written holding the lock. */
+        private volatile long count = 0L;
+
+        /** Messages before this are collected. Guarded by this. */
+        private long numbered = 0L;
+
+        /** Number of messages kept. Only written holding the lock. */
+        private volatile int size = 0;
+
+        /**
+         * Estimated bytes retained by the messages kept. Only written
+         * holding the lock.
+         */
+        private volatile long retainedBytes = 0L;
+
+        /**
+         * Create an empty stripe.
+         *
+         * @param capacity Initial number of messages room is made for.
+         * @param limit Max number of messages kept.
+         */
+        private Stripe(int capacity, int limit) {
+            this.limit = Math.max(limit, 1);
+            messages = new StatusMessage[Math.min(Math.max(capacity, 1),
+                                                  this.limit)];
+        }
+
+        /**
+         * Add a message, growing the buffer when full, or evicting the
+         * oldest message if the buffer has reached its limit.
+         *
+         * @param message The message.
+         * @param metrics Records the wait for the lock of the stripe, and
+         * counts the message evicted.
+         */
+        private void add(StatusMessage message, RegistryMetrics metrics) {
+            long start = System.nanoTime();
+            synchronized (this) {
+                metrics.locked(start);
+                if (count - first >= messages.length) {
+                    if (messages.length < limit) {
+                        grow();
+                    } else {
+                        evictFirst();
+                        metrics.evicted(1L);
+                    }
+                }
+                messages[(int) (count % messages.length)] = message;
+                size++;
+                retainedBytes += estimateSize(message);
+                count++;
+            }
+        }
+
+        /** Double the buffer, up to the limit, keeping each message. */
+        private void grow() {
+            StatusMessage[] grown = new StatusMessage[
+                    (int) Math.min(messages.length * 2L, limit)];
+            for (long n = first; n < count; n++) {
+                grown[(int) (n % grown.length)]
+                        = messages[(int) (n % messages.length)];
+            }
+            messages = grown;
+        }
+
+        /**
+         * Evict the messages numbered before the given number, unless
+         * already evicted.
+         *
+         * @param end Number of the oldest message to keep.
+         * @param metrics Counts the messages evicted.
+         */
+        private synchronized void evictBefore(long end,
+                                              RegistryMetrics metrics) {
+            long evicted = 0L;
+            while (first < end && first < count) {
+                evictFirst();
+                evicted++;
+            }
+            if (evicted > 0L) {
+                metrics.evicted(evicted);
+            }
+        }
+
+        /** Evict the oldest message kept. Must be called holding the lock. */
+        private void evictFirst() {
+            int slot = (int) (first % messages.length);
+            retainedBytes -= estimateSize(messages[slot]);
+            messages[slot] = null;
+            size--;
+            first++;
+        }
+
+        /**
+         * Estimate the bytes retained by a message.
+         *
+         * @param message The message.
+         * @return The estimated bytes, or 0 if not a log message.
+         */
+        private static long estimateSize(StatusMessage message) {
+            return message instanceof LogStatusMessage
+                    ? ((LogStatusMessage) message).estimateSize() : 0L;
+        }
+
+        /**
+         * Collect the messages kept, in order of addition. They count as
+         * numbered from now on.
+         *
+         * @param kept The messages kept are added here.
+         * @return The number of the first message collected.
+         */
+        private synchronized long collect(List<StatusMessage> kept) {
+            for (long n = first; n < count; n++) {
+                kept.add(messages[(int) (n % messages.length)]);
+            }
+            numbered = count;
+            return first;
+        }
+
+        /**
+         * Check for messages newer than the given date.
+         *
+         * @param time The date.
+         * @return True if a message is strictly after the date.
+         */
+        private synchronized boolean hasNewerThan(long time) {
+            for (long n = count - 1; n >= first; n--) {
+                if (messages[(int) (n % messages.length)].getTime() > time) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Check for messages not yet numbered.
+         *
+         * @return True if a message has been added since last collected.
+         */
+        private synchronized boolean hasUnnumbered() {
+            return count > numbered;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Tests of the drop policies of the asynchronous dispatcher. */
+public class AsyncRegistryDispatcherTest {
+    /** Dropping the oldest keeps the newest events. */
+    @Test
+    public void testDropOldest() {
+        Dispatcher dispatcher = new Dispatcher(
+                AsyncRegistryDispatcher.DropPolicy.DROP_OLDEST);
+        for (int i = 1; i <= 6; i++) {
+            assertTrue(dispatcher.dispatch("INFO " + i));
+        }
+        assertEquals(6L, dispatcher.getEnqueuedCount());
+        assertEquals(2L, dispatcher.getDroppedCount());
+        assertEquals(Arrays.asList("INFO 3", "INFO 4", "INFO 5", "INFO 6"),
+                     dispatcher.drain());
+    }
+
+    /** Dropping the newest keeps the oldest events. */
+    @Test
+    public void testDropNewest() {
+        Dispatcher dispatcher = new Dispatcher(
+                AsyncRegistryDispatcher.DropPolicy.DROP_NEWEST);
+        for (int i = 1; i <= 6; i++) {
+            assertEquals(i <= 4, dispatcher.dispatch("INFO " + i));
+        }
+        assertEquals(4L, dispatcher.getEnqueuedCount());
+        assertEquals(2L, dispatcher.getDroppedCount());
+        assertEquals(Arrays.asList("INFO 1", "INFO 2", "INFO 3", "INFO 4"),
+                     dispatcher.drain());
+    }
+
+    /**
+     * Events below WARN are dropped when only the room kept for warnings is
+     * left, and warnings are dropped only when the queue is full.
+     */
+    @Test
+    public void testDropBelowWarn() {
+        Dispatcher dispatcher = new Dispatcher(
+                AsyncRegistryDispatcher.DropPolicy.DROP_BELOW_WARN);
+        assertTrue(dispatcher.dispatch("INFO 1"));
+        assertTrue(dispatcher.dispatch("INFO 2"));
+        assertTrue(dispatcher.dispatch("INFO 3"));
+        assertFalse(dispatcher.dispatch("INFO 4"));
+        assertTrue(dispatcher.dispatch("WARN 5"));
+        assertFalse(dispatcher.dispatch("WARN 6"));
+        assertFalse(dispatcher.dispatch("INFO 7"));
+        assertEquals(4L, dispatcher.getEnqueuedCount());
+        assertEquals(3L, dispatcher.getDroppedCount());
+        assertEquals(Arrays.asList("INFO 1", "INFO 2", "INFO 3", "WARN 5"),
+                     dispatcher.drain());
+    }
+
+    /** Events dispatched after stopping are dropped. */
+    @Test
+    public void testDispatchAfterStop() {
+        Dispatcher dispatcher = new Dispatcher(
+                AsyncRegistryDispatcher.DropPolicy.DROP_OLDEST);
+        assertTrue(dispatcher.dispatch("WARN 1"));
+        assertEquals(Collections.singletonList("WARN 1"), dispatcher.drain());
+        assertFalse(dispatcher.dispatch("WARN 2"));
+        assertEquals(1L, dispatcher.getDroppedCount());
+    }
+
+    /**
+     * A dispatcher of four events, where events are strings starting with
+     * their level, and registering records them.
+     */
+    private static class Dispatcher extends AsyncRegistryDispatcher<String> {
+        /** The events registered, in order. */
+        private final List<String> registered
+                = Collections.synchronizedList(new ArrayList<String>());
+
+        /**
+         * Create a dispatcher, not yet started.
+         *
+         * @param dropPolicy What to drop when the queue is full.
+         */
+        Dispatcher(DropPolicy dropPolicy) {
+            super("Test", 4, 2, dropPolicy);
+        }
+
+        /**
+         * Start the background thread, and stop it once the queued events
+         * are registered.
+         *
+         * @return The events registered.
+         */
+        List<String> drain() {
+            start();
+            stop();
+            return registered;
+        }
+
+        protected void register(LogRegistry registry, String event) {
+            registered.add(event);
+        }
+
+        protected boolean isBelowWarn(String event) {
+            return event.startsWith("INFO");
+        }
+
+        protected void reportError(String message, Exception e) {
+            throw new AssertionError(message);
+        }
+    }
+}
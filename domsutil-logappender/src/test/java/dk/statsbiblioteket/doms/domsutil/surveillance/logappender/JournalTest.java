@@ -0,0 +1,228 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Tests of recovering, rotating and locking the journal. */
+public class JournalTest {
+    /**
+     * Bytes of a record of a two character message: length, checksum, time,
+     * severity and the message.
+     */
+    private static final int RECORD_BYTES = 4 + 4 + 8 + 1 + 2;
+
+    /** The journal directory. */
+    private File directory;
+
+    /** The journal under test. */
+    private Journal journal;
+
+    /** Create an empty journal directory. */
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("journal", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    /** Close the journal, and delete the directory. */
+    @After
+    public void tearDown() {
+        if (journal != null) {
+            journal.close();
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * A record with a bad checksum ends the segment on recovery, and is
+     * overwritten by the next append.
+     */
+    @Test
+    public void testRecoverBadChecksum() throws IOException {
+        appendAndClose(3, 1024);
+        // Change the message of the third record
+        corrupt(2 * RECORD_BYTES + 4 + 4 + 8 + 1, (byte) 'x');
+
+        assertMessages(reopen(1024, 10), 1, 2);
+        journal.append(4L, Severity.RED, "m4");
+        journal.close();
+        assertMessages(reopen(1024, 10), 1, 2, 4);
+    }
+
+    /**
+     * A record cut off by a crash, with a length beyond the segment, ends
+     * the segment on recovery.
+     */
+    @Test
+    public void testRecoverTornRecord() throws IOException {
+        appendAndClose(3, 1024);
+        RandomAccessFile file = new RandomAccessFile(segment(1L), "rw");
+        try {
+            file.seek(2 * RECORD_BYTES);
+            file.writeInt(1024);
+        } finally {
+            file.close();
+        }
+
+        assertMessages(reopen(1024, 10), 1, 2);
+    }
+
+    /**
+     * Full segments are rotated, and only the newest are kept. Recovery
+     * reads the messages across the segments kept, oldest first.
+     */
+    @Test
+    public void testRotation() throws IOException {
+        // Three records fit in a segment
+        appendAndClose(10, 3 * RECORD_BYTES + 1);
+        assertTrue(segment(3L).exists());
+        assertTrue(segment(4L).exists());
+        assertFalse(segment(2L).exists());
+
+        assertMessages(reopen(3 * RECORD_BYTES + 1, 100), 7, 8, 9, 10);
+    }
+
+    /** Only the newest messages asked for are recovered. */
+    @Test
+    public void testRecoverNewest() throws IOException {
+        appendAndClose(10, 3 * RECORD_BYTES + 1);
+        assertMessages(reopen(3 * RECORD_BYTES + 1, 2), 9, 10);
+    }
+
+    /** Only one journal at a time can open a directory. */
+    @Test
+    public void testLocked() throws IOException {
+        reopen(1024, 10);
+        Journal other = new Journal(directory, 1024, 2, 1000L);
+        try {
+            other.open(10);
+            fail("The directory must be locked");
+        } catch (IOException e) {
+            // Expected
+        }
+        journal.close();
+        other.open(10);
+        other.close();
+    }
+
+    /**
+     * Open a journal, append numbered messages to it, and close it.
+     *
+     * @param count Number of messages, numbered from 1.
+     * @param segmentSize Size in bytes of each segment.
+     * @throws IOException on trouble opening the journal.
+     */
+    private void appendAndClose(int count, int segmentSize)
+            throws IOException {
+        reopen(segmentSize, 0);
+        for (int i = 1; i <= count; i++) {
+            journal.append(i, Severity.YELLOW, "m" + (i % 10));
+        }
+        journal.close();
+    }
+
+    /**
+     * Open a new journal of two segments on the directory.
+     *
+     * @param segmentSize Size in bytes of each segment.
+     * @param count Max number of messages to recover.
+     * @return The recovered messages.
+     * @throws IOException on trouble opening the journal.
+     */
+    private List<StatusMessage> reopen(int segmentSize, int count)
+            throws IOException {
+        journal = new Journal(directory, segmentSize, 2, 1000L);
+        return journal.open(count);
+    }
+
+    /**
+     * Overwrite a byte of the first segment.
+     *
+     * @param position The position of the byte.
+     * @param value The new value.
+     * @throws IOException on trouble writing.
+     */
+    private void corrupt(long position, byte value) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment(1L), "rw");
+        try {
+            file.seek(position);
+            file.write(value);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Get the file of a segment.
+     *
+     * @param number The number of the segment.
+     * @return The file.
+     */
+    private File segment(long number) {
+        return new File(directory, "journal-" + number + ".log");
+    }
+
+    /**
+     * Check the recovered messages have the given times, in order.
+     *
+     * @param messages The recovered messages.
+     * @param times The expected times.
+     */
+    private static void assertMessages(List<StatusMessage> messages,
+                                       long... times) {
+        assertEquals(times.length, messages.size());
+        for (int i = 0; i < times.length; i++) {
+            assertEquals(times[i], messages.get(i).getTime());
+            assertEquals("m" + (times[i] % 10),
+                         messages.get(i).getMessage());
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Tests of the token buckets and summaries of the rate limiter. */
+public class RateLimiterTest {
+    /** Milliseconds between summaries. */
+    private static final long INTERVAL = 1000L;
+
+    /** The limiter under test, letting one RED event per second through. */
+    private RateLimiter limiter;
+
+    /** A time after the limiter was created. */
+    private long now;
+
+    /** Create a limiter of RED events only, with a burst of three. */
+    @Before
+    public void setUp() {
+        limiter = RateLimiter.create(0.0, 1.0, -1.0, 0.0, 3, INTERVAL);
+        now = System.currentTimeMillis();
+    }
+
+    /** A full bucket lets a burst through, then suppresses. */
+    @Test
+    public void testBurst() {
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire("a", Severity.RED, now));
+        }
+        assertFalse(limiter.tryAcquire("a", Severity.RED, now));
+        assertEquals(1L, limiter.getSuppressedCount());
+    }
+
+    /** Buckets refill at the rate, up to the burst size. */
+    @Test
+    public void testRefill() {
+        for (int i = 0; i < 3; i++) {
+            limiter.tryAcquire("a", Severity.RED, now);
+        }
+        assertFalse(limiter.tryAcquire("a", Severity.RED, now + 500L));
+
+        now += 2000L;
+        assertTrue(limiter.tryAcquire("a", Severity.RED, now));
+        assertTrue(limiter.tryAcquire("a", Severity.RED, now));
+        assertFalse(limiter.tryAcquire("a", Severity.RED, now));
+
+        now += 100000L;
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire("a", Severity.RED, now));
+        }
+        assertFalse(limiter.tryAcquire("a", Severity.RED, now));
+    }
+
+    /**
+     * Only events of the same logger and severity compete for a bucket, and
+     * severities without a rate are not limited.
+     */
+    @Test
+    public void testSeparateBuckets() {
+        for (int i = 0; i < 3; i++) {
+            limiter.tryAcquire("a", Severity.RED, now);
+        }
+        assertFalse(limiter.tryAcquire("a", Severity.RED, now));
+        assertTrue(limiter.tryAcquire("b", Severity.RED, now));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire("a", Severity.YELLOW, now));
+        }
+    }
+
+    /**
+     * The suppressed events are summarized once per interval, and each
+     * summary is handed out once.
+     */
+    @Test
+    public void testSummaries() {
+        for (int i = 0; i < 5; i++) {
+            limiter.tryAcquire("a", Severity.RED, now);
+        }
+        assertTrue(limiter.takeSummaries(now, false).isEmpty());
+
+        List<RateLimiter.Summary> summaries
+                = limiter.takeSummaries(now + INTERVAL, false);
+        assertEquals(1, summaries.size());
+        assertEquals("a", summaries.get(0).getLoggerName());
+        assertEquals(Severity.RED, summaries.get(0).getSeverity());
+        assertEquals("Rate limit exceeded: suppressed 2 RED events from"
+                     + " logger 'a'", summaries.get(0).getMessage());
+        assertTrue(limiter.takeSummaries(now + INTERVAL, true).isEmpty());
+    }
+
+    /**
+     * The buckets of loggers that have taken no token for a summary interval
+     * are removed when summarizing, after their suppressed events are
+     * counted.
+     */
+    @Test
+    public void testIdleBucketsRemoved() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            limiter.tryAcquire("idle", Severity.RED, now);
+        }
+        limiter.tryAcquire("busy", Severity.RED, now + 900L);
+
+        List<RateLimiter.Summary> summaries
+                = limiter.takeSummaries(now + 1500L, true);
+        assertEquals(1, summaries.size());
+        assertEquals("idle", summaries.get(0).getLoggerName());
+        Map<?, ?> buckets = getBuckets();
+        assertEquals(1, buckets.size());
+        assertTrue(buckets.containsKey("busy"));
+
+        // A logger that logs again gets a full bucket
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire("idle", Severity.RED, now + 1500L));
+        }
+        assertEquals(2, getBuckets().size());
+    }
+
+    /**
+     * Get the buckets of the limiter, by logger name.
+     *
+     * @return The buckets.
+     * @throws Exception on trouble getting the field.
+     */
+    private Map<?, ?> getBuckets() throws Exception {
+        Field field = RateLimiter.class.getDeclaredField("buckets");
+        field.setAccessible(true);
+        return (Map<?, ?>) field.get(limiter);
+    }
+}
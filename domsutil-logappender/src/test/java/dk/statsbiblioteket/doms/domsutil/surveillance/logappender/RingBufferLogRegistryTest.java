@@ -0,0 +1,177 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.Status;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
+import dk.statsbiblioteket.sbutil.webservices.configuration.ConfigCollection;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/** Tests of the lock-free ring buffer log registry. */
+public class RingBufferLogRegistryTest {
+    /** The registry under test, keeping four messages. */
+    private RingBufferLogRegistry registry;
+
+    /** Configure a registry of three messages, rounded up to four. */
+    @Before
+    public void setUp() {
+        Properties properties = new Properties();
+        properties.setProperty(
+                LogRegistry.NUMBEROFMESSAGES_CONFIGURATION_PARAMETER, "3");
+        properties.setProperty(
+                LogRegistry.LOGGERNAME_CONFIGURATION_PARAMETER, "Test");
+        ConfigCollection.addContextConfig(properties);
+        registry = new RingBufferLogRegistry();
+    }
+
+    /**
+     * When the ring buffer wraps around, only the newest messages are kept,
+     * in the order they were registered.
+     */
+    @Test
+    public void testWrapAround() {
+        for (int i = 1; i <= 10; i++) {
+            registry.registerMessage(event(i));
+        }
+        Status status = registry.getStatus();
+        assertEquals(4, status.getMessages().size());
+        for (int i = 0; i < 4; i++) {
+            StatusMessage message = status.getMessages().get(i);
+            assertEquals("Message " + (i + 7), message.getMessage());
+            assertEquals(Long.valueOf(i + 7), message.getSequence());
+        }
+        assertEquals(2, registry.getStatusSince(8L).getMessages().size());
+        assertEquals(10L, registry.getVersion());
+    }
+
+    /**
+     * A poller continuing from its high-water mark gets the messages it has
+     * not seen, and one that has fallen behind gets the messages still kept.
+     */
+    @Test
+    public void testGetStatusAfterWrapAround() {
+        for (int i = 1; i <= 6; i++) {
+            registry.registerMessage(event(i));
+        }
+        Status status = registry.getStatusAfter(4L);
+        assertEquals(2, status.getMessages().size());
+        assertEquals(Long.valueOf(5L),
+                     status.getMessages().get(0).getSequence());
+        assertEquals(Long.valueOf(6L), status.getHighWaterMark());
+
+        for (int i = 7; i <= 10; i++) {
+            registry.registerMessage(event(i));
+        }
+        status = registry.getStatusAfter(2L);
+        assertEquals(4, status.getMessages().size());
+        assertEquals(Long.valueOf(7L),
+                     status.getMessages().get(0).getSequence());
+        assertEquals(Long.valueOf(10L), status.getHighWaterMark());
+    }
+
+    /** A sequence number from before a restart returns all messages. */
+    @Test
+    public void testGetStatusAfterRestart() {
+        registry.registerMessage(event(1));
+        registry.registerMessage(event(2));
+        Status status = registry.getStatusAfter(4711L);
+        assertEquals(2, status.getMessages().size());
+        assertEquals(Long.valueOf(2L), status.getHighWaterMark());
+    }
+
+    /**
+     * A slot claimed by a writer that has not yet published still holds the
+     * message from the previous lap of the ring. Readers skip it, and
+     * pollers are not moved past it.
+     *
+     * @throws Exception if the writer could not be simulated.
+     */
+    @Test
+    public void testStaleSlotSkipped() throws Exception {
+        for (int i = 1; i <= 6; i++) {
+            registry.registerMessage(event(i));
+        }
+        // A writer claims sequence number 7, but has not yet published
+        long claimed = claim();
+        assertEquals(6L, claimed);
+        registry.registerMessage(event(8));
+
+        Status status = registry.getStatus();
+        assertEquals(3, status.getMessages().size());
+        for (StatusMessage message : status.getMessages()) {
+            assertFalse("Stale message must be skipped",
+                        message.getMessage().equals("Message 3"));
+        }
+        assertEquals(-1L, registry.getVersion());
+
+        // Up to the unpublished message, message 4 is overwritten by 8
+        status = registry.getStatusAfter(0L);
+        assertEquals(3, status.getMessages().size());
+        assertEquals("Message 3", status.getMessages().get(0).getMessage());
+        assertEquals(Long.valueOf(6L), status.getHighWaterMark());
+        assertEquals(0, registry.getStatusAfter(6L).getMessages().size());
+    }
+
+    /**
+     * Claim the next sequence number as a writer would, without publishing
+     * a message.
+     *
+     * @return The sequence number claimed.
+     * @throws Exception if the counter could not be reached.
+     */
+    private long claim() throws Exception {
+        Field field = RingBufferLogRegistry.class.getDeclaredField(
+                "nextSequence");
+        field.setAccessible(true);
+        return ((AtomicLong) field.get(registry)).getAndIncrement();
+    }
+
+    /**
+     * Create a warning event.
+     *
+     * @param time The time of the event, also used in its message.
+     * @return The event.
+     */
+    static LoggingEvent event(long time) {
+        return new LoggingEvent(Logger.class.getName(),
+                                Logger.getLogger("test"), time, Level.WARN,
+                                "Message " + time, null);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.Severity;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Tests of writing and reading the slots of the shared status file. */
+public class SharedStatusFileTest {
+    /** Bytes of each record. */
+    private static final int RECORD_SIZE = 64;
+
+    /** Offset of the first record of the first slot. */
+    private static final int FIRST_RECORD = 64 + 128;
+
+    /** Offset in a record of the message. */
+    private static final int MESSAGE_OFFSET = 23;
+
+    /** The shared file. */
+    private File file;
+
+    /** The files opened, closed after each test. */
+    private final List<SharedStatusFile> opened
+            = new ArrayList<SharedStatusFile>();
+
+    /** Get a new file name. */
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("shared", ".shm");
+        assertTrue(file.delete());
+    }
+
+    /** Close the files, and delete the file. */
+    @After
+    public void tearDown() throws IOException {
+        for (SharedStatusFile shared : opened) {
+            shared.close();
+        }
+        file.delete();
+    }
+
+    /**
+     * The messages of all slots are read, prefixed with the names of their
+     * processes, ordered by slot.
+     */
+    @Test
+    public void testReadAcrossSlots() throws IOException {
+        SharedStatusFile first = claim("First");
+        SharedStatusFile second = claim("Second");
+        second.append(1L, Severity.RED, "one");
+        first.append(2L, Severity.YELLOW, "two");
+        second.append(3L, Severity.GREEN, "three");
+
+        List<StatusMessage> messages = open(false).read(0L);
+        assertEquals(3, messages.size());
+        assertEquals("First: two", messages.get(0).getMessage());
+        assertEquals(Severity.YELLOW, messages.get(0).getSeverity());
+        assertEquals("Second: one", messages.get(1).getMessage());
+        assertEquals("Second: three", messages.get(2).getMessage());
+        assertEquals(1, open(false).read(2L).size());
+    }
+
+    /**
+     * When all slots are claimed, no more can be claimed until one is
+     * released. A slot claimed again starts over without the messages of
+     * the last process.
+     */
+    @Test
+    public void testClaimAndReclaim() throws IOException {
+        SharedStatusFile first = claim("First");
+        SharedStatusFile second = claim("Second");
+        first.append(1L, Severity.RED, "one");
+        second.append(2L, Severity.RED, "two");
+        try {
+            claim("Third");
+            fail("All slots must be claimed");
+        } catch (IOException e) {
+            // Expected
+        }
+        long version = open(false).getVersion();
+
+        first.close();
+        first.append(3L, Severity.RED, "ignored");
+        SharedStatusFile third = claim("Third");
+        assertTrue(version != open(false).getVersion());
+        third.append(4L, Severity.RED, "four");
+
+        List<StatusMessage> messages = open(false).read(0L);
+        assertEquals(2, messages.size());
+        assertEquals("Third: four", messages.get(0).getMessage());
+        assertEquals("Second: two", messages.get(1).getMessage());
+    }
+
+    /** A record that fails its checksum, as when torn, is skipped. */
+    @Test
+    public void testTornRecordSkipped() throws IOException {
+        SharedStatusFile writer = claim("Writer");
+        writer.append(1L, Severity.RED, "one");
+        writer.append(2L, Severity.RED, "two");
+        writer.append(3L, Severity.RED, "three");
+        overwrite(FIRST_RECORD + RECORD_SIZE + MESSAGE_OFFSET, 'x');
+
+        List<StatusMessage> messages = open(false).read(0L);
+        assertEquals(2, messages.size());
+        assertEquals("Writer: one", messages.get(0).getMessage());
+        assertEquals("Writer: three", messages.get(1).getMessage());
+    }
+
+    /** A file with another format is refused, and left as it is. */
+    @Test
+    public void testIncompatibleFile() throws IOException {
+        RandomAccessFile other = new RandomAccessFile(file, "rw");
+        try {
+            other.writeInt(0x12345678);
+            other.setLength(1000L);
+        } finally {
+            other.close();
+        }
+        try {
+            open(true);
+            fail("An incompatible file must be refused");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals(1000L, file.length());
+    }
+
+    /**
+     * Open the shared file, with two slots of four records.
+     *
+     * @param writable Whether to open for writing.
+     * @return The opened file.
+     * @throws IOException on trouble opening.
+     */
+    private SharedStatusFile open(boolean writable) throws IOException {
+        SharedStatusFile shared
+                = new SharedStatusFile(file, 2, 4, RECORD_SIZE, writable);
+        opened.add(shared);
+        return shared;
+    }
+
+    /**
+     * Open the shared file for writing, and claim a slot.
+     *
+     * @param name The name of the process.
+     * @return The opened file.
+     * @throws IOException on trouble opening, or if no slot is free.
+     */
+    private SharedStatusFile claim(String name) throws IOException {
+        SharedStatusFile shared = open(true);
+        shared.claim(name);
+        return shared;
+    }
+
+    /**
+     * Overwrite a byte of the file.
+     *
+     * @param position The position of the byte.
+     * @param value The new value.
+     * @throws IOException on trouble writing.
+     */
+    private void overwrite(long position, char value) throws IOException {
+        RandomAccessFile shared = new RandomAccessFile(file, "rw");
+        try {
+            shared.seek(position);
+            shared.write(value);
+        } finally {
+            shared.close();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package dk.statsbiblioteket.doms.domsutil.surveillance.logappender;
+
+import dk.statsbiblioteket.doms.domsutil.surveyable.Status;
+import dk.statsbiblioteket.doms.domsutil.surveyable.StatusMessage;
+import dk.statsbiblioteket.sbutil.webservices.configuration.ConfigCollection;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Tests of the striped log registry. */
+public class StripedLogRegistryTest {
+    /** The registry under test, keeping four messages in two stripes. */
+    private StripedLogRegistry registry;
+
+    /** Configure a registry of four messages in two stripes. */
+    @Before
+    public void setUp() {
+        Properties properties = new Properties();
+        properties.setProperty(
+                LogRegistry.NUMBEROFMESSAGES_CONFIGURATION_PARAMETER, "4");
+        properties.setProperty(
+                LogRegistry.STRIPES_CONFIGURATION_PARAMETER, "2");
+        properties.setProperty(
+                LogRegistry.LOGGERNAME_CONFIGURATION_PARAMETER, "Test");
+        ConfigCollection.addContextConfig(properties);
+        registry = new StripedLogRegistry();
+    }
+
+    /** A single thread may use the whole budget, keeping the newest. */
+    @Test
+    public void testBudgetOneThread() {
+        for (int i = 1; i <= 10; i++) {
+            registry.registerMessage(RingBufferLogRegistryTest.event(i));
+        }
+        assertMessages(registry.getStatus(), 7, 8, 9, 10);
+        assertEquals(10L, registry.getVersion());
+    }
+
+    /**
+     * The stripes together are trimmed to the budget, evicting the oldest
+     * messages of any stripe.
+     *
+     * @throws InterruptedException if interrupted waiting for the writer.
+     */
+    @Test
+    public void testBudgetAcrossStripes() throws InterruptedException {
+        for (int i = 11; i <= 14; i++) {
+            registry.registerMessage(RingBufferLogRegistryTest.event(i));
+        }
+        registerOnOtherStripe(1L, 2L);
+        assertMessages(registry.getStatus(), 11, 12, 13, 14);
+
+        registerOnOtherStripe(15L, 16L);
+        assertMessages(registry.getStatus(), 13, 14, 15, 16);
+        assertEquals(8L, registry.getVersion());
+        assertEquals(Long.valueOf(4L),
+                     registry.getMetrics().get("retained.messages"));
+        assertTrue(registry.getMetrics().get("retained.bytes") > 0L);
+    }
+
+    /**
+     * Messages of all stripes are numbered by time when first read, and
+     * later messages get higher numbers.
+     *
+     * @throws InterruptedException if interrupted waiting for the writer.
+     */
+    @Test
+    public void testSequenceNumbering() throws InterruptedException {
+        registry.registerMessage(RingBufferLogRegistryTest.event(2));
+        registry.registerMessage(RingBufferLogRegistryTest.event(4));
+        registerOnOtherStripe(1L, 3L);
+
+        Status status = registry.getStatusAfter(0L);
+        assertMessages(status, 1, 2, 3, 4);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Long.valueOf(i + 1),
+                         status.getMessages().get(i).getSequence());
+        }
+        assertEquals(Long.valueOf(4L), status.getHighWaterMark());
+
+        registry.registerMessage(RingBufferLogRegistryTest.event(5));
+        registerOnOtherStripe(6L);
+        status = registry.getStatusAfter(4L);
+        assertMessages(status, 5, 6);
+        assertEquals(Long.valueOf(5L),
+                     status.getMessages().get(0).getSequence());
+        assertEquals(Long.valueOf(6L), status.getHighWaterMark());
+
+        // Trimmed to the budget, a poller behind gets the messages kept
+        status = registry.getStatusAfter(1L);
+        assertMessages(status, 3, 4, 5, 6);
+        assertEquals(Long.valueOf(3L),
+                     status.getMessages().get(0).getSequence());
+    }
+
+    /** A sequence number from before a restart returns all messages. */
+    @Test
+    public void testGetStatusAfterRestart() {
+        registry.registerMessage(RingBufferLogRegistryTest.event(1));
+        registry.registerMessage(RingBufferLogRegistryTest.event(2));
+        Status status = registry.getStatusAfter(4711L);
+        assertEquals(2, status.getMessages().size());
+        assertEquals(Long.valueOf(2L), status.getHighWaterMark());
+    }
+
+    /**
+     * Register messages from a thread writing to the other stripe than the
+     * current thread.
+     *
+     * @param times The times of the messages.
+     * @throws InterruptedException if interrupted waiting for the writer.
+     */
+    private void registerOnOtherStripe(final long... times)
+            throws InterruptedException {
+        Thread writer;
+        do {
+            writer = new Thread(new Runnable() {
+                public void run() {
+                    for (long time : times) {
+                        registry.registerMessage(
+                                RingBufferLogRegistryTest.event(time));
+                    }
+                }
+            });
+        } while (((writer.getId() ^ Thread.currentThread().getId()) & 1L)
+                 == 0L);
+        writer.start();
+        writer.join();
+    }
+
+    /**
+     * Check the messages of a status, in order.
+     *
+     * @param status The status.
+     * @param times The times of the messages expected.
+     */
+    private static void assertMessages(Status status, long... times) {
+        assertEquals(times.length, status.getMessages().size());
+        for (int i = 0; i < times.length; i++) {
+            StatusMessage message = status.getMessages().get(i);
+            assertEquals("Message " + times[i], message.getMessage());
+        }
+    }
+}
@@ -39,7 +39,9 @@ import org.apache.commons.logging.LogFactory;
         comment = "",
         level = QAInfo.Level.NORMAL,
         state = QAInfo.State.QA_NEEDED)
-public class NoSurveyable implements Surveyable {
+public class NoSurveyable
+        implements VersionedSurveyable, SequencedSurveyable,
+                   QueryableSurveyable, SummarizingSurveyable {
     /** The name of the unconfigured surveyable. */
     private String name;
 
@@ -100,4 +102,53 @@ public class NoSurveyable implements Surveyable {
         log.trace("Enter getStatus()");
         return getStatusSince(0L);
     }
+
+    /**
+     * Get the status. This behaves exactly like getMessagesSince(0L). The
+     * message has no sequence number, since it reports current state.
+     *
+     * @param sequence Ignored.
+     * @return A single status message reporting unintialised configuration.
+     */
+    public Status getStatusAfter(long sequence) {
+        log.trace("Enter getStatusAfter(" + sequence + ")");
+        return getStatusSince(0L);
+    }
+
+    /**
+     * Get a page of the status, which is the same as getStatusSince(0L).
+     *
+     * @param query The query.
+     * @return The page.
+     * @throws IllegalArgumentException if the query is invalid.
+     */
+    public Status getStatusPage(StatusQuery query) {
+        log.trace("Enter getStatusPage()");
+        return StatusPageBuilder.page(getStatusSince(0L), query);
+    }
+
+    /**
+     * The status of this surveyable never changes, apart from the timestamp
+     * of the message, which is the time of the call. The version is the
+     * current second, so a cached status is at most a second old.
+     *
+     * @return The current time in seconds.
+     */
+    public long getVersion() {
+        return System.currentTimeMillis() / 1000L;
+    }
+
+    /**
+     * Get the counts of the messages reported by getStatusSince(0L).
+     *
+     * @return The counts.
+     */
+    public StatusSummary getSummary() {
+        log.trace("Enter getSummary()");
+
+        Status status = getStatusSince(0L);
+        return SeverityCounters.summarize(status.getMessages(),
+                                          System.currentTimeMillis(),
+                                          status.getName());
+    }
 }
@@ -36,7 +36,9 @@ import org.apache.commons.logging.LogFactory;
         state = QAInfo.State.QA_NEEDED,
         level = QAInfo.Level.NORMAL,
         reviewers = "jrg") */
-public class RunningSurveyable implements Surveyable {
+public class RunningSurveyable
+        implements VersionedSurveyable, SequencedSurveyable,
+                   QueryableSurveyable, SummarizingSurveyable {
     /** The name this status reports. */
 
 
@@ -76,4 +78,54 @@ public class RunningSurveyable implements Surveyable {
 
         return getStatusSince(0L);
     }
+
+    /**
+     * Reports exactly the same as getStatusSince(0L). The message has no
+     * sequence number, since it reports current state.
+     * @param sequence Ignored
+     * @return Status "Running".
+     */
+    public Status getStatusAfter(long sequence) {
+        log.trace("Enter getStatusAfter(" + sequence + ")");
+
+        return getStatusSince(0L);
+    }
+
+    /**
+     * Get a page of the status, which is the same as getStatusSince(0L).
+     *
+     * @param query The query.
+     * @return The page.
+     * @throws IllegalArgumentException if the query is invalid.
+     */
+    public Status getStatusPage(StatusQuery query) {
+        log.trace("Enter getStatusPage()");
+
+        return StatusPageBuilder.page(getStatusSince(0L), query);
+    }
+
+    /**
+     * The status of this surveyable never changes, apart from the timestamp
+     * of the message, which is the time of the call. The version is the
+     * current second, so a cached status is at most a second old.
+     *
+     * @return The current time in seconds.
+     */
+    public long getVersion() {
+        return System.currentTimeMillis() / 1000L;
+    }
+
+    /**
+     * Get the counts of the messages reported by getStatusSince(0L).
+     *
+     * @return The counts.
+     */
+    public StatusSummary getSummary() {
+        log.trace("Enter getSummary()");
+
+        Status status = getStatusSince(0L);
+        return SeverityCounters.summarize(status.getMessages(),
+                                          System.currentTimeMillis(),
+                                          status.getName());
+    }
 }
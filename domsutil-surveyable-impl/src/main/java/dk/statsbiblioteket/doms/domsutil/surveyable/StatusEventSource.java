@@ -0,0 +1,343 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package dk.statsbiblioteket.doms.domsutil.surveyable;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.util.Arrays;
+
+/**
+ * The new status messages of a surveyable, read once and shared by all
+ * event stream subscribers.
+ *
+ * One subscriber at a time waits on the surveyable and reads the messages
+ * after the last high-water mark. The other subscribers wait for it, and
+ * then read the new messages from the window kept here. The newest
+ * {@link #MAX_MESSAGES} messages are kept, in a ring overwriting the oldest.
+ * Messages are counted from the first one read, and subscribers keep their
+ * position in this count, so they read the messages one at a time by
+ * position without copying the window, and a subscriber that falls behind
+ * the window knows exactly how many messages it lost.
+ *
+ * Messages without a sequence number, which report current state, are not
+ * kept.
+ */
+@QAInfo(author = "kfc",
+        reviewers = "jrg",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+class StatusEventSource {
+    /** Max number of messages kept. */
+    static final int MAX_MESSAGES = 1000;
+
+    /** Milliseconds between reads of a surveyable that cannot wait. */
+    private static final long POLL_MILLIS = 1000L;
+
+    /** The surveyable to read messages from. */
+    private final Surveyable surveyable;
+
+    /**
+     * The messages kept. The message at a position is at the position modulo
+     * the length. Guarded by this.
+     */
+    private final StatusMessage[] window = new StatusMessage[MAX_MESSAGES];
+
+    /** Position of the oldest message kept. Guarded by this. */
+    private long first = 0L;
+
+    /** Position after the newest message kept. Guarded by this. */
+    private long end = 0L;
+
+    /**
+     * Sequence number of the newest message dropped from the window. Guarded
+     * by this.
+     */
+    private long dropped = 0L;
+
+    /**
+     * The high-water mark of the last read from the surveyable. Null before
+     * the first read. Guarded by this.
+     */
+    private Long highWaterMark = null;
+
+    /** Whether a subscriber is reading from the surveyable. Guarded by this. */
+    private boolean reading = false;
+
+    /**
+     * Create a source of the messages of a surveyable.
+     *
+     * @param surveyable The surveyable to read messages from.
+     */
+    StatusEventSource(Surveyable surveyable) {
+        this.surveyable = surveyable;
+    }
+
+    /**
+     * Get the surveyable messages are read from.
+     *
+     * @return The surveyable.
+     */
+    Surveyable getSurveyable() {
+        return surveyable;
+    }
+
+    /**
+     * Get the position of the first message after the given sequence number.
+     * If no message has been read yet, the surveyable is read first.
+     *
+     * @param sequence Sequence number of the last message the subscriber
+     * received, or 0 for all messages kept.
+     * @return The position of the first message to send. If messages after
+     * the sequence number were dropped from the window, or the surveyable
+     * restarted since, the position of the oldest message kept.
+     * @throws InterruptedException if interrupted while waiting for another
+     * subscriber to read.
+     */
+    long getPositionAfter(long sequence) throws InterruptedException {
+        if (!isRead()) {
+            if (lead()) {
+                try {
+                    read(0L);
+                } finally {
+                    release();
+                }
+            } else {
+                awaitReader();
+            }
+        }
+        synchronized (this) {
+            long position = first;
+            if (highWaterMark == null || sequence > highWaterMark) {
+                return position;
+            }
+            while (position < end
+                    && getMessage(position).getSequence() <= sequence) {
+                position++;
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Whether messages after the given sequence number were dropped from the
+     * window before the subscriber could get them.
+     *
+     * @param sequence Sequence number of the last message the subscriber
+     * received.
+     * @return True if messages were lost.
+     */
+    synchronized boolean isLostAfter(long sequence) {
+        return sequence > 0L && sequence < dropped
+                && highWaterMark != null && sequence <= highWaterMark;
+    }
+
+    /**
+     * Get the number of messages a subscriber lost because they were dropped
+     * from the window before it got them.
+     *
+     * @param position The position of the next message for the subscriber.
+     * @return The number of messages lost, 0 if none.
+     */
+    synchronized long getLost(long position) {
+        return Math.max(0L, first - position);
+    }
+
+    /**
+     * Get the sequence number to resume from to get the oldest message kept.
+     *
+     * @return The sequence number.
+     */
+    synchronized long getResumeSequence() {
+        return dropped;
+    }
+
+    /**
+     * Get the position after the newest message kept. Subscribers have
+     * messages to read from their position up to this.
+     *
+     * @return The position.
+     */
+    synchronized long getEnd() {
+        return end;
+    }
+
+    /**
+     * Get the message kept at the given position.
+     *
+     * @param position The position of the message, before
+     * {@link #getEnd()}.
+     * @return The message. Null if it was dropped from the window.
+     */
+    synchronized StatusMessage getMessage(long position) {
+        if (position < first || position >= end) {
+            return null;
+        }
+        return window[(int) (position % window.length)];
+    }
+
+    /**
+     * Wait until there are messages at or after the given position, or the
+     * timeout expires. If no other subscriber is reading from the surveyable,
+     * this waits on the surveyable and reads the new messages for all
+     * subscribers. Otherwise it waits for the subscriber reading.
+     *
+     * @param position The position of the next message for the subscriber.
+     * @param timeout Max milliseconds to wait.
+     * @return True if there are messages for the subscriber, false on
+     * timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean await(long position, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            long remaining;
+            long after;
+            synchronized (this) {
+                if (position < end) {
+                    return true;
+                }
+                remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0L) {
+                    return false;
+                }
+                if (reading) {
+                    wait(remaining);
+                    continue;
+                }
+                reading = true;
+                after = highWaterMark == null ? 0L : highWaterMark;
+            }
+            try {
+                if (!(surveyable instanceof WaitableSurveyable)
+                        || !((WaitableSurveyable) surveyable).awaitStatusAfter(
+                        after, remaining)) {
+                    // A combiner of surveyables that cannot wait returns at
+                    // once, so poll instead of asking again
+                    remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0L) {
+                        continue;
+                    }
+                    Thread.sleep(Math.min(POLL_MILLIS, remaining));
+                }
+                read(after);
+            } finally {
+                release();
+            }
+        }
+    }
+
+    /**
+     * Whether messages have been read from the surveyable.
+     *
+     * @return True if read.
+     */
+    private synchronized boolean isRead() {
+        return highWaterMark != null;
+    }
+
+    /**
+     * Become the subscriber reading from the surveyable, unless another
+     * subscriber is. A subscriber that becomes the reader must call
+     * {@link #release()} when done.
+     *
+     * @return True if this subscriber is now the reader.
+     */
+    private synchronized boolean lead() {
+        if (reading) {
+            return false;
+        }
+        reading = true;
+        return true;
+    }
+
+    /** Stop being the reader, and wake the subscribers waiting for it. */
+    private synchronized void release() {
+        reading = false;
+        notifyAll();
+    }
+
+    /**
+     * Wait until no subscriber is reading from the surveyable.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private synchronized void awaitReader() throws InterruptedException {
+        while (reading) {
+            wait();
+        }
+    }
+
+    /**
+     * Read the messages after the given high-water mark from the surveyable,
+     * and add them to the window. Must only be called by the reader.
+     *
+     * @param after The high-water mark to read after.
+     */
+    private void read(long after) {
+        Status status = SurveyableWebservice.getStatusAfter(surveyable, after);
+        synchronized (this) {
+            add(status, after);
+        }
+    }
+
+    /**
+     * Add the numbered messages of a status to the window, dropping the
+     * oldest beyond the max. Must be called holding the lock on this.
+     *
+     * @param status The status read from the surveyable.
+     * @param after The high-water mark it was read after.
+     */
+    private void add(Status status, long after) {
+        Long mark = status.getHighWaterMark();
+        if (highWaterMark != null && mark != null && mark < after) {
+            // The surveyable restarted, and has returned all its messages.
+            // Subscribers that got all messages lose none.
+            first = end;
+            Arrays.fill(window, null);
+            dropped = 0L;
+            highWaterMark = 0L;
+        }
+        long newest = highWaterMark == null ? 0L : highWaterMark;
+        for (StatusMessage message : status.getMessages()) {
+            Long sequence = message.getSequence();
+            if (sequence == null) {
+                continue;
+            }
+            int index = (int) (end % window.length);
+            if (end - first == window.length) {
+                dropped = window[index].getSequence();
+                first++;
+            }
+            window[index] = message;
+            end++;
+            newest = Math.max(newest, sequence);
+        }
+        highWaterMark = mark != null ? mark : newest;
+    }
+}
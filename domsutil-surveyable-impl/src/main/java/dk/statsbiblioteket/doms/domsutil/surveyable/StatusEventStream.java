@@ -0,0 +1,175 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveyable;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Streams new status messages to a client as Server-Sent Events, until the
+ * client disconnects.
+ *
+ * Each event has the sequence number of the message as id, and the message
+ * as a statusMessage XML document as data. A client resuming with
+ * Last-Event-ID gets the messages after that sequence number. Messages
+ * without a sequence number, which report current state, are not sent.
+ *
+ * The messages are read from a {@link StatusEventSource} shared by all
+ * clients, which reads each new message from the surveyable once. A client
+ * that falls so far behind that messages it has not received are dropped
+ * from the source's window gets an overflow event with the number of
+ * messages lost, and is disconnected. A client resuming after messages that
+ * were dropped gets an overflow event with -1, as the number lost is not
+ * known. The overflow event has an id that resumes with the oldest message
+ * still kept.
+ *
+ * Resuming assumes a single surveyable numbers the messages, as when
+ * exposing a log registry or a combiner.
+ */
+@QAInfo(author = "kfc",
+        reviewers = "jrg",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+class StatusEventStream implements StreamingOutput {
+    /** Milliseconds between comments sent to keep an idle stream open. */
+    private static final long HEARTBEAT_MILLIS = 15000L;
+
+    /** Log for this class. */
+    private static Log log = LogFactory.getLog(StatusEventStream.class);
+
+    /** The source to stream messages from. */
+    private final StatusEventSource source;
+
+    /** Sequence number of the last message the client received. */
+    private final long lastEventId;
+
+    /** Position in the source of the next message to send. */
+    private long position;
+
+    /**
+     * Create a stream of the messages after the given sequence number.
+     *
+     * @param source The source to stream messages from.
+     * @param lastEventId Sequence number of the last message the client
+     * received, or 0 for all messages the source still has.
+     */
+    StatusEventStream(StatusEventSource source, long lastEventId) {
+        this.source = source;
+        this.lastEventId = lastEventId;
+    }
+
+    /**
+     * Write events until the client disconnects, or falls too far behind.
+     *
+     * @param out The stream to the client.
+     * @throws IOException on trouble writing, typically because the client
+     * disconnected.
+     */
+    public void write(OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
+        try {
+            position = source.getPositionAfter(lastEventId);
+            if (source.isLostAfter(lastEventId)) {
+                sendOverflow(writer, -1L, source.getResumeSequence());
+            }
+            while (true) {
+                if (!sendNewMessages(writer)) {
+                    return;
+                }
+                if (!source.await(position, HEARTBEAT_MILLIS)) {
+                    writer.write(":\n\n");
+                    writer.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (XMLStreamException e) {
+            log.warn("Unable to write status event", e);
+        } catch (RuntimeException e) {
+            // Nothing above us can report this, so end the stream
+            log.warn("Unable to read status events from surveyable", e);
+        }
+    }
+
+    /**
+     * Send the messages from the position, and move the position past them.
+     *
+     * @param writer The writer to the client.
+     * @return False if the client fell too far behind, and the stream should
+     * end.
+     * @throws IOException on trouble writing.
+     * @throws XMLStreamException on trouble serializing a message.
+     */
+    private boolean sendNewMessages(Writer writer)
+            throws IOException, XMLStreamException {
+        long end = source.getEnd();
+        while (position < end) {
+            StatusMessage message = source.getMessage(position);
+            if (message == null) {
+                long lost = source.getLost(position);
+                sendOverflow(writer, lost, source.getResumeSequence());
+                writer.flush();
+                log.debug("Disconnecting status event client, " + lost
+                          + " messages behind");
+                return false;
+            }
+            writer.write("id: " + message.getSequence() + "\n");
+            String xml = StatusXmlWriter.toXml(message);
+            for (String line : xml.split("\r\n|\r|\n", -1)) {
+                writer.write("data: " + line + "\n");
+            }
+            writer.write("\n");
+            position++;
+        }
+        writer.flush();
+        return true;
+    }
+
+    /**
+     * Send an event telling the client that messages were lost.
+     *
+     * @param writer The writer to the client.
+     * @param lost Number of messages lost, or -1 if not known.
+     * @param id The id to resume from.
+     * @throws IOException on trouble writing.
+     */
+    private void sendOverflow(Writer writer, long lost, long id)
+            throws IOException {
+        writer.write("event: overflow\n");
+        writer.write("id: " + id + "\n");
+        writer.write("data: " + lost + "\n\n");
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.domsutil.surveyable;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of serialized status responses, one per query, each valid for one
+ * version of the surveyable.
+ *
+ * Only the most recently used queries are kept, since pollers asking for
+ * messages since different times each have their own query. Responses are
+ * captured while they are streamed to the client, and responses larger than
+ * {@link #MAX_BODY_SIZE} bytes are not cached.
+ */
+@QAInfo(author = "kfc",
+        reviewers = "jrg",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+class StatusResponseCache {
+    /** Max number of queries to keep responses for. */
+    private static final int MAX_ENTRIES = 64;
+
+    /** Max size in bytes of a response to cache. */
+    static final int MAX_BODY_SIZE = 1024 * 1024;
+
+    /** Responses by query, in access order. Guarded by itself. */
+    private final Map<String, CachedResponse> responses
+            = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, CachedResponse> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    /**
+     * Get the cached response for a query, if it was made from the given
+     * version.
+     *
+     * @param query Key identifying the query.
+     * @param version The current version of the surveyable.
+     * @return The cached response, or null if none is cached for the version.
+     */
+    CachedResponse get(String query, long version) {
+        CachedResponse response;
+        synchronized (responses) {
+            response = responses.get(query);
+        }
+        if (response == null || response.version != version) {
+            return null;
+        }
+        return response;
+    }
+
+    /**
+     * Cache a serialized status for a query and version.
+     *
+     * @param query Key identifying the query.
+     * @param version The version of the surveyable the status was made from.
+     * @param body The serialized status.
+     * @param created Time the status was made.
+     * @return The cached response.
+     */
+    CachedResponse put(String query, long version, byte[] body,
+                       long created) {
+        CachedResponse response = new CachedResponse(version, body, created);
+        synchronized (responses) {
+            responses.put(query, response);
+        }
+        return response;
+    }
+
+    /** A serialized status response for one version. */
+    static class CachedResponse {
+        /** The version of the surveyable the response was made from. */
+        final long version;
+        /** The serialized status. */
+        final byte[] body;
+        /** Time the response was made. */
+        final long created;
+
+        /**
+         * Create a cached response.
+         *
+         * @param version The version the response was made from.
+         * @param body The serialized status.
+         * @param created Time the response was made.
+         */
+        CachedResponse(long version, byte[] body, long created) {
+            this.version = version;
+            this.body = body;
+            this.created = created;
+        }
+    }
+
+    /**
+     * Passes output through to another stream, keeping a copy of it as long
+     * as it is no larger than {@link #MAX_BODY_SIZE} bytes.
+     */
+    static class CapturingOutputStream extends FilterOutputStream {
+        /** The copy of the output. Null once the output is too large. */
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        /**
+         * Capture output written to the given stream.
+         *
+         * @param out The stream to pass the output to.
+         */
+        CapturingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        /**
+         * Write a byte, and copy it.
+         *
+         * @param b The byte.
+         * @throws IOException on trouble writing.
+         */
+        public void write(int b) throws IOException {
+            out.write(b);
+            capture(1);
+            if (copy != null) {
+                copy.write(b);
+            }
+        }
+
+        /**
+         * Write bytes, and copy them.
+         *
+         * @param b The bytes.
+         * @param off Offset of the first byte to write.
+         * @param len Number of bytes to write.
+         * @throws IOException on trouble writing.
+         */
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            capture(len);
+            if (copy != null) {
+                copy.write(b, off, len);
+            }
+        }
+
+        /**
+         * Stop copying if copying the given number of bytes more would make
+         * the copy too large.
+         *
+         * @param len Number of bytes about to be copied.
+         */
+        private void capture(int len) {
+            if (copy != null && copy.size() + len > MAX_BODY_SIZE) {
+                copy = null;
+            }
+        }
+
+        /**
+         * Get the copy of the output.
+         *
+         * @return The output, or null if it was too large to copy.
+         */
+        byte[] getCopy() {
+            return copy == null ? null : copy.toByteArray();
+        }
+    }
+}
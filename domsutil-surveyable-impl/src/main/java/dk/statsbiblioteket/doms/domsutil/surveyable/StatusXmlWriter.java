@@ -0,0 +1,249 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveyable;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.OutputStream;
+import java.io.StringWriter;
+
+/**
+ * Writes a status as XML one message at a time, in the same form as JAXB
+ * marshals a {@link Status} according to surveyable.xsd, without holding
+ * the status in memory.
+ */
+@QAInfo(author = "kfc",
+        reviewers = "jrg",
+        level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.QA_NEEDED)
+class StatusXmlWriter {
+    /** Namespace of the status element. */
+    private static final String NAMESPACE
+            = "http://surveyable.domsutil.doms.statsbiblioteket.dk/";
+
+    /** The output is flushed after this many messages. */
+    private static final int FLUSH_INTERVAL = 256;
+
+    /** Factory for XML writers. Thread safe once configured. */
+    private static final XMLOutputFactory outputFactory
+            = XMLOutputFactory.newInstance();
+
+    /**
+     * Write the messages of a status as XML. The name and high-water mark
+     * are written after the messages, as the schema requires, so they are
+     * only read once all messages have been written.
+     *
+     * @param messages The messages of the status.
+     * @param out The stream to write to. Not closed.
+     * @throws XMLStreamException on trouble writing the XML.
+     */
+    static void write(StatusIterator messages, OutputStream out)
+            throws XMLStreamException {
+        write(messages, null, null, out);
+    }
+
+    /**
+     * Write a status as XML, including whether it has more messages, and
+     * its continuation, if it is a page.
+     *
+     * @param status The status.
+     * @param out The stream to write to. Not closed.
+     * @throws XMLStreamException on trouble writing the XML.
+     */
+    static void write(Status status, OutputStream out)
+            throws XMLStreamException {
+        write(new ListStatusIterator(status), status.isHasMore(),
+              status.getContinuation(), out);
+    }
+
+    /**
+     * Write the messages of a status as XML, followed by the fields of the
+     * status given.
+     *
+     * @param messages The messages of the status.
+     * @param hasMore Whether the status has more messages. May be null.
+     * @param continuation The continuation of the status. May be null.
+     * @param out The stream to write to. Not closed.
+     * @throws XMLStreamException on trouble writing the XML.
+     */
+    private static void write(StatusIterator messages, Boolean hasMore,
+                              String continuation, OutputStream out)
+            throws XMLStreamException {
+        XMLStreamWriter writer = outputFactory.createXMLStreamWriter(
+                out, "UTF-8");
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.writeStartElement("ns2", "status", NAMESPACE);
+        writer.writeNamespace("ns2", NAMESPACE);
+        int count = 0;
+        while (messages.hasNext()) {
+            writeMessage(writer, messages.next());
+            if (++count % FLUSH_INTERVAL == 0) {
+                writer.flush();
+            }
+        }
+        if (messages.getName() != null) {
+            writeElement(writer, "name", messages.getName());
+        }
+        if (messages.getHighWaterMark() != null) {
+            writeElement(writer, "highWaterMark",
+                         String.valueOf(messages.getHighWaterMark()));
+        }
+        if (hasMore != null) {
+            writeElement(writer, "hasMore", String.valueOf(hasMore));
+        }
+        if (continuation != null) {
+            writeElement(writer, "continuation", continuation);
+        }
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.flush();
+        writer.close();
+    }
+
+    /**
+     * Write a summary as XML.
+     *
+     * @param summary The summary.
+     * @param out The stream to write to. Not closed.
+     * @throws XMLStreamException on trouble writing the XML.
+     */
+    static void write(StatusSummary summary, OutputStream out)
+            throws XMLStreamException {
+        XMLStreamWriter writer = outputFactory.createXMLStreamWriter(
+                out, "UTF-8");
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.writeStartElement("ns2", "statusSummary", NAMESPACE);
+        writer.writeNamespace("ns2", NAMESPACE);
+        for (SeverityCount count : summary.getCounts()) {
+            writer.writeStartElement("counts");
+            if (count.getSeverity() != null) {
+                writeElement(writer, "severity", count.getSeverity().value());
+            }
+            writeElement(writer, "minutes",
+                         String.valueOf(count.getMinutes()));
+            writeElement(writer, "count", String.valueOf(count.getCount()));
+            writer.writeEndElement();
+        }
+        if (summary.getWorstSeverity() != null) {
+            writeElement(writer, "worstSeverity",
+                         summary.getWorstSeverity().value());
+        }
+        if (summary.getName() != null) {
+            writeElement(writer, "name", summary.getName());
+        }
+        writeElement(writer, "time", String.valueOf(summary.getTime()));
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.flush();
+        writer.close();
+    }
+
+    /**
+     * Write a single message as a statusMessage document, without XML
+     * declaration.
+     *
+     * @param message The message.
+     * @return The message as XML.
+     * @throws XMLStreamException on trouble writing the XML.
+     */
+    static String toXml(StatusMessage message) throws XMLStreamException {
+        StringWriter out = new StringWriter();
+        XMLStreamWriter writer = outputFactory.createXMLStreamWriter(out);
+        writer.writeStartElement("ns2", "statusMessage", NAMESPACE);
+        writer.writeNamespace("ns2", NAMESPACE);
+        writeMessageContent(writer, message);
+        writer.writeEndElement();
+        writer.close();
+        return out.toString();
+    }
+
+    /**
+     * Write a single message of a status.
+     *
+     * @param writer The writer to write to.
+     * @param message The message.
+     * @throws XMLStreamException on trouble writing the XML.
+     */
+    private static void writeMessage(XMLStreamWriter writer,
+                                     StatusMessage message)
+            throws XMLStreamException {
+        writer.writeStartElement("messages");
+        writeMessageContent(writer, message);
+        writer.writeEndElement();
+    }
+
+    /**
+     * Write the elements of a message.
+     *
+     * @param writer The writer to write to.
+     * @param message The message.
+     * @throws XMLStreamException on trouble writing the XML.
+     */
+    private static void writeMessageContent(XMLStreamWriter writer,
+                                            StatusMessage message)
+            throws XMLStreamException {
+        writeElement(writer, "logMessage",
+                     String.valueOf(message.isLogMessage()));
+        if (message.getMessage() != null) {
+            writeElement(writer, "message", message.getMessage());
+        }
+        if (message.getSeverity() != null) {
+            writeElement(writer, "severity", message.getSeverity().value());
+        }
+        writeElement(writer, "time", String.valueOf(message.getTime()));
+        if (message.getSequence() != null) {
+            writeElement(writer, "sequence",
+                         String.valueOf(message.getSequence()));
+        }
+        if (message.getCount() != null) {
+            writeElement(writer, "count", String.valueOf(message.getCount()));
+        }
+        if (message.getFirstTime() != null) {
+            writeElement(writer, "firstTime",
+                         String.valueOf(message.getFirstTime()));
+        }
+    }
+
+    /**
+     * Write an unqualified element with text content.
+     *
+     * @param writer The writer to write to.
+     * @param name Name of the element.
+     * @param text The text content.
+     * @throws XMLStreamException on trouble writing the XML.
+     */
+    private static void writeElement(XMLStreamWriter writer, String name,
+                                     String text) throws XMLStreamException {
+        writer.writeStartElement(name);
+        writer.writeCharacters(text);
+        writer.writeEndElement();
+    }
+}
@@ -32,29 +32,67 @@ import dk.statsbiblioteket.util.qa.QAInfo;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import java.util.Properties;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Combines several Surveyable classes into one.
  * The classes to combine are controlled by the parameter
  * dk.statsbiblioteket.doms.domsutil.surveyable.surveyables
  * which is list ;-separated list of factories that produce surveyables.
+ *
+ * The surveyables are queried in parallel. A surveyable that has not answered
+ * within the number of milliseconds given by the parameter
+ * dk.statsbiblioteket.doms.domsutil.surveyable.timeout
+ * (default 10000) is reported with a single message of the severity given by
+ * dk.statsbiblioteket.doms.domsutil.surveyable.timeoutSeverity
+ * (default YELLOW) instead.
+ *
+ * The combined status can also be iterated with
+ * {@link #iterateStatusSince(long)}, which reads the messages of surveyables
+ * that are themselves streaming lazily, while merging.
+ *
+ * While the last answer of any surveyable was a failure or timeout, the
+ * version of the combined status is unknown, so a status reporting the
+ * failure is never cached. Every failure also changes the version, so a
+ * status from before the failure is not reused once it is over.
  */
 @QAInfo(author = "kfc",
         reviewers = "jrg",
         state = QAInfo.State.QA_NEEDED,
         level = QAInfo.Level.NORMAL)
-public class SurveyableCombiner implements Surveyable {
+public class SurveyableCombiner
+        implements VersionedSurveyable, SequencedSurveyable,
+                   QueryableSurveyable, StreamingSurveyable,
+                   SummarizingSurveyable, WaitableSurveyable,
+                   MeteredSurveyable {
     /** List of surveyables to combine into one. */
     private final List<Surveyable> surveyables
             = Collections.synchronizedList(new ArrayList<Surveyable>());
@@ -67,121 +105,334 @@ public class SurveyableCombiner implements Surveyable {
     private static final String CONFIGURATION_SURVEYABLES_PARAMETER =
             CONFIGURATION_PACKAGE_NAME + ".surveyables";
 
+    /** Parameter for milliseconds to wait for each surveyable. */
+    private static final String CONFIGURATION_TIMEOUT_PARAMETER =
+            CONFIGURATION_PACKAGE_NAME + ".timeout";
+
+    /** Parameter for severity to report for surveyables that time out. */
+    private static final String CONFIGURATION_TIMEOUT_SEVERITY_PARAMETER =
+            CONFIGURATION_PACKAGE_NAME + ".timeoutSeverity";
+
+    /** Default milliseconds to wait for each surveyable. */
+    private static final long DEFAULT_TIMEOUT = 10000L;
+
+    /** Default severity to report for surveyables that time out. */
+    private static final Severity DEFAULT_TIMEOUT_SEVERITY = Severity.YELLOW;
+
+    /** Milliseconds before the first retry of a surveyable that failed. */
+    private static final long INITIAL_RETRY_DELAY = 1000L;
+
+    /** Max milliseconds between retries of a surveyable that failed. */
+    private static final long MAX_RETRY_DELAY = 60000L;
+
+    /** Max number of numbered messages kept for getStatusAfter. */
+    static final int MAX_NUMBERED_MESSAGES = 10000;
+
+    /**
+     * The configuration values the surveyables were last initialised from.
+     * Null until initialised.
+     */
+    private volatile String fingerprint;
+
+    /**
+     * Incremented whenever the list of surveyables changes. Only written while
+     * holding the lock on the surveyables list.
+     */
+    private volatile long configurationVersion = 0L;
+
+    /** Time when the next surveyable that failed is due for a retry. */
+    private volatile long nextRetry = Long.MAX_VALUE;
+
+    /**
+     * Surveyables that failed to initialise, by class name. Guarded by the
+     * surveyables list.
+     */
+    private final Map<String, FailedSurveyable> failed
+            = new HashMap<String, FailedSurveyable>();
+
+    /** Milliseconds to wait for each surveyable, as configured. */
+    private volatile long timeout = DEFAULT_TIMEOUT;
+
+    /** Severity to report for surveyables that time out, as configured. */
+    private volatile Severity timeoutSeverity = DEFAULT_TIMEOUT_SEVERITY;
+
+    /** Executor shared by combiners not given one. Created when needed. */
+    private static ExecutorService defaultExecutor;
+
+    /** Executor that queries the surveyables. */
+    private final ExecutorService executor;
+
+    /**
+     * Surveyables whose last answer was a failure or timeout. Guarded by
+     * itself.
+     */
+    private final Set<Surveyable> failing = new HashSet<Surveyable>();
+
+    /** Number of failed or timed out answers of surveyables. */
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Guards the cursors of the surveyables and the numbered messages. The
+     * surveyables are asked without holding it, so callers of
+     * getStatusAfter only wait for each other while the answers are merged.
+     */
+    private final Object cursorLock = new Object();
+
+    /**
+     * The sequence number of each surveyable that the combiner has read
+     * messages up to. Changed only holding cursorLock, so waiting for new
+     * messages does not wait for a read in progress.
+     */
+    private final Map<Surveyable, Long> cursors
+            = new ConcurrentHashMap<Surveyable, Long>();
+
+    /**
+     * Copies of the newest messages read with getStatusAfter, numbered by
+     * the combiner, in order of sequence number. Guarded by cursorLock.
+     */
+    private final Deque<StatusMessage> numbered
+            = new ArrayDeque<StatusMessage>();
+
+    /** The last sequence number given by the combiner. */
+    private volatile long lastSequence = 0L;
+
+    /** Measures the time spent surveying, overall and by surveyable. */
+    private final Metrics metrics = new Metrics();
+
+    /** Nanoseconds spent in getStatusSince. */
+    private final Histogram surveyLatency
+            = metrics.getHistogram("getStatusSince.latency");
+
+    /** Messages returned by getStatusSince. */
+    private final Histogram surveySize
+            = metrics.getHistogram("getStatusSince.messages");
+
     /** Log for this class. */
     private Log log = LogFactory.getLog(getClass());
 
     /**
-     * Initialise surveyables.
+     * Initialise surveyables. The surveyables are queried on a shared
+     * executor, which uses virtual threads if the JVM supports them.
      */
     public SurveyableCombiner() {
-        log.trace("Enter SurveyableCombiner()");
+        this(getDefaultExecutor());
+    }
+
+    /**
+     * Initialise surveyables, querying them on the given executor.
+     *
+     * @param executor The executor to query surveyables on. It must be able
+     * to run a task per surveyable at the same time, or the surveyables will
+     * not be queried in parallel.
+     */
+    public SurveyableCombiner(ExecutorService executor) {
+        log.trace("Enter SurveyableCombiner(" + executor + ")");
+        this.executor = executor;
+    }
+
+    /**
+     * Get the executor shared by combiners not given one. This is a virtual
+     * thread per task executor if the JVM supports it, otherwise a cached
+     * pool of daemon threads.
+     *
+     * @return The shared executor.
+     */
+    private static synchronized ExecutorService getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            try {
+                defaultExecutor = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor")
+                        .invoke(null);
+            } catch (Exception e) {
+                // No virtual threads in this JVM
+                defaultExecutor = Executors.newCachedThreadPool(
+                        new ThreadFactory() {
+                            private final AtomicInteger count
+                                    = new AtomicInteger();
+
+                            public Thread newThread(Runnable r) {
+                                Thread thread = new Thread(
+                                        r, "SurveyableCombiner-"
+                                        + count.incrementAndGet());
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+            }
+        }
+        return defaultExecutor;
     }
 
     /**
      * Read configuration for classes to survey, and initialise the classes.
-     * This will reread the configuration on each call, and initialise any new
-     * classes, or any classes the failed to initialise during the last call.
+     * If the configuration is unchanged since the last call, and no class
+     * that failed to initialise is due for a retry, this does nothing.
+     *
+     * When the configuration changes, any new classes are initialised.
      * Classes that are no longer configured, will be removed from the list of
-     * surveyed classes. Errors in initialisation will be logged as errors only
-     * the first time the initialisation fails.
+     * surveyed classes. Classes that fail to initialise are retried with
+     * exponential backoff, from one second up to a minute between attempts.
+     * Errors in initialisation will be logged as errors only the first time
+     * the initialisation fails.
      */
     private void initializeSurveyables() {
-        log.trace("Enter initializeSurveyables()");
+        Properties config = ConfigCollection.getProperties();
+        String classes
+                = config.getProperty(CONFIGURATION_SURVEYABLES_PARAMETER);
+        String timeoutValue
+                = config.getProperty(CONFIGURATION_TIMEOUT_PARAMETER);
+        String timeoutSeverityValue
+                = config.getProperty(CONFIGURATION_TIMEOUT_SEVERITY_PARAMETER);
+        String configuration
+                = classes + '\n' + timeoutValue + '\n' + timeoutSeverityValue;
+        if (configuration.equals(fingerprint)
+                && System.currentTimeMillis() < nextRetry) {
+            return;
+        }
 
+        log.trace("Enter initializeSurveyables()");
         synchronized (surveyables) {
-            Set<String> configuredClasses = new HashSet<String>();
-            Set<String> surveyedClasses = new HashSet<String>();
-            Set<String> dummies = new HashSet<String>();
-            Set<String> newClassesToSurvey;
-            Set<String> noLongerSurveyed;
-            Iterator<Surveyable> i;
-
-            Properties config = ConfigCollection.getProperties();
-            String classes
-                    = config.getProperty(CONFIGURATION_SURVEYABLES_PARAMETER);
-            List<String> configuredClassesParameter;
-            log.trace("Read configuration: '" + classes + ".");
-
-            // Get set of classes from configuration
-            if (classes == null) {
-                classes = "";
-            }
-            configuredClassesParameter = Arrays.asList(classes.split(";"));
-            for (String configuredClass : configuredClassesParameter) {
-                configuredClasses.add(configuredClass.trim());
-            }
-            configuredClasses.remove("");
-            configuredClasses.remove(NoSurveyable.class.getName());
-
-            // Get set of classes initialised.
-            for (Surveyable s : surveyables) {
-                surveyedClasses.add(s.getClass().getName());
-            }
-
-            // If configuration is empty, warn the first time and insert dummy
-            if (configuredClasses.size() == 0) {
-                if (!surveyedClasses.contains(NoSurveyable.class.getName())
-                        || (surveyedClasses.size() != 1)) {
-                    log.warn("No classes specified for surveillance.");
-                    surveyables.clear();
-                    surveyables.add(new NoSurveyable());
-                }
-                return;
+            if (!configuration.equals(fingerprint)) {
+                log.trace("Read configuration: '" + classes + ".");
+                timeout = parseTimeout(timeoutValue);
+                timeoutSeverity = parseTimeoutSeverity(timeoutSeverityValue);
+                configureSurveyables(classes);
+                configurationVersion++;
+                fingerprint = configuration;
             }
+            retryFailedSurveyables();
+        }
+    }
+
+    /**
+     * Update the list of surveyables to match the configured classes. Must be
+     * called while holding the lock on the surveyables list.
+     *
+     * @param classes The ;-separated list of classes to survey. May be null.
+     */
+    private void configureSurveyables(String classes) {
+        Set<String> configuredClasses = new HashSet<String>();
+        Set<String> surveyedClasses = new HashSet<String>();
+        Iterator<Surveyable> i;
+
+        // Get set of classes from configuration
+        if (classes == null) {
+            classes = "";
+        }
+        for (String configuredClass : Arrays.asList(classes.split(";"))) {
+            configuredClasses.add(configuredClass.trim());
+        }
+        configuredClasses.remove("");
+        configuredClasses.remove(NoSurveyable.class.getName());
 
-            // Remove and remember dummies. Dummies are remembered in order to
-            // log errors only the first time initialisations failed.
-            i = surveyables.iterator();
-            while (i.hasNext()) {
-                Surveyable s = i.next();
-                if (s.getClass().getName().equals(
-                        NoSurveyable.class.getName())) {
+        // If configuration is empty, warn and insert dummy
+        if (configuredClasses.size() == 0) {
+            log.warn("No classes specified for surveillance.");
+            surveyables.clear();
+            failed.clear();
+            surveyables.add(new NoSurveyable());
+            return;
+        }
+
+        // Remove classes to no longer survey, and the dummy for no
+        // configuration. Dummies for classes that failed are kept while the
+        // class is still configured.
+        Iterator<FailedSurveyable> f = failed.values().iterator();
+        while (f.hasNext()) {
+            FailedSurveyable failure = f.next();
+            if (!configuredClasses.contains(failure.classname)) {
+                log.debug("Removing class '" + failure.classname
+                        + "' from surveillance");
+                surveyables.remove(failure.dummy);
+                f.remove();
+            }
+        }
+        i = surveyables.iterator();
+        while (i.hasNext()) {
+            Surveyable s = i.next();
+            String classname = s.getClass().getName();
+            if (s instanceof NoSurveyable) {
+                if (!isDummyForFailure(s)) {
                     i.remove();
-                    dummies.add(s.getStatus().getName());
                 }
+            } else if (!configuredClasses.contains(classname)) {
+                i.remove();
+                log.info("Removed class '" + classname
+                        + "' from surveillance");
+            } else {
+                surveyedClasses.add(classname);
             }
-            surveyedClasses.remove(NoSurveyable.class.getName());
+        }
 
-            // Initialise newly configured classes, or previously failed. Insert
-            // dummy on failure.
-            newClassesToSurvey = new HashSet<String>(configuredClasses);
-            newClassesToSurvey.removeAll(surveyedClasses);
-            for (String classname : newClassesToSurvey) {
+        // Initialise newly configured classes. Insert dummy on failure.
+        for (String classname : configuredClasses) {
+            if (!surveyedClasses.contains(classname)
+                    && !failed.containsKey(classname)) {
                 log.info("Initializing class '" + classname
                         + "' for surveillance");
-                Surveyable surveyable;
                 try {
-                    surveyable = SurveyableFactory.createSurveyable(classname);
+                    surveyables.add(
+                            SurveyableFactory.createSurveyable(classname));
                 } catch (Exception e) {
-                    if (dummies.contains(classname)) {
-                        log.debug("Still unable to initialise class for"
-                                + " surveillance: '" + classname + "'", e);
-                    } else {
-                        log.error("Unable to initialise class for surveillance:"
-                                + " '" + classname + "'", e);
-                    }
-                    surveyable = new NoSurveyable(classname);
+                    log.error("Unable to initialise class for surveillance:"
+                            + " '" + classname + "'", e);
+                    FailedSurveyable failure = new FailedSurveyable(classname);
+                    failed.put(classname, failure);
+                    surveyables.add(failure.dummy);
                 }
-                surveyables.add(surveyable);
             }
+        }
+    }
 
-            // Remove classes to no longer survey
-            noLongerSurveyed = new HashSet<String>(surveyedClasses);
-            noLongerSurveyed.removeAll(configuredClasses);
-            for (String classname : noLongerSurveyed) {
-                log.debug("Removing class '" + classname
-                        + "' from surveillance");
-                i = surveyables.iterator();
-                while (i.hasNext()) {
-                    Surveyable s = i.next();
-                    if (s.getClass().getName().equals(classname)) {
-                        i.remove();
-                        log.info("Removed class '" + classname
-                                + "' from surveillance");
-                    }
+    /**
+     * Retry initialising the classes that failed and are due for a retry.
+     * Must be called while holding the lock on the surveyables list.
+     */
+    private void retryFailedSurveyables() {
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        Iterator<FailedSurveyable> f = failed.values().iterator();
+        while (f.hasNext()) {
+            FailedSurveyable failure = f.next();
+            if (failure.nextAttempt <= now) {
+                try {
+                    Surveyable surveyable = SurveyableFactory
+                            .createSurveyable(failure.classname);
+                    surveyables.set(surveyables.indexOf(failure.dummy),
+                                    surveyable);
+                    f.remove();
+                    configurationVersion++;
+                    log.info("Initialized class '" + failure.classname
+                            + "' for surveillance");
+                    continue;
+                } catch (Exception e) {
+                    log.debug("Still unable to initialise class for"
+                            + " surveillance: '" + failure.classname + "'", e);
+                    failure.delay = Math.min(failure.delay * 2,
+                                             MAX_RETRY_DELAY);
+                    failure.nextAttempt = now + failure.delay;
                 }
             }
+            next = Math.min(next, failure.nextAttempt);
+        }
+        nextRetry = next;
+    }
+
+    /**
+     * Whether the given surveyable is the dummy for a class that failed to
+     * initialise. Must be called while holding the lock on the surveyables
+     * list.
+     *
+     * @param surveyable The surveyable to check.
+     * @return True if it is a dummy for a failed class.
+     */
+    private boolean isDummyForFailure(Surveyable surveyable) {
+        for (FailedSurveyable failure : failed.values()) {
+            if (failure.dummy == surveyable) {
+                return true;
+            }
         }
+        return false;
     }
 
     /**
@@ -193,6 +444,13 @@ public class SurveyableCombiner implements Surveyable {
      * Note, the name in the returned status is the name from the first
      * surveyable in the list of combined status objects.
      *
+     * The messages from all surveyables are merged into one list ordered by
+     * time. Messages with the same timestamp are all kept.
+     *
+     * The surveyables are queried in parallel. Surveyables that fail, or do
+     * not answer before the configured timeout, contribute a single message
+     * reporting this instead of their status.
+     *
      * @param time Only get messages strictly newer than this timestamp. The
      *             timestamp is measured in milliseconds since
      *             1970-01-01 00:00:00.000Z.
@@ -204,38 +462,964 @@ public class SurveyableCombiner implements Surveyable {
     public Status getStatusSince(long time) {
         log.trace("Enter getStatusSince(" + time + ")");
 
+        long start = System.nanoTime();
         try {
+            List<Surveyable> children;
+
+            initializeSurveyables();
+            synchronized (surveyables) {
+                children = new ArrayList<Surveyable>(surveyables);
+            }
+            if (children.size() == 0) {
+                return getConfigurationErrorStatus("");
+            }
+
+            MergingStatusIterator merged = new MergingStatusIterator(
+                    survey(children, time, null, Mode.SINCE));
             Status status = new Status();
-            SortedSet<StatusMessage> messages = new TreeSet<StatusMessage>(
-                new StatusMessageComparator());
+            status.setName(merged.getName());
+            merged.drainTo(status.getMessages());
+            surveyLatency.record(System.nanoTime() - start);
+            surveySize.record(status.getMessages().size());
+            return status;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return getInterruptedStatus();
+        } catch (Exception e) {
+            log.trace("Survey Configuration error", e);
+            return getConfigurationErrorStatus(": " + e);
+        }
+    }
+
+    /**
+     * Iterate over the combined status messages newer than the given time,
+     * ordered by time. This returns the same messages as
+     * {@link #getStatusSince(long)}, but surveyables that are themselves
+     * streaming are read lazily while iterating, instead of being collected
+     * in memory first.
+     *
+     * The surveyables are still queried in parallel with the configured
+     * timeout, but for streaming surveyables this only covers starting the
+     * iteration. The messages of streaming surveyables are merged in the
+     * order they are delivered, so they are only ordered by time if the
+     * surveyable delivers them that way.
+     *
+     * @param time Only get messages strictly newer than this timestamp. The
+     *             timestamp is measured in milliseconds since
+     *             1970-01-01 00:00:00.000Z.
+     * @return Iterator over the status messages. Never null.
+     */
+    public StatusIterator iterateStatusSince(long time) {
+        log.trace("Enter iterateStatusSince(" + time + ")");
+
+        try {
+            List<Surveyable> children;
 
             initializeSurveyables();
             synchronized (surveyables) {
-                if (surveyables == null || surveyables.size() == 0) {
-                    return getConfigurationErrorStatus("");
-                }
+                children = new ArrayList<Surveyable>(surveyables);
+            }
+            if (children.size() == 0) {
+                return new ListStatusIterator(getConfigurationErrorStatus(""));
+            }
+            return new MergingStatusIterator(
+                    survey(children, time, null, Mode.STREAM));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ListStatusIterator(getInterruptedStatus());
+        } catch (Exception e) {
+            log.trace("Survey Configuration error", e);
+            return new ListStatusIterator(
+                    getConfigurationErrorStatus(": " + e));
+        }
+    }
 
-                for (Surveyable surveyable : surveyables) {
-                    Status result = surveyable.getStatusSince(time);
-                    messages.addAll(result.getMessages());
-                    if (status.getName() == null){
-                        if (result.getName() != null){
-                            status.setName(result.getName());
-                        }
-                    }
+    /**
+     * Get the combined list of all status messages with a sequence number
+     * higher than the given one, ordered by sequence number. Messages without
+     * a sequence number, which report current state, come first.
+     *
+     * The sequence numbers are given by the combiner. It keeps a cursor for
+     * each surveyable, and reads the messages each surveyable numbered after
+     * its cursor. The new messages are ordered by time, and copies of them
+     * are numbered after the messages read before, so a caller continuing
+     * from the high-water mark gets each message once. A surveyable that
+     * fails or times out keeps its cursor, and its messages are read when it
+     * answers again. The newest {@link #MAX_NUMBERED_MESSAGES} numbered
+     * messages are kept for callers that are behind. If the given sequence
+     * number is higher than any given, it is from before a restart, and all
+     * messages kept are returned.
+     *
+     * Surveyables that are not {@link SequencedSurveyable} are asked for all
+     * their messages, which are reported as current state unless they are
+     * numbered.
+     *
+     * Callers ask the surveyables in parallel with each other, and only
+     * merge the answers one at a time, skipping messages already merged by
+     * another caller meanwhile.
+     *
+     * @param sequence Only get messages with a higher sequence number.
+     * @return List of status messages, and the high-water mark to use for
+     * the next call. If no surveyables are in the list to combine, will
+     * return a list of just one message, which is a message about not being
+     * properly initialised.
+     */
+    public Status getStatusAfter(long sequence) {
+        log.trace("Enter getStatusAfter(" + sequence + ")");
+
+        try {
+            List<Surveyable> children;
+
+            initializeSurveyables();
+            synchronized (surveyables) {
+                children = new ArrayList<Surveyable>(surveyables);
+            }
+            if (children.size() == 0) {
+                return getConfigurationErrorStatus("");
+            }
+
+            long[] from = new long[children.size()];
+            for (int i = 0; i < from.length; i++) {
+                from[i] = getCursor(children.get(i));
+            }
+            List<StatusIterator> answers
+                    = survey(children, from, null, Mode.AFTER);
+            Status status = new Status();
+            synchronized (cursorLock) {
+                merge(children, from, answers, status);
+                if (sequence > lastSequence) {
+                    sequence = 0L;
                 }
-                if (status.getName()==null){
-                    status.setName("Unnamed");
+                for (StatusMessage message : numbered) {
+                    if (message.getSequence() > sequence) {
+                        status.getMessages().add(message);
+                    }
                 }
+                status.setHighWaterMark(lastSequence);
+            }
+            if (status.getName() == null) {
+                status.setName("Unnamed");
             }
-            status.getMessages().addAll(messages);
             return status;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return getInterruptedStatus();
+        } catch (Exception e) {
+            log.trace("Survey Configuration error", e);
+            return getConfigurationErrorStatus(": " + e);
+        }
+    }
+
+    /**
+     * Merge the messages each surveyable returned after its cursor, and
+     * number copies of the new numbered messages after those merged before.
+     * Messages merged by another caller since the surveyables were asked are
+     * skipped. The cursors are moved to the high-water marks returned, or
+     * back if a surveyable restarted. Must be called holding cursorLock.
+     *
+     * @param children The surveyables.
+     * @param from The cursor of each surveyable when it was asked.
+     * @param answers The answer of each surveyable.
+     * @param status The status to add the messages without sequence number
+     * to. Its name is set to the first name returned.
+     */
+    private void merge(List<Surveyable> children, long[] from,
+                       List<StatusIterator> answers, Status status) {
+        cursors.keySet().retainAll(children);
+        List<StatusMessage> fresh = new ArrayList<StatusMessage>();
+        for (int i = 0; i < answers.size(); i++) {
+            StatusIterator answer = answers.get(i);
+            long cursor = getCursor(children.get(i));
+            Long mark = answer.getHighWaterMark();
+            // A mark below the cursor asked from means the surveyable
+            // restarted and returned all its messages. Unless another caller
+            // has already merged the restart, they are all new.
+            long merged = mark != null && mark < from[i] && cursor >= from[i]
+                    ? 0L : cursor;
+            long newest = merged;
+            if (status.getName() == null) {
+                status.setName(answer.getName());
+            }
+            while (answer.hasNext()) {
+                StatusMessage message = answer.next();
+                if (message.getSequence() == null) {
+                    status.getMessages().add(message);
+                } else if (message.getSequence() > merged) {
+                    fresh.add(copy(message));
+                    newest = Math.max(newest, message.getSequence());
+                }
+            }
+            if (mark != null) {
+                newest = Math.max(newest, mark);
+            }
+            cursors.put(children.get(i), newest);
+        }
+        Collections.sort(fresh, new StatusMessageComparator());
+        for (StatusMessage message : fresh) {
+            message.setSequence(lastSequence + 1);
+            lastSequence++;
+            numbered.addLast(message);
+            if (numbered.size() > MAX_NUMBERED_MESSAGES) {
+                numbered.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * Get the sequence number of a surveyable that the combiner has read
+     * messages up to.
+     *
+     * @param surveyable The surveyable.
+     * @return The sequence number, 0 if nothing has been read.
+     */
+    private long getCursor(Surveyable surveyable) {
+        Long cursor = cursors.get(surveyable);
+        return cursor == null ? 0L : cursor;
+    }
+
+    /**
+     * Copy a message, so it can be numbered without changing the message of
+     * the surveyable.
+     *
+     * @param message The message.
+     * @return The copy.
+     */
+    private static StatusMessage copy(StatusMessage message) {
+        StatusMessage copy = new StatusMessage();
+        copy.setLogMessage(message.isLogMessage());
+        copy.setMessage(message.getMessage());
+        copy.setSeverity(message.getSeverity());
+        copy.setTime(message.getTime());
+        copy.setSequence(message.getSequence());
+        copy.setCount(message.getCount());
+        copy.setFirstTime(message.getFirstTime());
+        return copy;
+    }
+
+    /**
+     * Get one page of the combined status messages, ordered by time as the
+     * query asks.
+     *
+     * The query, including its filters, is passed on to the surveyables, so
+     * each of them only returns what can end up in the page: The limit
+     * given to each surveyable is the limit of the query plus the messages
+     * of the continuation already returned, and each surveyable starts at
+     * the timestamp of the continuation. The pages are then merged, and the
+     * page is taken from the merged messages. Surveyables that cannot be
+     * queried are asked for their messages since the time of the query, and
+     * the page is made from those.
+     *
+     * @param query The query. Null for all messages, oldest first.
+     * @return The page of status messages. If no surveyables are in the list
+     * to combine, will return a list of just one message reporting the
+     * error.
+     * @throws IllegalArgumentException if the query is invalid.
+     */
+    public Status getStatusPage(StatusQuery query) {
+        log.trace("Enter getStatusPage()");
+
+        // An invalid query is the client's error, not a configuration error
+        StatusPageBuilder page = new StatusPageBuilder(query);
+        try {
+            List<Surveyable> children;
+
+            initializeSurveyables();
+            synchronized (surveyables) {
+                children = new ArrayList<Surveyable>(surveyables);
+            }
+            if (children.size() == 0) {
+                return getConfigurationErrorStatus("");
+            }
+
+            List<StatusIterator> results = survey(
+                    children, 0L, getChildQuery(query), Mode.PAGE);
+            MergingStatusIterator merged = new MergingStatusIterator(
+                    results, page.isNewestFirst());
+            while (merged.hasNext() && page.add(merged.next())) {
+                // Keep adding until the page is done
+            }
+            for (StatusIterator result : results) {
+                if (result instanceof PageIterator
+                        && ((PageIterator) result).hasMore) {
+                    page.setHasMore();
+                }
+            }
+            return page.build(merged.getName());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return getInterruptedStatus();
         } catch (Exception e) {
             log.trace("Survey Configuration error", e);
             return getConfigurationErrorStatus(": " + e);
         }
     }
 
+    /**
+     * Get the summed counts of status messages of each severity of all
+     * surveyables, and the worst severity of any of them. The surveyables
+     * are asked in parallel. A surveyable that fails or times out counts as
+     * a single message reporting this. The messages of surveyables that do
+     * not count them are counted from their status.
+     *
+     * @return The summed counts. If no surveyables are in the list to
+     * combine, will return the counts of just one message reporting the
+     * error.
+     */
+    public StatusSummary getSummary() {
+        log.trace("Enter getSummary()");
+
+        final long now = System.currentTimeMillis();
+        try {
+            List<Surveyable> children;
+
+            initializeSurveyables();
+            synchronized (surveyables) {
+                children = new ArrayList<Surveyable>(surveyables);
+            }
+            if (children.size() == 0) {
+                Status error = getConfigurationErrorStatus("");
+                return SeverityCounters.summarize(error.getMessages(), now,
+                                                  error.getName());
+            }
+
+            List<Future<StatusSummary>> futures
+                    = new ArrayList<Future<StatusSummary>>(children.size());
+            for (final Surveyable surveyable : children) {
+                futures.add(executor.submit(new Callable<StatusSummary>() {
+                    public StatusSummary call() {
+                        long start = System.nanoTime();
+                        try {
+                            if (surveyable instanceof SummarizingSurveyable) {
+                                return ((SummarizingSurveyable) surveyable)
+                                        .getSummary();
+                            }
+                            Status status = surveyable.getStatus();
+                            return status == null ? null
+                                    : SeverityCounters.summarize(
+                                            status.getMessages(), now,
+                                            status.getName());
+                        } finally {
+                            recordLatency(surveyable, start);
+                        }
+                    }
+                }));
+            }
+            long deadline = now + timeout;
+            List<StatusSummary> summaries
+                    = new ArrayList<StatusSummary>(children.size());
+            String name = null;
+            for (int i = 0; i < children.size(); i++) {
+                StatusSummary summary = awaitSummary(
+                        children.get(i), futures.get(i), deadline);
+                if (name == null) {
+                    name = summary.getName();
+                }
+                summaries.add(summary);
+            }
+            return SeverityCounters.sum(summaries, now,
+                                        name == null ? "Unnamed" : name);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Status error = getInterruptedStatus();
+            return SeverityCounters.summarize(error.getMessages(), now,
+                                              error.getName());
+        } catch (Exception e) {
+            log.trace("Survey Configuration error", e);
+            Status error = getConfigurationErrorStatus(": " + e);
+            return SeverityCounters.summarize(error.getMessages(), now,
+                                              error.getName());
+        }
+    }
+
+    /**
+     * Get the query to pass on to each surveyable for a page.
+     *
+     * @param query The query of the page. May be null.
+     * @return The query for the surveyables.
+     */
+    private static StatusQuery getChildQuery(StatusQuery query) {
+        StatusQuery childQuery = new StatusQuery();
+        if (query == null) {
+            return childQuery;
+        }
+        childQuery.setSince(query.getSince());
+        childQuery.setNewestFirst(query.isNewestFirst());
+        childQuery.setMinSeverity(query.getMinSeverity());
+        childQuery.setUntil(query.getUntil());
+        childQuery.setMessageContains(query.getMessageContains());
+        childQuery.setMessagePattern(query.getMessagePattern());
+        childQuery.setLogMessage(query.isLogMessage());
+        String continuation = query.getContinuation();
+        int count = 0;
+        if (continuation != null && continuation.length() > 0) {
+            int colon = continuation.indexOf(':');
+            count = Integer.parseInt(continuation.substring(colon + 1));
+            childQuery.setContinuation(
+                    continuation.substring(0, colon) + ":0");
+        }
+        if (query.getLimit() != null) {
+            childQuery.setLimit(query.getLimit() + count);
+        }
+        return childQuery;
+    }
+
+    /**
+     * Wait until any of the surveyables that can wait has status messages
+     * newer than the given time, or the timeout expires. Surveyables that
+     * cannot wait are not considered, since they typically report current
+     * state with a fresh timestamp on every call. If there is more than one
+     * surveyable that can wait, they are waited for in parallel. If none of
+     * the surveyables can wait, this returns false at once.
+     *
+     * @param time Wait for messages strictly newer than this timestamp.
+     * @param timeout Max milliseconds to wait.
+     * @return True if there are newer messages, false on timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitStatusSince(final long time, long timeout)
+            throws InterruptedException {
+        log.trace("Enter awaitStatusSince(" + time + ", " + timeout + ")");
+        return awaitAny(new Wait() {
+            boolean await(WaitableSurveyable surveyable, long timeout)
+                    throws InterruptedException {
+                return surveyable.awaitStatusSince(time, timeout);
+            }
+        }, timeout);
+    }
+
+    /**
+     * Wait until there are status messages with a sequence number higher
+     * than the given one, or the timeout expires. If the combiner has not
+     * numbered messages up to the given sequence number, or has numbered
+     * more, this returns at once. Otherwise each surveyable that can wait is
+     * waited for from the sequence number the combiner has read it up to, as
+     * in {@link #awaitStatusSince(long, long)}.
+     *
+     * @param sequence Wait for messages with a higher sequence number.
+     * @param timeout Max milliseconds to wait.
+     * @return True if there are newer messages, false on timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitStatusAfter(final long sequence, long timeout)
+            throws InterruptedException {
+        log.trace("Enter awaitStatusAfter(" + sequence + ", " + timeout + ")");
+        if (sequence != lastSequence) {
+            return true;
+        }
+        return awaitAny(new Wait() {
+            boolean await(WaitableSurveyable surveyable, long timeout)
+                    throws InterruptedException {
+                return surveyable.awaitStatusAfter(getCursor(surveyable),
+                                                   timeout);
+            }
+        }, timeout);
+    }
+
+    /**
+     * Wait on each surveyable that can wait, until the first wait succeeds
+     * or the timeout expires. If none of the surveyables can wait, there is
+     * nothing to wait for, and this returns at once, so callers can fall
+     * back to polling instead of having a thread sleep.
+     *
+     * @param wait How to wait on a surveyable.
+     * @param timeout Max milliseconds to wait.
+     * @return True if a wait succeeded, false on timeout or if no
+     * surveyable can wait.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private boolean awaitAny(final Wait wait, final long timeout)
+            throws InterruptedException {
+        List<WaitableSurveyable> waitables
+                = new ArrayList<WaitableSurveyable>();
+
+        initializeSurveyables();
+        synchronized (surveyables) {
+            for (Surveyable surveyable : surveyables) {
+                if (surveyable instanceof WaitableSurveyable) {
+                    waitables.add((WaitableSurveyable) surveyable);
+                }
+            }
+        }
+        if (waitables.size() == 0) {
+            return false;
+        }
+        if (waitables.size() == 1) {
+            return wait.await(waitables.get(0), timeout);
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        CompletionService<Boolean> completion
+                = new ExecutorCompletionService<Boolean>(executor);
+        List<Future<Boolean>> futures
+                = new ArrayList<Future<Boolean>>(waitables.size());
+        for (final WaitableSurveyable surveyable : waitables) {
+            futures.add(completion.submit(new Callable<Boolean>() {
+                public Boolean call() throws InterruptedException {
+                    return wait.await(surveyable, timeout);
+                }
+            }));
+        }
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                long remaining = deadline - System.currentTimeMillis();
+                Future<Boolean> done = completion.poll(
+                        Math.max(0L, remaining), TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    return false;
+                }
+                try {
+                    if (done.get()) {
+                        return true;
+                    }
+                } catch (ExecutionException e) {
+                    // Let the caller get the status, which reports this
+                    log.debug("Surveyable failed while waiting",
+                              e.getCause());
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            for (Future<Boolean> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Query the surveyables in parallel, and wait for the answers until the
+     * configured timeout. Surveyables that fail or time out are replaced by
+     * a single message reporting this.
+     *
+     * @param children The surveyables to query.
+     * @param from The timestamp or sequence number to get messages after.
+     * @param query The query for getting pages. Null in other modes.
+     * @param mode How to query the surveyables.
+     * @return An iterator over the messages of each surveyable, in the order
+     * of the surveyables.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private List<StatusIterator> survey(List<Surveyable> children,
+                                        long from, StatusQuery query,
+                                        Mode mode)
+            throws InterruptedException {
+        long[] froms = new long[children.size()];
+        Arrays.fill(froms, from);
+        return survey(children, froms, query, mode);
+    }
+
+    /**
+     * Query the surveyables in parallel, each from its own timestamp or
+     * sequence number, and wait for the answers until the configured
+     * timeout. Surveyables that fail or time out are replaced by a single
+     * message reporting this, with the sequence number they were queried
+     * from as high-water mark.
+     *
+     * @param children The surveyables to query.
+     * @param froms The timestamp or sequence number to get messages after,
+     * for each surveyable.
+     * @param query The query for getting pages. Null in other modes.
+     * @param mode How to query the surveyables.
+     * @return An iterator over the messages of each surveyable, in the order
+     * of the surveyables.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private List<StatusIterator> survey(List<Surveyable> children,
+                                        long[] froms,
+                                        final StatusQuery query,
+                                        final Mode mode)
+            throws InterruptedException {
+        List<Future<StatusIterator>> futures
+                = new ArrayList<Future<StatusIterator>>(children.size());
+        for (int i = 0; i < children.size(); i++) {
+            final Surveyable surveyable = children.get(i);
+            final long from = froms[i];
+            futures.add(executor.submit(new Callable<StatusIterator>() {
+                public StatusIterator call() {
+                    long start = System.nanoTime();
+                    try {
+                        return query(surveyable, from, query, mode);
+                    } finally {
+                        recordLatency(surveyable, start);
+                    }
+                }
+            }));
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        List<StatusIterator> results
+                = new ArrayList<StatusIterator>(children.size());
+        for (int i = 0; i < children.size(); i++) {
+            Long failedHighWaterMark = mode == Mode.AFTER ? froms[i] : null;
+            results.add(await(children.get(i), futures.get(i), deadline,
+                              failedHighWaterMark));
+        }
+        return results;
+    }
+
+    /**
+     * Query a single surveyable.
+     *
+     * @param surveyable The surveyable.
+     * @param from The timestamp or sequence number to get messages after.
+     * @param query The query for getting pages. Null in other modes.
+     * @param mode How to query the surveyable.
+     * @return An iterator over the messages of the surveyable, or null if
+     * it returned no status.
+     */
+    private static StatusIterator query(Surveyable surveyable, long from,
+                                        StatusQuery query, Mode mode) {
+        Status status;
+        switch (mode) {
+            case STREAM:
+                if (surveyable instanceof StreamingSurveyable) {
+                    return ((StreamingSurveyable) surveyable)
+                            .iterateStatusSince(from);
+                }
+                status = surveyable.getStatusSince(from);
+                break;
+            case AFTER:
+                if (surveyable instanceof SequencedSurveyable) {
+                    status = ((SequencedSurveyable) surveyable)
+                            .getStatusAfter(from);
+                } else {
+                    status = surveyable.getStatusSince(0L);
+                }
+                return status == null ? null : new ListStatusIterator(status);
+            case PAGE:
+                if (surveyable instanceof QueryableSurveyable) {
+                    status = ((QueryableSurveyable) surveyable)
+                            .getStatusPage(query);
+                } else {
+                    status = surveyable.getStatusSince(
+                            query.getSince() == null ? 0L : query.getSince());
+                    status = status == null ? null
+                            : StatusPageBuilder.page(sorted(status), query);
+                }
+                return status == null ? null : new PageIterator(status);
+            default:
+                status = surveyable.getStatusSince(from);
+        }
+        return status == null ? null
+                : new ListStatusIterator(sorted(status));
+    }
+
+    /**
+     * Record the time a surveyable took to answer.
+     *
+     * @param surveyable The surveyable.
+     * @param start The value of System.nanoTime() when it was asked.
+     */
+    private void recordLatency(Surveyable surveyable, long start) {
+        metrics.getHistogram(getMetricName(surveyable, "latency"))
+                .record(System.nanoTime() - start);
+    }
+
+    /**
+     * Get the name of a metric of a surveyable.
+     *
+     * @param surveyable The surveyable.
+     * @param metric The name of the metric.
+     * @return The name of the metric, prefixed by child and the class name
+     * of the surveyable.
+     */
+    private static String getMetricName(Surveyable surveyable,
+                                        String metric) {
+        return "child." + surveyable.getClass().getName() + "." + metric;
+    }
+
+    /**
+     * Get the metrics of the combiner, and of the surveyables that measure
+     * themselves.
+     *
+     * The combiner measures getStatusSince.latency and
+     * getStatusSince.messages like the log registries. For each surveyable
+     * it measures child.<i>classname</i>.latency, the nanoseconds the
+     * surveyable took to answer, including answers that came too late, and
+     * counts child.<i>classname</i>.failures and
+     * child.<i>classname</i>.timeouts. The metrics of surveyables that are
+     * themselves metered follow, with the same prefix.
+     *
+     * @return The values, by name.
+     */
+    public SortedMap<String, Long> getMetrics() {
+        log.trace("Enter getMetrics()");
+        List<Surveyable> children;
+
+        initializeSurveyables();
+        synchronized (surveyables) {
+            children = new ArrayList<Surveyable>(surveyables);
+        }
+        SortedMap<String, Long> snapshot = metrics.getSnapshot();
+        for (Surveyable surveyable : children) {
+            if (surveyable instanceof MeteredSurveyable) {
+                String prefix = getMetricName(surveyable, "");
+                for (Map.Entry<String, Long> entry : ((MeteredSurveyable)
+                        surveyable).getMetrics().entrySet()) {
+                    snapshot.put(prefix + entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Get the combined version of all surveyables. This is only known if all
+     * surveyables are versioned.
+     *
+     * @return A version that changes whenever the status of any surveyable,
+     * or the list of surveyables, changes, or a surveyable fails. Negative
+     * if any surveyable does not know its version, or the last answer of any
+     * surveyable was a failure.
+     */
+    public long getVersion() {
+        List<Surveyable> children;
+        long version;
+
+        initializeSurveyables();
+        synchronized (surveyables) {
+            children = new ArrayList<Surveyable>(surveyables);
+            version = configurationVersion;
+        }
+        synchronized (failing) {
+            // Forget surveyables no longer surveyed
+            failing.retainAll(children);
+            if (!failing.isEmpty()) {
+                return -1L;
+            }
+        }
+        version = version * 31 + failures.get();
+        for (Surveyable surveyable : children) {
+            if (!(surveyable instanceof VersionedSurveyable)) {
+                return -1L;
+            }
+            long childVersion
+                    = ((VersionedSurveyable) surveyable).getVersion();
+            if (childVersion < 0) {
+                return -1L;
+            }
+            version = version * 31 + childVersion;
+        }
+        return version & Long.MAX_VALUE;
+    }
+
+    /**
+     * Wait for the status of a surveyable until the deadline. If the
+     * surveyable fails or times out, a status with a single message reporting
+     * this is returned instead.
+     *
+     * @param surveyable The surveyable queried.
+     * @param future The result of querying the surveyable.
+     * @param deadline Time in milliseconds since epoch to wait until.
+     * @param failedHighWaterMark High-water mark to report for a surveyable
+     * that fails. May be null.
+     * @return The messages of the surveyable, or a message reporting
+     * failure.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private StatusIterator await(Surveyable surveyable,
+                                 Future<StatusIterator> future,
+                                 long deadline, Long failedHighWaterMark)
+            throws InterruptedException {
+        String classname = surveyable.getClass().getName();
+        Status failure;
+        try {
+            long remaining = deadline - System.currentTimeMillis();
+            StatusIterator result = future.get(Math.max(0L, remaining),
+                                               TimeUnit.MILLISECONDS);
+            if (result != null) {
+                answered(surveyable, false);
+                return result;
+            }
+            metrics.getCounter(getMetricName(surveyable, "failures"))
+                    .increment();
+            failure = getSurveyableErrorStatus(
+                    classname, Severity.RED, "Surveyable returned no status");
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            metrics.getCounter(getMetricName(surveyable, "timeouts"))
+                    .increment();
+            log.debug("Timed out waiting for surveyable '" + classname + "'");
+            failure = getSurveyableErrorStatus(
+                    classname, timeoutSeverity, "Surveyable timed out");
+        } catch (ExecutionException e) {
+            metrics.getCounter(getMetricName(surveyable, "failures"))
+                    .increment();
+            log.debug("Surveyable '" + classname + "' failed", e.getCause());
+            failure = getSurveyableErrorStatus(
+                    classname, Severity.RED,
+                    "Surveyable failed: " + e.getCause());
+        }
+        answered(surveyable, true);
+        failure.setHighWaterMark(failedHighWaterMark);
+        return new ListStatusIterator(failure);
+    }
+
+    /**
+     * Wait for the summary of a surveyable until the deadline. A surveyable
+     * that fails or times out is summarized as a single message reporting
+     * this.
+     *
+     * @param surveyable The surveyable asked.
+     * @param future The pending summary.
+     * @param deadline The time to stop waiting.
+     * @return The summary, or the summary of the failure.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private StatusSummary awaitSummary(Surveyable surveyable,
+                                       Future<StatusSummary> future,
+                                       long deadline)
+            throws InterruptedException {
+        String classname = surveyable.getClass().getName();
+        Status failure;
+        try {
+            long remaining = deadline - System.currentTimeMillis();
+            StatusSummary result = future.get(Math.max(0L, remaining),
+                                              TimeUnit.MILLISECONDS);
+            if (result != null) {
+                answered(surveyable, false);
+                return result;
+            }
+            metrics.getCounter(getMetricName(surveyable, "failures"))
+                    .increment();
+            failure = getSurveyableErrorStatus(
+                    classname, Severity.RED, "Surveyable returned no summary");
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            metrics.getCounter(getMetricName(surveyable, "timeouts"))
+                    .increment();
+            log.debug("Timed out waiting for surveyable '" + classname + "'");
+            failure = getSurveyableErrorStatus(
+                    classname, timeoutSeverity, "Surveyable timed out");
+        } catch (ExecutionException e) {
+            metrics.getCounter(getMetricName(surveyable, "failures"))
+                    .increment();
+            log.debug("Surveyable '" + classname + "' failed", e.getCause());
+            failure = getSurveyableErrorStatus(
+                    classname, Severity.RED,
+                    "Surveyable failed: " + e.getCause());
+        }
+        answered(surveyable, true);
+        return SeverityCounters.summarize(failure.getMessages(),
+                                          System.currentTimeMillis(), null);
+    }
+
+    /**
+     * Keep track of whether the last answer of a surveyable was a failure,
+     * for {@link #getVersion()}.
+     *
+     * @param surveyable The surveyable.
+     * @param failed True if the surveyable failed or timed out.
+     */
+    private void answered(Surveyable surveyable, boolean failed) {
+        synchronized (failing) {
+            if (failed) {
+                failing.add(surveyable);
+                failures.incrementAndGet();
+            } else {
+                failing.remove(surveyable);
+            }
+        }
+    }
+
+    /**
+     * Parse the configured number of milliseconds to wait for surveyables.
+     *
+     * @param value The configured value. May be null.
+     * @return Timeout in milliseconds.
+     */
+    private long parseTimeout(String value) {
+        if (value != null && !value.trim().equals("")) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                log.warn("Invalid timeout '" + value + "', using default "
+                         + DEFAULT_TIMEOUT);
+            }
+        }
+        return DEFAULT_TIMEOUT;
+    }
+
+    /**
+     * Parse the configured severity to report for surveyables that time out.
+     *
+     * @param value The configured value. May be null.
+     * @return The severity.
+     */
+    private Severity parseTimeoutSeverity(String value) {
+        if (value != null && !value.trim().equals("")) {
+            try {
+                return Severity.fromValue(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                log.warn("Invalid timeout severity '" + value
+                         + "', using default " + DEFAULT_TIMEOUT_SEVERITY);
+            }
+        }
+        return DEFAULT_TIMEOUT_SEVERITY;
+    }
+
+    /**
+     * Create status reporting that a surveyable could not deliver its status.
+     *
+     * @param classname Class of the surveyable, included in the message.
+     * @param severity Severity of the message.
+     * @param message The message.
+     * @return A status with a single message, and no name.
+     */
+    private Status getSurveyableErrorStatus(String classname,
+                                            Severity severity,
+                                            String message) {
+        StatusMessage statusMessage = new StatusMessage();
+        Status status = new Status();
+
+        statusMessage.setMessage(message + ": '" + classname + "'");
+        statusMessage.setLogMessage(false);
+        statusMessage.setTime(System.currentTimeMillis());
+        statusMessage.setSeverity(severity);
+
+        status.getMessages().add(statusMessage);
+
+        return status;
+    }
+
+    /**
+     * Get a status with its messages ordered by time. Surveyables normally
+     * return them ordered, in which case the status itself is returned.
+     *
+     * @param status The status.
+     * @return The status, or a sorted copy of it.
+     */
+    private static Status sorted(Status status) {
+        StatusMessageComparator comparator = new StatusMessageComparator();
+        if (isSorted(status.getMessages(), comparator)) {
+            return status;
+        }
+        Status copy = new Status();
+        copy.setName(status.getName());
+        copy.getMessages().addAll(status.getMessages());
+        Collections.sort(copy.getMessages(), comparator);
+        return copy;
+    }
+
+    /**
+     * Check whether a list of messages is ordered by time.
+     *
+     * @param list The list to check.
+     * @param comparator Comparator on time.
+     * @return True if ordered.
+     */
+    private static boolean isSorted(List<StatusMessage> list,
+                                    Comparator<StatusMessage> comparator) {
+        StatusMessage previous = null;
+        for (StatusMessage message : list) {
+            if (previous != null && comparator.compare(previous, message) > 0) {
+                return false;
+            }
+            previous = message;
+        }
+        return true;
+    }
+
     /**
      * Create status indicating configuration error.
      *
@@ -260,6 +1444,28 @@ public class SurveyableCombiner implements Surveyable {
         return status;
     }
 
+    /**
+     * Create status indicating that the caller was interrupted while waiting
+     * for the surveyables. The interrupt is not an error in the surveyables
+     * or the configuration, so the status is only YELLOW.
+     *
+     * @return A Status indicating the interrupt.
+     */
+    private Status getInterruptedStatus() {
+        StatusMessage statusMessage = new StatusMessage();
+        Status status = new Status();
+
+        statusMessage.setMessage("Survey interrupted");
+        statusMessage.setLogMessage(false);
+        statusMessage.setTime(System.currentTimeMillis());
+        statusMessage.setSeverity(Severity.YELLOW);
+
+        status.setName("Survey interrupted");
+        status.getMessages().add(statusMessage);
+
+        return status;
+    }
+
     /**
      * Get all status messages. This behaves exactly like
      * getMessagesSince(0L).
@@ -294,4 +1500,249 @@ public class SurveyableCombiner implements Surveyable {
                     : (o1.getTime() < o2.getTime() ? -1 : 1));
         }
     }
+
+    /** A way to wait on a surveyable. */
+    private abstract static class Wait {
+        /**
+         * Wait on the surveyable.
+         *
+         * @param surveyable The surveyable to wait on.
+         * @param timeout Max milliseconds to wait.
+         * @return True if the wait succeeded, false on timeout.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        abstract boolean await(WaitableSurveyable surveyable, long timeout)
+                throws InterruptedException;
+    }
+
+    /** How the surveyables are queried. */
+    private enum Mode {
+        /** Get the whole status since a timestamp. */
+        SINCE,
+        /** Iterate the status since a timestamp, lazily where supported. */
+        STREAM,
+        /** Get the status after a sequence number. */
+        AFTER,
+        /** Get a page of the status. */
+        PAGE
+    }
+
+    /** Iterates over a page of messages, remembering if there are more. */
+    private static class PageIterator extends ListStatusIterator {
+        /** Whether the surveyable has more messages than in the page. */
+        private final boolean hasMore;
+
+        /**
+         * Iterate over the messages of a page.
+         *
+         * @param status The page.
+         */
+        private PageIterator(Status status) {
+            super(status);
+            this.hasMore = status.isHasMore() != null && status.isHasMore();
+        }
+    }
+
+    /** A class that failed to initialise, and when to retry it. */
+    private static class FailedSurveyable {
+        /** Name of the class. */
+        private final String classname;
+        /** The dummy surveyed instead of the class. */
+        private final NoSurveyable dummy;
+        /** Milliseconds to wait before the next retry. */
+        private long delay = INITIAL_RETRY_DELAY;
+        /** Time of the next retry. */
+        private long nextAttempt;
+
+        /**
+         * Record a class that just failed to initialise.
+         *
+         * @param classname Name of the class.
+         */
+        private FailedSurveyable(String classname) {
+            this.classname = classname;
+            this.dummy = new NoSurveyable(classname);
+            this.nextAttempt = System.currentTimeMillis() + delay;
+        }
+    }
+
+    /**
+     * Lazily merges iterators over messages ordered by time into one
+     * iterator ordered by time, oldest or newest first. Messages with the
+     * same timestamp are ordered by the position of their iterator. The name
+     * is the first name given by any of the iterators.
+     */
+    private static class MergingStatusIterator implements StatusIterator {
+        /** The name of the status. */
+        private final String name;
+
+        /** Cursors on the iterators with more messages, by current message. */
+        private final PriorityQueue<MergeCursor> heap;
+
+        /**
+         * Merge the given iterators, oldest first.
+         *
+         * @param iterators The iterators to merge, each ordered by time.
+         */
+        private MergingStatusIterator(
+                List<? extends Iterator<StatusMessage>> iterators) {
+            this(iterators, false);
+        }
+
+        /**
+         * Merge the given iterators.
+         *
+         * @param iterators The iterators to merge, each ordered by time.
+         * @param newestFirst Whether the iterators, and the merged messages,
+         * are ordered newest first.
+         */
+        private MergingStatusIterator(
+                List<? extends Iterator<StatusMessage>> iterators,
+                boolean newestFirst) {
+            String firstName = null;
+            heap = new PriorityQueue<MergeCursor>(
+                    Math.max(1, iterators.size()));
+            for (int i = 0; i < iterators.size(); i++) {
+                Iterator<StatusMessage> iterator = iterators.get(i);
+                if (firstName == null && iterator instanceof StatusIterator) {
+                    firstName = ((StatusIterator) iterator).getName();
+                }
+                if (iterator.hasNext()) {
+                    heap.add(new MergeCursor(iterator, i, newestFirst));
+                }
+            }
+            name = firstName == null ? "Unnamed" : firstName;
+        }
+
+        /**
+         * Get the name of the status.
+         *
+         * @return The first name given by any of the iterators, or "Unnamed".
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * A merged status has no high-water mark.
+         *
+         * @return Null.
+         */
+        public Long getHighWaterMark() {
+            return null;
+        }
+
+        /**
+         * Whether there are more messages.
+         *
+         * @return True if there are more messages.
+         */
+        public boolean hasNext() {
+            return !heap.isEmpty();
+        }
+
+        /**
+         * Get the next message.
+         *
+         * @return The first message in order not yet returned.
+         */
+        public StatusMessage next() {
+            MergeCursor cursor = heap.poll();
+            if (cursor == null) {
+                throw new NoSuchElementException();
+            }
+            StatusMessage message = cursor.current;
+            if (cursor.advance()) {
+                heap.add(cursor);
+            }
+            return message;
+        }
+
+        /**
+         * Add all remaining messages to a list. Once only one iterator is
+         * left, its messages are copied without comparing them.
+         *
+         * @param messages The list to add the messages to.
+         */
+        private void drainTo(List<StatusMessage> messages) {
+            while (heap.size() > 1) {
+                messages.add(next());
+            }
+            MergeCursor last = heap.poll();
+            if (last != null) {
+                messages.add(last.current);
+                while (last.messages.hasNext()) {
+                    messages.add(last.messages.next());
+                }
+            }
+        }
+
+        /** Not supported. */
+        public void remove() {
+            throw new UnsupportedOperationException("Status is read only");
+        }
+    }
+
+    /**
+     * Position in one of the iterators being merged. Orders by the time of
+     * the current message, oldest or newest first, then by the index of the
+     * iterator.
+     */
+    private static class MergeCursor implements Comparable<MergeCursor> {
+        /** The messages being merged. */
+        private final Iterator<StatusMessage> messages;
+        /** Index of the iterator among the iterators being merged. */
+        private final int index;
+        /** The current message. */
+        private StatusMessage current;
+        /** Whether newer messages come first. */
+        private final boolean newestFirst;
+        /** Time of the current message. */
+        private long time;
+
+        /**
+         * Create a cursor at the first message of a non-empty iterator.
+         *
+         * @param messages The iterator.
+         * @param index Index of the iterator among the iterators being merged.
+         * @param newestFirst Whether newer messages come first.
+         */
+        private MergeCursor(Iterator<StatusMessage> messages, int index,
+                            boolean newestFirst) {
+            this.messages = messages;
+            this.index = index;
+            this.newestFirst = newestFirst;
+            this.current = messages.next();
+            this.time = current.getTime();
+        }
+
+        /**
+         * Move to the next message.
+         *
+         * @return False if there are no more messages.
+         */
+        private boolean advance() {
+            if (!messages.hasNext()) {
+                return false;
+            }
+            current = messages.next();
+            time = current.getTime();
+            return true;
+        }
+
+        /**
+         * Compare on time of the current message, then index of the iterator.
+         * Both cursors must be of the same merge.
+         *
+         * @param o The other cursor.
+         * @return Negative, zero or positive as this cursor comes before, at
+         * the same position as, or after the other.
+         */
+        public int compareTo(MergeCursor o) {
+            if (time != o.time) {
+                return (time < o.time) != newestFirst ? -1 : 1;
+            }
+            return index < o.index ? -1 : (index == o.index ? 0 : 1);
+        }
+    }
 }
@@ -33,21 +33,103 @@ import javax.jws.WebMethod;
 import javax.jws.WebParam;
 import javax.jws.WebResult;
 import javax.jws.WebService;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.ws.RequestWrapper;
 import javax.xml.ws.ResponseWrapper;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
 
-/** REST and SOAP webservice that exposes a surveyable singleton. */
+/**
+ * REST and SOAP webservice that exposes a surveyable singleton.
+ *
+ * REST responses are streamed to the client as they are serialized. If the
+ * surveyable is a {@link StreamingSurveyable}, the messages are read from it
+ * while streaming, so the whole status is never held in memory.
+ *
+ * If the surveyable is versioned, REST responses are cached serialized per
+ * query for as long as the version is unchanged. They carry an ETag with
+ * the version, and requests with a matching If-None-Match are answered with
+ * 304 Not Modified.
+ *
+ * The REST versions of getStatusSince and getStatus take the optional query
+ * parameters limit, newestFirst, continuation, minSeverity, until,
+ * messageContains, messagePattern and logMessage, with the meaning of the
+ * fields of {@link StatusQuery}. If any of them is given, only the page of
+ * matching messages is returned, as by {@link #getStatusPage(StatusQuery)}.
+ *
+ * Clients can long-poll with waitForStatusSince, which holds the request
+ * until there are new messages, or a timeout of at most
+ * {@link #MAX_WAIT_MILLIS} milliseconds expires. JAX-RS 1.0 has no
+ * asynchronous responses, so each waiting request holds a container thread.
+ * At most {@link #MAX_WAITING_REQUESTS} requests wait at a time, further
+ * requests are answered at once.
+ *
+ * Clients can also subscribe to new messages as Server-Sent Events on the
+ * events path, see {@link StatusEventStream}. Each subscriber holds a container
+ * thread too, and at most {@link #MAX_SUBSCRIBERS} are served at a time. The
+ * subscribers share a {@link StatusEventSource}, so new messages are read
+ * from the surveyable once for all of them.
+ *
+ * If the surveyable is a {@link MeteredSurveyable}, its metrics are served as
+ * plain text on the getMetrics path, one name and value per line.
+ */
 @WebService
 @QAInfo(level = QAInfo.Level.NORMAL,
         state = QAInfo.State.QA_NEEDED,
         author = "jrg",
         reviewers = {"kfc"})
 @Path("/")
-public class SurveyableWebservice implements Surveyable {
+public class SurveyableWebservice
+        implements SequencedSurveyable, QueryableSurveyable,
+                   SummarizingSurveyable {
+    /** Cache of serialized REST responses, shared by all instances. */
+    private static final StatusResponseCache responseCache
+            = new StatusResponseCache();
+
+    /** Max milliseconds a long-poll request waits. */
+    static final long MAX_WAIT_MILLIS = 60000L;
+
+    /** Max number of long-poll requests waiting at a time. */
+    static final int MAX_WAITING_REQUESTS = 64;
+
+    /** Permits for long-poll requests to wait. */
+    private static final Semaphore waitingRequests
+            = new Semaphore(MAX_WAITING_REQUESTS);
+
+    /** Max number of event stream subscribers at a time. */
+    static final int MAX_SUBSCRIBERS = 64;
+
+    /** Query parameters for paging and filtering REST responses. */
+    private static final String[] PAGE_PARAMETERS = {
+            "limit", "newestFirst", "continuation", "minSeverity", "until",
+            "messageContains", "messagePattern", "logMessage"};
+
+    /** Permits for event stream subscribers. */
+    private static final Semaphore subscribers
+            = new Semaphore(MAX_SUBSCRIBERS);
+
+    /** Source of the messages for event stream subscribers. */
+    private static StatusEventSource eventSource;
+
     /**
      * Get all status messages newer than the given time.
      * An application should use the newest timestamp in the given messages
@@ -66,14 +148,134 @@ public class SurveyableWebservice implements Surveyable {
     @ResponseWrapper(localName = "getStatusSinceResponse",
                      targetNamespace = "http://surveyable.domsutil.doms.statsbiblioteket.dk/",
                      className = "dk.statsbiblioteket.doms.domsutil.surveyable.GetStatusSinceResponse")
-    @GET
-    @Path("getStatusSince/{time}")
-    @Produces("application/xml")
     public Status getStatusSince(
-            @WebParam(name = "arg0", targetNamespace = "") @PathParam("time") long time) {
+            @WebParam(name = "arg0", targetNamespace = "") long time) {
         return SurveyableFactory.getSurveyable().getStatusSince(time);
     }
 
+    /**
+     * Get all status messages with a sequence number higher than the given
+     * one. An application should use the high-water mark of the returned
+     * status as input to this method next time it calls it, to get exactly
+     * the new messages.
+     *
+     * @param sequence Only get messages with a higher sequence number. Use
+     *                 0 to get all messages.
+     * @return List of status messages, and a high-water mark. May be empty,
+     * but never null.
+     */
+    @WebMethod
+    @WebResult(targetNamespace = "")
+    @RequestWrapper(localName = "getStatusAfter",
+                    targetNamespace = "http://surveyable.domsutil.doms.statsbiblioteket.dk/",
+                    className = "dk.statsbiblioteket.doms.domsutil.surveyable.GetStatusAfter")
+    @ResponseWrapper(localName = "getStatusAfterResponse",
+                     targetNamespace = "http://surveyable.domsutil.doms.statsbiblioteket.dk/",
+                     className = "dk.statsbiblioteket.doms.domsutil.surveyable.GetStatusAfterResponse")
+    public Status getStatusAfter(
+            @WebParam(name = "arg0", targetNamespace = "") long sequence) {
+        return getStatusAfter(SurveyableFactory.getSurveyable(), sequence);
+    }
+
+    /**
+     * Get the status messages of a surveyable with a sequence number higher
+     * than the given one. If the surveyable is not sequenced, all its
+     * messages are returned.
+     *
+     * @param surveyable The surveyable.
+     * @param sequence Only get messages with a higher sequence number.
+     * @return List of status messages.
+     */
+    static Status getStatusAfter(Surveyable surveyable, long sequence) {
+        if (surveyable instanceof SequencedSurveyable) {
+            return ((SequencedSurveyable) surveyable).getStatusAfter(sequence);
+        }
+        return surveyable.getStatusSince(0L);
+    }
+
+    /**
+     * Get one page of the status messages. The messages are ordered by time,
+     * oldest first unless the query asks for newest first. If there are more
+     * messages than the limit of the query, hasMore is set in the returned
+     * status, and its continuation can be given in the next query to get the
+     * next page. If the surveyable cannot be queried, the page is made from
+     * its messages since the time of the query.
+     *
+     * @param query The query. All fields are optional.
+     * @return The page of status messages. May be empty, but never null.
+     * @throws IllegalArgumentException if the query is invalid. This is
+     * returned to the client as a fault.
+     */
+    @WebMethod
+    @WebResult(targetNamespace = "")
+    @RequestWrapper(localName = "getStatusPage",
+                    targetNamespace = "http://surveyable.domsutil.doms.statsbiblioteket.dk/",
+                    className = "dk.statsbiblioteket.doms.domsutil.surveyable.GetStatusPage")
+    @ResponseWrapper(localName = "getStatusPageResponse",
+                     targetNamespace = "http://surveyable.domsutil.doms.statsbiblioteket.dk/",
+                     className = "dk.statsbiblioteket.doms.domsutil.surveyable.GetStatusPageResponse")
+    public Status getStatusPage(
+            @WebParam(name = "arg0", targetNamespace = "") StatusQuery query) {
+        return getStatusPage(SurveyableFactory.getSurveyable(), query);
+    }
+
+    /**
+     * Get one page of the status messages of a surveyable. If the surveyable
+     * cannot be queried, the page is made from its messages since the time
+     * of the query.
+     *
+     * @param surveyable The surveyable.
+     * @param query The query. Null for all messages, oldest first.
+     * @return The page of status messages.
+     * @throws IllegalArgumentException if the query is invalid.
+     */
+    static Status getStatusPage(Surveyable surveyable, StatusQuery query) {
+        if (surveyable instanceof QueryableSurveyable) {
+            return ((QueryableSurveyable) surveyable).getStatusPage(query);
+        }
+        long since = query == null || query.getSince() == null
+                ? 0L : query.getSince();
+        return StatusPageBuilder.page(surveyable.getStatusSince(since), query);
+    }
+
+    /**
+     * Get the number of status messages of each severity in the last 1, 5
+     * and 15 minutes, and the worst severity in the last minute, without
+     * getting the messages. If the surveyable does not count its messages,
+     * the messages of its status are counted.
+     *
+     * @return The counts. Never null.
+     */
+    @WebMethod
+    @WebResult(targetNamespace = "")
+    @RequestWrapper(localName = "getSummary",
+                    targetNamespace = "http://surveyable.domsutil.doms.statsbiblioteket.dk/",
+                    className = "dk.statsbiblioteket.doms.domsutil.surveyable.GetSummary")
+    @ResponseWrapper(localName = "getSummaryResponse",
+                     targetNamespace = "http://surveyable.domsutil.doms.statsbiblioteket.dk/",
+                     className = "dk.statsbiblioteket.doms.domsutil.surveyable.GetSummaryResponse")
+    public StatusSummary getSummary() {
+        return getSummary(SurveyableFactory.getSurveyable());
+    }
+
+    /**
+     * Get the counts of the status messages of a surveyable. If the
+     * surveyable does not count its messages, the messages of its status are
+     * counted.
+     *
+     * @param surveyable The surveyable.
+     * @return The counts.
+     */
+    static StatusSummary getSummary(Surveyable surveyable) {
+        if (surveyable instanceof SummarizingSurveyable) {
+            return ((SummarizingSurveyable) surveyable).getSummary();
+        }
+        Status status = surveyable.getStatus();
+        return SeverityCounters.summarize(status.getMessages(),
+                                          System.currentTimeMillis(),
+                                          status.getName());
+    }
+
     /**
      * Get all status messages. This behaves exactly like
      * getMessagesSince(0L).
@@ -90,10 +292,461 @@ public class SurveyableWebservice implements Surveyable {
     @ResponseWrapper(localName = "getStatusResponse",
                      targetNamespace = "http://surveyable.domsutil.doms.statsbiblioteket.dk/",
                      className = "dk.statsbiblioteket.doms.domsutil.surveyable.GetStatusResponse")
+    public Status getStatus() {
+        return SurveyableFactory.getSurveyable().getStatus();
+    }
+
+    /**
+     * REST version of {@link #getStatusSince(long)}, with caching and
+     * conditional GET. If any query parameters for paging or filtering are
+     * given, only the page of matching messages is returned.
+     *
+     * @param time Only get messages strictly newer than this timestamp. The
+     *             timestamp is measured in milliseconds since 1970-01-01 00:00:00.000Z.
+     * @param uriInfo The request URI, for the query parameters.
+     * @param request The request, for evaluating preconditions.
+     * @return Response with list of status messages, or 304 Not Modified.
+     */
+    @WebMethod(exclude = true)
+    @GET
+    @Path("getStatusSince/{time}")
+    @Produces("application/xml")
+    public Response getStatusSinceResponse(
+            @PathParam("time") final long time,
+            @Context UriInfo uriInfo,
+            @Context Request request) {
+        Query page = pageQuery("getStatusSince/" + time, time,
+                               uriInfo.getQueryParameters());
+        if (page != null) {
+            return respond(page, request);
+        }
+        return respond(new Query("getStatusSince/" + time) {
+            Status run(Surveyable surveyable) {
+                return surveyable.getStatusSince(time);
+            }
+
+            void write(Surveyable surveyable, OutputStream out)
+                    throws XMLStreamException {
+                if (surveyable instanceof StreamingSurveyable) {
+                    StatusXmlWriter.write(((StreamingSurveyable) surveyable)
+                            .iterateStatusSince(time), out);
+                } else {
+                    super.write(surveyable, out);
+                }
+            }
+        }, request);
+    }
+
+    /**
+     * Long-poll version of {@link #getStatusSince(long)}. Waits until there
+     * are messages newer than the given time, or the timeout expires, and
+     * then answers like getStatusSince. Only surveyables that are
+     * {@link WaitableSurveyable} are waited for.
+     *
+     * @param time Only get messages strictly newer than this timestamp. The
+     *             timestamp is measured in milliseconds since 1970-01-01 00:00:00.000Z.
+     * @param timeout Max time to wait, as milliseconds, or with the unit ms
+     *                or s, like "30s". At most {@link #MAX_WAIT_MILLIS}
+     *                milliseconds.
+     * @param uriInfo The request URI, for the query parameters.
+     * @param request The request, for evaluating preconditions.
+     * @return Response with list of status messages, or 304 Not Modified.
+     */
+    @WebMethod(exclude = true)
+    @GET
+    @Path("waitForStatusSince/{time}")
+    @Produces("application/xml")
+    public Response waitForStatusSinceResponse(
+            @PathParam("time") long time,
+            @QueryParam("timeout") @DefaultValue("30s") String timeout,
+            @Context UriInfo uriInfo,
+            @Context Request request) {
+        long millis = Math.min(parseWaitTimeout(timeout), MAX_WAIT_MILLIS);
+        Surveyable surveyable = SurveyableFactory.getSurveyable();
+        if (surveyable instanceof WaitableSurveyable && millis > 0
+                && waitingRequests.tryAcquire()) {
+            try {
+                ((WaitableSurveyable) surveyable).awaitStatusSince(
+                        time, millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waitingRequests.release();
+            }
+        }
+        return getStatusSinceResponse(time, uriInfo, request);
+    }
+
+    /**
+     * Stream new status messages as Server-Sent Events, until the client
+     * disconnects. If all subscriber slots are taken, answers 503 Service
+     * Unavailable.
+     *
+     * @param lastEventId The id of the last event the client received, when
+     *                    resuming. If not given, all messages the surveyable
+     *                    still has are sent first.
+     * @return Response streaming the events.
+     */
+    @WebMethod(exclude = true)
+    @GET
+    @Path("events")
+    @Produces("text/event-stream")
+    public Response getStatusEvents(
+            @HeaderParam("Last-Event-ID") @DefaultValue("0") long lastEventId) {
+        if (!subscribers.tryAcquire()) {
+            return Response.status(503).header("Retry-After", "30").build();
+        }
+        final StatusEventStream events = new StatusEventStream(
+                getEventSource(SurveyableFactory.getSurveyable()),
+                lastEventId);
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setNoCache(true);
+        return Response.ok(new StreamingOutput() {
+            public void write(OutputStream out) throws IOException {
+                try {
+                    events.write(out);
+                } finally {
+                    subscribers.release();
+                }
+            }
+        }, "text/event-stream").cacheControl(cacheControl).build();
+    }
+
+    /**
+     * Get the source of messages for event stream subscribers, shared by all
+     * subscribers of the same surveyable.
+     *
+     * @param surveyable The surveyable singleton.
+     * @return The source of its messages.
+     */
+    private static synchronized StatusEventSource getEventSource(
+            Surveyable surveyable) {
+        if (eventSource == null || eventSource.getSurveyable() != surveyable) {
+            eventSource = new StatusEventSource(surveyable);
+        }
+        return eventSource;
+    }
+
+    /**
+     * Parse the timeout of a long-poll request.
+     *
+     * @param timeout Milliseconds, or a number followed by ms or s.
+     * @return The timeout in milliseconds.
+     * @throws WebApplicationException with status 400 if the timeout cannot
+     * be parsed.
+     */
+    private static long parseWaitTimeout(String timeout) {
+        String value = timeout.trim();
+        long factor = 1L;
+        if (value.endsWith("ms")) {
+            value = value.substring(0, value.length() - 2);
+        } else if (value.endsWith("s")) {
+            value = value.substring(0, value.length() - 1);
+            factor = 1000L;
+        }
+        try {
+            return Long.parseLong(value.trim()) * factor;
+        } catch (NumberFormatException e) {
+            throw new WebApplicationException(e, 400);
+        }
+    }
+
+    /**
+     * REST version of {@link #getStatusAfter(long)}, with caching and
+     * conditional GET.
+     *
+     * @param sequence Only get messages with a higher sequence number.
+     * @param request The request, for evaluating preconditions.
+     * @return Response with list of status messages, or 304 Not Modified.
+     */
+    @WebMethod(exclude = true)
+    @GET
+    @Path("getStatusAfter/{sequence}")
+    @Produces("application/xml")
+    public Response getStatusAfterResponse(
+            @PathParam("sequence") final long sequence,
+            @Context Request request) {
+        return respond(new Query("getStatusAfter/" + sequence) {
+            Status run(Surveyable surveyable) {
+                return getStatusAfter(surveyable, sequence);
+            }
+        }, request);
+    }
+
+    /**
+     * REST version of {@link #getStatus()}, with caching and conditional GET.
+     * If any query parameters for paging or filtering are given, only the
+     * page of matching messages is returned.
+     *
+     * @param uriInfo The request URI, for the query parameters.
+     * @param request The request, for evaluating preconditions.
+     * @return Response with list of status messages, or 304 Not Modified.
+     */
+    @WebMethod(exclude = true)
     @GET
     @Path("getStatus")
     @Produces("application/xml")
-    public Status getStatus() {
-        return SurveyableFactory.getSurveyable().getStatus();
+    public Response getStatusResponse(@Context UriInfo uriInfo,
+                                      @Context Request request) {
+        Query page = pageQuery("getStatus", 0L, uriInfo.getQueryParameters());
+        if (page != null) {
+            return respond(page, request);
+        }
+        return respond(new Query("getStatus") {
+            Status run(Surveyable surveyable) {
+                return surveyable.getStatus();
+            }
+
+            void write(Surveyable surveyable, OutputStream out)
+                    throws XMLStreamException {
+                if (surveyable instanceof StreamingSurveyable) {
+                    StatusXmlWriter.write(((StreamingSurveyable) surveyable)
+                            .iterateStatusSince(0L), out);
+                } else {
+                    super.write(surveyable, out);
+                }
+            }
+        }, request);
+    }
+
+    /**
+     * REST version of {@link #getSummary()}. The counts change with time, so
+     * the response is neither cached nor given an ETag.
+     *
+     * @return Response with the counts.
+     */
+    @WebMethod(exclude = true)
+    @GET
+    @Path("getSummary")
+    @Produces("application/xml")
+    public Response getSummaryResponse() {
+        final StatusSummary summary
+                = getSummary(SurveyableFactory.getSurveyable());
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setNoCache(true);
+        return Response.ok(new StreamingOutput() {
+            public void write(OutputStream out) throws IOException {
+                try {
+                    StatusXmlWriter.write(summary, out);
+                } catch (XMLStreamException e) {
+                    throw new WebApplicationException(e, 500);
+                }
+            }
+        }, "application/xml").cacheControl(cacheControl).build();
+    }
+
+    /**
+     * Get the metrics of the surveyable, as lines of a name, a space and a
+     * value, ordered by name. Like the summary, the response is not cached.
+     *
+     * @param prefix Only metrics with names starting with this are
+     * returned. Default all.
+     * @return Response with the metrics, or 404 Not Found if the surveyable
+     * does not measure itself.
+     */
+    @WebMethod(exclude = true)
+    @GET
+    @Path("getMetrics")
+    @Produces("text/plain")
+    public Response getMetricsResponse(
+            @QueryParam("prefix") @DefaultValue("") String prefix) {
+        Surveyable surveyable = SurveyableFactory.getSurveyable();
+        if (!(surveyable instanceof MeteredSurveyable)) {
+            return Response.status(404).build();
+        }
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> entry
+                : ((MeteredSurveyable) surveyable).getMetrics().entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                text.append(entry.getKey()).append(' ')
+                        .append(entry.getValue()).append('\n');
+            }
+        }
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setNoCache(true);
+        return Response.ok(text.toString(), "text/plain")
+                .cacheControl(cacheControl).build();
+    }
+
+    /**
+     * Make a REST query for a page of messages, if any of the query
+     * parameters for paging or filtering are given.
+     *
+     * @param path The path of the request, used in the cache key.
+     * @param since Only get messages strictly newer than this timestamp.
+     * @param parameters The query parameters of the request.
+     * @return The query, or null if none of the parameters are given.
+     * @throws WebApplicationException with status 400 if a parameter is
+     * invalid.
+     */
+    private static Query pageQuery(String path, long since,
+                                   MultivaluedMap<String, String> parameters) {
+        StringBuilder key = new StringBuilder(path);
+        for (String name : PAGE_PARAMETERS) {
+            String value = parameters.getFirst(name);
+            if (value != null) {
+                key.append(key.length() == path.length() ? '?' : '&')
+                        .append(name).append('=').append(value);
+            }
+        }
+        if (key.length() == path.length()) {
+            return null;
+        }
+
+        final StatusQuery query = new StatusQuery();
+        query.setSince(since);
+        try {
+            String value = parameters.getFirst("limit");
+            if (value != null) {
+                query.setLimit(Integer.valueOf(value.trim()));
+            }
+            value = parameters.getFirst("newestFirst");
+            if (value != null) {
+                query.setNewestFirst(Boolean.valueOf(value.trim()));
+            }
+            query.setContinuation(parameters.getFirst("continuation"));
+            value = parameters.getFirst("minSeverity");
+            if (value != null) {
+                query.setMinSeverity(Severity.fromValue(
+                        value.trim().toUpperCase()));
+            }
+            value = parameters.getFirst("until");
+            if (value != null) {
+                query.setUntil(Long.valueOf(value.trim()));
+            }
+            query.setMessageContains(parameters.getFirst("messageContains"));
+            query.setMessagePattern(parameters.getFirst("messagePattern"));
+            value = parameters.getFirst("logMessage");
+            if (value != null) {
+                query.setLogMessage(Boolean.valueOf(value.trim()));
+            }
+            new StatusPageBuilder(query);
+        } catch (IllegalArgumentException e) {
+            throw new WebApplicationException(e, 400);
+        }
+        return new Query(key.toString()) {
+            Status run(Surveyable surveyable) {
+                return getStatusPage(surveyable, query);
+            }
+        };
+    }
+
+    /**
+     * Answer a REST query. If the surveyable is versioned, answer 304 Not
+     * Modified if the client has the current version, otherwise serve the
+     * cached response for the version, or stream the response and cache it
+     * if it is not too large. If the surveyable is not versioned, just
+     * stream the response.
+     *
+     * @param query The query.
+     * @param request The request, for evaluating preconditions.
+     * @return The response.
+     */
+    private Response respond(Query query, Request request) {
+        Surveyable surveyable = SurveyableFactory.getSurveyable();
+        long version = -1L;
+        if (surveyable instanceof VersionedSurveyable) {
+            version = ((VersionedSurveyable) surveyable).getVersion();
+        }
+        if (version < 0) {
+            return Response.ok(stream(query, surveyable, version, 0L),
+                               "application/xml").build();
+        }
+
+        EntityTag tag = new EntityTag(Long.toHexString(version));
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setNoCache(true);
+        Response.ResponseBuilder notModified
+                = request.evaluatePreconditions(tag);
+        if (notModified != null) {
+            return notModified.cacheControl(cacheControl).build();
+        }
+
+        StatusResponseCache.CachedResponse response
+                = responseCache.get(query.key, version);
+        if (response != null) {
+            return Response.ok(response.body, "application/xml").tag(tag)
+                    .lastModified(new Date(response.created))
+                    .cacheControl(cacheControl).build();
+        }
+        long created = System.currentTimeMillis();
+        return Response.ok(stream(query, surveyable, version, created),
+                           "application/xml").tag(tag)
+                .lastModified(new Date(created))
+                .cacheControl(cacheControl).build();
+    }
+
+    /**
+     * Make output that streams the response to a query. If the surveyable
+     * is versioned, the response is cached once written, unless it is too
+     * large, or the version changed while it was written. A combiner makes
+     * its version unknown when a surveyable fails, so a response reporting
+     * a failure is never cached.
+     *
+     * @param query The query.
+     * @param surveyable The surveyable to query.
+     * @param version The version of the surveyable, or negative if unknown.
+     * @param created Time the response is made.
+     * @return Output writing the response.
+     */
+    private StreamingOutput stream(final Query query,
+                                   final Surveyable surveyable,
+                                   final long version, final long created) {
+        return new StreamingOutput() {
+            public void write(OutputStream out) throws IOException {
+                StatusResponseCache.CapturingOutputStream capture = null;
+                if (version >= 0) {
+                    capture = new StatusResponseCache.CapturingOutputStream(
+                            out);
+                    out = capture;
+                }
+                try {
+                    query.write(surveyable, out);
+                } catch (XMLStreamException e) {
+                    throw new WebApplicationException(e, 500);
+                }
+                byte[] body = capture == null ? null : capture.getCopy();
+                if (body != null && ((VersionedSurveyable) surveyable)
+                        .getVersion() == version) {
+                    responseCache.put(query.key, version, body, created);
+                }
+            }
+        };
+    }
+
+    /** A REST query on the surveyable, identified by a cache key. */
+    private abstract static class Query {
+        /** Key identifying the query in the response cache. */
+        private final String key;
+
+        /**
+         * Create a query.
+         *
+         * @param key Key identifying the query in the response cache.
+         */
+        Query(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Run the query.
+         *
+         * @param surveyable The surveyable to query.
+         * @return The status.
+         */
+        abstract Status run(Surveyable surveyable);
+
+        /**
+         * Run the query, and write the status as XML. Queries that can read
+         * the messages while writing them override this.
+         *
+         * @param surveyable The surveyable to query.
+         * @param out The stream to write to.
+         * @throws XMLStreamException on trouble writing the XML.
+         */
+        void write(Surveyable surveyable, OutputStream out)
+                throws XMLStreamException {
+            StatusXmlWriter.write(run(surveyable), out);
+        }
     }
 }
@@ -0,0 +1,197 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package dk.statsbiblioteket.doms.domsutil.surveyable;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests of sharing new status messages between event stream clients. */
+public class StatusEventSourceTest {
+    /** The surveyable read from. */
+    private CountingSurveyable surveyable;
+
+    /** The source under test. */
+    private StatusEventSource source;
+
+    /** Create a source of a surveyable without messages. */
+    @Before
+    public void setUp() {
+        surveyable = new CountingSurveyable();
+        source = new StatusEventSource(surveyable);
+    }
+
+    /** New messages are read from the surveyable once for all clients. */
+    @Test
+    public void testReadOnceForAllClients() throws Exception {
+        surveyable.add(3);
+        long first = source.getPositionAfter(0L);
+        long second = source.getPositionAfter(0L);
+        assertEquals(1, surveyable.reads);
+        assertEquals(3L, source.getEnd() - first);
+        assertEquals(3L, source.getEnd() - second);
+
+        surveyable.add(2);
+        assertTrue(source.await(first + 3, 1000L));
+        assertTrue(source.await(second + 3, 1000L));
+        assertEquals(2, surveyable.reads);
+        assertEquals(5L, source.getEnd() - second);
+        assertEquals(Long.valueOf(4L),
+                     source.getMessage(second + 3).getSequence());
+    }
+
+    /** A client resuming gets the messages after its last event id. */
+    @Test
+    public void testResume() throws Exception {
+        surveyable.add(5);
+        long position = source.getPositionAfter(3L);
+        assertEquals(2L, source.getEnd() - position);
+        assertEquals(Long.valueOf(4L),
+                     source.getMessage(position).getSequence());
+        assertFalse(source.isLostAfter(3L));
+    }
+
+    /** Clients behind the window are told exactly how many were lost. */
+    @Test
+    public void testLost() throws Exception {
+        surveyable.add(1);
+        long position = source.getPositionAfter(0L);
+        surveyable.add(StatusEventSource.MAX_MESSAGES + 9);
+        assertTrue(source.await(position + 1, 1000L));
+        assertNull(source.getMessage(position));
+        assertEquals(10L, source.getLost(position));
+        assertEquals(10L, source.getResumeSequence());
+        assertTrue(source.isLostAfter(5L));
+        assertFalse(source.isLostAfter(10L));
+    }
+
+    /** Positions keep counting when the window wraps around. */
+    @Test
+    public void testWrapAround() throws Exception {
+        surveyable.add(StatusEventSource.MAX_MESSAGES);
+        long position = source.getPositionAfter(0L);
+        surveyable.add(StatusEventSource.MAX_MESSAGES + 1);
+        assertTrue(source.await(source.getEnd(), 1000L));
+        long end = source.getEnd();
+        assertEquals(position + 2 * StatusEventSource.MAX_MESSAGES + 1, end);
+        assertNull(source.getMessage(end - StatusEventSource.MAX_MESSAGES - 1));
+        for (long i = end - StatusEventSource.MAX_MESSAGES; i < end; i++) {
+            assertEquals(Long.valueOf(i + 1L),
+                         source.getMessage(i).getSequence());
+        }
+        assertEquals(end - 1, source.getPositionAfter(end - 1));
+    }
+
+    /** A surveyable that fails ends the stream without throwing. */
+    @Test
+    public void testStreamSurveyableFails() throws Exception {
+        surveyable.failing = true;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new StatusEventStream(source, 0L).write(out);
+        assertEquals(0, out.size());
+    }
+
+    /** A surveyable numbering its messages, counting reads. */
+    private static class CountingSurveyable
+            implements SequencedSurveyable {
+        /** The messages. */
+        private final Status status = new Status();
+
+        /** Number of calls to getStatusAfter. */
+        private int reads = 0;
+
+        /** Whether getStatusAfter fails. */
+        private boolean failing = false;
+
+        /** Create a surveyable without messages. */
+        CountingSurveyable() {
+            status.setName("Counting");
+            status.setHighWaterMark(0L);
+        }
+
+        /**
+         * Add numbered messages.
+         *
+         * @param count The number of messages to add.
+         */
+        synchronized void add(int count) {
+            for (int i = 0; i < count; i++) {
+                long sequence = status.getHighWaterMark() + 1;
+                StatusMessage message = new StatusMessage();
+                message.setMessage("Message " + sequence);
+                message.setSeverity(Severity.GREEN);
+                message.setTime(sequence);
+                message.setSequence(sequence);
+                status.getMessages().add(message);
+                status.setHighWaterMark(sequence);
+            }
+        }
+
+        /**
+         * @param time Ignored.
+         * @return All messages.
+         */
+        public Status getStatusSince(long time) {
+            return status;
+        }
+
+        /**
+         * Get messages with a higher sequence number, counting the call.
+         *
+         * @param sequence Only messages with a higher number are returned.
+         * @return The status.
+         */
+        public synchronized Status getStatusAfter(long sequence) {
+            reads++;
+            if (failing) {
+                throw new IllegalStateException("Failing");
+            }
+            Status result = new Status();
+            result.setName(status.getName());
+            result.setHighWaterMark(status.getHighWaterMark());
+            for (StatusMessage message : status.getMessages()) {
+                if (message.getSequence() > sequence) {
+                    result.getMessages().add(message);
+                }
+            }
+            return result;
+        }
+
+        /** @return All messages. */
+        public Status getStatus() {
+            return status;
+        }
+    }
+}
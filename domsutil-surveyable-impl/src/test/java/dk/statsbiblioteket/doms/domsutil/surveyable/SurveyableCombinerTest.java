@@ -0,0 +1,485 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2010  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package dk.statsbiblioteket.doms.domsutil.surveyable;
+
+import dk.statsbiblioteket.sbutil.webservices.configuration.ConfigCollection;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests of reading combined status messages after a sequence number. */
+public class SurveyableCombinerTest {
+    /** The combiner under test. */
+    private SurveyableCombiner combiner;
+
+    /** Configure the combiner to survey two numbered surveyables. */
+    @Before
+    public void setUp() {
+        Fast.reset(1L);
+        Slow.reset(1000L);
+        Plain.stateTime = 1L;
+        Properties properties = new Properties();
+        properties.setProperty(
+                "dk.statsbiblioteket.doms.domsutil.surveyable.surveyables",
+                Fast.class.getName() + ";" + Slow.class.getName());
+        ConfigCollection.addContextConfig(properties);
+        combiner = new SurveyableCombiner();
+    }
+
+    /**
+     * Polling two surveyables with different sequence numbers returns each
+     * message once, numbered without gaps.
+     */
+    @Test
+    public void testGetStatusAfterNoDuplicatesNoGaps() {
+        Set<String> expected = new HashSet<String>();
+        List<String> seen = new ArrayList<String>();
+        long sequence = 0L;
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < round % 3 + 1; i++) {
+                expected.add(Fast.add(round * 10 + i));
+            }
+            for (int i = 0; i < round % 2; i++) {
+                expected.add(Slow.add(round * 10 + i));
+            }
+            Status status = combiner.getStatusAfter(sequence);
+            for (StatusMessage message : status.getMessages()) {
+                assertEquals("Messages must be numbered without gaps",
+                             Long.valueOf(sequence + seen.size() + 1),
+                             message.getSequence());
+                seen.add(message.getMessage());
+            }
+            sequence += seen.size();
+            seen.clear();
+            assertEquals(Long.valueOf(sequence), status.getHighWaterMark());
+            Status again = combiner.getStatusAfter(sequence);
+            assertTrue("No messages must be returned twice",
+                       again.getMessages().isEmpty());
+        }
+        assertEquals(expected.size(), sequence);
+    }
+
+    /**
+     * All messages are returned, in order of time, and the messages of the
+     * surveyables keep their own sequence numbers.
+     */
+    @Test
+    public void testGetStatusAfterOrdersByTime() {
+        Set<String> expected = new HashSet<String>();
+        expected.add(Slow.add(2L));
+        expected.add(Fast.add(1L));
+        expected.add(Fast.add(3L));
+
+        Status status = combiner.getStatusAfter(0L);
+        Set<String> seen = new HashSet<String>();
+        long time = 0L;
+        for (StatusMessage message : status.getMessages()) {
+            assertTrue(message.getTime() >= time);
+            time = message.getTime();
+            assertTrue(seen.add(message.getMessage()));
+        }
+        assertEquals(expected, seen);
+        assertEquals(Long.valueOf(1000L),
+                     Slow.status.getMessages().get(0).getSequence());
+    }
+
+    /** Callers that are behind get the messages they missed. */
+    @Test
+    public void testGetStatusAfterBehind() {
+        Fast.add(1L);
+        Slow.add(2L);
+        combiner.getStatusAfter(0L);
+        Fast.add(3L);
+        Status status = combiner.getStatusAfter(1L);
+        assertEquals(2, status.getMessages().size());
+        assertEquals(Long.valueOf(2L),
+                     status.getMessages().get(0).getSequence());
+        assertEquals(Long.valueOf(3L), status.getHighWaterMark());
+    }
+
+    /** A sequence number from before a restart returns all messages. */
+    @Test
+    public void testGetStatusAfterRestart() {
+        Fast.add(1L);
+        Slow.add(2L);
+        Status status = combiner.getStatusAfter(4711L);
+        assertEquals(2, status.getMessages().size());
+        assertEquals(Long.valueOf(2L), status.getHighWaterMark());
+    }
+
+    /** Messages without sequence number are returned on every call. */
+    @Test
+    public void testGetStatusAfterCurrentState() {
+        StatusMessage state = new StatusMessage();
+        state.setMessage("Running");
+        state.setSeverity(Severity.GREEN);
+        Fast.status.getMessages().add(state);
+        Fast.add(1L);
+
+        Status status = combiner.getStatusAfter(0L);
+        assertEquals(2, status.getMessages().size());
+        assertNull(status.getMessages().get(0).getSequence());
+        status = combiner.getStatusAfter(status.getHighWaterMark());
+        assertEquals(1, status.getMessages().size());
+        assertFalse(status.getMessages().get(0).isLogMessage());
+    }
+
+    /** An invalid query is the client's error, not a configuration error. */
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetStatusPageInvalidQuery() {
+        StatusQuery query = new StatusQuery();
+        query.setContinuation("not a continuation");
+        combiner.getStatusPage(query);
+    }
+
+    /**
+     * An interrupt while waiting for the surveyables is kept, and reported
+     * as an interrupt, not as a configuration error.
+     */
+    @Test
+    public void testGetStatusSinceInterrupted() {
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        // Keep the executor busy, so the surveyables are never asked
+        executor.submit(new Callable<Object>() {
+            public Object call() throws InterruptedException {
+                release.await();
+                return null;
+            }
+        });
+        try {
+            SurveyableCombiner blocked = new SurveyableCombiner(executor);
+            Thread.currentThread().interrupt();
+            Status status = blocked.getStatusSince(0L);
+            assertTrue("Interrupt must be kept", Thread.interrupted());
+            assertEquals(1, status.getMessages().size());
+            assertEquals(Severity.YELLOW,
+                         status.getMessages().get(0).getSeverity());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * A surveyable that does not number its messages is asked for all its
+     * messages, and is not reported as failing.
+     */
+    @Test
+    public void testGetStatusAfterNotSequenced() {
+        Properties properties = new Properties();
+        properties.setProperty(
+                "dk.statsbiblioteket.doms.domsutil.surveyable.surveyables",
+                Plain.class.getName());
+        ConfigCollection.addContextConfig(properties);
+        SurveyableCombiner plain = new SurveyableCombiner();
+
+        Status status = plain.getStatusAfter(0L);
+        assertEquals(1, status.getMessages().size());
+        assertEquals("Plain", status.getMessages().get(0).getMessage());
+        assertEquals(Severity.GREEN,
+                     status.getMessages().get(0).getSeverity());
+    }
+
+    /**
+     * The page of a surveyable that cannot be queried is made from its
+     * messages since the time of the query.
+     */
+    @Test
+    public void testGetStatusPageNotQueryable() {
+        Properties properties = new Properties();
+        properties.setProperty(
+                "dk.statsbiblioteket.doms.domsutil.surveyable.surveyables",
+                Plain.class.getName() + ";" + Fast.class.getName());
+        ConfigCollection.addContextConfig(properties);
+        SurveyableCombiner plain = new SurveyableCombiner();
+        Fast.add(2L);
+        Fast.add(3L);
+
+        StatusQuery query = new StatusQuery();
+        query.setLimit(2);
+        Status status = plain.getStatusPage(query);
+        assertEquals(2, status.getMessages().size());
+        assertEquals("Plain", status.getMessages().get(0).getMessage());
+        assertTrue(status.isHasMore());
+
+        query.setSince(1L);
+        status = plain.getStatusPage(query);
+        assertEquals(2, status.getMessages().size());
+        assertEquals(2L, status.getMessages().get(0).getTime());
+    }
+
+    /**
+     * The messages of a surveyable that does not count them are counted from
+     * its status.
+     */
+    @Test
+    public void testGetSummaryNotSummarizing() {
+        Properties properties = new Properties();
+        properties.setProperty(
+                "dk.statsbiblioteket.doms.domsutil.surveyable.surveyables",
+                Plain.class.getName());
+        ConfigCollection.addContextConfig(properties);
+        SurveyableCombiner plain = new SurveyableCombiner();
+        Plain.stateTime = System.currentTimeMillis();
+
+        StatusSummary summary = plain.getSummary();
+        assertEquals(Severity.GREEN, summary.getWorstSeverity());
+        long green = 0L;
+        for (SeverityCount count : summary.getCounts()) {
+            if (count.getMinutes() == 1
+                    && count.getSeverity() == Severity.GREEN) {
+                green = count.getCount();
+            }
+        }
+        assertEquals(1L, green);
+    }
+
+    /** Without surveyables that can wait, waiting returns at once. */
+    @Test
+    public void testAwaitWithoutWaitables() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        assertFalse(combiner.awaitStatusSince(0L, 10000L));
+        assertFalse(combiner.awaitStatusAfter(0L, 10000L));
+        assertTrue("Must not sleep until the timeout",
+                   System.currentTimeMillis() - start < 5000L);
+    }
+
+    /**
+     * A surveyable that numbers its messages from its own counter. The
+     * combiner identifies surveyables by class name, so each instance needs
+     * its own class.
+     */
+    public abstract static class NumberedSurveyable
+            implements SequencedSurveyable, QueryableSurveyable,
+                       SummarizingSurveyable {
+        /**
+         * Get the status of the surveyable.
+         *
+         * @return The status.
+         */
+        protected abstract Status getOwnStatus();
+
+        /**
+         * Get messages newer than time.
+         *
+         * @param time Only messages strictly after this are returned.
+         * @return The status.
+         */
+        public Status getStatusSince(long time) {
+            Status result = new Status();
+            result.setName(getOwnStatus().getName());
+            for (StatusMessage message : getOwnStatus().getMessages()) {
+                if (message.getTime() > time) {
+                    result.getMessages().add(message);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Get messages with a higher sequence number, and messages without
+         * sequence number.
+         *
+         * @param sequence Only messages with a higher number are returned.
+         * @return The status.
+         */
+        public Status getStatusAfter(long sequence) {
+            Status result = new Status();
+            result.setName(getOwnStatus().getName());
+            result.setHighWaterMark(getOwnStatus().getHighWaterMark());
+            for (StatusMessage message : getOwnStatus().getMessages()) {
+                if (message.getSequence() == null
+                        || message.getSequence() > sequence) {
+                    result.getMessages().add(message);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @param query The query.
+         * @return A page of the messages.
+         */
+        public Status getStatusPage(StatusQuery query) {
+            return StatusPageBuilder.page(getStatus(), query);
+        }
+
+        /** @return The counts of the messages. */
+        public StatusSummary getSummary() {
+            return SeverityCounters.summarize(
+                    getOwnStatus().getMessages(), System.currentTimeMillis(),
+                    getOwnStatus().getName());
+        }
+
+        /** @return All messages. */
+        public Status getStatus() {
+            return getStatusSince(0L);
+        }
+
+        /**
+         * Create a status with no messages.
+         *
+         * @param name The name of the status.
+         * @param first The first sequence number to give.
+         * @return The status, with a high-water mark just before the first
+         * sequence number.
+         */
+        static Status create(String name, long first) {
+            Status status = new Status();
+            status.setName(name);
+            status.setHighWaterMark(first - 1);
+            return status;
+        }
+
+        /**
+         * Add a numbered message to a status.
+         *
+         * @param status The status.
+         * @param time The time of the message.
+         * @return The text of the message, which is unique.
+         */
+        static synchronized String add(Status status, long time) {
+            long sequence = status.getHighWaterMark() + 1;
+            StatusMessage message = new StatusMessage();
+            message.setMessage(status.getName() + " " + sequence);
+            message.setSeverity(Severity.YELLOW);
+            message.setTime(time);
+            message.setLogMessage(true);
+            message.setSequence(sequence);
+            status.getMessages().add(message);
+            status.setHighWaterMark(sequence);
+            return message.getMessage();
+        }
+    }
+
+    /** A surveyable numbering its messages from 1. */
+    public static class Fast extends NumberedSurveyable {
+        /** The messages of all instances. */
+        static Status status;
+
+        /**
+         * Remove all messages.
+         *
+         * @param first The first sequence number to give.
+         */
+        static void reset(long first) {
+            status = create("Fast", first);
+        }
+
+        /**
+         * Add a message.
+         *
+         * @param time The time of the message.
+         * @return The text of the message.
+         */
+        static String add(long time) {
+            return add(status, time);
+        }
+
+        /** @return The messages. */
+        protected Status getOwnStatus() {
+            return status;
+        }
+    }
+
+    /** A surveyable numbering its messages from 1000. */
+    public static class Slow extends NumberedSurveyable {
+        /** The messages of all instances. */
+        static Status status;
+
+        /**
+         * Remove all messages.
+         *
+         * @param first The first sequence number to give.
+         */
+        static void reset(long first) {
+            status = create("Slow", first);
+        }
+
+        /**
+         * Add a message.
+         *
+         * @param time The time of the message.
+         * @return The text of the message.
+         */
+        static String add(long time) {
+            return add(status, time);
+        }
+
+        /** @return The messages. */
+        protected Status getOwnStatus() {
+            return status;
+        }
+    }
+
+    /** A surveyable that only knows its current state. */
+    public static class Plain implements Surveyable {
+        /** The time of the state of all instances. */
+        static long stateTime;
+
+        /**
+         * Get the current state, if it is newer than time.
+         *
+         * @param time Only messages strictly after this are returned.
+         * @return The status.
+         */
+        public Status getStatusSince(long time) {
+            Status result = new Status();
+            result.setName("Plain");
+            StatusMessage message = new StatusMessage();
+            message.setMessage("Plain");
+            message.setSeverity(Severity.GREEN);
+            message.setTime(stateTime);
+            if (message.getTime() > time) {
+                result.getMessages().add(message);
+            }
+            return result;
+        }
+
+        /** @return The current state. */
+        public Status getStatus() {
+            return getStatusSince(0L);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveyable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values, such as latencies in nanoseconds or
+ * sizes in bytes, with buckets in the style of HdrHistogram.
+ *
+ * Values below 32 have a bucket each. Above that, each power of two is
+ * split into 32 buckets of equal width, so a value is known to within about
+ * 3% however large it is, and the histogram has a fixed size. Values of
+ * 2^40 or more share the last bucket, but the largest value recorded is
+ * kept exactly.
+ *
+ * Recording a value takes no lock. Like {@link StripedCounter}, the buckets
+ * are striped by thread, so threads recording at the same time do not
+ * contend on the same values. A snapshot adds up the stripes.
+ */
+public class Histogram {
+    /** Buckets per power of two. */
+    private static final int SUB_BUCKETS = 32;
+
+    /** log2 of SUB_BUCKETS. */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /** Values from 2 to the power of this share the last bucket. */
+    private static final int MAX_EXPONENT = 40;
+
+    /** Number of buckets in each stripe. */
+    private static final int BUCKETS
+            = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    /** Number of stripes. A power of two. */
+    private static final int STRIPES = Math.min(8, StripedCounter.STRIPES);
+
+    /** The counts of the buckets, one stripe after the other. */
+    private final AtomicLongArray counts
+            = new AtomicLongArray(STRIPES * BUCKETS);
+
+    /** The sum of the values recorded. */
+    private final StripedCounter sum = new StripedCounter();
+
+    /** The largest value recorded. */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value.
+     *
+     * @param value The value. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0L) {
+            value = 0L;
+        }
+        int stripe = StripedCounter.stripe() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * BUCKETS + getBucket(value));
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Take a snapshot of the values recorded so far.
+     *
+     * @return The snapshot.
+     */
+    public Snapshot getSnapshot() {
+        long[] buckets = new long[BUCKETS];
+        long count = 0L;
+        for (int i = 0; i < STRIPES * BUCKETS; i++) {
+            long bucketCount = counts.get(i);
+            buckets[i % BUCKETS] += bucketCount;
+            count += bucketCount;
+        }
+        return new Snapshot(buckets, count, sum.get(), max.get());
+    }
+
+    /**
+     * Get the bucket of a value.
+     *
+     * @param value The value. Not negative.
+     * @return The index of the bucket.
+     */
+    static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS))
+                - SUB_BUCKETS;
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Get the largest value that goes in a bucket.
+     *
+     * @param bucket The index of the bucket.
+     * @return The largest value of the bucket.
+     */
+    static long getHighestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        if (bucket == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS))
+                - 1;
+    }
+
+    /** The values of a histogram at one point in time. */
+    public static class Snapshot {
+        /** The counts of the buckets. */
+        private final long[] buckets;
+
+        /** Number of values. */
+        private final long count;
+
+        /** Sum of the values. */
+        private final long sum;
+
+        /** The largest value. */
+        private final long max;
+
+        /**
+         * Create a snapshot.
+         *
+         * @param buckets The counts of the buckets.
+         * @param count Number of values.
+         * @param sum Sum of the values.
+         * @param max The largest value.
+         */
+        private Snapshot(long[] buckets, long count, long sum, long max) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * Get the number of values recorded.
+         *
+         * @return The number of values.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Get the sum of the values recorded.
+         *
+         * @return The sum.
+         */
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * Get the largest value recorded.
+         *
+         * @return The largest value, or 0 if none.
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Get the mean of the values recorded.
+         *
+         * @return The mean, rounded down, or 0 if none.
+         */
+        public long getMean() {
+            return count == 0L ? 0L : sum / count;
+        }
+
+        /**
+         * Get the value that the given percentage of the values recorded are
+         * at or below. This is the largest value of the bucket the
+         * percentile falls in, so it may be up to about 3% too high, but
+         * never higher than the largest value recorded.
+         *
+         * @param percentile The percentage, from 0 to 100.
+         * @return The value, or 0 if none.
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0L) {
+                return 0L;
+            }
+            long rank = Math.max(1L, (long) Math.ceil(
+                    Math.min(100.0, percentile) / 100.0 * count));
+            long seen = 0L;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(max, getHighestValue(i));
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveyable;
+
+import java.util.Iterator;
+
+/** A status iterator over the messages of a status already in memory. */
+public class ListStatusIterator implements StatusIterator {
+    /** The name of the status. */
+    private final String name;
+
+    /** The high-water mark of the status. */
+    private final Long highWaterMark;
+
+    /** Iterator over the messages. */
+    private final Iterator<StatusMessage> messages;
+
+    /**
+     * Iterate over the messages of a status.
+     *
+     * @param status The status.
+     */
+    public ListStatusIterator(Status status) {
+        this.name = status.getName();
+        this.highWaterMark = status.getHighWaterMark();
+        this.messages = status.getMessages().iterator();
+    }
+
+    /**
+     * Get the name of the status.
+     *
+     * @return The name of the status. May be null.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the high-water mark of the status.
+     *
+     * @return The high-water mark. Null if the status has none.
+     */
+    public Long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Whether there are more messages.
+     *
+     * @return True if there are more messages.
+     */
+    public boolean hasNext() {
+        return messages.hasNext();
+    }
+
+    /**
+     * Get the next message.
+     *
+     * @return The next message.
+     */
+    public StatusMessage next() {
+        return messages.next();
+    }
+
+    /** Not supported. */
+    public void remove() {
+        throw new UnsupportedOperationException("Status is read only");
+    }
+}
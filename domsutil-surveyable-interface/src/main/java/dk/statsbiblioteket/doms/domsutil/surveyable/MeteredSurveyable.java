@@ -0,0 +1,48 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveyable;
+
+import java.util.SortedMap;
+
+/**
+ * A surveyable that measures its own cost, such as the time taken to
+ * register and survey messages, and how many messages it keeps.
+ *
+ * The metrics are meant for sizing and tuning the surveillance itself, not
+ * for the status of the surveyed service, so they are not part of the SOAP
+ * interface. The REST webservice serves them as plain text.
+ */
+public interface MeteredSurveyable extends Surveyable {
+    /**
+     * Read the current values of the metrics of this surveyable, as
+     * described by {@link Metrics#getSnapshot()}.
+     *
+     * @return The values, by name.
+     */
+    SortedMap<String, Long> getMetrics();
+}
@@ -0,0 +1,176 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveyable;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Named counters, histograms and gauges measuring the surveillance code
+ * itself, for {@link MeteredSurveyable}.
+ *
+ * Counters and histograms are created the first time they are asked for,
+ * and should be kept by the caller, since looking them up by name costs a
+ * map lookup. Updating them takes no lock.
+ *
+ * A snapshot reads all of them into a sorted map from name to value. A
+ * counter or gauge is a single entry. A histogram is an entry for each of
+ * the statistics in {@link #HISTOGRAM_STATISTICS}, named by the name of the
+ * histogram, a dot and the statistic, like <code>latency.p99</code>.
+ */
+public class Metrics {
+    /** The statistics of each histogram in a snapshot. */
+    public static final String[] HISTOGRAM_STATISTICS
+            = {"count", "mean", "p50", "p90", "p99", "p999", "max"};
+
+    /** The counters, by name. */
+    private final ConcurrentMap<String, StripedCounter> counters
+            = new ConcurrentHashMap<String, StripedCounter>();
+
+    /** The histograms, by name. */
+    private final ConcurrentMap<String, Histogram> histograms
+            = new ConcurrentHashMap<String, Histogram>();
+
+    /** The gauges, by name. */
+    private final ConcurrentMap<String, Gauge> gauges
+            = new ConcurrentHashMap<String, Gauge>();
+
+    /** A value read when a snapshot is taken. */
+    public interface Gauge {
+        /**
+         * Read the value. Called by whichever thread takes the snapshot.
+         *
+         * @return The current value.
+         */
+        long getValue();
+    }
+
+    /**
+     * Get the counter with the given name, creating it if needed.
+     *
+     * @param name The name of the counter.
+     * @return The counter.
+     */
+    public StripedCounter getCounter(String name) {
+        StripedCounter counter = counters.get(name);
+        if (counter == null) {
+            StripedCounter created = new StripedCounter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Get the histogram with the given name, creating it if needed.
+     *
+     * @param name The name of the histogram.
+     * @return The histogram.
+     */
+    public Histogram getHistogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Register a gauge, replacing any gauge with the same name.
+     *
+     * @param name The name of the gauge.
+     * @param gauge The gauge.
+     */
+    public void setGauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Read all counters, histograms and gauges.
+     *
+     * @return The values, by name.
+     */
+    public SortedMap<String, Long> getSnapshot() {
+        return getSnapshot("");
+    }
+
+    /**
+     * Read the counters, histograms and gauges with names starting with the
+     * given prefix.
+     *
+     * @param prefix The prefix. The empty string for all.
+     * @return The values, by name.
+     */
+    public SortedMap<String, Long> getSnapshot(String prefix) {
+        SortedMap<String, Long> snapshot = new TreeMap<String, Long>();
+        for (Map.Entry<String, StripedCounter> entry : counters.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                snapshot.put(entry.getKey(), entry.getValue().get());
+            }
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                snapshot.put(entry.getKey(), entry.getValue().getValue());
+            }
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                put(snapshot, entry.getKey(),
+                    entry.getValue().getSnapshot());
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Add the statistics of a histogram to a snapshot.
+     *
+     * @param snapshot The snapshot.
+     * @param name The name of the histogram.
+     * @param histogram The values of the histogram.
+     */
+    private static void put(Map<String, Long> snapshot, String name,
+                            Histogram.Snapshot histogram) {
+        snapshot.put(name + ".count", histogram.getCount());
+        snapshot.put(name + ".mean", histogram.getMean());
+        snapshot.put(name + ".p50", histogram.getPercentile(50.0));
+        snapshot.put(name + ".p90", histogram.getPercentile(90.0));
+        snapshot.put(name + ".p99", histogram.getPercentile(99.0));
+        snapshot.put(name + ".p999", histogram.getPercentile(99.9));
+        snapshot.put(name + ".max", histogram.getMax());
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.domsutil.surveyable;
+
+/**
+ * A surveyable that can filter and page its status messages itself, so
+ * callers only get the messages they ask for.
+ *
+ * Callers of surveyables that cannot be queried can get the messages with
+ * {@link Surveyable#getStatusSince(long)} and make the page with
+ * {@link StatusPageBuilder#page(Status, StatusQuery)} instead.
+ */
+public interface QueryableSurveyable extends Surveyable {
+    /**
+     * Get one page of the status messages newer than the given time, at most
+     * limit messages, oldest first or newest first. If there are more
+     * messages, the returned status has hasMore set, and a continuation to
+     * put in the query to get the next page. The messages can be filtered on
+     * a minimum severity, a time window from since to until, text the
+     * message contains or a regular expression it matches, and whether it is
+     * a log message. Leave out all fields of the query to get all messages.
+     *
+     * @param query The query. Null for all messages, oldest first.
+     * @return The page of status messages. May be empty, but never null.
+     * @throws IllegalArgumentException if the query is invalid.
+     */
+    Status getStatusPage(StatusQuery query);
+}
@@ -0,0 +1,52 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.domsutil.surveyable;
+
+/**
+ * A surveyable that numbers its status messages, so callers can continue
+ * from the last message they got instead of from a timestamp.
+ *
+ * Callers of surveyables that are not sequenced can get all their messages
+ * with {@link Surveyable#getStatusSince(long)} instead.
+ */
+public interface SequencedSurveyable extends Surveyable {
+    /**
+     * Get all status messages with a sequence number higher than the given
+     * one, ordered by sequence number. The returned status has the
+     * high-water mark to use as input to this method next time, to get
+     * exactly the new messages, without losing or repeating any.
+     *
+     * Messages without a sequence number, which report current state rather
+     * than events, are returned on every call.
+     *
+     * @param sequence Only get messages with a higher sequence number. Use 0
+     * to get all messages.
+     * @return List of status messages, and the high-water mark. May be
+     * empty, but never null.
+     */
+    Status getStatusAfter(long sequence);
+}
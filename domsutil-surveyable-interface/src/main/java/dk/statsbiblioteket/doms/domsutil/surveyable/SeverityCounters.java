@@ -0,0 +1,219 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveyable;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts status messages of each severity in sliding windows of the last 1,
+ * 5 and 15 minutes, for {@link SummarizingSurveyable#getSummary()}.
+ *
+ * The counts are kept in a ring of buckets of one minute each. Counting a
+ * message is a single increment, and a summary adds up at most 15 buckets
+ * for each severity, so neither depends on the number of messages. The
+ * window of n minutes covers the current minute and the n - 1 minutes before
+ * it.
+ *
+ * Counting takes no lock. The first message counted in a new minute clears
+ * the bucket of that minute, and a message counted by another thread at the
+ * same time may be lost. The counts are meant for surveillance, where this
+ * does not matter.
+ *
+ * The static methods summarize messages for surveyables that do not count
+ * them as they arrive, and sum the summaries of several surveyables.
+ */
+public class SeverityCounters {
+    /** The windows summarized, in minutes. */
+    public static final int[] WINDOWS = {1, 5, 15};
+
+    /** Milliseconds in a bucket. */
+    private static final long MINUTE = 60000L;
+
+    /** Number of buckets. At least the largest window. */
+    private static final int BUCKETS = 16;
+
+    /** The severities, reported worst first. */
+    private static final Severity[] SEVERITIES
+            = {Severity.RED, Severity.YELLOW, Severity.GREEN};
+
+    /** The minute counted in each bucket. */
+    private final AtomicLongArray minutes = new AtomicLongArray(BUCKETS);
+
+    /** The counts of each bucket, by severity ordinal within the bucket. */
+    private final AtomicLongArray counts
+            = new AtomicLongArray(BUCKETS * SEVERITIES.length);
+
+    /**
+     * Count a message.
+     *
+     * @param severity The severity of the message. Null is not counted.
+     * @param time The time of the message.
+     */
+    public void add(Severity severity, long time) {
+        add(severity, time, 1L);
+    }
+
+    /**
+     * Count a number of messages with the same severity and time.
+     *
+     * @param severity The severity of the messages. Null is not counted.
+     * @param time The time of the messages.
+     * @param count The number of messages.
+     */
+    public void add(Severity severity, long time, long count) {
+        if (severity == null || count <= 0 || time < 0) {
+            return;
+        }
+        long minute = time / MINUTE;
+        int bucket = (int) (minute % BUCKETS);
+        long counted = minutes.get(bucket);
+        if (counted != minute) {
+            if (counted > minute) {
+                // Older than any window
+                return;
+            }
+            if (minutes.compareAndSet(bucket, counted, minute)) {
+                for (int i = 0; i < SEVERITIES.length; i++) {
+                    counts.set(bucket * SEVERITIES.length + i, 0L);
+                }
+            }
+        }
+        counts.addAndGet(bucket * SEVERITIES.length + severity.ordinal(),
+                         count);
+    }
+
+    /**
+     * Summarize the counts. The worst severity is the worst counted in the
+     * last minute, or GREEN if none.
+     *
+     * @param time The current time.
+     * @param name The name of the summary.
+     * @return The counts of each severity in each window.
+     */
+    public StatusSummary getSummary(long time, String name) {
+        StatusSummary summary = new StatusSummary();
+        summary.setName(name);
+        summary.setTime(time);
+        summary.setWorstSeverity(Severity.GREEN);
+        long minute = time / MINUTE;
+        for (int window : WINDOWS) {
+            for (Severity severity : SEVERITIES) {
+                long count = 0L;
+                for (long m = minute - window + 1; m <= minute; m++) {
+                    int bucket = (int) (m % BUCKETS);
+                    if (m >= 0 && minutes.get(bucket) == m) {
+                        count += counts.get(bucket * SEVERITIES.length
+                                            + severity.ordinal());
+                    }
+                }
+                summary.getCounts().add(newCount(severity, window, count));
+                if (window == WINDOWS[0] && count > 0
+                        && !StatusPageBuilder.isAtLeast(
+                                summary.getWorstSeverity(), severity)) {
+                    summary.setWorstSeverity(severity);
+                }
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Summarize the given messages, as if they had been counted as they
+     * arrived. Messages aggregating repeated messages count as their count.
+     *
+     * @param messages The messages.
+     * @param time The current time.
+     * @param name The name of the summary.
+     * @return The counts of each severity in each window.
+     */
+    public static StatusSummary summarize(
+            Collection<StatusMessage> messages, long time, String name) {
+        SeverityCounters counters = new SeverityCounters();
+        for (StatusMessage message : messages) {
+            counters.add(message.getSeverity(), message.getTime(),
+                         message.getCount() == null ? 1 : message.getCount());
+        }
+        return counters.getSummary(time, name);
+    }
+
+    /**
+     * Sum the counts of several summaries. The worst severity is the worst
+     * of the summaries.
+     *
+     * @param summaries The summaries.
+     * @param time The current time.
+     * @param name The name of the sum.
+     * @return The sum.
+     */
+    public static StatusSummary sum(Collection<StatusSummary> summaries,
+                                    long time, String name) {
+        StatusSummary sum = new StatusSummary();
+        sum.setName(name);
+        sum.setTime(time);
+        sum.setWorstSeverity(Severity.GREEN);
+        for (int window : WINDOWS) {
+            for (Severity severity : SEVERITIES) {
+                sum.getCounts().add(newCount(severity, window, 0L));
+            }
+        }
+        for (StatusSummary summary : summaries) {
+            for (SeverityCount count : summary.getCounts()) {
+                for (SeverityCount total : sum.getCounts()) {
+                    if (total.getSeverity() == count.getSeverity()
+                            && total.getMinutes() == count.getMinutes()) {
+                        total.setCount(total.getCount() + count.getCount());
+                    }
+                }
+            }
+            Severity worst = summary.getWorstSeverity();
+            if (worst != null && !StatusPageBuilder.isAtLeast(
+                    sum.getWorstSeverity(), worst)) {
+                sum.setWorstSeverity(worst);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Create a count.
+     *
+     * @param severity The severity counted.
+     * @param minutes The window counted in.
+     * @param count The count.
+     * @return The count.
+     */
+    private static SeverityCount newCount(Severity severity, int minutes,
+                                          long count) {
+        SeverityCount severityCount = new SeverityCount();
+        severityCount.setSeverity(severity);
+        severityCount.setMinutes(minutes);
+        severityCount.setCount(count);
+        return severityCount;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveyable;
+
+import java.util.Iterator;
+
+/**
+ * Iterates over the messages of a status without holding them all in
+ * memory at once.
+ */
+public interface StatusIterator extends Iterator<StatusMessage> {
+    /**
+     * Get the name of the status.
+     *
+     * @return The name of the status. May be null.
+     */
+    String getName();
+
+    /**
+     * Get the high-water mark of the status, as returned by
+     * {@link SequencedSurveyable#getStatusAfter(long)}.
+     *
+     * @return The high-water mark. Null if the status has none.
+     */
+    Long getHighWaterMark();
+}
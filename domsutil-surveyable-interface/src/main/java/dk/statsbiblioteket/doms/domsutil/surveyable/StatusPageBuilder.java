@@ -0,0 +1,409 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveyable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Collects one page of status messages for a {@link StatusQuery}.
+ *
+ * Feed the builder the candidate messages in the order of the page, that is
+ * by time, oldest or newest first as the query asks. Messages with the same
+ * timestamp must come in the same order on every call, oldest first, also
+ * when the page is newest first. The builder skips messages outside the
+ * query, and tells when the page is full, so a surveyable can read its
+ * messages straight from an ordered structure, and stop as soon as the page
+ * is done.
+ *
+ * The builder also evaluates the filters of the query: a minimum severity,
+ * the end of the time window, text the message contains, a regular
+ * expression found in the message, and whether it is a log message. Messages
+ * without a severity count as below any minimum. Sources that copy messages
+ * before offering them can use {@link #matches(StatusMessage)} to copy only
+ * the matching ones.
+ *
+ * A continuation has the form <code>time:count</code>, where count is the
+ * number of messages with that timestamp already returned. Clients should
+ * treat it as opaque.
+ */
+public class StatusPageBuilder {
+    /** Only messages strictly newer than this are included. */
+    private final long since;
+
+    /** Max number of messages in the page, or null for no limit. */
+    private final Integer limit;
+
+    /** Whether the page is newest first. */
+    private final boolean newestFirst;
+
+    /** Messages below this severity are skipped. Null for all messages. */
+    private final Severity minSeverity;
+
+    /** Only messages strictly older than this are included. May be null. */
+    private final Long until;
+
+    /** Only messages containing this text are included. May be null. */
+    private final String messageContains;
+
+    /** Only messages where this is found are included. May be null. */
+    private final Pattern messagePattern;
+
+    /** Only log messages, or only other messages. Null for both. */
+    private final Boolean logMessage;
+
+    /** Whether the query continues a previous page. */
+    private final boolean continued;
+
+    /** Timestamp of the last message of the previous page. */
+    private final long continuationTime;
+
+    /** Number of messages with that timestamp already returned. */
+    private final int continuationCount;
+
+    /** The messages of the page. */
+    private final List<StatusMessage> messages = new ArrayList<StatusMessage>();
+
+    /** Number of messages skipped because they were already returned. */
+    private int skipped = 0;
+
+    /** Timestamp of the last message added. */
+    private long lastTime;
+
+    /**
+     * Number of messages with that timestamp returned, including earlier
+     * pages.
+     */
+    private int lastCount;
+
+    /** Whether there are more messages than fit in the page. */
+    private boolean hasMore = false;
+
+    /** Whether the page is done. */
+    private boolean done = false;
+
+    /**
+     * Start a page.
+     *
+     * @param query The query. Null for all messages, oldest first.
+     * @throws IllegalArgumentException if the limit is negative, or the
+     * continuation or the message pattern is invalid.
+     */
+    public StatusPageBuilder(StatusQuery query) {
+        if (query == null) {
+            query = new StatusQuery();
+        }
+        since = query.getSince() == null ? 0L : query.getSince();
+        limit = query.getLimit();
+        if (limit != null && limit < 0) {
+            throw new IllegalArgumentException(
+                    "Limit must not be negative: " + limit);
+        }
+        newestFirst = query.isNewestFirst() != null && query.isNewestFirst();
+        minSeverity = query.getMinSeverity();
+        until = query.getUntil();
+        messageContains = query.getMessageContains();
+        messagePattern = query.getMessagePattern() == null ? null
+                : Pattern.compile(query.getMessagePattern());
+        logMessage = query.isLogMessage();
+        String continuation = query.getContinuation();
+        continued = continuation != null && continuation.length() > 0;
+        if (continued) {
+            int colon = continuation.indexOf(':');
+            try {
+                continuationTime = Long.parseLong(
+                        continuation.substring(0, colon));
+                continuationCount = Integer.parseInt(
+                        continuation.substring(colon + 1));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException(
+                        "Invalid continuation '" + continuation + "'", e);
+            }
+        } else {
+            continuationTime = 0L;
+            continuationCount = 0;
+        }
+    }
+
+    /**
+     * Whether the page is newest first.
+     *
+     * @return True if newest first.
+     */
+    public boolean isNewestFirst() {
+        return newestFirst;
+    }
+
+    /**
+     * Get the lowest severity of messages in the page.
+     *
+     * @return The severity, or null if messages of all severities are
+     * included.
+     */
+    public Severity getMinSeverity() {
+        return minSeverity;
+    }
+
+    /**
+     * Get the time messages must be strictly older than.
+     *
+     * @return The time, or null if there is no such limit.
+     */
+    public Long getUntil() {
+        return until;
+    }
+
+    /**
+     * Whether a message matches the filters of the query, including the time
+     * window. This does not consider the continuation or the limit.
+     *
+     * @param message The message.
+     * @return True if the message matches.
+     */
+    public boolean matches(StatusMessage message) {
+        long time = message.getTime();
+        if (time <= since || (until != null && time >= until)) {
+            return false;
+        }
+        return matchesFilters(message);
+    }
+
+    /**
+     * Whether a message matches the filters of the query, apart from the
+     * time window.
+     *
+     * @param message The message.
+     * @return True if the message matches.
+     */
+    private boolean matchesFilters(StatusMessage message) {
+        if (!isAtLeast(message.getSeverity(), minSeverity)) {
+            return false;
+        }
+        if (logMessage != null && message.isLogMessage() != logMessage) {
+            return false;
+        }
+        if (messageContains == null && messagePattern == null) {
+            return true;
+        }
+        String text = message.getMessage();
+        if (text == null) {
+            return false;
+        }
+        return (messageContains == null || text.contains(messageContains))
+                && (messagePattern == null
+                    || messagePattern.matcher(text).find());
+    }
+
+    /**
+     * Whether a severity is at least a given minimum. Severities are ordered
+     * GREEN, YELLOW, RED.
+     *
+     * @param severity The severity. Null is below any minimum.
+     * @param minSeverity The minimum. Null for no minimum.
+     * @return True if the severity is at least the minimum.
+     */
+    public static boolean isAtLeast(Severity severity, Severity minSeverity) {
+        if (minSeverity == null) {
+            return true;
+        }
+        return severity != null && rank(severity) >= rank(minSeverity);
+    }
+
+    /**
+     * Get the rank of a severity.
+     *
+     * @param severity The severity.
+     * @return 0 for GREEN, 1 for YELLOW, 2 for RED.
+     */
+    private static int rank(Severity severity) {
+        switch (severity) {
+            case RED:
+                return 2;
+            case YELLOW:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Get the time messages must be strictly newer than.
+     *
+     * @return The time.
+     */
+    public long getSince() {
+        return since;
+    }
+
+    /**
+     * Whether the query continues a previous page.
+     *
+     * @return True if continued.
+     */
+    public boolean isContinued() {
+        return continued;
+    }
+
+    /**
+     * Get the timestamp the page continues from. The page starts at messages
+     * with this timestamp, if continued.
+     *
+     * @return The timestamp.
+     */
+    public long getContinuationTime() {
+        return continuationTime;
+    }
+
+    /**
+     * Offer the next candidate message.
+     *
+     * @param message The message.
+     * @return False if the page is done, and no more messages are needed.
+     */
+    public boolean add(StatusMessage message) {
+        if (done) {
+            return false;
+        }
+        long time = message.getTime();
+        if (time <= since) {
+            // Oldest first, newer messages may follow. Newest first, none.
+            done = newestFirst;
+            return !done;
+        }
+        if (until != null && time >= until) {
+            // Newest first, older messages may follow. Oldest first, none.
+            done = !newestFirst;
+            return !done;
+        }
+        if (!matchesFilters(message)) {
+            return true;
+        }
+        if (continued && (newestFirst ? time > continuationTime
+                : time < continuationTime)) {
+            return true;
+        }
+        if (continued && time == continuationTime
+                && skipped < continuationCount) {
+            skipped++;
+            return true;
+        }
+        if (limit != null && messages.size() >= limit) {
+            hasMore = true;
+            done = true;
+            return false;
+        }
+        if (!messages.isEmpty() && time == lastTime) {
+            lastCount++;
+        } else {
+            lastTime = time;
+            lastCount = continued && time == continuationTime
+                    ? continuationCount + 1 : 1;
+        }
+        messages.add(message);
+        return true;
+    }
+
+    /**
+     * Get the messages added so far.
+     *
+     * @return The messages of the page.
+     */
+    public List<StatusMessage> getMessages() {
+        return messages;
+    }
+
+    /**
+     * Mark that there are more messages than those offered, for instance
+     * because a source of messages was itself limited.
+     */
+    public void setHasMore() {
+        hasMore = true;
+    }
+
+    /**
+     * Make the page.
+     *
+     * @param name The name of the status.
+     * @return The status with the messages of the page. If there are more
+     * messages, hasMore is set, with a continuation for the next page.
+     */
+    public Status build(String name) {
+        Status status = new Status();
+        status.setName(name);
+        status.getMessages().addAll(messages);
+        status.setHasMore(hasMore);
+        if (hasMore) {
+            if (messages.isEmpty()) {
+                status.setContinuation(continued
+                        ? continuationTime + ":" + continuationCount : null);
+            } else {
+                status.setContinuation(lastTime + ":" + lastCount);
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Make a page from a status already in memory.
+     *
+     * @param status The status, with messages ordered by time, oldest first.
+     * @param query The query. Null for all messages, oldest first.
+     * @return The page.
+     * @throws IllegalArgumentException if the query is invalid.
+     */
+    public static Status page(Status status, StatusQuery query) {
+        StatusPageBuilder page = new StatusPageBuilder(query);
+        List<StatusMessage> all = status.getMessages();
+        if (!page.isNewestFirst()) {
+            for (StatusMessage message : all) {
+                if (!page.add(message)) {
+                    break;
+                }
+            }
+            return page.build(status.getName());
+        }
+        // Newest timestamp first, but messages with the same timestamp in
+        // their original order
+        int end = all.size();
+        while (end > 0) {
+            int start = end - 1;
+            long time = all.get(start).getTime();
+            while (start > 0 && all.get(start - 1).getTime() == time) {
+                start--;
+            }
+            for (int i = start; i < end; i++) {
+                if (!page.add(all.get(i))) {
+                    return page.build(status.getName());
+                }
+            }
+            end = start;
+        }
+        return page.build(status.getName());
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveyable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wakes up threads waiting for the status of a surveyable to change.
+ *
+ * Signalling is cheap when nobody is waiting: a single volatile read, and
+ * no locking. Waiters register before checking their condition, so a signal
+ * sent after the change they wait for is never missed.
+ */
+public class StatusSignal {
+    /** Number of threads waiting. */
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /** Incremented by each signal with threads waiting. Guarded by this. */
+    private long generation = 0L;
+
+    /** A condition to wait for. */
+    public interface Condition {
+        /**
+         * Check the condition. Must not hold any lock taken by the code
+         * calling {@link StatusSignal#signal()}.
+         *
+         * @return True if the condition is met.
+         */
+        boolean isMet();
+    }
+
+    /**
+     * Wake up all waiting threads, so they check their condition again.
+     * Call this after changing the status.
+     */
+    public void signal() {
+        if (waiting.get() == 0) {
+            return;
+        }
+        synchronized (this) {
+            generation++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait until the condition is met, or the timeout expires. The condition
+     * is checked once before waiting, and again after each signal.
+     *
+     * @param condition The condition to wait for.
+     * @param timeout Max milliseconds to wait.
+     * @return True if the condition is met, false on timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean await(Condition condition, long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        waiting.incrementAndGet();
+        try {
+            while (true) {
+                long seen;
+                synchronized (this) {
+                    seen = generation;
+                }
+                if (condition.isMet()) {
+                    return true;
+                }
+                synchronized (this) {
+                    long remaining;
+                    while (generation == seen) {
+                        remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        wait(remaining);
+                    }
+                }
+            }
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveyable;
+
+/**
+ * A surveyable that can deliver its status messages one at a time, so a
+ * large status can be serialized without being held in memory.
+ */
+public interface StreamingSurveyable extends Surveyable {
+    /**
+     * Iterate over all status messages newer than the given time. Iterating
+     * must not block writers of the messages for longer than it takes to
+     * read a small batch of messages.
+     *
+     * @param time Only iterate messages strictly newer than this timestamp.
+     * @return Iterator over the messages, ordered by time as far as the
+     * surveyable orders them. Never null.
+     */
+    StatusIterator iterateStatusSince(long time);
+}
@@ -0,0 +1,102 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveyable;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to without contending on a single
+ * value.
+ *
+ * The count is split into stripes, and each thread adds to the stripe
+ * chosen by its id. The stripes are spread a cache line apart, so threads
+ * on different stripes do not invalidate each other's caches. Reading the
+ * count adds up the stripes, so it is slower than adding, and not an atomic
+ * snapshot while other threads are adding.
+ */
+public class StripedCounter {
+    /** Longs between stripes, so each stripe has its own cache line. */
+    private static final int SPACING = 8;
+
+    /** Number of stripes. A power of two. */
+    static final int STRIPES = stripes();
+
+    /** The stripes, SPACING longs apart. */
+    private final AtomicLongArray values
+            = new AtomicLongArray(STRIPES * SPACING);
+
+    /**
+     * Add to the count.
+     *
+     * @param delta The amount to add.
+     */
+    public void add(long delta) {
+        values.addAndGet(stripe() * SPACING, delta);
+    }
+
+    /** Add one to the count. */
+    public void increment() {
+        add(1L);
+    }
+
+    /**
+     * Get the count.
+     *
+     * @return The sum of the stripes.
+     */
+    public long get() {
+        long sum = 0L;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += values.get(i * SPACING);
+        }
+        return sum;
+    }
+
+    /**
+     * Get the stripe of the current thread.
+     *
+     * @return A number from 0 to STRIPES - 1.
+     */
+    static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ id >>> 16) & (STRIPES - 1);
+    }
+
+    /**
+     * Get the number of stripes to use: the lowest power of two at least
+     * twice the number of processors, and at most 64.
+     *
+     * @return The number of stripes.
+     */
+    private static int stripes() {
+        int wanted = Math.min(64,
+                              2 * Runtime.getRuntime().availableProcessors());
+        int stripes = Integer.highestOneBit(wanted);
+        return stripes < wanted ? stripes << 1 : stripes;
+    }
+}
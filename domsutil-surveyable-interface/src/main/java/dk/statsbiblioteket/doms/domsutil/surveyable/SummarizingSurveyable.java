@@ -0,0 +1,49 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.domsutil.surveyable;
+
+/**
+ * A surveyable that counts its status messages as they arrive, so callers
+ * can get the counts without reading the messages.
+ *
+ * Callers of surveyables that do not count their messages can count the
+ * messages of {@link Surveyable#getStatus()} with
+ * {@link SeverityCounters#summarize(java.util.Collection, long, String)}
+ * instead.
+ */
+public interface SummarizingSurveyable extends Surveyable {
+    /**
+     * Get the number of status messages of each severity in the last 1, 5
+     * and 15 minutes, and the worst severity in the last minute. The counts
+     * are kept as messages arrive, in buckets of one minute, so the window
+     * of n minutes covers the current minute and the n - 1 minutes before
+     * it. The messages themselves are not read.
+     *
+     * @return The counts. Never null.
+     */
+    StatusSummary getSummary();
+}
@@ -0,0 +1,44 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dk.statsbiblioteket.doms.domsutil.surveyable;
+
+/**
+ * A surveyable that can tell cheaply whether its status has changed.
+ *
+ * Callers may cache the status reported by the surveyable, and reuse it for
+ * as long as the version stays the same.
+ */
+public interface VersionedSurveyable extends Surveyable {
+    /**
+     * Get the version of the status reported by this surveyable. The version
+     * changes whenever the status changes, and must be cheap to get.
+     *
+     * @return The current version, or a negative number if the version is
+     * not known right now, in which case the status must not be cached.
+     */
+    long getVersion();
+}
@@ -0,0 +1,59 @@
+/*
+ * $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The DOMS project.
+ * Copyright (C) 2007-2011  The State and University Library
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package dk.statsbiblioteket.doms.domsutil.surveyable;
+
+/**
+ * A surveyable that can wait for new status messages, so clients can
+ * long-poll instead of polling repeatedly.
+ */
+public interface WaitableSurveyable extends Surveyable {
+    /**
+     * Wait until there are status messages newer than the given time, or
+     * the timeout expires.
+     *
+     * @param time Wait for messages strictly newer than this timestamp.
+     * @param timeout Max milliseconds to wait.
+     * @return True if there are newer messages, false on timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean awaitStatusSince(long time, long timeout)
+            throws InterruptedException;
+
+    /**
+     * Wait until there are status messages with a sequence number higher
+     * than the given one, or the timeout expires.
+     *
+     * @param sequence Wait for messages with a higher sequence number.
+     * @param timeout Max milliseconds to wait.
+     * @return True if there are newer messages, false on timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     * @see SequencedSurveyable#getStatusAfter(long)
+     */
+    boolean awaitStatusAfter(long sequence, long timeout)
+            throws InterruptedException;
+}